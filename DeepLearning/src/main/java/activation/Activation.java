@@ -1,5 +1,6 @@
 package activation;
 
+import tensor.ElementwiseFunction;
 import tensor.Tensor;
 import tensor.Tensor2D;
 
@@ -32,20 +33,38 @@ public class Activation {
         }
     }
     
+    /**
+     * @return The function as an ElementwiseFunction, which can be fused
+     * into other kernels, or null if it is not element-wise (Softmax)
+     */
+    public ElementwiseFunction elementwise() {
+        switch(type) {
+            case Linear:
+                return ElementwiseFunction.IDENTITY;
+            case ReLU:
+                return ElementwiseFunction.RELU;
+            case Sigmoid:
+                return ElementwiseFunction.SIGMOID;
+            case Tanh:
+                return ElementwiseFunction.TANH;
+            default:
+                return null;
+        }
+    }
+    
     public Tensor derivateApply(Tensor dInput, Tensor cacheZ) {
         switch(type) {
             case Linear:
                 return dInput;
             case ReLU:
                 // Compute dA * (cacheZ >= 0)
-                var mask = cacheZ.atLeast(Tensor2D.constant(0.0));
-                return dInput.multiply(mask);
+                return dInput.combine(cacheZ, (d, z) -> z >= 0.0 ? d : 0.0);
             case Sigmoid:
                 // Compute dA * [sigma * (1 - sigma)] with element-wise *
-                var temp = cacheZ.sigmoid();
-                var sigmoidDerivative = temp
-                        .multiply(Tensor2D.one().subtract(temp));
-                return dInput.multiply(sigmoidDerivative);
+                return dInput.combine(cacheZ, (d, z) -> {
+                    double sigma = 1.0 / (1.0 + Math.exp(-z));
+                    return d * (sigma * (1.0 - sigma));
+                });
             case Softmax:
                 throw new UnsupportedOperationException("Type: " + type + " is not yet supported.");
             case Tanh:
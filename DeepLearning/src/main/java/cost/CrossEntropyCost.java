@@ -1,7 +1,6 @@
 package cost;
 
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * Computes cross entropy cost and cost derivative
@@ -20,14 +19,9 @@ public class CrossEntropyCost implements Cost {
     public double computeCost(Tensor prediction, Tensor groundTruth) {
         var m = prediction.mDim();
         
-        var oneMinusPrediction = Tensor2D.one().subtract(prediction);
-        var oneMinusTruth = Tensor2D.one().subtract(groundTruth);
-        
-        var costTerms = groundTruth.multiply(prediction.log())
-                .add(oneMinusTruth.multiply(oneMinusPrediction.log()));
-        var totalCost = costTerms.allSum();
-        var averageCost = totalCost.multiply(Tensor2D.constant(-1.0 / m));
-        return averageCost.value(0, 0);
+        var costTerms = groundTruth.combine(prediction,
+                (y, p) -> y * Math.log(p) + (1.0 - y) * Math.log(1.0 - p));
+        return costTerms.sum() * (-1.0 / m);
     }
     
     /**
@@ -41,11 +35,8 @@ public class CrossEntropyCost implements Cost {
      */
     @Override
     public Tensor computeCostDerivative(Tensor prediction, Tensor groundTruth) {
-        var oneMinusPrediction = Tensor2D.one().subtract(prediction);
-        var oneMinusTruth = Tensor2D.one().subtract(groundTruth);
-        
-        var derivatives = oneMinusTruth.divideBy(oneMinusPrediction)
-                .subtract(groundTruth.divideBy(prediction));
+        var derivatives = groundTruth.combine(prediction,
+                (y, p) -> (1.0 - y) / (1.0 - p) - y / p);
         
         return derivatives;
     }
@@ -1,7 +1,6 @@
 package cost;
 
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * @author tyler
@@ -12,11 +11,8 @@ public class LeastSquaresCost implements Cost {
     public double computeCost(Tensor prediction, Tensor groundTruth) {
         var m = prediction.mDim();
         
-        var costTerms = prediction.subtract(groundTruth)
-                .power(Tensor2D.constant(2.0));
-        var totalCost = costTerms.allSum();
-        var averageCost = totalCost.multiply(Tensor2D.constant(0.5 / m));
-        return averageCost.value(0, 0);
+        var costTerms = prediction.combine(groundTruth, (p, y) -> (p - y) * (p - y));
+        return costTerms.sum() * (0.5 / m);
     }
 
     @Override
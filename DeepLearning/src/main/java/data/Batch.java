@@ -0,0 +1,47 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.List;
+import tensor.Tensor;
+
+/**
+ * A batch of examples drawn from a DataSource.
+ * 
+ * Both Tensors hold one example per row.
+ * 
+ * @author tyler
+ */
+public class Batch {
+    public final Tensor features;
+    public final Tensor labels;
+    
+    public Batch(Tensor features, Tensor labels) {
+        if (features.mDim() != labels.mDim()) {
+            throw new IllegalArgumentException("Features and labels must have the same number of rows.");
+        }
+        this.features = features;
+        this.labels = labels;
+    }
+    
+    public int size() {
+        return features.mDim();
+    }
+    
+    static int elementCount(List<Integer> exampleShape) {
+        int count = 1;
+        for (int dim : exampleShape) {
+            count *= dim;
+        }
+        return count;
+    }
+    
+    /**
+     * @return The shape of a batch of count examples of the given shape
+     */
+    static List<Integer> shape(int count, List<Integer> exampleShape) {
+        var shape = new ArrayList<Integer>();
+        shape.add(count);
+        shape.addAll(exampleShape);
+        return shape;
+    }
+}
@@ -0,0 +1,17 @@
+package data;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over one pass of a DataSource, one batch at a time.
+ * 
+ * Iterators may hold resources such as open files, so they should be closed
+ * when the pass is finished or abandoned.
+ * 
+ * @author tyler
+ */
+public interface BatchIterator extends Iterator<Batch>, AutoCloseable {
+    
+    @Override
+    public void close();
+}
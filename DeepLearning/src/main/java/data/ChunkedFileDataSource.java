@@ -0,0 +1,178 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * A DataSource which streams examples from a sequence of chunk files.
+ * 
+ * Each chunk file holds a row count followed by that many examples. Each
+ * example is its features then its labels, stored as big-endian doubles.
+ * Chunks are read sequentially through a buffered stream, so only one batch
+ * is held in memory at a time, whatever the total size of the files.
+ * 
+ * @author tyler
+ */
+public class ChunkedFileDataSource implements DataSource {
+    private final List<Path> chunks;
+    private final List<Integer> featureShape;
+    private final List<Integer> labelShape;
+    private final long size;
+    
+    /**
+     * @param chunks Chunk files, in the order they should be read
+     * @param featureShape Shape of one example's features
+     * @param labelShape Shape of one example's labels
+     */
+    public ChunkedFileDataSource(List<Path> chunks, List<Integer> featureShape, List<Integer> labelShape) {
+        this.chunks = new ArrayList<>(chunks);
+        this.featureShape = new ArrayList<>(featureShape);
+        this.labelShape = new ArrayList<>(labelShape);
+        
+        long total = 0;
+        for (var chunk : chunks) {
+            try (var input = new DataInputStream(Files.newInputStream(chunk))) {
+                total += input.readInt();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read chunk " + chunk, e);
+            }
+        }
+        size = total;
+    }
+    
+    /**
+     * Writes Tensors of features and labels as a chunk file.
+     * 
+     * @param path
+     * @param features One example per row
+     * @param labels One example per row
+     */
+    public static void writeChunk(Path path, Tensor features, Tensor labels) {
+        int m = features.mDim();
+        if (labels.mDim() != m) {
+            throw new IllegalArgumentException("Features and labels must have the same number of rows.");
+        }
+        double[] featureValues = features.toArray();
+        double[] labelValues = labels.toArray();
+        int featureLength = featureValues.length / m;
+        int labelLength = labelValues.length / m;
+        
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            output.writeInt(m);
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < featureLength; j++) {
+                    output.writeDouble(featureValues[i * featureLength + j]);
+                }
+                for (int j = 0; j < labelLength; j++) {
+                    output.writeDouble(labelValues[i * labelLength + j]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write chunk " + path, e);
+        }
+    }
+
+    @Override
+    public BatchIterator batches(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        int featureLength = Batch.elementCount(featureShape);
+        int labelLength = Batch.elementCount(labelShape);
+        
+        return new BatchIterator() {
+            private long position = 0;
+            private int chunkIndex = -1;
+            private int remainingInChunk = 0;
+            private DataInputStream input;
+            
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public Batch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int count = (int) Math.min(batchSize, size - position);
+                double[] features = new double[count * featureLength];
+                double[] labels = new double[count * labelLength];
+                try {
+                    for (int i = 0; i < count; i++) {
+                        while (remainingInChunk == 0) {
+                            openNextChunk();
+                        }
+                        for (int j = 0; j < featureLength; j++) {
+                            features[i * featureLength + j] = input.readDouble();
+                        }
+                        for (int j = 0; j < labelLength; j++) {
+                            labels[i * labelLength + j] = input.readDouble();
+                        }
+                        remainingInChunk--;
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException("Could not read chunk " + chunks.get(Math.max(chunkIndex, 0)), e);
+                }
+                position += count;
+                if (position == size) {
+                    close();
+                }
+                
+                return new Batch(
+                        TensorBuilder.buildFromShapeAndValues(Batch.shape(count, featureShape), features),
+                        TensorBuilder.buildFromShapeAndValues(Batch.shape(count, labelShape), labels));
+            }
+            
+            private void openNextChunk() throws IOException {
+                close();
+                chunkIndex++;
+                input = new DataInputStream(new BufferedInputStream(
+                        Files.newInputStream(chunks.get(chunkIndex))));
+                remainingInChunk = input.readInt();
+            }
+
+            @Override
+            public void close() {
+                if (input == null) {
+                    return;
+                }
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    input = null;
+                }
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public List<Integer> featureShape() {
+        return new ArrayList<>(featureShape);
+    }
+
+    @Override
+    public List<Integer> labelShape() {
+        return new ArrayList<>(labelShape);
+    }
+}
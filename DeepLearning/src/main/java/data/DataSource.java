@@ -0,0 +1,39 @@
+package data;
+
+import java.util.List;
+
+/**
+ * A dataset which can be read incrementally, in batches.
+ * 
+ * Only the current batch needs to be resident, so the dataset itself may be
+ * much larger than the heap.
+ * 
+ * @author tyler
+ */
+public interface DataSource {
+    
+    /**
+     * Starts a new pass over the data.
+     * 
+     * @param batchSize Maximum number of examples per batch
+     * @return An iterator over the batches of this pass
+     */
+    public BatchIterator batches(int batchSize);
+    
+    /**
+     * @return The total number of examples in one pass
+     */
+    public long size();
+    
+    /**
+     * @return The shape of a single example's features, without the example
+     * dimension
+     */
+    public List<Integer> featureShape();
+    
+    /**
+     * @return The shape of a single example's labels, without the example
+     * dimension
+     */
+    public List<Integer> labelShape();
+}
@@ -0,0 +1,22 @@
+package data;
+
+/**
+ * Produces a single example on demand.
+ * 
+ * @author tyler
+ */
+@FunctionalInterface
+public interface ExampleGenerator {
+    
+    /**
+     * Writes the features and labels of one example.
+     * 
+     * Generators should be deterministic in index, so every pass over a
+     * GeneratedDataSource sees the same data.
+     * 
+     * @param index Index of the example within the pass
+     * @param features Array to fill with the example's features, row-major
+     * @param labels Array to fill with the example's labels, row-major
+     */
+    public void generate(long index, double[] features, double[] labels);
+}
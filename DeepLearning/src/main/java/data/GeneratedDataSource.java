@@ -0,0 +1,94 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import tensor.TensorBuilder;
+
+/**
+ * A DataSource whose examples are computed on demand by an ExampleGenerator.
+ * 
+ * Nothing is stored beyond the current batch.
+ * 
+ * @author tyler
+ */
+public class GeneratedDataSource implements DataSource {
+    private final long size;
+    private final List<Integer> featureShape;
+    private final List<Integer> labelShape;
+    private final ExampleGenerator generator;
+    
+    /**
+     * @param size Number of examples in one pass
+     * @param featureShape Shape of one example's features
+     * @param labelShape Shape of one example's labels
+     * @param generator 
+     */
+    public GeneratedDataSource(long size, List<Integer> featureShape, List<Integer> labelShape,
+            ExampleGenerator generator) {
+        this.size = size;
+        this.featureShape = new ArrayList<>(featureShape);
+        this.labelShape = new ArrayList<>(labelShape);
+        this.generator = generator;
+    }
+
+    @Override
+    public BatchIterator batches(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        int featureLength = Batch.elementCount(featureShape);
+        int labelLength = Batch.elementCount(labelShape);
+        
+        return new BatchIterator() {
+            private long position = 0;
+            private final double[] exampleFeatures = new double[featureLength];
+            private final double[] exampleLabels = new double[labelLength];
+            
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public Batch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int count = (int) Math.min(batchSize, size - position);
+                double[] features = new double[count * featureLength];
+                double[] labels = new double[count * labelLength];
+                for (int i = 0; i < count; i++) {
+                    generator.generate(position + i, exampleFeatures, exampleLabels);
+                    System.arraycopy(exampleFeatures, 0, features, i * featureLength, featureLength);
+                    System.arraycopy(exampleLabels, 0, labels, i * labelLength, labelLength);
+                }
+                position += count;
+                
+                return new Batch(
+                        TensorBuilder.buildFromShapeAndValues(Batch.shape(count, featureShape), features),
+                        TensorBuilder.buildFromShapeAndValues(Batch.shape(count, labelShape), labels));
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release.
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public List<Integer> featureShape() {
+        return new ArrayList<>(featureShape);
+    }
+
+    @Override
+    public List<Integer> labelShape() {
+        return new ArrayList<>(labelShape);
+    }
+}
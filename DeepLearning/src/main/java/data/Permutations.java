@@ -0,0 +1,44 @@
+package data;
+
+import java.util.Random;
+
+/**
+ * Seeded random permutations of example indices, shared by the shuffling
+ * DataSources and NeuralNetwork.train.
+ * 
+ * @author tyler
+ */
+public final class Permutations {
+    
+    private Permutations() {
+    }
+    
+    /**
+     * @param n Number of indices
+     * @param random Source of the permutation
+     * @return The indices 0 to n - 1 in random order
+     */
+    public static int[] random(int n, Random random) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        shuffle(order, random);
+        return order;
+    }
+    
+    /**
+     * Fisher-Yates shuffle of an index permutation, in place.
+     * 
+     * @param order
+     * @param random 
+     */
+    public static void shuffle(int[] order, Random random) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = order[i];
+            order[i] = order[j];
+            order[j] = temp;
+        }
+    }
+}
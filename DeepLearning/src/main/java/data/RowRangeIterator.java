@@ -0,0 +1,62 @@
+package data;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Batches of consecutive rows of a file-backed DataSource, read either in
+ * stored order or through a permutation of the rows.
+ * 
+ * The files stay open until the source is closed, so closing the iterator
+ * releases nothing.
+ * 
+ * @author tyler
+ */
+abstract class RowRangeIterator implements BatchIterator {
+    private final int rows;
+    private final int batchSize;
+    private final int[] permutation;
+    private int position = 0;
+    
+    /**
+     * @param rows Number of rows in one pass
+     * @param batchSize Maximum number of rows per batch
+     * @param permutation Order in which to visit the rows, or null for the
+     * stored order
+     */
+    RowRangeIterator(int rows, int batchSize, int[] permutation) {
+        this.rows = rows;
+        this.batchSize = batchSize;
+        this.permutation = permutation;
+    }
+    
+    /**
+     * @return A batch of the stored rows from to to
+     */
+    abstract Batch rows(int from, int to);
+    
+    /**
+     * @return A batch of the rows indices[from] to indices[to - 1]
+     */
+    abstract Batch gatherRows(int[] indices, int from, int to);
+    
+    @Override
+    public boolean hasNext() {
+        return position < rows;
+    }
+
+    @Override
+    public Batch next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int end = Math.min(position + batchSize, rows);
+        var batch = permutation == null ? rows(position, end) : gatherRows(permutation, position, end);
+        position = end;
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        // The files stay open until the source is closed.
+    }
+}
@@ -0,0 +1,103 @@
+package data;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import tensor.SparseTensorFile;
+import tensor.TensorFile;
+
+/**
+ * A DataSource over a memory-mapped sparse feature file and a memory-mapped
+ * Tensor file of labels.
+ *
+ * Feature batches are SparseTensor2D copied straight out of the mapped CSR
+ * file, so wide one-hot or bag-of-words inputs stay sparse from disk to
+ * FullyConnected.
+ *
+ * @author tyler
+ */
+public class SparseFileDataSource implements DataSource, AutoCloseable {
+    private final SparseTensorFile features;
+    private final TensorFile labels;
+    private final Random random;
+
+    /**
+     * Maps the files and visits the examples in their stored order.
+     *
+     * @param featuresPath Sparse Tensor file with one example per row
+     * @param labelsPath Tensor file with one label per row
+     */
+    public SparseFileDataSource(Path featuresPath, Path labelsPath) {
+        this(featuresPath, labelsPath, null);
+    }
+
+    /**
+     * Maps the files and shuffles the examples on every pass.
+     *
+     * @param featuresPath Sparse Tensor file with one example per row
+     * @param labelsPath Tensor file with one label per row
+     * @param seed Seed for the shuffling permutations
+     */
+    public SparseFileDataSource(Path featuresPath, Path labelsPath, long seed) {
+        this(featuresPath, labelsPath, new Random(seed));
+    }
+
+    private SparseFileDataSource(Path featuresPath, Path labelsPath, Random random) {
+        features = SparseTensorFile.open(featuresPath);
+        try {
+            labels = TensorFile.open(labelsPath);
+        } catch (RuntimeException e) {
+            features.close();
+            throw e;
+        }
+        if (features.rows() != labels.rows()) {
+            close();
+            throw new IllegalArgumentException("Features and labels must have the same number of rows.");
+        }
+        this.random = random;
+    }
+
+    @Override
+    public BatchIterator batches(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        int[] permutation = random == null ? null : Permutations.random(features.rows(), random);
+        return new RowRangeIterator(features.rows(), batchSize, permutation) {
+            @Override
+            Batch rows(int from, int to) {
+                return new Batch(features.rows(from, to), labels.rows(from, to));
+            }
+
+            @Override
+            Batch gatherRows(int[] indices, int from, int to) {
+                return new Batch(features.gatherRows(indices, from, to), labels.gatherRows(indices, from, to));
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        return features.rows();
+    }
+
+    @Override
+    public List<Integer> featureShape() {
+        return features.shape().subList(1, 2);
+    }
+
+    @Override
+    public List<Integer> labelShape() {
+        var shape = labels.shape();
+        return shape.subList(1, shape.size());
+    }
+
+    @Override
+    public void close() {
+        try {
+            features.close();
+        } finally {
+            labels.close();
+        }
+    }
+}
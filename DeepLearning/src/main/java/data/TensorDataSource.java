@@ -0,0 +1,110 @@
+package data;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import tensor.Tensor;
+
+/**
+ * A DataSource over Tensors which are already in memory.
+ * 
+ * Each pass can optionally visit the examples in a new random order. Only
+ * the rows of the current batch are copied.
+ * 
+ * @author tyler
+ */
+public class TensorDataSource implements DataSource {
+    private final Tensor features;
+    private final Tensor labels;
+    private final Random random;
+    
+    /**
+     * Creates a source which visits the examples in their original order.
+     * 
+     * @param features
+     * @param labels 
+     */
+    public TensorDataSource(Tensor features, Tensor labels) {
+        this(features, labels, null);
+    }
+    
+    /**
+     * Creates a source which shuffles the examples on every pass.
+     * 
+     * @param features
+     * @param labels
+     * @param seed Seed for the shuffling permutations
+     */
+    public TensorDataSource(Tensor features, Tensor labels, long seed) {
+        this(features, labels, new Random(seed));
+    }
+    
+    private TensorDataSource(Tensor features, Tensor labels, Random random) {
+        if (features.mDim() != labels.mDim()) {
+            throw new IllegalArgumentException("Features and labels must have the same number of rows.");
+        }
+        this.features = features;
+        this.labels = labels;
+        this.random = random;
+    }
+
+    @Override
+    public BatchIterator batches(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        int m = features.mDim();
+        int[] order;
+        if (random != null) {
+            order = Permutations.random(m, random);
+        } else {
+            order = new int[m];
+            for (int i = 0; i < m; i++) {
+                order[i] = i;
+            }
+        }
+        
+        return new BatchIterator() {
+            private int position = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return position < m;
+            }
+
+            @Override
+            public Batch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int end = Math.min(position + batchSize, m);
+                var batch = new Batch(features.gatherRows(order, position, end),
+                        labels.gatherRows(order, position, end));
+                position = end;
+                return batch;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release.
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        return features.mDim();
+    }
+
+    @Override
+    public List<Integer> featureShape() {
+        var shape = features.shape();
+        return shape.subList(1, shape.size());
+    }
+
+    @Override
+    public List<Integer> labelShape() {
+        var shape = labels.shape();
+        return shape.subList(1, shape.size());
+    }
+}
@@ -1,23 +1,34 @@
 package layer;
 
-import java.util.Map;
 import tensor.Tensor;
 
 /**
  * Basic encapsulation object for the backward propagation of a single layer.
  * 
  * dA represents the values passed back to the previous layer
- * dParameters is a map containing computed derivative terms relevant for
- * updating the parameters of this layer.
+ * dParameters contains computed derivative terms relevant for updating the
+ * parameters of this layer, indexed by parameter ID. Parameter IDs are
+ * defined by the layer and run from 0 to the number of parameters - 1.
  * 
  * @author tyler
  */
 public class BackPropResult {
+    private static final Tensor[] NO_PARAMETERS = new Tensor[0];
+    
     public final Tensor dA;
-    public final Map<String, Tensor> dParameters;
+    public final Tensor[] dParameters;
     
-    public BackPropResult(Tensor dA, Map<String, Tensor> dParameters) {
+    public BackPropResult(Tensor dA, Tensor... dParameters) {
         this.dA = dA;
         this.dParameters = dParameters;
     }
+    
+    /**
+     * Result for layers without parameters.
+     * 
+     * @param dA 
+     */
+    public BackPropResult(Tensor dA) {
+        this(dA, NO_PARAMETERS);
+    }
 }
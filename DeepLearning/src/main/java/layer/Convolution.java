@@ -0,0 +1,267 @@
+package layer;
+
+import activation.Activation;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import optimize.Optimizer;
+import regularize.Regularizer;
+import tensor.ConvolutionKernels;
+import tensor.Precision;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorBuilder;
+
+/**
+ * 2D convolution layer for Tensor4D inputs.
+ *
+ * Inputs are m x height x width x channels, and outputs are
+ * m x out height x out width x filters. Each filter spans every input
+ * channel, over a window whose size, stride and padding along the height
+ * and width are given as for Pool. Padding is filled with zeros.
+ *
+ * The convolution is lowered to matrix products: the input windows are
+ * copied into the rows of a matrix (im2col), which is multiplied by the
+ * kernel. Backward propagation uses the transposed products, and col2im to
+ * add the window derivatives back onto the input.
+ *
+ * @author tyler
+ */
+public class Convolution implements Layer {
+    // Cache slots
+    public static final int COLUMNS = 0;
+    public static final int PRE_ACTIVATION = 1;
+    public static final int OLD_ACTIVATION = 2;
+
+    // Parameter IDs
+    public static final int D_KERNEL = 0;
+    public static final int D_BIAS = 1;
+
+    // State names
+    public static final String KERNEL = "K";
+    public static final String BIAS = "b";
+
+    private final Activation activation;
+    private final int channels;
+    private final int filters;
+    private final int[] size;
+    private final int[] stride;
+    private final int[] padding;
+
+    // Each column holds the weights of one filter, over its window in
+    // height, width, channel order.
+    private Tensor2D kernel;
+    private Tensor2D bias;
+
+    // Parameters, indexed by parameter ID.
+    private final Tensor[] parameters;
+
+    /**
+     * @param activation
+     * @param filters Number of filters, which is the number of output channels
+     * @param channels Number of input channels
+     * @param size Window height and width
+     * @param stride Window stride along the height and width
+     * @param padding Zero padding added on each side of the height and width
+     */
+    public Convolution(Activation activation, int filters, int channels,
+            List<Integer> size, List<Integer> stride, List<Integer> padding) {
+        if (size.size() != 2 || stride.size() != 2 || padding.size() != 2) {
+            throw new IllegalArgumentException("Convolution size, stride and padding need 2 dimensions.");
+        }
+        this.activation = activation;
+        this.channels = channels;
+        this.filters = filters;
+        this.size = size.stream().mapToInt(Integer::intValue).toArray();
+        this.stride = stride.stream().mapToInt(Integer::intValue).toArray();
+        this.padding = padding.stream().mapToInt(Integer::intValue).toArray();
+
+        kernel = TensorBuilder.heInitialization(this.size[0] * this.size[1] * channels, filters);
+        bias = new Tensor2D(1, filters);
+        parameters = new Tensor[]{kernel, bias};
+    }
+
+    /**
+     * Copies the parameters of source. The window settings, which never
+     * change, are shared.
+     */
+    private Convolution(Convolution source) {
+        activation = source.activation;
+        channels = source.channels;
+        filters = source.filters;
+        size = source.size;
+        stride = source.stride;
+        padding = source.padding;
+        kernel = source.kernel.copy();
+        bias = source.bias.copy();
+        parameters = new Tensor[]{kernel, bias};
+    }
+
+    /**
+     * Computes the activations of every filter at every window of x.
+     *
+     * As for FullyConnected, element-wise activations are fused with the
+     * product and bias. Outside of training, this is infer, and no cache is
+     * kept.
+     *
+     * @param x m x height x width x channels input
+     * @param training Whether the network is currently being trained
+     * @return Returns the post-activation output, caching the input windows,
+     * the pre-activation output and the input
+     */
+    @Override
+    public ForwardPropResult forwardPropagate(Tensor x, boolean training) {
+        if (!training) {
+            return new ForwardPropResult(infer(x));
+        }
+        var outputShape = outputShape(x);
+        var columns = ConvolutionKernels.im2col(x, size, stride, padding);
+        var function = activation.elementwise();
+        Tensor z;
+        Tensor a;
+        if (function == null) {
+            z = columns.matrixMultiply(kernel).addInPlace(bias);
+            a = activation.apply(z);
+        } else {
+            var zBuffer = new Tensor2D(columns.nrows, filters, kernel.precision());
+            a = columns.multiplyAddApply(kernel, bias, function, zBuffer);
+            z = zBuffer;
+        }
+
+        return new ForwardPropResult(TensorBuilder.reshape(a, outputShape), columns, z, x);
+    }
+
+    /**
+     * Computes the activations without keeping the input windows or z.
+     *
+     * @param x
+     * @return
+     */
+    @Override
+    public Tensor infer(Tensor x) {
+        var outputShape = outputShape(x);
+        var columns = ConvolutionKernels.im2col(x, size, stride, padding);
+        var function = activation.elementwise();
+        Tensor a;
+        if (function == null) {
+            a = activation.apply(columns.matrixMultiply(kernel).addInPlace(bias));
+        } else {
+            a = columns.multiplyAddApply(kernel, bias, function, null);
+        }
+        return TensorBuilder.reshape(a, outputShape);
+    }
+
+    private List<Integer> outputShape(Tensor x) {
+        var shape = x.shape();
+        if (shape.size() != 4 || shape.get(3) != channels) {
+            throw new IllegalArgumentException("Convolution input must be a Tensor4D with "
+                    + channels + " channels.");
+        }
+        return ConvolutionKernels.outputShape(shape, filters, size, stride, padding);
+    }
+
+    /**
+     * Computes derivatives needed for backward propagation in previous layers.
+     *
+     * With X the input windows, one per row, and dZ the derivatives at each
+     * output position, one per row:
+     * dK = 1/m * X^T*dZ
+     * db = 1/m * dZ.columnSum
+     * dX = dZ*K^T, which col2im adds back onto the input
+     *
+     * @param dA
+     * @param cache Activation values, as output by forwardPropagate
+     * @return
+     */
+    @Override
+    public BackPropResult backwardPropagate(Tensor dA, ForwardPropResult cache) {
+        var columns = (Tensor2D) cache.cache[COLUMNS];
+        var z = cache.cache[PRE_ACTIVATION];
+        var inputShape = cache.cache[OLD_ACTIVATION].shape();
+        if (dA.size() != columns.nrows * filters) {
+            throw new IllegalArgumentException("Convolution derivatives of shape " + dA.shape()
+                    + " do not match its output.");
+        }
+        // Derivatives are averaged over examples, and summed over positions.
+        var factor = 1.0 / inputShape.get(0);
+
+        var dA2D = TensorBuilder.reshape(dA, List.of(columns.nrows, filters));
+        var dZ = (Tensor2D) activation.derivateApply(dA2D, z);
+
+        var db = new Tensor2D(1, filters, kernel.precision());
+        var dK = columns.matrixMultiply(dZ, true, false, factor, db);
+
+        var dColumns = dZ.matrixMultiply(kernel, false, true);
+        var daPrev = ConvolutionKernels.col2im(dColumns, inputShape, size, stride, padding);
+
+        return new BackPropResult(daPrev, dK, db);
+    }
+
+    @Override
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r) {
+        // Regularization uses the kernel from before this update.
+        r.regularizeInPlace(kernel);
+        kernel.addInPlace(deltaParameters[D_KERNEL]);
+        bias.addInPlace(deltaParameters[D_BIAS]);
+    }
+
+    @Override
+    public void optimize(Optimizer optimizer, Tensor[] dParameters, int identifier, Regularizer r) {
+        // Regularization uses the kernel from before this update.
+        r.regularizeInPlace(kernel);
+        optimizer.updateInPlace(parameters, dParameters, identifier);
+    }
+
+    @Override
+    public Map<String, Tensor> getState() {
+        return Map.of(KERNEL, kernel, BIAS, bias);
+    }
+
+    @Override
+    public void setState(Map<String, Tensor> state) {
+        kernel.copyFrom(state.get(KERNEL));
+        bias.copyFrom(state.get(BIAS));
+    }
+
+    @Override
+    public Convolution snapshot() {
+        return new Convolution(this);
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        kernel = (Tensor2D) kernel.toPrecision(precision);
+        bias = (Tensor2D) bias.toPrecision(precision);
+        parameters[D_KERNEL] = kernel;
+        parameters[D_BIAS] = bias;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder();
+        sb.append("Convolution Layer");
+        sb.append(System.lineSeparator());
+        sb.append("Size:");
+        sb.append(System.lineSeparator());
+        sb.append(Arrays.toString(size));
+        sb.append(System.lineSeparator());
+        sb.append("Stride:");
+        sb.append(System.lineSeparator());
+        sb.append(Arrays.toString(stride));
+        sb.append(System.lineSeparator());
+        sb.append("Padding:");
+        sb.append(System.lineSeparator());
+        sb.append(Arrays.toString(padding));
+        sb.append(System.lineSeparator());
+        // Each row gives the parameters of a single filter.
+        sb.append("Kernel:");
+        sb.append(System.lineSeparator());
+        sb.append(kernel.transpose());
+        sb.append(System.lineSeparator());
+        sb.append("Bias:");
+        sb.append(System.lineSeparator());
+        sb.append(bias.transpose());
+
+        return sb.toString();
+    }
+}
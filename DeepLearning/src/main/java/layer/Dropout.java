@@ -1,10 +1,11 @@
 package layer;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
 import regularize.Regularizer;
 import tensor.Tensor;
+import tensor.Tensor2D;
 import tensor.TensorBuilder;
 
 /**
@@ -13,58 +14,115 @@ import tensor.TensorBuilder;
  * @author tyler
  */
 public class Dropout implements Layer {
-    public static final String MASK = "mask";
+    // Cache slots
+    public static final int MASK = 0;
+    
+    // State names
+    public static final String STEPS = "steps";
     
     private final double probability;
-    private final Random random;
+    private final long seed;
+    
+    // Number of masks drawn so far for each stream. Stream 0 is used when
+    // training is not sharded, and stream s + 1 by shard s.
+    private long[] steps;
     
     public Dropout(double probability, long seed) {
         this.probability = probability;
-        random = new Random(seed);
+        this.seed = seed;
+        steps = new long[1];
     }
     
     public Dropout(double probability) {
-        this.probability = probability;
-        random = new Random(TensorBuilder.DEFAULT_SEED);
+        this(probability, TensorBuilder.DEFAULT_SEED);
     }
 
     @Override
     public ForwardPropResult forwardPropagate(Tensor x, boolean training) {
+        return forwardPropagate(x, training, -1);
+    }
+
+    @Override
+    public ForwardPropResult forwardPropagate(Tensor x, boolean training, int shard) {
+        if (!training) {
+            return new ForwardPropResult(x);
+        }
+        return forwardPropagate(x, training, nextRandom(shard + 1));
+    }
+    
+    /**
+     * Returns the generator for the next mask of a stream.
+     * 
+     * Each mask gets a generator seeded from the layer seed, the stream and
+     * the number of masks the stream has drawn. The masks are therefore the
+     * same for every run with the same seed, however shards are scheduled,
+     * and the counters are all the state needed to resume them.
+     */
+    private synchronized Random nextRandom(int stream) {
+        if (steps.length <= stream) {
+            steps = Arrays.copyOf(steps, stream + 1);
+        }
+        long step = steps[stream]++;
+        return new Random(TensorBuilder.deriveSeed(TensorBuilder.deriveSeed(seed, stream), step));
+    }
+
+    private ForwardPropResult forwardPropagate(Tensor x, boolean training, Random generator) {
         // During training, apply dropout. Otherwise, do nothing.
         if (!training) {
-            return new ForwardPropResult(x, null);
+            return new ForwardPropResult(x);
         }
         
-        var inputShape = x.shape();
-        int elementCount = inputShape.stream().reduce(0, Integer::sum);
-        double[] data = new double[elementCount];
+        // The mask has the precision of x. Elements are drawn in order.
         double multiplier = 1.0 / probability;
-        for (int i = 0; i < elementCount; i++) {
-            data[i] = random.nextDouble() < probability ? multiplier : 0.0;
-        }
-        
-        var mask = TensorBuilder.buildFromShapeAndValues(inputShape, data);
+        var mask = TensorBuilder.zeros(x.shape(), x.precision())
+                .mapInPlace(d -> generator.nextDouble() < probability ? multiplier : 0.0);
         var result = x.multiply(mask);
         
-        var cache = new HashMap<String, Tensor>();
-        cache.put(MASK, mask);
-        
-        return new ForwardPropResult(result, cache);
+        return new ForwardPropResult(result, mask);
+    }
+
+    /**
+     * Dropout is only applied during training, so x passes through.
+     *
+     * @param x
+     * @return x
+     */
+    @Override
+    public Tensor infer(Tensor x) {
+        return x;
     }
 
     @Override
     public BackPropResult backwardPropagate(Tensor dA, ForwardPropResult cache) {
-        var mask = cache.cache.get(MASK);
+        var mask = cache.cache[MASK];
         var daPrev = dA.multiply(mask);
         
-        return new BackPropResult(daPrev, new HashMap<>());
+        return new BackPropResult(daPrev);
         
     }
 
     @Override
-    public void updateParameters(Map<String, Tensor> deltaParameters, Regularizer r) {
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r) {
         // There are no parameters to update.
         return;
     }
     
+    @Override
+    public synchronized Map<String, Tensor> getState() {
+        double[][] counts = new double[1][steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            counts[0][i] = steps[i];
+        }
+        return Map.of(STEPS, new Tensor2D(counts));
+    }
+    
+    @Override
+    public synchronized void setState(Map<String, Tensor> state) {
+        var counts = state.get(STEPS).toArray();
+        steps = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            steps[i] = (long) counts[i];
+        }
+    }
+    
 }
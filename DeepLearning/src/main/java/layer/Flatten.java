@@ -1,11 +1,9 @@
 package layer;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import regularize.Regularizer;
 import tensor.Tensor;
-import tensor.Tensor2D;
-import tensor.Tensor4D;
+import tensor.TensorBuilder;
 
 /**
  * Flattens the input Tensor from 4D to 2D.
@@ -19,10 +17,17 @@ import tensor.Tensor4D;
  */
 public class Flatten implements Layer {
     
-    public static final String ORIGINAL_SHAPE = "original_shape";
+    // Cache slots
+    public static final int INPUT = 0;
 
     @Override
     public ForwardPropResult forwardPropagate(Tensor x, boolean training) {
+        // The input is cached for its shape, which backpropagation restores.
+        return new ForwardPropResult(infer(x), x);
+    }
+
+    @Override
+    public Tensor infer(Tensor x) {
         var shape = x.shape();
         if (shape.size() != 4) {
             throw new IllegalArgumentException("Flatten only supports Tensor4D input.");
@@ -32,25 +37,9 @@ public class Flatten implements Layer {
         int n1 = shape.get(1);
         int n2 = shape.get(2);
         int n3 = shape.get(3);
-        double[][] data = new double[m][n1 * n2 * n3];
-        
-        for (int i = 0; i < m; i++) {
-            int index = 0;
-            for (int j = 0; j < n1; j++) {
-                for (int k = 0; k < n2; k++) {
-                    for (int l = 0; l < n3; l++) {
-                        data[i][index] = x.value(i,j,k,l);
-                        index++;
-                    }
-                }
-            }
-        }
         
-        var cache = new HashMap<String, Tensor>();
-        double[][] shapeData = new double[][]{{m,n1,n2,n3}};
-        cache.put(ORIGINAL_SHAPE, new Tensor2D(shapeData));
-        
-        return new ForwardPropResult(new Tensor2D(data), cache);
+        // Tensors are stored row-major, so flattening is just a reshape.
+        return TensorBuilder.reshape(x, List.of(m, n1 * n2 * n3));
     }
 
     @Override
@@ -61,30 +50,11 @@ public class Flatten implements Layer {
         }
         
         // To backpropagate, we just reshape dA.
-        var originalShape = cache.cache.get(ORIGINAL_SHAPE);
-        int m = (int) originalShape.value(0,0);
-        int n1 = (int) originalShape.value(0,1);
-        int n2 = (int) originalShape.value(0,2);
-        int n3 = (int) originalShape.value(0,3);
-        
-        double[][][][] data = new double[m][n1][n2][n3];
-        for (int i = 0; i < m; i++) {
-            int index = 0;
-            for (int j = 0; j < n1; j++) {
-                for (int k = 0; k < n2; k++) {
-                    for (int l = 0; l < n3; l++) {
-                        data[i][j][k][l] = dA.value(i, index);
-                        index++;
-                    }
-                }
-            }
-        }
-        
-        return new BackPropResult(new Tensor4D(data), new HashMap<>());
+        return new BackPropResult(TensorBuilder.reshape(dA, cache.cache[INPUT].shape()));
     }
 
     @Override
-    public void updateParameters(Map<String, Tensor> deltaParameters, Regularizer r) {
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r) {
         // Flatten layer has no parameters.
         return;
     }
@@ -1,19 +1,38 @@
 package layer;
 
-import java.util.Map;
 import tensor.Tensor;
 
 /**
  * Basic encapsulation object for the forward propagation of a single layer.
  * 
+ * cache holds the Tensors the layer needs for backward propagation, in
+ * slots whose indexes are defined by the layer. It is null when nothing was
+ * cached, e.g. outside of training. Layers which need integer data, such as
+ * positions, cache it in indices.
+ * 
  * @author tyler
  */
 public class ForwardPropResult {
     public final Tensor a;
-    public final Map<String, Tensor> cache;
+    public final Tensor[] cache;
+    public final int[] indices;
+    
+    public ForwardPropResult(Tensor a, Tensor... cache) {
+        this(a, null, cache);
+    }
     
-    public ForwardPropResult(Tensor a, Map<String, Tensor> cache) {
+    public ForwardPropResult(Tensor a, int[] indices, Tensor... cache) {
         this.a = a;
+        this.indices = indices;
         this.cache = cache;
     }
+    
+    /**
+     * Result which caches nothing.
+     * 
+     * @param a 
+     */
+    public ForwardPropResult(Tensor a) {
+        this(a, (Tensor[]) null);
+    }
 }
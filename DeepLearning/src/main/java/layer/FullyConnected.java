@@ -1,9 +1,12 @@
 package layer;
 
 import activation.Activation;
-import java.util.HashMap;
 import java.util.Map;
+import optimize.Optimizer;
 import regularize.Regularizer;
+import tensor.Int8Matrix;
+import tensor.Precision;
+import tensor.SparseTensor2D;
 import tensor.Tensor;
 import tensor.Tensor2D;
 import tensor.TensorBuilder;
@@ -21,11 +24,17 @@ import tensor.TensorBuilder;
  * @author tyler
  */
 public class FullyConnected implements Layer {
-    public static final String OLD_ACTIVATION = "a_old";
-    public static final String PRE_ACTIVATION = "z";
-    public static final String POST_ACTIVATION = "a";
-    public static final String D_WEIGHTS = "dW";
-    public static final String D_BIAS = "db";
+    // Cache slots
+    public static final int OLD_ACTIVATION = 0;
+    public static final int PRE_ACTIVATION = 1;
+    
+    // Parameter IDs
+    public static final int D_WEIGHTS = 0;
+    public static final int D_BIAS = 1;
+    
+    // State names
+    public static final String WEIGHTS = "W";
+    public static final String BIAS = "b";
     
     private final Activation activation;
     
@@ -34,6 +43,9 @@ public class FullyConnected implements Layer {
     private Tensor2D weights;
     private Tensor2D bias;
     
+    // Parameters, indexed by parameter ID.
+    private final Tensor[] parameters;
+    
     public FullyConnected(Activation activation, int nNodes, int inputDim) {
         this.activation = activation;
         
@@ -41,13 +53,24 @@ public class FullyConnected implements Layer {
         // TODO: option to customize intialization
         weights = TensorBuilder.heInitialization(inputDim, nNodes);
         bias = new Tensor2D(1, nNodes);
-        
+        parameters = new Tensor[]{weights, bias};
     }
     
+    /**
+     * Construct a layer from existing parameters.
+     * 
+     * The layer takes ownership of weights and bias, and updates them in
+     * place during training.
+     * 
+     * @param activation
+     * @param weights
+     * @param bias 
+     */
     public FullyConnected(Activation activation, Tensor2D weights, Tensor2D bias) {
         this.activation = activation;
         this.weights = weights;
         this.bias = bias;
+        parameters = new Tensor[]{weights, bias};
     }
     
     /**
@@ -56,24 +79,68 @@ public class FullyConnected implements Layer {
      * We assume the results for each data point are organized into rows of
      * x. This is also true of the output.
      * 
+     * Element-wise activations are fused with the product and bias, see
+     * Tensor2D.multiplyAddApply. Outside of training, this is infer, and no
+     * cache is kept.
+     * 
+     * x may also be a SparseTensor2D, which is multiplied without being
+     * densified.
+     * 
      * @param x Vectorized inputs 
      * @param training Whether the network is currently being trained
-     * @return Returns a map containing the post and pre-activation outputs
+     * @return Returns the post-activation output, caching the input and the
+     * pre-activation output
      */
     @Override
     public ForwardPropResult forwardPropagate(Tensor x, boolean training) {
+        if (!training) {
+            return new ForwardPropResult(infer(x));
+        }
+        if (x instanceof SparseTensor2D) {
+            var z = ((SparseTensor2D) x).matrixMultiply(weights).addInPlace(bias);
+            return new ForwardPropResult(activation.apply(z), x, z);
+        }
+        var aOld = checkInput(x);
+        var function = activation.elementwise();
+        Tensor z;
+        Tensor a;
+        if (function == null) {
+            z = aOld.matrixMultiply(weights).addInPlace(bias);
+            a = activation.apply(z);
+        } else {
+            var zBuffer = new Tensor2D(aOld.nrows, weights.ncols, weights.precision());
+            a = aOld.multiplyAddApply(weights, bias, function, zBuffer);
+            z = zBuffer;
+        }
+        
+        return new ForwardPropResult(a, aOld, z);
+    }
+    
+    /**
+     * Computes the activations without keeping z. Element-wise activations
+     * are applied in place to the product.
+     * 
+     * @param x
+     * @return 
+     */
+    @Override
+    public Tensor infer(Tensor x) {
+        if (x instanceof SparseTensor2D) {
+            return activation.apply(((SparseTensor2D) x).matrixMultiply(weights).addInPlace(bias));
+        }
+        var aOld = checkInput(x);
+        var function = activation.elementwise();
+        if (function == null) {
+            return activation.apply(aOld.matrixMultiply(weights).addInPlace(bias));
+        }
+        return aOld.multiplyAddApply(weights, bias, function, null);
+    }
+    
+    private static Tensor2D checkInput(Tensor x) {
         if (!(x instanceof Tensor2D)) {
             throw new IllegalArgumentException("Input for fully connected layers must be 2D Tensors.");
         }
-        var aOld = (Tensor2D) x;
-        var z = aOld.matrixMultiply(weights).add(bias);
-        var a = activation.apply(z);
-        
-        var cache = new HashMap<String, Tensor>();
-        cache.put(OLD_ACTIVATION, aOld);
-        cache.put(PRE_ACTIVATION, z);
-        
-        return new ForwardPropResult(a, cache);
+        return (Tensor2D) x;
     }
     
     /**
@@ -83,33 +150,95 @@ public class FullyConnected implements Layer {
      * dW = 1/m * A_prev^T*dZ
      * db = 1/m * dZ.columnSum
      * 
+     * For a SparseTensor2D input, dW comes from a sparse^T * dense product.
+     * Sparse inputs only come from the data, so no dA is computed for them
+     * and the result's dA is null.
+     * 
      * @param dA
-     * @param cache Map containing the activation values, as output by forwardPropagate
+     * @param cache Activation values, as output by forwardPropagate
      * @return 
      */
     @Override
     public BackPropResult backwardPropagate(Tensor dA, ForwardPropResult cache) {
-        var z = cache.cache.get(PRE_ACTIVATION);
-        var aOld = (Tensor2D) cache.cache.get(OLD_ACTIVATION);
-        var factor = Tensor2D.constant(1.0 / aOld.mDim());
+        var z = cache.cache[PRE_ACTIVATION];
+        var factor = 1.0 / cache.cache[OLD_ACTIVATION].mDim();
         
         var dZ = (Tensor2D) activation.derivateApply(dA, z);
-        var dW = aOld.transpose().matrixMultiply(dZ).multiply(factor);
-        var db = dZ.columnSum().multiply(factor);
         
-        var daPrev = dZ.matrixMultiply(weights.transpose());
-        HashMap<String, Tensor> results = new HashMap<>();
-        results.put(D_WEIGHTS, dW);
-        results.put(D_BIAS, db);
+        if (cache.cache[OLD_ACTIVATION] instanceof SparseTensor2D) {
+            var x = (SparseTensor2D) cache.cache[OLD_ACTIVATION];
+            var dW = x.transposeMultiply(dZ, factor);
+            var db = dZ.columnSum().scaleInPlace(factor);
+            return new BackPropResult(null, dW, db);
+        }
+        var aOld = (Tensor2D) cache.cache[OLD_ACTIVATION];
+        
+        // dW and db come from one pass over dZ, and no transposes are copied.
+        var db = new Tensor2D(1, dZ.ncols, weights.precision());
+        var dW = aOld.matrixMultiply(dZ, true, false, factor, db);
         
-        return new BackPropResult(daPrev, results);
+        var daPrev = dZ.matrixMultiply(weights, false, true);
+        
+        return new BackPropResult(daPrev, dW, db);
+    }
+    
+    @Override
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r) {
+        // Regularization uses the weights from before this update.
+        r.regularizeInPlace(weights);
+        weights.addInPlace(deltaParameters[D_WEIGHTS]);
+        bias.addInPlace(deltaParameters[D_BIAS]);
+    }
+    
+    @Override
+    public void optimize(Optimizer optimizer, Tensor[] dParameters, int identifier, Regularizer r) {
+        // Regularization uses the weights from before this update.
+        r.regularizeInPlace(weights);
+        optimizer.updateInPlace(parameters, dParameters, identifier);
+    }
+    
+    @Override
+    public Map<String, Tensor> getState() {
+        return Map.of(WEIGHTS, weights, BIAS, bias);
+    }
+    
+    @Override
+    public void setState(Map<String, Tensor> state) {
+        weights.copyFrom(state.get(WEIGHTS));
+        bias.copyFrom(state.get(BIAS));
+    }
+    
+    /**
+     * Builds an inference-only copy of this layer with int8 weights, one
+     * scale per node. See QuantizedFullyConnected.
+     * 
+     * @param inputScale Value of one quantization step of the inputs, e.g.
+     * from Int8Matrix.calibrateScale on sample inputs
+     * @return 
+     */
+    public QuantizedFullyConnected quantize(double inputScale) {
+        return new QuantizedFullyConnected(activation, Int8Matrix.quantizeColumns(weights),
+                inputScale, bias.copy());
+    }
+    
+    /**
+     * @return The number of bytes used by the weights
+     */
+    public long weightBytes() {
+        return (long) weights.size() * weights.precision().bytes();
+    }
+    
+    @Override
+    public FullyConnected snapshot() {
+        return new FullyConnected(activation, weights.copy(), bias.copy());
     }
     
     @Override
-    public void updateParameters(Map<String, Tensor> deltaParameters, Regularizer r) {
-        weights = (Tensor2D) weights.add(deltaParameters.get(D_WEIGHTS))
-                .subtract(r.computeRegularizedDerivatives(weights));
-        bias = (Tensor2D) bias.add(deltaParameters.get(D_BIAS));
+    public void setPrecision(Precision precision) {
+        weights = (Tensor2D) weights.toPrecision(precision);
+        bias = (Tensor2D) bias.toPrecision(precision);
+        parameters[D_WEIGHTS] = weights;
+        parameters[D_BIAS] = bias;
     }
     
     @Override
@@ -119,13 +248,14 @@ public class FullyConnected implements Layer {
         sb.append(System.lineSeparator());
         sb.append("Weights:");
         sb.append(System.lineSeparator());
-        // To make toString more readable, we transpose the weights and bias
-        // Tensors so each row gives the parameters for a single unit.
-        sb.append(weights.transpose());
+        // To make toString more readable, we print the weights and bias
+        // Tensors transposed, so each row gives the parameters for a single
+        // unit. They are read in place rather than copied.
+        sb.append(weights.toTransposedString(3));
         sb.append(System.lineSeparator());
         sb.append("Bias:");
         sb.append(System.lineSeparator());
-        sb.append(bias.transpose());
+        sb.append(bias.toTransposedString(3));
         
         return sb.toString();
     }
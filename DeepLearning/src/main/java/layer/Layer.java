@@ -1,7 +1,9 @@
 package layer;
 
 import java.util.Map;
+import optimize.Optimizer;
 import regularize.Regularizer;
+import tensor.Precision;
 import tensor.Tensor;
 
 /**
@@ -10,7 +12,106 @@ import tensor.Tensor;
 public interface Layer {
     public ForwardPropResult forwardPropagate(Tensor x, boolean training);
     
+    /**
+     * Forward propagation for one shard of a data-parallel training step.
+     * 
+     * Shards of the same step run concurrently on different threads. Layers
+     * with random state should draw from a stream specific to the shard, so
+     * results only depend on the seed and the number of shards.
+     * 
+     * @param x
+     * @param training
+     * @param shard Index of the shard, from 0 to the number of shards - 1
+     * @return 
+     */
+    public default ForwardPropResult forwardPropagate(Tensor x, boolean training, int shard) {
+        return forwardPropagate(x, training);
+    }
+    
+    /**
+     * Computes the activations of the layer for inference only.
+     * 
+     * Nothing is cached, so no intermediate Tensors are kept alive and the
+     * result cannot be backpropagated. Buffers come from the active
+     * TensorArena, see NeuralNetwork.predict.
+     * 
+     * @param x
+     * @return The post-activation output
+     */
+    public default Tensor infer(Tensor x) {
+        return forwardPropagate(x, false).a;
+    }
+    
     public BackPropResult backwardPropagate(Tensor dA, ForwardPropResult cache);
     
-    public void updateParameters(Map<String, Tensor> deltaParameters, Regularizer r);
+    /**
+     * Applies parameter updates.
+     * 
+     * @param deltaParameters Updates indexed by parameter ID, as in
+     * BackPropResult.dParameters
+     * @param r 
+     */
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r);
+    
+    /**
+     * Takes one optimizer step on the parameters of the layer.
+     * 
+     * By default, the updates are computed by the optimizer and applied with
+     * updateParameters. Layers with parameters override this to let the
+     * optimizer update them in place, see Optimizer.updateInPlace.
+     * 
+     * @param optimizer
+     * @param dParameters Derivatives, as in BackPropResult.dParameters
+     * @param identifier A unique index referring to the layer
+     * @param r 
+     */
+    public default void optimize(Optimizer optimizer, Tensor[] dParameters, int identifier, Regularizer r) {
+        updateParameters(optimizer.computeParameterUpdates(dParameters, identifier), r);
+    }
+    
+    /**
+     * Returns the Tensors which make up the trainable state of the layer,
+     * such as its parameters, by name.
+     * 
+     * The Tensors are live: they change as the layer is trained. Callers
+     * which need a snapshot should copy them.
+     * 
+     * @return 
+     */
+    public default Map<String, Tensor> getState() {
+        return Map.of();
+    }
+    
+    /**
+     * Restores state previously returned by getState.
+     * 
+     * @param state Tensors with the same names and shapes as getState
+     */
+    public default void setState(Map<String, Tensor> state) {
+        // Stateless by default.
+    }
+    
+    /**
+     * Returns a copy of the layer for inference, whose parameters do not
+     * change as this layer is trained.
+     * 
+     * The copy is only used through infer, from any number of threads. Its
+     * caches and random state need not be copied. Layers without parameters
+     * return themselves.
+     * 
+     * @return 
+     */
+    public default Layer snapshot() {
+        return this;
+    }
+    
+    /**
+     * Converts the parameters of the layer to the given precision. Buffers
+     * the layer allocates while propagating follow its parameters.
+     * 
+     * @param precision 
+     */
+    public default void setPrecision(Precision precision) {
+        // Without parameters, layers take the precision of their inputs.
+    }
 }
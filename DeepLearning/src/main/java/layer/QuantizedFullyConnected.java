@@ -0,0 +1,120 @@
+package layer;
+
+import activation.Activation;
+import regularize.Regularizer;
+import tensor.ElementwiseFunction;
+import tensor.Int8Matrix;
+import tensor.Precision;
+import tensor.SparseTensor2D;
+import tensor.Tensor;
+import tensor.Tensor2D;
+
+/**
+ * A FullyConnected layer with int8 weights, for inference only.
+ *
+ * Built by FullyConnected.quantize. Inputs are quantized with a scale
+ * calibrated from sample data, multiplied with the weights in integers (see
+ * Int8Matrix) and dequantized before the bias and activation, which stay in
+ * floating point. The outputs have the precision of the bias.
+ *
+ * SparseTensor2D inputs stay sparse: only their stored elements are
+ * quantized and multiplied, see Int8Matrix.
+ *
+ * @author tyler
+ */
+public class QuantizedFullyConnected implements Layer {
+    private final Activation activation;
+    private final Int8Matrix weights;
+    private final double inputScale;
+    private Tensor2D bias;
+
+    /**
+     * @param activation
+     * @param weights Quantized weights, one column per node
+     * @param inputScale Value of one quantization step of the inputs
+     * @param bias 1 x nodes
+     */
+    public QuantizedFullyConnected(Activation activation, Int8Matrix weights, double inputScale, Tensor2D bias) {
+        if (bias.nrows != 1 || bias.ncols != weights.ncols) {
+            throw new IllegalArgumentException("Bias of shape " + bias.shape() + " does not match "
+                    + weights.ncols + " nodes.");
+        }
+        this.activation = activation;
+        this.weights = weights;
+        this.inputScale = inputScale;
+        this.bias = bias;
+    }
+
+    @Override
+    public ForwardPropResult forwardPropagate(Tensor x, boolean training) {
+        if (training) {
+            throw unsupported();
+        }
+        return new ForwardPropResult(infer(x));
+    }
+
+    @Override
+    public Tensor infer(Tensor x) {
+        var function = activation.elementwise();
+        var fused = function != null ? function : ElementwiseFunction.IDENTITY;
+        Tensor2D a;
+        if (x instanceof SparseTensor2D) {
+            a = weights.multiplyAddApply((SparseTensor2D) x, inputScale, bias, fused, bias.precision());
+        } else if (x instanceof Tensor2D) {
+            a = weights.multiplyAddApply((Tensor2D) x, inputScale, bias, fused, bias.precision());
+        } else {
+            throw new IllegalArgumentException("Input for fully connected layers must be 2D Tensors.");
+        }
+        return function != null ? a : activation.apply(a);
+    }
+
+    @Override
+    public BackPropResult backwardPropagate(Tensor dA, ForwardPropResult cache) {
+        throw unsupported();
+    }
+
+    @Override
+    public void updateParameters(Tensor[] deltaParameters, Regularizer r) {
+        throw unsupported();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Quantized layers only support inference.");
+    }
+
+    /**
+     * The quantized weights never change, so the copy shares them.
+     */
+    @Override
+    public QuantizedFullyConnected snapshot() {
+        return new QuantizedFullyConnected(activation, weights, inputScale, bias);
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        bias = (Tensor2D) bias.toPrecision(precision);
+    }
+
+    /**
+     * @return The number of bytes used by the quantized weights
+     */
+    public long weightBytes() {
+        return weights.byteSize();
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder();
+        sb.append("Quantized Fully Connected Layer");
+        sb.append(System.lineSeparator());
+        sb.append("Weights (dequantized):");
+        sb.append(System.lineSeparator());
+        sb.append(weights.dequantize().transpose());
+        sb.append(System.lineSeparator());
+        sb.append("Bias:");
+        sb.append(System.lineSeparator());
+        sb.append(bias.transpose());
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,331 @@
+package network;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import tensor.SparseTensor2D;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * Serves predictions for small requests from many threads by combining them
+ * into batches.
+ *
+ * Callers submit a few rows at a time, typically one example, and get a
+ * future for the matching rows of the prediction. A single dispatcher thread
+ * takes requests from a queue until a batch holds maxBatchSize rows or the
+ * oldest request has waited maxWait, stacks them into one Tensor and runs
+ * NeuralNetwork.predict once. Requests of different shapes are predicted in
+ * separate batches.
+ *
+ * Without snapshots, the network must not be trained while the predictor
+ * is open. Once NeuralNetwork.setSnapshotInterval has set an interval,
+ * batches are predicted with the latest ParameterSnapshot, so another thread
+ * may train the network concurrently.
+ *
+ * @author tyler
+ */
+public class BatchingPredictor implements AutoCloseable {
+    private static final Request SHUTDOWN = new Request(null);
+
+    private final NeuralNetwork network;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final LinkedBlockingDeque<Request> queue = new LinkedBlockingDeque<>();
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+    private volatile boolean finished = false;
+
+    // Written by the dispatcher, guarded by this.
+    private long requests = 0;
+    private long rows = 0;
+    private long batches = 0;
+    private int largestBatch = 0;
+    private int peakQueueDepth = 0;
+    private final long[] batchSizeCounts;
+
+    /**
+     * Snapshot of the predictor's counters.
+     *
+     * batchSizeCounts[n], for n from 1 to maxBatchSize, is the number of
+     * batches of n rows. The last element, batchSizeCounts[maxBatchSize + 1],
+     * counts the larger batches made of a single oversized request. Queue
+     * depths count requests, including the one that started a batch.
+     */
+    public static class Metrics {
+        public final int queueDepth;
+        public final int peakQueueDepth;
+        public final long requests;
+        public final long batches;
+        public final double meanBatchSize;
+        public final int largestBatch;
+        public final long[] batchSizeCounts;
+
+        private Metrics(int queueDepth, int peakQueueDepth, long requests, long rows, long batches,
+                int largestBatch, long[] batchSizeCounts) {
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.requests = requests;
+            this.batches = batches;
+            this.meanBatchSize = batches == 0 ? 0.0 : (double) rows / batches;
+            this.largestBatch = largestBatch;
+            this.batchSizeCounts = batchSizeCounts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d batches=%d meanBatchSize=%.2f largestBatch=%d "
+                    + "queueDepth=%d peakQueueDepth=%d", requests, batches, meanBatchSize,
+                    largestBatch, queueDepth, peakQueueDepth);
+        }
+    }
+
+    private static class Request {
+        final Tensor features;
+        final CompletableFuture<Tensor> result = new CompletableFuture<>();
+
+        Request(Tensor features) {
+            this.features = features;
+        }
+    }
+
+    /**
+     * Starts the dispatcher thread.
+     *
+     * @param network Network to predict with
+     * @param maxBatchSize Maximum number of rows per batch. A single request
+     * with more rows is predicted on its own.
+     * @param maxWait Longest time the first request of a batch waits for
+     * others to join it
+     */
+    public BatchingPredictor(NeuralNetwork network, int maxBatchSize, Duration maxWait) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (maxWait.isNegative()) {
+            throw new IllegalArgumentException("Maximum wait must not be negative.");
+        }
+        this.network = network;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        // One more bucket for oversized requests.
+        this.batchSizeCounts = new long[maxBatchSize + 2];
+        dispatcher = new Thread(this::dispatch, "neural-network-predictor");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues rows for prediction.
+     *
+     * @param dataFeatures Dense Tensor of data points (1 point per row)
+     * @return A future for the predictions of those rows. It fails if the
+     * batch fails, for example because the rows do not fit the network.
+     */
+    public CompletableFuture<Tensor> submit(Tensor dataFeatures) {
+        if (dataFeatures instanceof SparseTensor2D) {
+            throw new IllegalArgumentException("Sparse requests cannot be batched.");
+        }
+        if (closed) {
+            throw new IllegalStateException("Predictor is closed.");
+        }
+        var request = new Request(dataFeatures);
+        queue.add(request);
+        if (finished) {
+            // The dispatcher exited after this request passed the check above.
+            failPending();
+        }
+        return request.result;
+    }
+
+    /**
+     * Predicts rows and waits for the result.
+     *
+     * @param dataFeatures
+     * @return The predictions of dataFeatures
+     */
+    public Tensor predict(Tensor dataFeatures) {
+        return submit(dataFeatures).join();
+    }
+
+    /**
+     * @return Number of requests waiting for the dispatcher
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public synchronized Metrics metrics() {
+        return new Metrics(queue.size(), peakQueueDepth, requests, rows, batches, largestBatch,
+                batchSizeCounts.clone());
+    }
+
+    /**
+     * Predicts the requests already queued, then stops the dispatcher.
+     * Later calls to submit fail.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(SHUTDOWN);
+        boolean interrupted = false;
+        while (dispatcher.isAlive()) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() {
+        var batch = new ArrayList<Request>();
+        try {
+            boolean running = true;
+            while (running) {
+                var first = queue.take();
+                int depth = queue.size() + 1;
+                if (first == SHUTDOWN) {
+                    break;
+                }
+                batch.add(first);
+                running = collect(batch, first.features.mDim());
+                run(batch, depth);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Only an external interrupt gets here. Stop serving.
+        } finally {
+            finished = true;
+            for (var request : batch) {
+                request.result.completeExceptionally(new IllegalStateException("Predictor stopped."));
+            }
+            failPending();
+            network.releaseInferenceBuffers();
+        }
+    }
+
+    /**
+     * Adds queued requests to batch until it is full or the wait expires.
+     * Requests already queued are taken even after the wait expires. A
+     * request which would overflow the batch goes back to the head of the
+     * queue, to start the next one.
+     *
+     * @return false if the predictor is shutting down
+     */
+    private boolean collect(List<Request> batch, int batchRows) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batchRows < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            if (next == SHUTDOWN) {
+                return false;
+            }
+            if (batchRows + next.features.mDim() > maxBatchSize) {
+                queue.offerFirst(next);
+                break;
+            }
+            batch.add(next);
+            batchRows += next.features.mDim();
+        }
+        return true;
+    }
+
+    /**
+     * Predicts a batch, one NeuralNetwork.predict per shape of request, and
+     * completes the requests' futures.
+     */
+    private void run(List<Request> batch, int depth) {
+        var groups = new LinkedHashMap<List<Integer>, List<Request>>();
+        for (var request : batch) {
+            var shape = request.features.shape();
+            shape.set(0, 0);
+            groups.computeIfAbsent(shape, k -> new ArrayList<>()).add(request);
+        }
+
+        int batchRows = 0;
+        for (var request : batch) {
+            batchRows += request.features.mDim();
+        }
+        // Recorded before any future completes, so callers see their batch.
+        synchronized (this) {
+            requests += batch.size();
+            rows += batchRows;
+            batches++;
+            largestBatch = Math.max(largestBatch, batchRows);
+            peakQueueDepth = Math.max(peakQueueDepth, depth);
+            batchSizeCounts[Math.min(batchRows, maxBatchSize + 1)]++;
+        }
+
+        for (var group : groups.values()) {
+            predict(group);
+        }
+    }
+
+    /**
+     * Predicts requests of the same shape and completes their futures.
+     */
+    private void predict(List<Request> group) {
+        int m = 0;
+        for (var request : group) {
+            m += request.features.mDim();
+        }
+        try {
+            Tensor features;
+            if (group.size() == 1) {
+                features = group.get(0).features;
+            } else {
+                var shape = group.get(0).features.shape();
+                shape.set(0, m);
+                features = TensorBuilder.zeros(shape, group.get(0).features.precision());
+                int row = 0;
+                for (var request : group) {
+                    request.features.copyRowsInto(features, row);
+                    row += request.features.mDim();
+                }
+            }
+
+            var predictions = network.predict(features);
+            if (group.size() == 1) {
+                group.get(0).result.complete(predictions);
+                return;
+            }
+            int[] order = new int[m];
+            for (int i = 0; i < m; i++) {
+                order[i] = i;
+            }
+            int row = 0;
+            for (var request : group) {
+                int count = request.features.mDim();
+                request.result.complete(predictions.gatherRows(order, row, row + count));
+                row += count;
+            }
+        } catch (RuntimeException e) {
+            for (var request : group) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void failPending() {
+        Request request;
+        while ((request = queue.poll()) != null) {
+            if (request != SHUTDOWN) {
+                request.result.completeExceptionally(new IllegalStateException("Predictor is closed."));
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * A snapshot of everything a NeuralNetwork needs to resume training: the
+ * number of epochs and optimizer steps trained, the state of every layer and
+ * the state of the optimizer.
+ *
+ * Tensors are stored by name, e.g. "layer0/W" or "optimizer/momentum/0/0"
+ * for the momentum of parameter 0 of layer 0.
+ *
+ * File layout, big-endian:
+ *   4 bytes   magic "NNCP"
+ *   int       format version
+ *   int       epochs trained
+ *   long      optimizer steps trained
+ *   int       number of Tensors
+ *   then, per Tensor: name (modified UTF-8), int rank, int[] dims and
+ *   double[] values, row-major
+ *
+ * Values are written bit for bit, so a restored network continues exactly
+ * as the original would have.
+ *
+ * @author tyler
+ */
+public class Checkpoint {
+    // Version 2 names optimizer state by layer and parameter ID.
+    // Version 3 adds the number of optimizer steps.
+    public static final int VERSION = 3;
+
+    private static final byte[] MAGIC = {'N', 'N', 'C', 'P'};
+
+    public final int epoch;
+    public final long step;
+    public final Map<String, Tensor> tensors;
+
+    /**
+     * @param epoch Number of epochs trained when the snapshot was taken
+     * @param step Number of optimizer steps taken when the snapshot was taken
+     * @param tensors Tensors by name, which the checkpoint takes ownership of
+     */
+    public Checkpoint(int epoch, long step, Map<String, Tensor> tensors) {
+        this.epoch = epoch;
+        this.step = step;
+        this.tensors = Collections.unmodifiableMap(new TreeMap<>(tensors));
+    }
+
+    /**
+     * Writes the checkpoint.
+     *
+     * The file is written next to path and then moved into place, so a crash
+     * while writing never leaves a partial checkpoint behind.
+     *
+     * @param path
+     */
+    public void write(Path path) {
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(epoch);
+                out.writeLong(step);
+                out.writeInt(tensors.size());
+                for (var entry : tensors.entrySet()) {
+                    var t = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(t.rank());
+                    for (int dim : t.shape()) {
+                        out.writeInt(dim);
+                    }
+                    for (double value : t.toArray()) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write checkpoint " + path, e);
+        }
+    }
+
+    /**
+     * Reads a checkpoint written by write.
+     *
+     * @param path
+     * @return
+     */
+    public static Checkpoint read(Path path) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException(path + " is not a checkpoint file.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported checkpoint version " + version + ".");
+            }
+            int epoch = in.readInt();
+            long step = in.readLong();
+            int count = in.readInt();
+            var tensors = new TreeMap<String, Tensor>();
+            for (int i = 0; i < count; i++) {
+                var name = in.readUTF();
+                int rank = in.readInt();
+                var shape = new ArrayList<Integer>();
+                int size = 1;
+                for (int d = 0; d < rank; d++) {
+                    int dim = in.readInt();
+                    shape.add(dim);
+                    size = Math.multiplyExact(size, dim);
+                }
+                double[] values = new double[size];
+                for (int j = 0; j < size; j++) {
+                    values[j] = in.readDouble();
+                }
+                tensors.put(name, TensorBuilder.buildFromShapeAndValues(shape, values));
+            }
+            return new Checkpoint(epoch, step, tensors);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read checkpoint " + path, e);
+        }
+    }
+}
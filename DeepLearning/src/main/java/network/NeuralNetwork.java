@@ -1,22 +1,62 @@
 package network;
 
 import cost.Cost;
+import data.DataSource;
+import data.Permutations;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import layer.BackPropResult;
 import layer.ForwardPropResult;
+import layer.FullyConnected;
 import layer.Layer;
+import layer.QuantizedFullyConnected;
 import optimize.Optimizer;
 import regularize.Regularizer;
 import regularize.Unregularized;
+import tensor.Int8Matrix;
+import tensor.Precision;
+import tensor.SparseTensor2D;
 import tensor.Tensor;
+import tensor.TensorArena;
+import tensor.TensorBuilder;
 
 public class NeuralNetwork {
+    private static final String LAYER_PREFIX = "layer";
+    private static final String OPTIMIZER_PREFIX = "optimizer/";
 
     private final Cost costFunction;
     private final List<Layer> layers;
     private final Optimizer optimizer;
     private final Regularizer regularizer;
+    private int workers = 1;
+    private Precision precision = Precision.DOUBLE;
+    private boolean debugBuffers = Boolean.getBoolean("tensor.arena.debug");
+    // Buffers for predict and evaluate, pooled per calling thread.
+    private final ThreadLocal<TensorArena> inferenceArenas =
+            ThreadLocal.withInitial(() -> new TensorArena(debugBuffers));
+    
+    // Epochs trained so far, across calls to train and restored checkpoints.
+    private int epochsTrained = 0;
+    private Path checkpointPath;
+    private int checkpointInterval;
+    private ExecutorService checkpointExecutor;
+    private Future<?> pendingCheckpoint;
+    
+    // Parameter snapshots for inference, published every snapshotInterval
+    // steps. Disabled when the interval is 0.
+    private int snapshotInterval = 0;
+    private long stepsTrained = 0;
+    private long snapshotsPublished = 0;
+    private volatile ParameterSnapshot snapshot;
     
     public NeuralNetwork(List<Layer> layers, Cost costFunction, Optimizer optimizer, Regularizer regularizer) {
         this.layers = layers;
@@ -32,67 +72,806 @@ public class NeuralNetwork {
         this.regularizer = new Unregularized();
     }
 
+    /**
+     * Trains the network with full-batch gradient descent.
+     * 
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @param dataLabels Tensor of labels (1 label per row)
+     * @param epochs Number of passes over the data
+     * @return The cost after each epoch
+     */
     public ArrayList<Double> train(Tensor dataFeatures, Tensor dataLabels, int epochs) {
-        var epochCosts = new ArrayList<Double>();
-        for (int i = 0; i < epochs; i++) {
-            // For now, m is fixed, but this may vary when using mini-batches.
-            // TODO: at some point, implement mini-batch support
-            regularizer.setBatchSize(dataFeatures.mDim());
-            
-            // Forward propagation
-            var fp = new ArrayList<ForwardPropResult>();
-            var activation = dataFeatures;
-            for (var layer : layers) {
-                var layerResult = layer.forwardPropagate(activation, true);
-                activation = layerResult.a;
-                fp.add(layerResult);
+        return new ArrayList<>(train(dataFeatures, dataLabels, epochs,
+                dataFeatures.mDim(), TensorBuilder.DEFAULT_SEED).epochCosts);
+    }
+    
+    public TrainingHistory train(Tensor dataFeatures, Tensor dataLabels, int epochs, int batchSize) {
+        return train(dataFeatures, dataLabels, epochs, batchSize, TensorBuilder.DEFAULT_SEED);
+    }
+    
+    /**
+     * Trains the network with mini-batch gradient descent.
+     * 
+     * Each epoch visits the examples in a new order, drawn from a permutation
+     * seeded by seed and the number of epochs trained so far, and takes one
+     * optimization step per batch. Since the order depends only on those,
+     * training restored from a checkpoint sees the same batches it would
+     * have seen without interruption. Only the rows of the current batch are
+     * copied out of the data Tensors. When batchSize covers the whole
+     * dataset, the data is used as-is.
+     * 
+     * With more than one worker (see setWorkers), each batch is further split
+     * into one shard per worker, as described in trainStep.
+     * 
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @param dataLabels Tensor of labels (1 label per row)
+     * @param epochs Number of passes over the data
+     * @param batchSize Maximum number of examples per step
+     * @param seed Seed for the shuffling permutation
+     * @return The cost of every batch, and the average cost of every epoch
+     */
+    public TrainingHistory train(Tensor dataFeatures, Tensor dataLabels, int epochs,
+            int batchSize, long seed) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (dataFeatures.mDim() != dataLabels.mDim()) {
+            throw new IllegalArgumentException("Features and labels must have the same number of rows.");
+        }
+        
+        var history = new TrainingHistory();
+        int m = dataFeatures.mDim();
+        int batch = Math.min(batchSize, m);
+        
+        int[] order = new int[m];
+        
+        // Full batches reuse the same shard buffers. Only a final partial
+        // batch needs its own.
+        var featureBuffers = new Tensor[Math.min(workers, batch)];
+        var labelBuffers = new Tensor[featureBuffers.length];
+        
+        var executor = createExecutor();
+        var arenas = createArenas();
+        try {
+            for (int i = 0; i < epochs; i++) {
+                for (int j = 0; j < m; j++) {
+                    order[j] = j;
+                }
+                if (batch < m) {
+                    Permutations.shuffle(order, new Random(TensorBuilder.deriveSeed(seed, epochsTrained)));
+                }
+                
+                var batchCosts = new ArrayList<Double>();
+                double epochCost = 0.0;
+                for (int start = 0; start < m; start += batch) {
+                    int end = Math.min(start + batch, m);
+                    Tensor[] features;
+                    Tensor[] labels;
+                    if (end - start == m && workers == 1) {
+                        features = new Tensor[]{dataFeatures};
+                        labels = new Tensor[]{dataLabels};
+                    } else if (end - start == batch) {
+                        features = gatherShards(dataFeatures, order, start, end, featureBuffers);
+                        labels = gatherShards(dataLabels, order, start, end, labelBuffers);
+                    } else {
+                        int shards = Math.min(workers, end - start);
+                        features = gatherShards(dataFeatures, order, start, end, new Tensor[shards]);
+                        labels = gatherShards(dataLabels, order, start, end, new Tensor[shards]);
+                    }
+                    
+                    double cost = trainStep(features, labels, executor, arenas);
+                    batchCosts.add(cost);
+                    epochCost += cost * (end - start);
+                }
+                history.batchCosts.add(batchCosts);
+                // A single batch needs no averaging, so report its cost as-is.
+                history.epochCosts.add(batch == m ? batchCosts.get(0) : epochCost / m);
+                endEpoch();
             }
+            awaitCheckpoint();
+            publishIfStale();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (var arena : arenas) {
+                arena.close();
+            }
+        }
+        return history;
+    }
+    
+    /**
+     * Trains the network from a DataSource, one batch at a time.
+     * 
+     * Only the current batch is resident, so the dataset may be larger than
+     * the heap. Any shuffling is up to the DataSource, so training resumed
+     * from a checkpoint only matches an uninterrupted run if the DataSource
+     * yields the same batches. With more than one worker, each batch is split
+     * into shards as in the Tensor version, and full batches are copied into
+     * the same shard buffers on every step. An empty DataSource is rejected.
+     * 
+     * @param data
+     * @param epochs Number of passes over the data
+     * @param batchSize Maximum number of examples per step
+     * @return The cost of every batch, and the average cost of every epoch
+     */
+    public TrainingHistory train(DataSource data, int epochs, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        var history = new TrainingHistory();
+        int[] order = new int[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            order[i] = i;
+        }
+        
+        // As in the Tensor version, full batches reuse the same shard
+        // buffers, and only partial batches need their own.
+        var featureBuffers = new Tensor[Math.min(workers, batchSize)];
+        var labelBuffers = new Tensor[featureBuffers.length];
+        
+        var executor = createExecutor();
+        var arenas = createArenas();
+        try {
+            for (int i = 0; i < epochs; i++) {
+                var batchCosts = new ArrayList<Double>();
+                double epochCost = 0.0;
+                long m = 0;
+                try (var batches = data.batches(batchSize)) {
+                    while (batches.hasNext()) {
+                        var batch = batches.next();
+                        int count = batch.size();
+                        Tensor[] features = {batch.features};
+                        Tensor[] labels = {batch.labels};
+                        if (workers > 1 && count == batchSize) {
+                            features = gatherShards(batch.features, order, 0, count, featureBuffers);
+                            labels = gatherShards(batch.labels, order, 0, count, labelBuffers);
+                        } else if (workers > 1) {
+                            int shards = Math.min(workers, count);
+                            features = gatherShards(batch.features, order, 0, count, new Tensor[shards]);
+                            labels = gatherShards(batch.labels, order, 0, count, new Tensor[shards]);
+                        }
+                        
+                        double cost = trainStep(features, labels, executor, arenas);
+                        batchCosts.add(cost);
+                        epochCost += cost * count;
+                        m += count;
+                    }
+                }
+                if (m == 0) {
+                    throw new IllegalArgumentException("DataSource has no examples.");
+                }
+                history.batchCosts.add(batchCosts);
+                history.epochCosts.add(epochCost / m);
+                endEpoch();
+            }
+            awaitCheckpoint();
+            publishIfStale();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (var arena : arenas) {
+                arena.close();
+            }
+        }
+        return history;
+    }
+    
+    /**
+     * Sets the number of worker threads used by train.
+     * 
+     * With n > 1 workers, every batch is split into n shards, which are
+     * propagated concurrently. Results are deterministic for a given seed and
+     * worker count.
+     * 
+     * @param workers 
+     */
+    public void setWorkers(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive.");
+        }
+        this.workers = workers;
+    }
+    
+    /**
+     * Sets the precision in which the network stores its parameters,
+     * activations and derivatives.
+     * 
+     * Parameters of every layer are converted, optimizer state is converted
+     * on the next step, and the batches drawn by train are gathered in this
+     * precision. FLOAT halves the memory and bandwidth used for all of them,
+     * while arithmetic still runs in double precision (see Precision). Data
+     * given in the other precision is still accepted.
+     * 
+     * @param precision 
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        for (var layer : layers) {
+            layer.setPrecision(precision);
+        }
+        publishIfEnabled();
+    }
+    
+    public Precision getPrecision() {
+        return precision;
+    }
+    
+    /**
+     * Saves a checkpoint every few epochs while training.
+     * 
+     * The checkpoint is taken once the last step of the epoch has finished,
+     * by copying the state of every layer and of the optimizer. The copy is
+     * written to disk on a background thread while training continues. At
+     * most one write is in flight; if the previous one has not finished when
+     * the next checkpoint is due, training waits for it. train waits for the
+     * last write before returning.
+     * 
+     * @param path File to write, replaced by every checkpoint
+     * @param everyEpochs Interval, in epochs trained, between checkpoints
+     */
+    public void setCheckpoints(Path path, int everyEpochs) {
+        if (everyEpochs <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive.");
+        }
+        checkpointPath = path;
+        checkpointInterval = everyEpochs;
+    }
+    
+    /**
+     * @return The number of epochs trained so far, including those restored
+     * from a checkpoint
+     */
+    public int getEpochsTrained() {
+        return epochsTrained;
+    }
+    
+    /**
+     * Takes a snapshot of the training state.
+     * 
+     * @return A checkpoint holding copies of the layer and optimizer state
+     */
+    public Checkpoint checkpoint() {
+        var tensors = new HashMap<String, Tensor>();
+        for (int j = 0; j < layers.size(); j++) {
+            for (var entry : layers.get(j).getState().entrySet()) {
+                tensors.put(LAYER_PREFIX + j + "/" + entry.getKey(), entry.getValue().copy());
+            }
+        }
+        for (var entry : optimizer.getState().entrySet()) {
+            tensors.put(OPTIMIZER_PREFIX + entry.getKey(), entry.getValue().copy());
+        }
+        return new Checkpoint(epochsTrained, stepsTrained, tensors);
+    }
+    
+    /**
+     * Restores the training state from a checkpoint file.
+     * 
+     * The network must have the same layers and optimizer as the one which
+     * wrote the checkpoint. Training then continues exactly as it would have
+     * from the point the checkpoint was taken.
+     * 
+     * @param path 
+     */
+    public void restore(Path path) {
+        restore(Checkpoint.read(path));
+    }
+    
+    public void restore(Checkpoint checkpoint) {
+        for (int j = 0; j < layers.size(); j++) {
+            var layer = layers.get(j);
+            var state = withPrefix(checkpoint.tensors, LAYER_PREFIX + j + "/");
+            if (!state.keySet().equals(layer.getState().keySet())) {
+                throw new IllegalArgumentException("Checkpoint state " + state.keySet()
+                        + " does not match layer " + j + ".");
+            }
+            layer.setState(state);
+        }
+        optimizer.setState(withPrefix(checkpoint.tensors, OPTIMIZER_PREFIX));
+        epochsTrained = checkpoint.epoch;
+        stepsTrained = checkpoint.step;
+        publishIfEnabled();
+    }
+    
+    /**
+     * Builds an inference-only copy of the network with int8 weights in its
+     * fully connected layers (post-training quantization).
+     * 
+     * Each FullyConnected layer is replaced by a QuantizedFullyConnected.
+     * Its weights get one scale per node, and its input scale is calibrated
+     * from the activations the sample data produces at that layer. Other
+     * layers are copied as for a snapshot. The copy predicts and evaluates
+     * like any network, in the same precision, but cannot be trained. Use
+     * QuantizationReport to measure the accuracy lost.
+     * 
+     * @param calibrationFeatures Representative data points (1 point per row)
+     * @return A new network sharing the cost function of this one
+     */
+    public NeuralNetwork quantize(Tensor calibrationFeatures) {
+        var quantized = new ArrayList<Layer>(layers.size());
+        var activation = calibrationFeatures;
+        for (var layer : layers) {
+            if (layer instanceof FullyConnected) {
+                quantized.add(((FullyConnected) layer).quantize(Int8Matrix.calibrateScale(activation)));
+            } else {
+                quantized.add(layer.snapshot());
+            }
+            activation = layer.infer(activation);
+        }
+        var network = new NeuralNetwork(quantized, costFunction, optimizer, regularizer);
+        network.setPrecision(precision);
+        return network;
+    }
+    
+    /**
+     * @return The bytes used by the weights of the fully connected layers
+     */
+    long weightBytes() {
+        long bytes = 0;
+        for (var layer : layers) {
+            if (layer instanceof FullyConnected) {
+                bytes += ((FullyConnected) layer).weightBytes();
+            } else if (layer instanceof QuantizedFullyConnected) {
+                bytes += ((QuantizedFullyConnected) layer).weightBytes();
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Publishes a ParameterSnapshot every few optimizer steps while training.
+     * 
+     * predict, predictInto and evaluate then use the latest snapshot rather
+     * than the live parameters, so they may be called from any number of
+     * threads while another thread trains. Each snapshot copies every
+     * parameter once; readers never wait. A snapshot is also published right
+     * away, at the end of train, and after setPrecision or restore.
+     * 
+     * @param everySteps Interval, in optimizer steps, between snapshots, or
+     * 0 to predict with the live parameters again
+     */
+    public void setSnapshotInterval(int everySteps) {
+        if (everySteps < 0) {
+            throw new IllegalArgumentException("Snapshot interval must not be negative.");
+        }
+        snapshotInterval = everySteps;
+        if (everySteps == 0) {
+            snapshot = null;
+        } else {
+            publishSnapshot();
+        }
+    }
+    
+    /**
+     * @return The latest published snapshot
+     */
+    public ParameterSnapshot getSnapshot() {
+        var current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("Snapshots are disabled, see setSnapshotInterval.");
+        }
+        return current;
+    }
+    
+    private void publishIfEnabled() {
+        if (snapshotInterval > 0) {
+            publishSnapshot();
+        }
+    }
+    
+    private void publishIfStale() {
+        if (snapshotInterval > 0 && snapshot.step != stepsTrained) {
+            publishSnapshot();
+        }
+    }
+    
+    /**
+     * Copies the layers and publishes them with a single volatile write, so
+     * readers see either the previous snapshot or the complete new one.
+     */
+    private void publishSnapshot() {
+        var copies = new ArrayList<Layer>(layers.size());
+        for (var layer : layers) {
+            copies.add(layer.snapshot());
+        }
+        snapshotsPublished++;
+        snapshot = new ParameterSnapshot(this, snapshotsPublished, stepsTrained,
+                Collections.unmodifiableList(copies));
+    }
+    
+    /**
+     * Waits for the checkpoint being written in the background, if any.
+     * 
+     * Failures to write the checkpoint are rethrown here.
+     */
+    public void awaitCheckpoint() {
+        if (pendingCheckpoint == null) {
+            return;
+        }
+        try {
+            await(pendingCheckpoint);
+        } finally {
+            pendingCheckpoint = null;
+        }
+    }
+    
+    private void endEpoch() {
+        epochsTrained++;
+        if (checkpointPath == null || epochsTrained % checkpointInterval != 0) {
+            return;
+        }
+        awaitCheckpoint();
+        var snapshot = checkpoint();
+        var path = checkpointPath;
+        if (checkpointExecutor == null) {
+            checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "neural-network-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        pendingCheckpoint = checkpointExecutor.submit(() -> snapshot.write(path));
+    }
+    
+    private static Map<String, Tensor> withPrefix(Map<String, Tensor> tensors, String prefix) {
+        var result = new HashMap<String, Tensor>();
+        for (var entry : tensors.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Enables checks for Tensors used after their training step, see
+     * TensorArena. This slows training down and is meant for debugging
+     * layers.
+     * 
+     * @param debugBuffers 
+     */
+    public void setDebugBuffers(boolean debugBuffers) {
+        this.debugBuffers = debugBuffers;
+    }
+    
+    /**
+     * One arena per worker. Tensors allocated while propagating a shard come
+     * from its arena and are released once the step's updates are applied.
+     */
+    private TensorArena[] createArenas() {
+        var arenas = new TensorArena[workers];
+        for (int i = 0; i < workers; i++) {
+            arenas[i] = new TensorArena(debugBuffers);
+        }
+        return arenas;
+    }
+    
+    private ExecutorService createExecutor() {
+        if (workers == 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(workers, runnable -> {
+            var thread = new Thread(runnable, "neural-network-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Splits rows order[start..end) into consecutive shards, one per buffer.
+     * 
+     * Buffers which are null or have the wrong number of rows are replaced,
+     * by buffers of the network's precision. Sparse data is gathered into
+     * sparse shards.
+     */
+    private Tensor[] gatherShards(Tensor data, int[] order, int start, int end, Tensor[] buffers) {
+        int shards = buffers.length;
+        int count = end - start;
+        for (int s = 0; s < shards; s++) {
+            int from = start + (int) ((long) count * s / shards);
+            int to = start + (int) ((long) count * (s + 1) / shards);
+            if (data instanceof SparseTensor2D) {
+                // The number of non-zeros varies, so sparse shards are new.
+                buffers[s] = data.gatherRows(order, from, to);
+                continue;
+            }
+            if (buffers[s] == null || buffers[s].mDim() != to - from) {
+                var shape = data.shape();
+                shape.set(0, to - from);
+                buffers[s] = TensorBuilder.zeros(shape, precision);
+            }
+            data.gatherRowsInto(buffers[s], order, from);
+        }
+        return buffers;
+    }
+    
+    /**
+     * Runs forward propagation, backward propagation and a parameter update
+     * for a single batch.
+     * 
+     * The batch is given as one or more shards. Each shard is propagated on
+     * its own worker with its own caches. The per-layer derivatives of the
+     * shards are then averaged, weighted by shard size, which gives the
+     * derivatives of the whole batch, and a single optimizer step is taken.
+     * 
+     * Each shard allocates its Tensors from its own arena. Layers and
+     * optimizers only use them within the step, so the arenas are released
+     * when it ends and the next step reuses the same buffers.
+     * 
+     * @return The cost of the batch, including regularization
+     */
+    private double trainStep(Tensor[] features, Tensor[] labels, ExecutorService executor,
+            TensorArena[] arenas) {
+        try {
+            int shards = features.length;
+            int m = 0;
+            for (var shard : features) {
+                m += shard.mDim();
+            }
+            regularizer.setBatchSize(m);
             
-            var dA = costFunction.computeCostDerivative(activation, dataLabels);
-            
-            // Backward propagation
-            var bp = new BackPropResult[layers.size()];
-            for (int j = layers.size() - 1; j >= 0; j--) {
-                var layer = layers.get(j);
-                var layerResult = layer.backwardPropagate(dA, fp.get(j));
-                bp[j] = layerResult;
-                dA = layerResult.dA;
+            var results = new ShardResult[shards];
+            if (shards == 1) {
+                results[0] = propagate(features[0], labels[0], -1, arenas[0]);
+            } else {
+                var futures = new ArrayList<Future<ShardResult>>();
+                for (int s = 0; s < shards; s++) {
+                    int shard = s;
+                    futures.add(executor.submit(
+                            () -> propagate(features[shard], labels[shard], shard, arenas[shard])));
+                }
+                for (int s = 0; s < shards; s++) {
+                    results[s] = await(futures.get(s));
+                }
             }
             
             // Parameter updates
+            double cost = results[0].cost;
+            if (shards > 1) {
+                cost = 0.0;
+                for (var result : results) {
+                    cost += result.cost * result.m / m;
+                }
+            }
             for (int j = 0; j < layers.size(); j++) {
-                var dParameters = bp[j].dParameters;
-                var deltaParameters = optimizer.computeParameterUpdates(dParameters, j);
-                layers.get(j).updateParameters(deltaParameters, regularizer);
+                layers.get(j).optimize(optimizer, reduce(results, j, m), j, regularizer);
+            }
+            stepsTrained++;
+            if (snapshotInterval > 0 && stepsTrained % snapshotInterval == 0) {
+                publishSnapshot();
             }
             
             // Cost
-            var cost = costFunction.computeCost(activation, dataLabels)
-                    + regularizer.getRegularizerCost();
-            epochCosts.add(cost);
+            cost += regularizer.getRegularizerCost();
             regularizer.resetRunningCost();
+            return cost;
+        } finally {
+            for (var arena : arenas) {
+                arena.releaseAll();
+            }
         }
-        return epochCosts;
     }
-
+    
+    /**
+     * Forward and backward propagation of one shard.
+     * 
+     * @param shard Index of the shard, or -1 when the batch is not sharded
+     * @param arena Arena for the Tensors of the shard
+     */
+    private ShardResult propagate(Tensor features, Tensor labels, int shard, TensorArena arena) {
+        var scope = arena.activate();
+        try {
+            return propagate(features, labels, shard);
+        } finally {
+            scope.close();
+        }
+    }
+    
+    private ShardResult propagate(Tensor features, Tensor labels, int shard) {
+        // Forward propagation
+        var fp = new ForwardPropResult[layers.size()];
+        var activation = features;
+        for (int j = 0; j < layers.size(); j++) {
+            var layer = layers.get(j);
+            var layerResult = shard < 0
+                    ? layer.forwardPropagate(activation, true)
+                    : layer.forwardPropagate(activation, true, shard);
+            activation = layerResult.a;
+            fp[j] = layerResult;
+        }
+        
+        var dA = costFunction.computeCostDerivative(activation, labels);
+        
+        // Backward propagation
+        var bp = new BackPropResult[layers.size()];
+        for (int j = layers.size() - 1; j >= 0; j--) {
+            var layer = layers.get(j);
+            var layerResult = layer.backwardPropagate(dA, fp[j]);
+            bp[j] = layerResult;
+            dA = layerResult.dA;
+        }
+        
+        return new ShardResult(bp, costFunction.computeCost(activation, labels), features.mDim());
+    }
+    
+    /**
+     * Combines the derivatives of one layer across shards.
+     * 
+     * Layers average their derivatives over the rows they saw, so each shard
+     * is weighted by its share of the batch. Shards are added in order, which
+     * keeps the result deterministic. The sums are accumulated into the
+     * derivatives of the first shard.
+     */
+    private static Tensor[] reduce(ShardResult[] results, int layer, int m) {
+        var dParameters = results[0].gradients[layer].dParameters;
+        if (results.length == 1) {
+            return dParameters;
+        }
+        for (int p = 0; p < dParameters.length; p++) {
+            var sum = dParameters[p].scaleInPlace((double) results[0].m / m);
+            for (int s = 1; s < results.length; s++) {
+                sum.axpy((double) results[s].m / m, results[s].gradients[layer].dParameters[p]);
+            }
+        }
+        return dParameters;
+    }
+    
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Training failed on a worker thread.", e.getCause());
+        }
+    }
+    
+    /**
+     * Derivatives and cost computed for one shard of a batch.
+     */
+    private static class ShardResult {
+        final BackPropResult[] gradients;
+        final double cost;
+        final int m;
+        
+        ShardResult(BackPropResult[] gradients, double cost, int m) {
+            this.gradients = gradients;
+            this.cost = cost;
+            this.m = m;
+        }
+    }
+    
     /**
      * Applies the neural network model to the given data
      *
+     * Layers run their inference path (see Layer.infer), which caches
+     * nothing. Intermediate Tensors are borrowed from an arena owned by the
+     * calling thread and released when the call returns, so after the first
+     * call with a given batch size, the only buffer allocated is that of the
+     * returned Tensor.
+     * When snapshots are enabled, the latest one is used.
+     *
      * @param dataFeatures Tensor of data points (1 point per row)
      * @return Tensor of predictions (1 prediction per row)
      */
     public Tensor predict(Tensor dataFeatures) {
-        var activation = dataFeatures;
-        for (var layer : layers) {
-            var layerResult = layer.forwardPropagate(activation, false);
-            activation = layerResult.a;
+        return predict(inferenceLayers(), dataFeatures);
+    }
+    
+    Tensor predict(List<Layer> model, Tensor dataFeatures) {
+        var arena = inferenceArenas.get();
+        try {
+            return infer(model, dataFeatures, arena).copy();
+        } finally {
+            arena.releaseAll();
+        }
+    }
+
+    /**
+     * Applies the neural network model to the given data, writing the
+     * predictions into an existing Tensor.
+     *
+     * Like predict, without allocating a buffer for the result. For batch
+     * sizes the calling thread has already seen, no buffers are allocated at
+     * all. Small objects, such as Tensor headers and shape lists, still are:
+     * a few KB per call for a convolutional network.
+     *
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @param dest Tensor with the shape of the predictions, which receives
+     * them in its own precision
+     * @return dest
+     */
+    public Tensor predictInto(Tensor dataFeatures, Tensor dest) {
+        return predictInto(inferenceLayers(), dataFeatures, dest);
+    }
+    
+    Tensor predictInto(List<Layer> model, Tensor dataFeatures, Tensor dest) {
+        var arena = inferenceArenas.get();
+        try {
+            return dest.copyFrom(infer(model, dataFeatures, arena));
+        } finally {
+            arena.releaseAll();
+        }
+    }
+
+    /**
+     * Drops the inference buffers pooled for the calling thread, e.g. after
+     * a burst of unusual batch sizes.
+     */
+    public void releaseInferenceBuffers() {
+        inferenceArenas.get().close();
+        inferenceArenas.remove();
+    }
+
+    /**
+     * @return The layers of the latest snapshot, or the live layers when
+     * snapshots are disabled
+     */
+    private List<Layer> inferenceLayers() {
+        var current = snapshot;
+        return current != null ? current.layers : layers;
+    }
+
+    /**
+     * Runs every layer's inference path with the arena active. The result
+     * is only valid until the arena is released.
+     */
+    private static Tensor infer(List<Layer> model, Tensor dataFeatures, TensorArena arena) {
+        var scope = arena.activate();
+        try {
+            var activation = dataFeatures;
+            for (var layer : model) {
+                activation = layer.infer(activation);
+            }
+            return activation;
+        } finally {
+            scope.close();
         }
-        return activation;
     }
 
     public double evaluate(Tensor dataFeatures, Tensor dataLabels) {
-        var predictions = predict(dataFeatures);
-        return costFunction.computeCost(predictions, dataLabels);
+        var arena = inferenceArenas.get();
+        try {
+            var predictions = infer(inferenceLayers(), dataFeatures, arena);
+            var scope = arena.activate();
+            try {
+                return costFunction.computeCost(predictions, dataLabels);
+            } finally {
+                scope.close();
+            }
+        } finally {
+            arena.releaseAll();
+        }
+    }
+
+    /**
+     * Computes the average cost over a DataSource, one batch at a time.
+     * The DataSource must not be empty.
+     * 
+     * @param data
+     * @param batchSize Maximum number of examples per batch
+     * @return The cost, weighted by the size of each batch
+     */
+    public double evaluate(DataSource data, int batchSize) {
+        double totalCost = 0.0;
+        long m = 0;
+        try (var batches = data.batches(batchSize)) {
+            while (batches.hasNext()) {
+                var batch = batches.next();
+                totalCost += evaluate(batch.features, batch.labels) * batch.size();
+                m += batch.size();
+            }
+        }
+        if (m == 0) {
+            throw new IllegalArgumentException("DataSource has no examples.");
+        }
+        return totalCost / m;
     }
     
     public String toString() {
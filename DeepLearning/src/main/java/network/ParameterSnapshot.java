@@ -0,0 +1,54 @@
+package network;
+
+import java.util.List;
+import layer.Layer;
+import tensor.Tensor;
+
+/**
+ * An immutable copy of the parameters of a NeuralNetwork, for inference.
+ *
+ * Snapshots are published by the network as it trains, see
+ * NeuralNetwork.setSnapshotInterval. A snapshot never changes once
+ * published, so any number of threads may predict with it while training
+ * continues.
+ *
+ * @author tyler
+ */
+public class ParameterSnapshot {
+    // Number of snapshots the network had published, including this one.
+    public final long version;
+    // Number of optimizer steps the network had taken when this was copied.
+    public final long step;
+
+    private final NeuralNetwork network;
+    final List<Layer> layers;
+
+    ParameterSnapshot(NeuralNetwork network, long version, long step, List<Layer> layers) {
+        this.network = network;
+        this.version = version;
+        this.step = step;
+        this.layers = layers;
+    }
+
+    /**
+     * Applies the parameters of this snapshot to the given data, as in
+     * NeuralNetwork.predict.
+     *
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @return Tensor of predictions (1 prediction per row)
+     */
+    public Tensor predict(Tensor dataFeatures) {
+        return network.predict(layers, dataFeatures);
+    }
+
+    /**
+     * Like predict, writing the predictions into an existing Tensor.
+     *
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @param dest Tensor with the shape of the predictions
+     * @return dest
+     */
+    public Tensor predictInto(Tensor dataFeatures, Tensor dest) {
+        return network.predictInto(layers, dataFeatures, dest);
+    }
+}
@@ -0,0 +1,68 @@
+package network;
+
+import tensor.Tensor;
+
+/**
+ * Compares a network with its quantized copy (see NeuralNetwork.quantize) on
+ * held-out data.
+ *
+ * The costs come from evaluate, so costDelta is the accuracy lost to
+ * quantization in terms of the network's own cost function. Prediction
+ * errors compare the two networks' predictions element by element.
+ *
+ * @author tyler
+ */
+public class QuantizationReport {
+    public final double originalCost;
+    public final double quantizedCost;
+    // quantizedCost - originalCost
+    public final double costDelta;
+    public final double maxPredictionError;
+    public final double meanPredictionError;
+    // Bytes used by the weights of fully connected layers
+    public final long originalWeightBytes;
+    public final long quantizedWeightBytes;
+
+    private QuantizationReport(double originalCost, double quantizedCost, double maxPredictionError,
+            double meanPredictionError, long originalWeightBytes, long quantizedWeightBytes) {
+        this.originalCost = originalCost;
+        this.quantizedCost = quantizedCost;
+        this.costDelta = quantizedCost - originalCost;
+        this.maxPredictionError = maxPredictionError;
+        this.meanPredictionError = meanPredictionError;
+        this.originalWeightBytes = originalWeightBytes;
+        this.quantizedWeightBytes = quantizedWeightBytes;
+    }
+
+    /**
+     * Evaluates both networks on the same data.
+     *
+     * @param original
+     * @param quantized
+     * @param dataFeatures Tensor of data points (1 point per row)
+     * @param dataLabels Tensor of labels (1 label per row)
+     * @return
+     */
+    public static QuantizationReport compare(NeuralNetwork original, NeuralNetwork quantized,
+            Tensor dataFeatures, Tensor dataLabels) {
+        double[] expected = original.predict(dataFeatures).toArray();
+        double[] actual = quantized.predict(dataFeatures).toArray();
+        double max = 0.0;
+        double sum = 0.0;
+        for (int i = 0; i < expected.length; i++) {
+            double error = Math.abs(actual[i] - expected[i]);
+            max = Math.max(max, error);
+            sum += error;
+        }
+        return new QuantizationReport(original.evaluate(dataFeatures, dataLabels),
+                quantized.evaluate(dataFeatures, dataLabels), max, sum / expected.length,
+                original.weightBytes(), quantized.weightBytes());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cost %.6g -> %.6g (delta %+.3g), prediction error max %.3g mean %.3g, "
+                + "weights %d -> %d bytes", originalCost, quantizedCost, costDelta,
+                maxPredictionError, meanPredictionError, originalWeightBytes, quantizedWeightBytes);
+    }
+}
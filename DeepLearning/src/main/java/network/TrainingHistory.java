@@ -0,0 +1,23 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Costs recorded while training a NeuralNetwork.
+ * 
+ * epochCosts holds one cost per epoch, averaged over the examples in it.
+ * batchCosts holds, for each epoch, the cost of every mini-batch in the
+ * order they were trained.
+ * 
+ * @author tyler
+ */
+public class TrainingHistory {
+    public final List<Double> epochCosts;
+    public final List<List<Double>> batchCosts;
+    
+    public TrainingHistory() {
+        epochCosts = new ArrayList<>();
+        batchCosts = new ArrayList<>();
+    }
+}
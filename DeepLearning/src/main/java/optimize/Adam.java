@@ -1,7 +1,9 @@
 package optimize;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import tensor.OptimizerKernels;
 import tensor.Tensor;
 import tensor.Tensor2D;
 
@@ -14,15 +16,24 @@ import tensor.Tensor2D;
  * The cost seems to minimize then blow up. This may be due to variances being 
  * too close to zero after approximate convergence occurs.
  * 
+ * Moment estimates are bias corrected, so the first steps are not shrunk
+ * towards zero. This needs the number of steps taken for each layer.
+ * 
  * @author tyler
  */
 public class Adam implements Optimizer {
+    public static final String STEPS = "steps";
+    
     private final double learningRate;
-    private final Tensor2D beta1;
-    private final Tensor2D beta2;
-    private final Tensor2D epsilon = Tensor2D.constant(1.0e-8);
-    private final Map<String, Tensor> momentums;
-    private final Map<String, Tensor> variances;
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon = 1.0e-8;
+    private final ParameterSlots momentums;
+    private final ParameterSlots variances;
+    private final ParameterSlots updates;
+    
+    // Number of steps taken for each layer identifier.
+    private long[] steps;
     
     /**
      * Construct an ADAM optimizer.
@@ -35,45 +46,73 @@ public class Adam implements Optimizer {
      */
     public Adam(double learningRate, double beta1, double beta2) {
         this.learningRate = learningRate;
-        if (beta1 < 0 || beta1 > 1 || beta2 < 0 || beta2 > 1) {
-            throw new IllegalArgumentException("Momentum beta parameters must be in [0,1].");
+        if (beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1) {
+            throw new IllegalArgumentException("Momentum beta parameters must be in [0,1).");
         }
-        this.beta1 = Tensor2D.constant(beta1);
-        this.beta2 = Tensor2D.constant(beta2);
-        momentums = new HashMap<>();
-        variances = new HashMap<>();
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        momentums = new ParameterSlots();
+        variances = new ParameterSlots();
+        updates = new ParameterSlots();
+        steps = new long[0];
     }
     
     @Override
-    public Map<String, Tensor> computeParameterUpdates(Map<String, Tensor> dParameters, int identifier) {
-        var parameterUpdates = new HashMap<String, Tensor>();
-        var factor = Tensor2D.constant(-1.0 * learningRate);
-        
-        for (var key : dParameters.keySet()) {
-            var lookup = key + identifier;
-            var dParameter = dParameters.get(key);
-            
-            // Compute updated momentum
-            var momentum = momentums.getOrDefault(lookup, Tensor2D.constant(0.0));
-            momentum = beta1.multiply(momentum).add(Tensor2D.one().subtract(beta1)
-                            .multiply(dParameter));
-            
-            momentums.put(lookup, momentum);
-            
-            // Compute updated variance
-            var variance = variances.getOrDefault(lookup, Tensor2D.constant(0.0));
-            variance = beta2.multiply(variance).add(Tensor2D.one().subtract(beta2)
-                            .multiply(dParameter.multiply(dParameter)));
-            
-            variances.put(lookup, variance);
-            
-            var sd = variance.power(Tensor2D.constant(0.5));
-            
-            // Divide by sd + epsilon to avoid division by zero.
-            parameterUpdates.put(key, momentum
-                    .multiply(factor)
-                    .divideBy(sd.add(epsilon)));
+    public Tensor[] computeParameterUpdates(Tensor[] dParameters, int identifier) {
+        // The update is the step taken from zero.
+        var parameterUpdates = updates.get(identifier, dParameters);
+        for (var update : parameterUpdates) {
+            update.fill(0.0);
         }
+        updateInPlace(parameterUpdates, dParameters, identifier);
         return parameterUpdates;
     }
+    
+    @Override
+    public void updateInPlace(Tensor[] parameters, Tensor[] dParameters, int identifier) {
+        // State buffers are created on first use, then updated in place.
+        var momentum = momentums.get(identifier, dParameters);
+        var variance = variances.get(identifier, dParameters);
+        if (steps.length <= identifier) {
+            steps = Arrays.copyOf(steps, identifier + 1);
+        }
+        long step = ++steps[identifier];
+        
+        for (int p = 0; p < parameters.length; p++) {
+            // Divides by sd + epsilon to avoid division by zero.
+            OptimizerKernels.adam(parameters[p], dParameters[p], momentum[p], variance[p],
+                    beta1, beta2, learningRate, epsilon, step);
+        }
+    }
+    
+    @Override
+    public Map<String, Tensor> getState() {
+        var state = new HashMap<String, Tensor>();
+        momentums.export(state, "momentum");
+        variances.export(state, "variance");
+        if (steps.length > 0) {
+            double[][] counts = new double[1][steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                counts[0][i] = steps[i];
+            }
+            state.put(STEPS, new Tensor2D(counts));
+        }
+        return state;
+    }
+    
+    @Override
+    public void setState(Map<String, Tensor> state) {
+        var counts = state.get(STEPS);
+        if (counts == null && !state.isEmpty()) {
+            // Without them, restored moments would be bias corrected again.
+            throw new IllegalArgumentException("ADAM state has no step counts.");
+        }
+        momentums.restore(state, "momentum");
+        variances.restore(state, "variance");
+        var values = counts == null ? new double[0] : counts.toArray();
+        steps = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            steps[i] = (long) values[i];
+        }
+    }
 }
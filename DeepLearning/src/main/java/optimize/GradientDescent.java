@@ -1,36 +1,43 @@
 package optimize;
 
-import java.util.HashMap;
-import java.util.Map;
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * @author tyler
  */
 public class GradientDescent implements Optimizer {
     private final double learningRate;
+    private final ParameterSlots updates;
     
     public GradientDescent(double learningRate) {
         this.learningRate = learningRate;
+        updates = new ParameterSlots();
     }
     
     /**
      * Computes the change in parameters to apply to be applied to the layer.
      * 
-     * @param dParameters Map of derivatives (dCost / dparams)
+     * @param dParameters Derivatives (dCost / dparams), indexed by parameter ID
      * @param identifier A unique index referring to the layer
-     * @return Map of parameter updates, using the same keys as the input
+     * @return Parameter updates, indexed like dParameters
      */
     @Override
-    public Map<String, Tensor> computeParameterUpdates(Map<String, Tensor> dParameters, int identifier) {
-        var parameterUpdates = new HashMap<String, Tensor>();
-        var factor = Tensor2D.constant(-1.0 * learningRate);
+    public Tensor[] computeParameterUpdates(Tensor[] dParameters, int identifier) {
+        var parameterUpdates = updates.get(identifier, dParameters);
+        var factor = -1.0 * learningRate;
         
-        for (var key : dParameters.keySet()) {
-            parameterUpdates.put(key, dParameters.get(key).multiply(factor));
+        for (int p = 0; p < dParameters.length; p++) {
+            parameterUpdates[p].copyFrom(dParameters[p]).scaleInPlace(factor);
         }
         
         return parameterUpdates;
     }
+    
+    @Override
+    public void updateInPlace(Tensor[] parameters, Tensor[] dParameters, int identifier) {
+        var factor = -1.0 * learningRate;
+        for (int p = 0; p < parameters.length; p++) {
+            parameters[p].axpy(factor, dParameters[p]);
+        }
+    }
 }
@@ -2,40 +2,57 @@ package optimize;
 
 import java.util.HashMap;
 import java.util.Map;
+import tensor.OptimizerKernels;
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * @author tyler
  */
 public class Momentum implements Optimizer {
     private final double learningRate;
-    private final Tensor2D beta;
-    private final Map<String, Tensor> momentums;
+    private final double beta;
+    private final ParameterSlots momentums;
+    private final ParameterSlots updates;
     
     public Momentum(double learningRate, double beta) {
         this.learningRate = learningRate;
         if (beta < 0 || beta > 1) {
             throw new IllegalArgumentException("Momentum beta parameter must be in [0,1].");
         }
-        this.beta = Tensor2D.constant(beta);
-        momentums = new HashMap<>();
+        this.beta = beta;
+        momentums = new ParameterSlots();
+        updates = new ParameterSlots();
     }
     
     @Override
-    public Map<String, Tensor> computeParameterUpdates(Map<String, Tensor> dParameters, int identifier) {
-        var parameterUpdates = new HashMap<String, Tensor>();
-        var factor = Tensor2D.constant(-1.0 * learningRate);
-        
-        for (var key : dParameters.keySet()) {
-            var lookup = key + identifier;
-            var momentum = momentums.getOrDefault(lookup, Tensor2D.constant(0.0));
-            momentum = beta.multiply(momentum).add(Tensor2D.one().subtract(beta)
-                            .multiply(dParameters.get(key)));
-            
-            momentums.put(lookup, momentum);
-            parameterUpdates.put(key, momentum.multiply(factor));
+    public Tensor[] computeParameterUpdates(Tensor[] dParameters, int identifier) {
+        // The update is the step taken from zero.
+        var parameterUpdates = updates.get(identifier, dParameters);
+        for (var update : parameterUpdates) {
+            update.fill(0.0);
         }
+        updateInPlace(parameterUpdates, dParameters, identifier);
         return parameterUpdates;
     }
+    
+    @Override
+    public void updateInPlace(Tensor[] parameters, Tensor[] dParameters, int identifier) {
+        // State buffers are created on first use, then updated in place.
+        var momentum = momentums.get(identifier, dParameters);
+        for (int p = 0; p < parameters.length; p++) {
+            OptimizerKernels.momentum(parameters[p], dParameters[p], momentum[p], beta, learningRate);
+        }
+    }
+    
+    @Override
+    public Map<String, Tensor> getState() {
+        var state = new HashMap<String, Tensor>();
+        momentums.export(state, "momentum");
+        return state;
+    }
+    
+    @Override
+    public void setState(Map<String, Tensor> state) {
+        momentums.restore(state, "momentum");
+    }
 }
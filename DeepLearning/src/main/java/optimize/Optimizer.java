@@ -4,8 +4,61 @@ import java.util.Map;
 import tensor.Tensor;
 
 /**
+ * Computes parameter updates from derivatives.
+ * 
+ * Implementations may reuse the returned update Tensors between calls with
+ * the same identifier, so callers should apply them before the next call.
+ * State is kept per layer identifier and parameter ID.
+ * 
  * @author tyler
  */
 public interface Optimizer {
-    public Map<String, Tensor> computeParameterUpdates(Map<String, Tensor> dParameters, int identifier);
+    /**
+     * Computes the change to apply to each parameter of a layer.
+     * 
+     * @param dParameters Derivatives (dCost / dparams), indexed by parameter ID
+     * @param identifier A unique index referring to the layer
+     * @return Parameter updates, indexed like dParameters
+     */
+    public Tensor[] computeParameterUpdates(Tensor[] dParameters, int identifier);
+    
+    /**
+     * Takes one step on the parameters of a layer, in place.
+     * 
+     * This is equivalent to adding the result of computeParameterUpdates to
+     * the parameters. Implementations fuse the update into a single pass
+     * over each parameter, its derivative and the optimizer state.
+     * 
+     * @param parameters Parameters of the layer, indexed by parameter ID
+     * @param dParameters Derivatives, indexed like parameters
+     * @param identifier A unique index referring to the layer
+     */
+    public default void updateInPlace(Tensor[] parameters, Tensor[] dParameters, int identifier) {
+        var parameterUpdates = computeParameterUpdates(dParameters, identifier);
+        for (int p = 0; p < parameters.length; p++) {
+            parameters[p].addInPlace(parameterUpdates[p]);
+        }
+    }
+    
+    /**
+     * Returns the Tensors carried from one step to the next, such as moment
+     * estimates, by name.
+     * 
+     * The Tensors are live. Callers which need a snapshot should copy them.
+     * 
+     * @return 
+     */
+    public default Map<String, Tensor> getState() {
+        return Map.of();
+    }
+    
+    /**
+     * Replaces the optimizer state with state previously returned by
+     * getState. The Tensors are copied.
+     * 
+     * @param state 
+     */
+    public default void setState(Map<String, Tensor> state) {
+        // Stateless by default.
+    }
 }
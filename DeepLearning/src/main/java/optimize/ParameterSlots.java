@@ -0,0 +1,95 @@
+package optimize;
+
+import java.util.Arrays;
+import java.util.Map;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * Per-parameter optimizer Tensors, indexed by layer identifier and
+ * parameter ID.
+ * 
+ * Tensors are created as zeros the first time a layer is seen, then reused,
+ * so a step only costs two array indexes per parameter. Tensors whose
+ * precision differs from the derivatives', e.g. after a restore, are
+ * converted on their next use.
+ * 
+ * For getState and setState, each Tensor is named by a prefix, the layer and
+ * the parameter, e.g. "momentum/2/0".
+ * 
+ * @author tyler
+ */
+final class ParameterSlots {
+    private Tensor[][] slots = new Tensor[0][];
+    
+    /**
+     * Returns the Tensors of a layer, one per parameter, each with the shape
+     * and precision of the parameter's derivatives.
+     * 
+     * @param identifier
+     * @param dParameters Derivatives of the layer's parameters
+     * @return 
+     */
+    Tensor[] get(int identifier, Tensor[] dParameters) {
+        if (slots.length <= identifier) {
+            slots = Arrays.copyOf(slots, identifier + 1);
+        }
+        var row = slots[identifier];
+        if (row == null || row.length != dParameters.length) {
+            row = row == null ? new Tensor[dParameters.length] : Arrays.copyOf(row, dParameters.length);
+            slots[identifier] = row;
+        }
+        for (int p = 0; p < row.length; p++) {
+            var precision = dParameters[p].precision();
+            if (row[p] == null) {
+                row[p] = TensorBuilder.zeros(dParameters[p].shape(), precision);
+            } else if (row[p].precision() != precision) {
+                // Restored state is read as DOUBLE, and setPrecision may have
+                // changed the precision of the parameters since.
+                row[p] = row[p].toPrecision(precision);
+            }
+        }
+        return row;
+    }
+    
+    void export(Map<String, Tensor> target, String prefix) {
+        for (int identifier = 0; identifier < slots.length; identifier++) {
+            if (slots[identifier] == null) {
+                continue;
+            }
+            for (int p = 0; p < slots[identifier].length; p++) {
+                target.put(prefix + "/" + identifier + "/" + p, slots[identifier][p]);
+            }
+        }
+    }
+    
+    void restore(Map<String, Tensor> source, String prefix) {
+        slots = new Tensor[0][];
+        for (var entry : source.entrySet()) {
+            if (!entry.getKey().startsWith(prefix + "/")) {
+                continue;
+            }
+            var ids = entry.getKey().substring(prefix.length() + 1).split("/");
+            int identifier;
+            int parameter;
+            try {
+                identifier = Integer.parseInt(ids[0]);
+                parameter = Integer.parseInt(ids[ids.length - 1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid optimizer state name " + entry.getKey() + ".", e);
+            }
+            if (ids.length != 2 || identifier < 0 || parameter < 0) {
+                throw new IllegalArgumentException("Invalid optimizer state name " + entry.getKey() + ".");
+            }
+            if (slots.length <= identifier) {
+                slots = Arrays.copyOf(slots, identifier + 1);
+            }
+            var row = slots[identifier];
+            if (row == null || row.length <= parameter) {
+                row = row == null ? new Tensor[parameter + 1] : Arrays.copyOf(row, parameter + 1);
+                slots[identifier] = row;
+            }
+            row[parameter] = entry.getValue().copy();
+        }
+    }
+}
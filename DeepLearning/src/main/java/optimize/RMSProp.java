@@ -2,8 +2,8 @@ package optimize;
 
 import java.util.HashMap;
 import java.util.Map;
+import tensor.OptimizerKernels;
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * Implements the RMS Prop algorithm
@@ -12,41 +12,51 @@ import tensor.Tensor2D;
  */
 public class RMSProp implements Optimizer {
     private final double learningRate;
-    private final Tensor2D beta;
-    private final Tensor2D epsilon = Tensor2D.constant(1.0e-8);
-    private final Map<String, Tensor> variances;
+    private final double beta;
+    private final double epsilon = 1.0e-8;
+    private final ParameterSlots variances;
+    private final ParameterSlots updates;
     
     public RMSProp(double learningRate, double beta) {
         this.learningRate = learningRate;
         if (beta < 0 || beta > 1) {
             throw new IllegalArgumentException("Momentum beta parameter must be in [0,1].");
         }
-        this.beta = Tensor2D.constant(beta);
-        variances = new HashMap<>();
+        this.beta = beta;
+        variances = new ParameterSlots();
+        updates = new ParameterSlots();
     }
     
     @Override
-    public Map<String, Tensor> computeParameterUpdates(Map<String, Tensor> dParameters, int identifier) {
-        var parameterUpdates = new HashMap<String, Tensor>();
-        var factor = Tensor2D.constant(-1.0 * learningRate);
-        
-        for (var key : dParameters.keySet()) {
-            var lookup = key + identifier;
-            var variance = variances.getOrDefault(lookup, Tensor2D.constant(0.0));
-            var dParameter = dParameters.get(key);
-            
-            // Compute updated variance
-            variance = beta.multiply(variance).add(Tensor2D.one().subtract(beta)
-                            .multiply(dParameter.multiply(dParameter)));
-            
-            variances.put(lookup, variance);
-            var sd = variance.power(Tensor2D.constant(0.5));
-            
-            // Divide by sd + epsilon to avoid division by zero.
-            parameterUpdates.put(key, dParameter
-                    .multiply(factor)
-                    .divideBy(sd.add(epsilon)));
+    public Tensor[] computeParameterUpdates(Tensor[] dParameters, int identifier) {
+        // The update is the step taken from zero.
+        var parameterUpdates = updates.get(identifier, dParameters);
+        for (var update : parameterUpdates) {
+            update.fill(0.0);
         }
+        updateInPlace(parameterUpdates, dParameters, identifier);
         return parameterUpdates;
     }
+    
+    @Override
+    public void updateInPlace(Tensor[] parameters, Tensor[] dParameters, int identifier) {
+        var variance = variances.get(identifier, dParameters);
+        for (int p = 0; p < parameters.length; p++) {
+            // Divides by sd + epsilon to avoid division by zero.
+            OptimizerKernels.rmsProp(parameters[p], dParameters[p], variance[p],
+                    beta, learningRate, epsilon);
+        }
+    }
+    
+    @Override
+    public Map<String, Tensor> getState() {
+        var state = new HashMap<String, Tensor>();
+        variances.export(state, "variance");
+        return state;
+    }
+    
+    @Override
+    public void setState(Map<String, Tensor> state) {
+        variances.restore(state, "variance");
+    }
 }
@@ -1,7 +1,6 @@
 package regularize;
 
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * @author tyler
@@ -22,14 +21,22 @@ public class L1Regularizer implements Regularizer {
 
     @Override
     public Tensor computeRegularizedDerivatives(Tensor parameters) {
-        var factor = Tensor2D.constant(learningRate * lambda / (2.0 * m));
+        var factor = learningRate * lambda / (2.0 * m);
 
-        double cost = parameters.abs().allSum()
-                .multiply(factor).value2(0, 0, 0, 0);
+        double cost = parameters.abs().sum() * factor;
         regularizerCost += cost;
 
-        return parameters.applyUnary(d -> (d > 0) ? 1.0 : ((d < 0) ? -1.0 : 0.0)
-        ).multiply(factor);
+        return parameters.map(d -> (d > 0) ? factor : ((d < 0) ? -factor : 0.0));
+    }
+
+    @Override
+    public void regularizeInPlace(Tensor parameters) {
+        var factor = learningRate * lambda / (2.0 * m);
+
+        double cost = parameters.sum(Math::abs) * factor;
+        regularizerCost += cost;
+
+        parameters.mapInPlace(d -> d - ((d > 0) ? factor : ((d < 0) ? -factor : 0.0)));
     }
 
     @Override
@@ -1,7 +1,6 @@
 package regularize;
 
 import tensor.Tensor;
-import tensor.Tensor2D;
 
 /**
  * @author tyler
@@ -24,11 +23,20 @@ public class L2Regularizer implements Regularizer {
     public Tensor computeRegularizedDerivatives(Tensor parameters) {
         double factor = learningRate * lambda / m;
 
-        double cost = parameters.multiply(parameters).allSum()
-                .multiply(Tensor2D.constant(factor / 2.0)).value2(0, 0, 0, 0);
+        double cost = parameters.multiply(parameters).sum() * (factor / 2.0);
         regularizerCost += cost;
 
-        return parameters.multiply(Tensor2D.constant(factor));
+        return parameters.scale(factor);
+    }
+
+    @Override
+    public void regularizeInPlace(Tensor parameters) {
+        double factor = learningRate * lambda / m;
+
+        double cost = parameters.sum(d -> d * d) * (factor / 2.0);
+        regularizerCost += cost;
+
+        parameters.axpy(-factor, parameters);
     }
 
     @Override
@@ -9,6 +9,17 @@ public interface Regularizer {
     
     public Tensor computeRegularizedDerivatives(Tensor parameters);
     
+    /**
+     * Subtracts the regularization derivatives from the parameters, in place.
+     * 
+     * This is equivalent to
+     * parameters.subtract(computeRegularizedDerivatives(parameters)),
+     * including the running cost, without allocating a derivative Tensor.
+     * 
+     * @param parameters 
+     */
+    public void regularizeInPlace(Tensor parameters);
+    
     public double getRegularizerCost();
     
     public void resetRunningCost();
@@ -13,6 +13,12 @@ public class Unregularized implements Regularizer {
         return Tensor2D.constant(0.0);
     }
 
+    @Override
+    public void regularizeInPlace(Tensor parameters) {
+        // Nothing to subtract.
+        return;
+    }
+
     @Override
     public double getRegularizerCost() {
         return 0.0;
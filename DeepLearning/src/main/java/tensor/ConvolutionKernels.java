@@ -0,0 +1,231 @@
+package tensor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lowers 2D convolutions over Tensor4Ds to matrix products.
+ *
+ * Inputs are m x height x width x channels. im2col copies every window of
+ * the input into a row of a matrix, so a convolution with all filters is a
+ * single product of that matrix with the filter weights. col2im is its
+ * adjoint, which adds the rows of such a matrix back onto the windows they
+ * came from.
+ *
+ * Windows are described by their size, stride and padding along the height
+ * and width. They always span every channel. Padding is filled with zeros.
+ *
+ * Large inputs are split by example across the fork-join pool. The examples
+ * cover disjoint rows and input elements, so parts never contend.
+ *
+ * im2col keeps the precision of its input, so the copied windows of FLOAT
+ * inputs take half the memory. col2im accumulates in double precision.
+ *
+ * @author tyler
+ */
+public final class ConvolutionKernels {
+    // Below this many copied elements, forking is not worth the overhead.
+    static final long PARALLEL_THRESHOLD = 1L << 16;
+
+    private ConvolutionKernels() {
+    }
+
+    /**
+     * @param inputShape m x height x width x channels
+     * @param filters
+     * @param size
+     * @param stride
+     * @param padding
+     * @return The shape m x out height x out width x filters of the output
+     */
+    public static List<Integer> outputShape(List<Integer> inputShape, int filters,
+            int[] size, int[] stride, int[] padding) {
+        var window = new Window(inputShape, size, stride, padding);
+        return List.of(window.m, window.out1, window.out2, filters);
+    }
+
+    /**
+     * Copies the windows of x into the rows of a matrix.
+     *
+     * Row ((i * out height) + r) * out width + c holds the window of
+     * example i at output position (r, c), in height, width, channel order.
+     *
+     * @param x
+     * @param size
+     * @param stride
+     * @param padding
+     * @return A (m * out height * out width) x (size[0] * size[1] * channels)
+     * matrix
+     */
+    public static Tensor2D im2col(Tensor x, int[] size, int[] stride, int[] padding) {
+        var window = new Window(x.shape(), size, stride, padding);
+        int length = Math.multiplyExact(window.rows(), window.columns());
+        // Windows are copied without conversion, from either kind of buffer.
+        Object in = x.floats != null ? x.floats : x.data;
+        double[] out = x.floats != null ? null : TensorArena.allocateForOverwrite(length);
+        float[] outFloats = x.floats != null ? TensorArena.allocateFloatsForOverwrite(length) : null;
+        Object dest = outFloats != null ? outFloats : out;
+        int channels = window.in3;
+        window.run(i -> {
+            int position = i * window.out1 * window.out2 * window.columns();
+            for (int r = 0; r < window.out1; r++) {
+                for (int c = 0; c < window.out2; c++) {
+                    for (int a = r * stride[0] - padding[0]; a < r * stride[0] - padding[0] + size[0]; a++) {
+                        for (int b = c * stride[1] - padding[1]; b < c * stride[1] - padding[1] + size[1]; b++) {
+                            if (a >= 0 && a < window.in1 && b >= 0 && b < window.in2) {
+                                System.arraycopy(in, ((i * window.in1 + a) * window.in2 + b) * channels,
+                                        dest, position, channels);
+                            } else if (out != null) {
+                                Arrays.fill(out, position, position + channels, 0.0);
+                            } else {
+                                Arrays.fill(outFloats, position, position + channels, 0.0f);
+                            }
+                            position += channels;
+                        }
+                    }
+                }
+            }
+        });
+        return outFloats != null ? Tensor2D.wrap(window.rows(), window.columns(), outFloats)
+                : Tensor2D.wrap(window.rows(), window.columns(), out);
+    }
+
+    /**
+     * Adds the rows of a matrix laid out as by im2col onto the windows they
+     * were copied from.
+     *
+     * @param columns
+     * @param inputShape Shape of the Tensor passed to im2col
+     * @param size
+     * @param stride
+     * @param padding
+     * @return A Tensor4D of shape inputShape, with the precision of columns
+     */
+    public static Tensor4D col2im(Tensor2D columns, List<Integer> inputShape,
+            int[] size, int[] stride, int[] padding) {
+        var window = new Window(inputShape, size, stride, padding);
+        if (columns.nrows != window.rows() || columns.ncols != window.columns()) {
+            throw new IllegalArgumentException("Matrix of shape " + columns.shape()
+                    + " does not hold the windows of an input of shape " + inputShape + ".");
+        }
+        double[] in = columns.data;
+        float[] inFloats = columns.floats;
+        double[] out = TensorArena.allocate(window.m * window.in1 * window.in2 * window.in3);
+        int channels = window.in3;
+        window.run(i -> {
+            int position = i * window.out1 * window.out2 * window.columns();
+            for (int r = 0; r < window.out1; r++) {
+                for (int c = 0; c < window.out2; c++) {
+                    for (int a = r * stride[0] - padding[0]; a < r * stride[0] - padding[0] + size[0]; a++) {
+                        for (int b = c * stride[1] - padding[1]; b < c * stride[1] - padding[1] + size[1]; b++) {
+                            if (a >= 0 && a < window.in1 && b >= 0 && b < window.in2) {
+                                int start = ((i * window.in1 + a) * window.in2 + b) * channels;
+                                if (inFloats == null) {
+                                    for (int d = 0; d < channels; d++) {
+                                        out[start + d] += in[position + d];
+                                    }
+                                } else {
+                                    for (int d = 0; d < channels; d++) {
+                                        out[start + d] += inFloats[position + d];
+                                    }
+                                }
+                            }
+                            position += channels;
+                        }
+                    }
+                }
+            }
+        });
+        var result = Tensor4D.wrap(inputShape, out);
+        return inFloats == null ? result : (Tensor4D) result.toPrecision(Precision.FLOAT);
+    }
+
+    /**
+     * Lowering of one example.
+     */
+    private interface ExampleKernel {
+        void apply(int i);
+    }
+
+    /**
+     * Shapes of a convolution's input and output windows.
+     */
+    private static final class Window {
+        final int m;
+        final int in1;
+        final int in2;
+        final int in3;
+        final int out1;
+        final int out2;
+        final int windowSize;
+
+        Window(List<Integer> inputShape, int[] size, int[] stride, int[] padding) {
+            if (inputShape.size() != 4) {
+                throw new IllegalArgumentException("Convolution only supports Tensor4D.");
+            }
+            if (size.length != 2 || stride.length != 2 || padding.length != 2) {
+                throw new IllegalArgumentException("Convolution needs a size, stride and padding for 2 dimensions.");
+            }
+            m = inputShape.get(0);
+            in1 = inputShape.get(1);
+            in2 = inputShape.get(2);
+            in3 = inputShape.get(3);
+            if (in1 + 2 * padding[0] < size[0] || in2 + 2 * padding[1] < size[1]) {
+                throw new IllegalArgumentException("Convolution windows of size " + size[0] + " x " + size[1]
+                        + " do not fit an input of shape " + inputShape + ".");
+            }
+            out1 = PoolKernels.outputSize(in1, size[0], stride[0], padding[0]);
+            out2 = PoolKernels.outputSize(in2, size[1], stride[1], padding[1]);
+            windowSize = size[0] * size[1];
+        }
+
+        int rows() {
+            return m * out1 * out2;
+        }
+
+        int columns() {
+            return windowSize * in3;
+        }
+
+        void run(ExampleKernel kernel) {
+            long work = (long) rows() * columns();
+            if (work < PARALLEL_THRESHOLD || m < 2 || ForkJoinPool.getCommonPoolParallelism() < 2) {
+                for (int i = 0; i < m; i++) {
+                    kernel.apply(i);
+                }
+            } else {
+                ForkJoinPool.commonPool().invoke(new ExampleTask(kernel, 0, m));
+            }
+        }
+    }
+
+    /**
+     * Recursively splits a range of examples across the fork-join pool.
+     */
+    private static class ExampleTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final ExampleKernel kernel;
+        private final int start;
+        private final int end;
+
+        ExampleTask(ExampleKernel kernel, int start, int end) {
+            this.kernel = kernel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ExampleTask(kernel, start, middle), new ExampleTask(kernel, middle, end));
+                return;
+            }
+            kernel.apply(start);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package tensor;
+
+/**
+ * Element-wise functions with dedicated kernels.
+ *
+ * Unlike map, which calls a DoubleUnaryOperator per element, these run
+ * specialized (and, when available, SIMD) loops over ranges of a buffer.
+ * They can therefore be fused into other kernels, as in
+ * Tensor2D.multiplyAddApply.
+ *
+ * @author tyler
+ */
+public enum ElementwiseFunction {
+    IDENTITY {
+        @Override
+        void applyScalar(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+            if (source != result || sourceOffset != resultOffset) {
+                System.arraycopy(source, sourceOffset, result, resultOffset, length);
+            }
+        }
+    },
+    RELU {
+        @Override
+        void applyScalar(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                result[resultOffset + i] = Math.max(0, source[sourceOffset + i]);
+            }
+        }
+    },
+    SIGMOID {
+        @Override
+        void applyScalar(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                result[resultOffset + i] = 1.0 / (1.0 + Math.exp(-source[sourceOffset + i]));
+            }
+        }
+    },
+    TANH {
+        @Override
+        void applyScalar(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                result[resultOffset + i] = Math.tanh(source[sourceOffset + i]);
+            }
+        }
+    };
+
+    /**
+     * Applies the function to a Tensor.
+     *
+     * @param t
+     * @return A new Tensor of the same shape
+     */
+    public Tensor apply(Tensor t) {
+        if (t.floats != null) {
+            float[] result = TensorArena.allocateFloatsForOverwrite(t.floats.length);
+            apply(t.floats, result);
+            return t.withData(result);
+        }
+        double[] result = TensorArena.allocateForOverwrite(t.data.length);
+        apply(t.data, 0, result, 0, result.length);
+        return t.withData(result);
+    }
+
+    /**
+     * Applies the function to a float buffer, a block at a time in double
+     * precision. source and result may be the same buffer.
+     */
+    void apply(float[] source, float[] result) {
+        double[] block = new double[Math.min(source.length, FloatKernels.BLOCK)];
+        for (int start = 0; start < source.length; start += FloatKernels.BLOCK) {
+            int n = Math.min(FloatKernels.BLOCK, source.length - start);
+            FloatKernels.widen(source, start, 1, block, 0, n);
+            apply(block, 0, block, 0, n);
+            FloatKernels.narrow(block, 0, result, start, n);
+        }
+    }
+
+    /**
+     * Applies the function to a range of a buffer. source and result may be
+     * the same range.
+     */
+    void apply(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+        var simd = SimdKernels.INSTANCE;
+        if (simd == null || this == IDENTITY) {
+            applyScalar(source, sourceOffset, result, resultOffset, length);
+            return;
+        }
+        switch (this) {
+            case RELU:
+                simd.relu(source, sourceOffset, result, resultOffset, length);
+                break;
+            case SIGMOID:
+                simd.sigmoid(source, sourceOffset, result, resultOffset, length);
+                break;
+            case TANH:
+                simd.tanh(source, sourceOffset, result, resultOffset, length);
+                break;
+            default:
+                applyScalar(source, sourceOffset, result, resultOffset, length);
+        }
+    }
+
+    abstract void applyScalar(double[] source, int sourceOffset, double[] result, int resultOffset, int length);
+}
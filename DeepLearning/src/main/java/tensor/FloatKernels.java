@@ -0,0 +1,73 @@
+package tensor;
+
+/**
+ * Conversions between the float buffers of FLOAT Tensors and double.
+ *
+ * Kernels written for double buffers handle FLOAT Tensors by widening
+ * blocks of BLOCK elements into double scratch buffers, running on those,
+ * and narrowing the results back. Blocks stay in L1, so only the float
+ * buffers are streamed from memory.
+ *
+ * @author tyler
+ */
+final class FloatKernels {
+    // Elements converted at a time.
+    static final int BLOCK = 1024;
+
+    private FloatKernels() {
+    }
+
+    /**
+     * dest[destOffset + i] = source[sourceOffset + i * step]
+     */
+    static void widen(float[] source, int sourceOffset, int step, double[] dest, int destOffset, int length) {
+        var simd = SimdKernels.INSTANCE;
+        if (step == 1 && simd != null) {
+            simd.widen(source, sourceOffset, dest, destOffset, length);
+        } else if (step == 1) {
+            for (int i = 0; i < length; i++) {
+                dest[destOffset + i] = source[sourceOffset + i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[destOffset + i] = source[sourceOffset + i * step];
+            }
+        }
+    }
+
+    /**
+     * Copies elements of a Tensor of either precision into a double buffer.
+     */
+    static void load(Tensor source, int sourceOffset, double[] dest, int length) {
+        if (source.data != null) {
+            System.arraycopy(source.data, sourceOffset, dest, 0, length);
+        } else {
+            widen(source.floats, sourceOffset, 1, dest, 0, length);
+        }
+    }
+
+    /**
+     * Copies a double buffer into elements of a Tensor of either precision.
+     */
+    static void store(double[] source, Tensor dest, int destOffset, int length) {
+        if (dest.data != null) {
+            System.arraycopy(source, 0, dest.data, destOffset, length);
+        } else {
+            narrow(source, 0, dest.floats, destOffset, length);
+        }
+    }
+
+    /**
+     * dest[destOffset + i] = (float) source[sourceOffset + i]
+     */
+    static void narrow(double[] source, int sourceOffset, float[] dest, int destOffset, int length) {
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            simd.narrow(source, sourceOffset, dest, destOffset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = (float) source[sourceOffset + i];
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package tensor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cache-blocked, multi-threaded general matrix multiplication.
+ *
+ * Computes C += A * B for row-major buffers, following the usual packed
+ * GEMM structure:
+ *   The k dimension is split into KC-deep slices.
+ *   For each slice, A and B are packed into MR-row and NR-column panels,
+ *   so the micro-kernel reads both operands sequentially.
+ *   C is cut into MC x NC tiles, which are independent and are distributed
+ *   across a fork-join pool.
+ *   Each tile is computed by an MR x NR register-tiled micro-kernel.
+ *
+ * Operands are described by a row stride and a column stride, so transposed
+ * views can be packed without materializing them first. FLOAT operands are
+ * widened as they are packed, so products always accumulate in double.
+ *
+ * @author tyler
+ */
+final class Gemm {
+    // Register tile. MR x NR accumulators are held in local variables.
+    static final int MR = 4;
+    static final int NR = 4;
+
+    // Cache blocks. An MC x KC block of A is sized for L2, and a KC x NC
+    // block of B for L3.
+    static final int MC = 64;
+    static final int KC = 256;
+    static final int NC = 512;
+
+    // Below this many multiply-adds, packing costs more than it saves.
+    static final long SMALL_THRESHOLD = 32L * 32 * 32;
+
+    // Below this many multiply-adds, forking is not worth the overhead.
+    static final long PARALLEL_THRESHOLD = 128L * 128 * 128;
+
+    private Gemm() {
+    }
+
+    /**
+     * Computes C += A * B.
+     *
+     * A is m x k, B is k x n, and C is a dense m x n row-major buffer.
+     *
+     * @param m Rows of A and C
+     * @param n Columns of B and C
+     * @param k Columns of A and rows of B
+     * @param a Tensor holding A
+     * @param aRowStride Distance between rows of A
+     * @param aColStride Distance between columns of A
+     * @param b Tensor holding B
+     * @param bRowStride Distance between rows of B
+     * @param bColStride Distance between columns of B
+     * @param c Output buffer
+     */
+    static void multiply(int m, int n, int k,
+            Tensor a, int aRowStride, int aColStride,
+            Tensor b, int bRowStride, int bColStride,
+            double[] c) {
+        multiply(m, n, k, a, aRowStride, aColStride, b, bRowStride, bColStride, c, null);
+    }
+
+    /**
+     * Computes C += A * B, then applies an epilogue to every block of C.
+     *
+     * The epilogue runs on each block as soon as its last k slice is done,
+     * while the block is still in cache, rather than in a separate pass over
+     * C. Blocks are disjoint and cover C exactly once, and may be processed
+     * concurrently.
+     *
+     * @param epilogue Applied to each finished block, or null
+     */
+    static void multiply(int m, int n, int k,
+            Tensor a, int aRowStride, int aColStride,
+            Tensor b, int bRowStride, int bColStride,
+            double[] c, Epilogue epilogue) {
+        multiply(m, n, k, a, aRowStride, aColStride, b, bRowStride, bColStride, c, epilogue, null);
+    }
+
+    /**
+     * Computes C += A * B with an epilogue, and also adds the sum of each
+     * column of B to bColumnSums.
+     *
+     * The sums are accumulated while B is packed, so B is not read a second
+     * time. Rows are added in order, giving the same values as a separate
+     * column sum.
+     *
+     * @param bColumnSums Buffer of length n, or null
+     */
+    static void multiply(int m, int n, int k,
+            Tensor a, int aRowStride, int aColStride,
+            Tensor b, int bRowStride, int bColStride,
+            double[] c, Epilogue epilogue, double[] bColumnSums) {
+        long work = (long) m * n * k;
+        if (work <= SMALL_THRESHOLD) {
+            double[] aValues = widened(a);
+            double[] bValues = widened(b);
+            multiplySmall(m, n, k, aValues, aRowStride, aColStride, bValues, bRowStride, bColStride,
+                    c, epilogue);
+            if (bColumnSums != null) {
+                for (int p = 0; p < k; p++) {
+                    for (int j = 0; j < n; j++) {
+                        bColumnSums[j] += bValues[p * bRowStride + j * bColStride];
+                    }
+                }
+            }
+            return;
+        }
+        boolean parallel = work >= PARALLEL_THRESHOLD
+                && ForkJoinPool.getCommonPoolParallelism() > 1;
+
+        // Parallel tasks share all of packed A. Serially, A is packed one MC
+        // block at a time, into a buffer which stays in cache.
+        int mPanels = ((parallel ? m : Math.min(m, MC)) + MR - 1) / MR;
+        int nPanels = (n + NR - 1) / NR;
+        double[] packedA = TensorArena.allocateForOverwrite(mPanels * MR * Math.min(k, KC));
+        double[] packedB = TensorArena.allocateForOverwrite(nPanels * NR * Math.min(k, KC));
+
+        for (int pc = 0; pc < k; pc += KC) {
+            int kc = Math.min(KC, k - pc);
+            packB(n, kc, b, pc * bRowStride, bRowStride, bColStride, packedB, bColumnSums);
+
+            // The epilogue only runs once a tile has seen every k slice.
+            var tileEpilogue = pc + kc == k ? epilogue : null;
+            int mTiles = (m + MC - 1) / MC;
+            int nTiles = (n + NC - 1) / NC;
+            if (parallel) {
+                packA(m, kc, a, pc * aColStride, aRowStride, aColStride, packedA);
+                ForkJoinPool.commonPool().invoke(new TileTask(m, n, kc, packedA, packedB, c,
+                        tileEpilogue, nTiles, 0, mTiles * nTiles));
+            } else {
+                // Each block of A is packed and then used by every column
+                // panel of B while it is in cache. Tall A, as from im2col,
+                // is read from memory only once.
+                for (int i0 = 0; i0 < m; i0 += MC) {
+                    int iEnd = Math.min(i0 + MC, m);
+                    packA(iEnd - i0, kc, a, i0 * aRowStride + pc * aColStride, aRowStride, aColStride,
+                            packedA);
+                    for (int j0 = 0; j0 < n; j0 += NC) {
+                        int jEnd = Math.min(j0 + NC, n);
+                        computeTile(m, n, kc, packedA, i0, packedB, c, i0, iEnd, j0, jEnd);
+                        if (tileEpilogue != null) {
+                            tileEpilogue.apply(c, n, i0, iEnd, j0, jEnd);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The values of t as doubles. FLOAT Tensors are copied.
+     */
+    private static double[] widened(Tensor t) {
+        if (t.floats == null) {
+            return t.data;
+        }
+        double[] result = TensorArena.allocateForOverwrite(t.floats.length);
+        FloatKernels.widen(t.floats, 0, 1, result, 0, t.floats.length);
+        return result;
+    }
+
+    /**
+     * Straightforward i-k-j product, used when the operands are too small to
+     * benefit from packing. The inner loop streams through rows of B and C.
+     * The epilogue, if any, is applied to each row once it is complete.
+     */
+    private static void multiplySmall(int m, int n, int k,
+            double[] a, int aRowStride, int aColStride,
+            double[] b, int bRowStride, int bColStride,
+            double[] c, Epilogue epilogue) {
+        for (int i = 0; i < m; i++) {
+            int cRow = i * n;
+            for (int p = 0; p < k; p++) {
+                double aip = a[i * aRowStride + p * aColStride];
+                int bRow = p * bRowStride;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aip * b[bRow + j * bColStride];
+                }
+            }
+            if (epilogue != null) {
+                epilogue.apply(c, n, i, i + 1, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Packs an m x kc slice of A into MR-row panels.
+     *
+     * Within a panel, the MR values for each p are stored contiguously.
+     * Rows past m are zero-padded so the micro-kernel never needs bounds
+     * checks on its inputs.
+     */
+    private static void packA(int m, int kc, Tensor a, int offset,
+            int rowStride, int colStride, double[] packed) {
+        double[] values = a.data;
+        float[] floats = a.floats;
+        int index = 0;
+        for (int i0 = 0; i0 < m; i0 += MR) {
+            int rows = Math.min(MR, m - i0);
+            for (int p = 0; p < kc; p++) {
+                int base = offset + i0 * rowStride + p * colStride;
+                if (floats == null) {
+                    for (int ii = 0; ii < rows; ii++) {
+                        packed[index++] = values[base + ii * rowStride];
+                    }
+                } else {
+                    for (int ii = 0; ii < rows; ii++) {
+                        packed[index++] = floats[base + ii * rowStride];
+                    }
+                }
+                for (int ii = rows; ii < MR; ii++) {
+                    packed[index++] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs a kc x n slice of B into NR-column panels.
+     *
+     * Within a panel, the NR values for each p are stored contiguously.
+     * Columns past n are zero-padded. If columnSums is not null, the packed
+     * values are also added to it.
+     */
+    private static void packB(int n, int kc, Tensor b, int offset,
+            int rowStride, int colStride, double[] packed, double[] columnSums) {
+        double[] values = b.data;
+        float[] floats = b.floats;
+        int index = 0;
+        for (int j0 = 0; j0 < n; j0 += NR) {
+            int cols = Math.min(NR, n - j0);
+            for (int p = 0; p < kc; p++) {
+                int base = offset + p * rowStride + j0 * colStride;
+                if (floats == null) {
+                    for (int jj = 0; jj < cols; jj++) {
+                        packed[index++] = values[base + jj * colStride];
+                    }
+                } else {
+                    for (int jj = 0; jj < cols; jj++) {
+                        packed[index++] = floats[base + jj * colStride];
+                    }
+                }
+                if (columnSums != null) {
+                    for (int jj = 0; jj < cols; jj++) {
+                        columnSums[j0 + jj] += packed[index - cols + jj];
+                    }
+                }
+                for (int jj = cols; jj < NR; jj++) {
+                    packed[index++] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes one MC x NC tile of C from the packed panels.
+     *
+     * @param aFirstRow Row of A at which packedA starts
+     */
+    private static void computeTile(int m, int n, int kc, double[] packedA, int aFirstRow,
+            double[] packedB, double[] c, int i0, int iEnd, int j0, int jEnd) {
+        var simd = SimdKernels.INSTANCE;
+        for (int j = j0; j < jEnd; j += NR) {
+            int bOffset = (j / NR) * NR * kc;
+            int cols = Math.min(NR, n - j);
+            for (int i = i0; i < iEnd; i += MR) {
+                int aOffset = ((i - aFirstRow) / MR) * MR * kc;
+                int rows = Math.min(MR, m - i);
+                if (simd != null) {
+                    simd.microKernel(kc, packedA, aOffset, packedB, bOffset, c, i, j, n, rows, cols);
+                } else {
+                    microKernel(kc, packedA, aOffset, packedB, bOffset, c, i, j, n, rows, cols);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulates an MR x NR block of C in registers, then adds it to C.
+     */
+    private static void microKernel(int kc, double[] packedA, int aOffset,
+            double[] packedB, int bOffset, double[] c, int i, int j, int ldc,
+            int rows, int cols) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        int ap = aOffset;
+        int bp = bOffset;
+        for (int p = 0; p < kc; p++) {
+            double a0 = packedA[ap];
+            double a1 = packedA[ap + 1];
+            double a2 = packedA[ap + 2];
+            double a3 = packedA[ap + 3];
+            double b0 = packedB[bp];
+            double b1 = packedB[bp + 1];
+            double b2 = packedB[bp + 2];
+            double b3 = packedB[bp + 3];
+
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+
+            ap += MR;
+            bp += NR;
+        }
+
+        if (rows == MR && cols == NR) {
+            int r0 = i * ldc + j;
+            int r1 = r0 + ldc;
+            int r2 = r1 + ldc;
+            int r3 = r2 + ldc;
+            c[r0] += c00; c[r0 + 1] += c01; c[r0 + 2] += c02; c[r0 + 3] += c03;
+            c[r1] += c10; c[r1 + 1] += c11; c[r1 + 2] += c12; c[r1 + 3] += c13;
+            c[r2] += c20; c[r2 + 1] += c21; c[r2 + 2] += c22; c[r2 + 3] += c23;
+            c[r3] += c30; c[r3 + 1] += c31; c[r3 + 2] += c32; c[r3 + 3] += c33;
+            return;
+        }
+
+        // Edge block: only write back the part that lies inside C.
+        double[] block = {
+            c00, c01, c02, c03,
+            c10, c11, c12, c13,
+            c20, c21, c22, c23,
+            c30, c31, c32, c33};
+        for (int ii = 0; ii < rows; ii++) {
+            for (int jj = 0; jj < cols; jj++) {
+                c[(i + ii) * ldc + j + jj] += block[ii * NR + jj];
+            }
+        }
+    }
+
+    /**
+     * Post-processing of a finished block of C, fused into the product.
+     */
+    interface Epilogue {
+        /**
+         * @param c Output buffer
+         * @param ldc Distance between rows of C
+         * @param i0 First row of the block
+         * @param iEnd Row after the last one
+         * @param j0 First column of the block
+         * @param jEnd Column after the last one
+         */
+        void apply(double[] c, int ldc, int i0, int iEnd, int j0, int jEnd);
+    }
+
+    /**
+     * Recursively splits a range of C tiles across the fork-join pool.
+     *
+     * Tiles cover disjoint parts of C, so tasks never contend on writes.
+     */
+    private static class TileTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final int m;
+        private final int n;
+        private final int kc;
+        private final double[] packedA;
+        private final double[] packedB;
+        private final double[] c;
+        private final Epilogue epilogue;
+        private final int nTiles;
+        private final int start;
+        private final int end;
+
+        TileTask(int m, int n, int kc, double[] packedA, double[] packedB, double[] c,
+                Epilogue epilogue, int nTiles, int start, int end) {
+            this.m = m;
+            this.n = n;
+            this.kc = kc;
+            this.packedA = packedA;
+            this.packedB = packedB;
+            this.c = c;
+            this.epilogue = epilogue;
+            this.nTiles = nTiles;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(m, n, kc, packedA, packedB, c, epilogue, nTiles, start, middle),
+                        new TileTask(m, n, kc, packedA, packedB, c, epilogue, nTiles, middle, end));
+                return;
+            }
+            int i0 = (start / nTiles) * MC;
+            int j0 = (start % nTiles) * NC;
+            int iEnd = Math.min(i0 + MC, m);
+            int jEnd = Math.min(j0 + NC, n);
+            computeTile(m, n, kc, packedA, 0, packedB, c, i0, iEnd, j0, jEnd);
+            if (epilogue != null) {
+                epilogue.apply(c, n, i0, iEnd, j0, jEnd);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package tensor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A weight matrix quantized to 8-bit integers, with one scale per column.
+ *
+ * Each element is stored as round(w / scale[j]), clamped to [-127, 127],
+ * where scale[j] maps the largest magnitude in column j to 127. Columns are
+ * stored contiguously, so a product with a row of int8 inputs is a single
+ * dot product accumulated in 32-bit integers. A k x n matrix takes k * n
+ * bytes, an eighth of a DOUBLE Tensor2D.
+ *
+ * Products quantize their input with a single scale, usually calibrated
+ * from sample data. Inputs beyond 127 times that scale are clamped.
+ *
+ * Products with sparse inputs read whole rows instead, so the first one
+ * builds a row-major copy of the values, which doubles the size.
+ *
+ * @author tyler
+ */
+public final class Int8Matrix {
+    static final long PARALLEL_THRESHOLD = 1L << 16;
+    // Largest magnitude of a quantized value. -128 is not used, so that the
+    // range is symmetric.
+    public static final int LEVELS = 127;
+
+    public final int nrows;
+    public final int ncols;
+    // Column j occupies values[j * nrows .. (j + 1) * nrows).
+    private final byte[] values;
+    private final double[] scales;
+    // Row p occupies rowValues[p * ncols .. (p + 1) * ncols). Built by the
+    // first sparse product.
+    private volatile byte[] rowValues;
+
+    private Int8Matrix(int nrows, int ncols, byte[] values, double[] scales) {
+        this.nrows = nrows;
+        this.ncols = ncols;
+        this.values = values;
+        this.scales = scales;
+    }
+
+    /**
+     * Quantizes a matrix with one symmetric scale per column.
+     *
+     * @param t
+     * @return
+     */
+    public static Int8Matrix quantizeColumns(Tensor2D t) {
+        Tensor.requireDense(t);
+        int k = t.nrows;
+        int n = t.ncols;
+        var values = new byte[k * n];
+        var scales = new double[n];
+        for (int j = 0; j < n; j++) {
+            double max = 0.0;
+            for (int p = 0; p < k; p++) {
+                max = Math.max(max, Math.abs(t.get(p * n + j)));
+            }
+            scales[j] = scaleFor(max);
+            double inverse = 1.0 / scales[j];
+            for (int p = 0; p < k; p++) {
+                values[j * k + p] = quantize(t.get(p * n + j), inverse);
+            }
+        }
+        return new Int8Matrix(k, n, values, scales);
+    }
+
+    /**
+     * Calibrates an input scale from sample inputs, so that their largest
+     * magnitude maps to LEVELS.
+     *
+     * @param sample Tensor of typical inputs, dense or SparseTensor2D
+     * @return
+     */
+    public static double calibrateScale(Tensor sample) {
+        double max = 0.0;
+        if (sample instanceof SparseTensor2D) {
+            for (double value : ((SparseTensor2D) sample).values) {
+                max = Math.max(max, Math.abs(value));
+            }
+            return scaleFor(max);
+        }
+        Tensor.requireDense(sample);
+        for (int i = 0; i < sample.size(); i++) {
+            max = Math.max(max, Math.abs(sample.get(i)));
+        }
+        return scaleFor(max);
+    }
+
+    /**
+     * @param maxAbs Largest magnitude to represent
+     * @return The scale mapping maxAbs to LEVELS, or 1 when maxAbs is 0
+     */
+    public static double scaleFor(double maxAbs) {
+        return maxAbs > 0.0 ? maxAbs / LEVELS : 1.0;
+    }
+
+    private static byte quantize(double value, double inverseScale) {
+        long q = Math.round(value * inverseScale);
+        return (byte) Math.max(-LEVELS, Math.min(LEVELS, q));
+    }
+
+    /**
+     * @param column
+     * @return The value of one quantization step in the column
+     */
+    public double scale(int column) {
+        return scales[column];
+    }
+
+    /**
+     * @return The number of bytes used by the quantized values and scales,
+     * including the row-major copy once a sparse product has built it
+     */
+    public long byteSize() {
+        return values.length + (rowValues != null ? rowValues.length : 0) + 8L * scales.length;
+    }
+
+    /**
+     * @return The values in row-major order, built on first use. Racing
+     * threads may each build a copy, but the copies are identical.
+     */
+    private byte[] rowValues() {
+        var result = rowValues;
+        if (result == null) {
+            result = new byte[values.length];
+            for (int j = 0; j < ncols; j++) {
+                for (int p = 0; p < nrows; p++) {
+                    result[p * ncols + j] = values[j * nrows + p];
+                }
+            }
+            rowValues = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return The matrix the quantized values represent, in DOUBLE precision
+     */
+    public Tensor2D dequantize() {
+        var result = new Tensor2D(nrows, ncols);
+        for (int p = 0; p < nrows; p++) {
+            for (int j = 0; j < ncols; j++) {
+                result.data[p * ncols + j] = values[j * nrows + p] * scales[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes function(x * this + bias) with an integer product.
+     *
+     * Each row of x is quantized with inputScale. Every output element is
+     * then an int32 dot product, dequantized by inputScale * scale[j] before
+     * the bias is added and the function applied, all in double precision.
+     * Rows are split across the fork-join pool for large products.
+     *
+     * @param x Dense m x nrows input
+     * @param inputScale Value of one quantization step of the input
+     * @param bias 1 x ncols
+     * @param function Element-wise function to apply, IDENTITY for none
+     * @param precision Precision of the result
+     * @return A new m x ncols Tensor2D, from the active TensorArena if there
+     * is one
+     */
+    public Tensor2D multiplyAddApply(Tensor2D x, double inputScale, Tensor2D bias,
+            ElementwiseFunction function, Precision precision) {
+        Tensor.requireDense(x);
+        checkProduct(x.shape(), x.ncols, inputScale, bias);
+        var epilogue = new Epilogue(x.nrows, inputScale, bias, function);
+
+        RowKernel kernel = (i0, i1) -> {
+            var row = new byte[nrows];
+            var dots = new int[4];
+            double inverse = 1.0 / inputScale;
+            for (int i = i0; i < i1; i++) {
+                for (int p = 0; p < nrows; p++) {
+                    row[p] = quantize(x.get(i * nrows + p), inverse);
+                }
+                int offset = i * ncols;
+                int j = 0;
+                // Four columns at a time, so each load of the row is reused.
+                for (; j + 4 <= ncols; j += 4) {
+                    dot4(row, values, j * nrows, nrows, dots);
+                    for (int t = 0; t < 4; t++) {
+                        epilogue.result[offset + j + t] = dots[t];
+                    }
+                }
+                for (; j < ncols; j++) {
+                    epilogue.result[offset + j] = dot(row, values, j * nrows, nrows);
+                }
+                epilogue.apply(i);
+            }
+        };
+        run(x.nrows, (long) x.nrows * nrows * ncols, kernel);
+        return Tensor2D.wrap(x.nrows, ncols, epilogue.result, precision);
+    }
+
+    /**
+     * Computes function(x * this + bias) for a sparse x, as for a dense one.
+     *
+     * Only the stored elements of x are quantized. Each one adds its int8
+     * value times a row of this matrix, read contiguously from the row-major
+     * copy, to int32 accumulators for the output row, so the work is
+     * proportional to the number of stored elements.
+     *
+     * @param x Sparse m x nrows input
+     * @param inputScale Value of one quantization step of the input
+     * @param bias 1 x ncols
+     * @param function Element-wise function to apply, IDENTITY for none
+     * @param precision Precision of the result
+     * @return A new m x ncols Tensor2D, from the active TensorArena if there
+     * is one
+     */
+    public Tensor2D multiplyAddApply(SparseTensor2D x, double inputScale, Tensor2D bias,
+            ElementwiseFunction function, Precision precision) {
+        checkProduct(x.shape(), x.ncols, inputScale, bias);
+        var epilogue = new Epilogue(x.nrows, inputScale, bias, function);
+        var weights = rowValues();
+
+        RowKernel kernel = (i0, i1) -> {
+            var sums = new int[ncols];
+            double inverse = 1.0 / inputScale;
+            for (int i = i0; i < i1; i++) {
+                Arrays.fill(sums, 0);
+                for (int e = x.rowStarts[i]; e < x.rowStarts[i + 1]; e++) {
+                    int q = quantize(x.values[e], inverse);
+                    int row = x.columns[e] * ncols;
+                    for (int j = 0; q != 0 && j < ncols; j++) {
+                        sums[j] += q * weights[row + j];
+                    }
+                }
+                int offset = i * ncols;
+                for (int j = 0; j < ncols; j++) {
+                    epilogue.result[offset + j] = sums[j];
+                }
+                epilogue.apply(i);
+            }
+        };
+        run(x.nrows, (long) x.nonZeroCount() * ncols, kernel);
+        return Tensor2D.wrap(x.nrows, ncols, epilogue.result, precision);
+    }
+
+    private void checkProduct(List<Integer> shape, int columns, double inputScale, Tensor2D bias) {
+        if (columns != nrows || bias.nrows != 1 || bias.ncols != ncols) {
+            throw new IllegalArgumentException("Cannot compute a product of shapes " + shape + " and "
+                    + List.of(nrows, ncols) + " plus a bias of shape " + bias.shape() + ".");
+        }
+        if (!(inputScale > 0.0)) {
+            throw new IllegalArgumentException("Input scale must be positive.");
+        }
+    }
+
+    /**
+     * Result buffer of a product, and the step turning a row of int32 sums
+     * stored in it into function(sums * scales + bias).
+     */
+    private final class Epilogue {
+        final double[] result;
+        private final double[] columnScales;
+        private final double[] bias;
+        private final ElementwiseFunction function;
+
+        Epilogue(int m, double inputScale, Tensor2D bias, ElementwiseFunction function) {
+            result = TensorArena.allocateForOverwrite(m * ncols);
+            columnScales = new double[ncols];
+            for (int j = 0; j < ncols; j++) {
+                columnScales[j] = inputScale * scales[j];
+            }
+            this.bias = bias.data != null ? bias.data : bias.toArray();
+            this.function = function;
+        }
+
+        void apply(int row) {
+            int offset = row * ncols;
+            for (int j = 0; j < ncols; j++) {
+                result[offset + j] = result[offset + j] * columnScales[j] + bias[j];
+            }
+            function.apply(result, offset, result, offset, ncols);
+        }
+    }
+
+    /**
+     * Runs kernel over rows [0, m), split across the fork-join pool when
+     * there is enough work.
+     */
+    private static void run(int m, long work, RowKernel kernel) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (work < PARALLEL_THRESHOLD || parallelism < 2 || m < 2) {
+            kernel.apply(0, m);
+            return;
+        }
+        int tasks = Math.min(m, 4 * parallelism);
+        ForkJoinPool.commonPool().invoke(new RowTask(kernel, m, tasks, 0, tasks));
+    }
+
+    /**
+     * Dot products of row with the 4 columns starting at offset.
+     */
+    private static void dot4(byte[] row, byte[] columns, int offset, int length, int[] result) {
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            simd.dot4(row, 0, columns, offset, length, length, result);
+            return;
+        }
+        for (int t = 0; t < 4; t++) {
+            result[t] = dot(row, columns, offset + t * length, length);
+        }
+    }
+
+    private static int dot(byte[] row, byte[] column, int offset, int length) {
+        int sum = 0;
+        for (int p = 0; p < length; p++) {
+            sum += row[p] * column[offset + p];
+        }
+        return sum;
+    }
+
+    @FunctionalInterface
+    private interface RowKernel {
+        void apply(int start, int end);
+    }
+
+    /**
+     * Recursively splits rows [0, m) into tasks of equal size across the
+     * fork-join pool.
+     */
+    private static class RowTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final RowKernel kernel;
+        private final int m;
+        private final int tasks;
+        private final int start;
+        private final int end;
+
+        RowTask(RowKernel kernel, int m, int tasks, int start, int end) {
+            this.kernel = kernel;
+            this.m = m;
+            this.tasks = tasks;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RowTask(kernel, m, tasks, start, middle),
+                        new RowTask(kernel, m, tasks, middle, end));
+                return;
+            }
+            kernel.apply((int) ((long) m * start / tasks), (int) ((long) m * (start + 1) / tasks));
+        }
+    }
+}
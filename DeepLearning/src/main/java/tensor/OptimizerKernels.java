@@ -0,0 +1,210 @@
+package tensor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fused in-place parameter updates for optimizers.
+ *
+ * Each update reads the gradient and updates the optimizer state and the
+ * parameter in a single pass, without temporary Tensors. All Tensors of an
+ * update must have the same shape.
+ *
+ * Updates of large parameters are split across the fork-join pool. Elements
+ * are independent, so the result does not depend on the split.
+ *
+ * FLOAT parameters, gradients and states are updated a block at a time in
+ * double precision, so they may be mixed freely.
+ *
+ * @author tyler
+ */
+public final class OptimizerKernels {
+    // Below this many elements, forking is not worth the overhead.
+    static final int PARALLEL_THRESHOLD = 1 << 17;
+
+    // Elements updated by one task.
+    static final int CHUNK = 1 << 14;
+
+    private OptimizerKernels() {
+    }
+
+    /**
+     * parameter -= learningRate * velocity, after
+     * velocity = beta * velocity + (1 - beta) * gradient.
+     *
+     * @param parameter
+     * @param gradient
+     * @param velocity Exponentially weighted average of the gradient
+     * @param beta
+     * @param learningRate
+     */
+    public static void momentum(Tensor parameter, Tensor gradient, Tensor velocity,
+            double beta, double learningRate) {
+        checkShapes(parameter, gradient, velocity);
+        double factor = -1.0 * learningRate;
+        run(parameter, gradient, velocity, null, (p, g, v, unused, from, to) -> {
+            for (int i = from; i < to; i++) {
+                v[i] = beta * v[i] + (1.0 - beta) * g[i];
+                p[i] += v[i] * factor;
+            }
+        });
+    }
+
+    /**
+     * parameter -= learningRate * gradient / (sqrt(variance) + epsilon),
+     * after variance = beta * variance + (1 - beta) * gradient^2.
+     *
+     * @param parameter
+     * @param gradient
+     * @param variance Exponentially weighted average of the squared gradient
+     * @param beta
+     * @param learningRate
+     * @param epsilon
+     */
+    public static void rmsProp(Tensor parameter, Tensor gradient, Tensor variance,
+            double beta, double learningRate, double epsilon) {
+        checkShapes(parameter, gradient, variance);
+        double factor = -1.0 * learningRate;
+        run(parameter, gradient, variance, null, (p, g, s, unused, from, to) -> {
+            for (int i = from; i < to; i++) {
+                double d = g[i];
+                s[i] = beta * s[i] + (1.0 - beta) * (d * d);
+                p[i] += d * factor / (Math.sqrt(s[i]) + epsilon);
+            }
+        });
+    }
+
+    /**
+     * One ADAM step with bias correction.
+     *
+     * The moment estimates start at zero, which biases them towards zero for
+     * the first steps. They are divided by 1 - beta^step before use.
+     *
+     * @param parameter
+     * @param gradient
+     * @param momentum First moment estimate
+     * @param variance Second moment estimate
+     * @param beta1
+     * @param beta2
+     * @param learningRate
+     * @param epsilon
+     * @param step Number of this step, starting at 1
+     */
+    public static void adam(Tensor parameter, Tensor gradient, Tensor momentum, Tensor variance,
+            double beta1, double beta2, double learningRate, double epsilon, long step) {
+        checkShapes(parameter, gradient, momentum);
+        checkShapes(parameter, gradient, variance);
+        if (step < 1) {
+            throw new IllegalArgumentException("ADAM steps are counted from 1.");
+        }
+        double factor = -1.0 * learningRate;
+        double correction1 = 1.0 / (1.0 - Math.pow(beta1, step));
+        double correction2 = 1.0 / (1.0 - Math.pow(beta2, step));
+        run(parameter, gradient, momentum, variance, (p, g, m, v, from, to) -> {
+            for (int i = from; i < to; i++) {
+                double d = g[i];
+                m[i] = beta1 * m[i] + (1.0 - beta1) * d;
+                v[i] = beta2 * v[i] + (1.0 - beta2) * (d * d);
+                p[i] += m[i] * correction1 * factor / (Math.sqrt(v[i] * correction2) + epsilon);
+            }
+        });
+    }
+
+    private static void checkShapes(Tensor parameter, Tensor gradient, Tensor state) {
+        if (!Arrays.equals(parameter.sizes, gradient.sizes) || !Arrays.equals(parameter.sizes, state.sizes)) {
+            throw new IllegalArgumentException("Parameter " + parameter.shape() + ", gradient "
+                    + gradient.shape() + " and optimizer state " + state.shape()
+                    + " must have the same shape.");
+        }
+    }
+
+    /**
+     * Runs an update over every element. The parameter and states are
+     * written, and state2 may be null.
+     */
+    private static void run(Tensor parameter, Tensor gradient, Tensor state1, Tensor state2,
+            UpdateKernel kernel) {
+        int length = parameter.size();
+        if (parameter.data != null && gradient.data != null && state1.data != null
+                && (state2 == null || state2.data != null)) {
+            double[] s2 = state2 == null ? null : state2.data;
+            run(length, (from, to) -> kernel.apply(parameter.data, gradient.data, state1.data, s2, from, to));
+            return;
+        }
+        run(length, (from, to) -> {
+            int block = Math.min(to - from, FloatKernels.BLOCK);
+            double[] p = new double[block];
+            double[] g = new double[block];
+            double[] s1 = new double[block];
+            double[] s2 = state2 == null ? null : new double[block];
+            for (int start = from; start < to; start += block) {
+                int n = Math.min(block, to - start);
+                FloatKernels.load(parameter, start, p, n);
+                FloatKernels.load(gradient, start, g, n);
+                FloatKernels.load(state1, start, s1, n);
+                if (state2 != null) {
+                    FloatKernels.load(state2, start, s2, n);
+                }
+                kernel.apply(p, g, s1, s2, 0, n);
+                FloatKernels.store(p, parameter, start, n);
+                FloatKernels.store(s1, state1, start, n);
+                if (state2 != null) {
+                    FloatKernels.store(s2, state2, start, n);
+                }
+            }
+        });
+    }
+
+    private static void run(int length, RangeKernel kernel) {
+        if (length < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            kernel.apply(0, length);
+        } else {
+            ForkJoinPool.commonPool().invoke(new RangeTask(kernel, 0, length));
+        }
+    }
+
+    /**
+     * Update of the elements from, inclusive, to to, exclusive, of double
+     * buffers for a parameter, its gradient and up to two states.
+     */
+    private interface UpdateKernel {
+        void apply(double[] parameter, double[] gradient, double[] state1, double[] state2,
+                int from, int to);
+    }
+
+    /**
+     * Update of the elements from, inclusive, to to, exclusive.
+     */
+    private interface RangeKernel {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Recursively splits a range of elements across the fork-join pool.
+     */
+    private static class RangeTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final RangeKernel kernel;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeKernel kernel, int from, int to) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(kernel, from, middle), new RangeTask(kernel, middle, to));
+                return;
+            }
+            kernel.apply(from, to);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package tensor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Max and average pooling over dimensions 1 to 3 of Tensor4Ds.
+ *
+ * Windows are described by their size, stride and padding in each of the
+ * three pooled dimensions. Average pooling counts padding as zeros.
+ *
+ * Work is split by example and, when windows do not overlap along
+ * dimension 3, by ranges of dimension 3. Each part then reads and writes
+ * its own elements only, and large inputs are pooled across the fork-join
+ * pool without contention.
+ *
+ * Results have the precision of their input. Averages are computed, and
+ * derivatives accumulated, in double precision.
+ *
+ * @author tyler
+ */
+public final class PoolKernels {
+    // Below this many element reads, forking is not worth the overhead.
+    static final long PARALLEL_THRESHOLD = 1L << 16;
+
+    private PoolKernels() {
+    }
+
+    /**
+     * @param inputSize
+     * @param size
+     * @param stride
+     * @param padding
+     * @return The number of windows along one dimension
+     */
+    public static int outputSize(int inputSize, int size, int stride, int padding) {
+        return 1 + (inputSize + 2 * padding - size) / stride;
+    }
+
+    /**
+     * Max pooling.
+     *
+     * @param x
+     * @param size
+     * @param stride
+     * @param padding
+     * @param argmax If not null, receives the position in x of the maximum
+     * of each window, in the row-major order of the result, or -1 for empty
+     * windows
+     * @return
+     */
+    public static Tensor4D max(Tensor x, int[] size, int[] stride, int[] padding, int[] argmax) {
+        var window = new Window(x.shape(), size, stride, padding);
+        if (argmax != null && argmax.length != window.outputCount()) {
+            throw new IllegalArgumentException("argmax needs one position per pooled element.");
+        }
+        double[] in = x.data;
+        float[] inFloats = x.floats;
+        var result = window.output(x.precision());
+        double[] out = result.data;
+        float[] outFloats = result.floats;
+        window.run((i, lFrom, lTo) -> {
+            for (int j = 0; j < window.out1; j++) {
+                int a1 = Math.max(0, j * stride[0] - padding[0]);
+                int a2 = Math.min(j * stride[0] - padding[0] + size[0], window.in1);
+                for (int k = 0; k < window.out2; k++) {
+                    int b1 = Math.max(0, k * stride[1] - padding[1]);
+                    int b2 = Math.min(k * stride[1] - padding[1] + size[1], window.in2);
+                    int o = ((i * window.out1 + j) * window.out2 + k) * window.out3 + lFrom;
+                    for (int l = lFrom; l < lTo; l++, o++) {
+                        int c1 = Math.max(0, l * stride[2] - padding[2]);
+                        int c2 = Math.min(l * stride[2] - padding[2] + size[2], window.in3);
+
+                        // The first element of the window wins ties.
+                        int best = -1;
+                        double max = Double.NEGATIVE_INFINITY;
+                        for (int a = a1; a < a2; a++) {
+                            for (int b = b1; b < b2; b++) {
+                                int row = ((i * window.in1 + a) * window.in2 + b) * window.in3;
+                                if (inFloats == null) {
+                                    for (int c = row + c1; c < row + c2; c++) {
+                                        double value = in[c];
+                                        boolean greater = value > max || best < 0;
+                                        max = greater ? value : max;
+                                        best = greater ? c : best;
+                                    }
+                                } else {
+                                    for (int c = row + c1; c < row + c2; c++) {
+                                        double value = inFloats[c];
+                                        boolean greater = value > max || best < 0;
+                                        max = greater ? value : max;
+                                        best = greater ? c : best;
+                                    }
+                                }
+                            }
+                        }
+                        if (outFloats == null) {
+                            out[o] = best < 0 ? 0.0 : max;
+                        } else {
+                            outFloats[o] = best < 0 ? 0.0f : (float) max;
+                        }
+                        if (argmax != null) {
+                            argmax[o] = best;
+                        }
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Average pooling.
+     *
+     * @param x
+     * @param size
+     * @param stride
+     * @param padding
+     * @return
+     */
+    public static Tensor4D average(Tensor x, int[] size, int[] stride, int[] padding) {
+        var window = new Window(x.shape(), size, stride, padding);
+        double[] in = x.data;
+        float[] inFloats = x.floats;
+        var result = window.output(x.precision());
+        double[] out = result.data;
+        float[] outFloats = result.floats;
+        double factor = 1.0 / (size[0] * size[1] * size[2]);
+        window.run((i, lFrom, lTo) -> {
+            for (int j = 0; j < window.out1; j++) {
+                int a1 = Math.max(0, j * stride[0] - padding[0]);
+                int a2 = Math.min(j * stride[0] - padding[0] + size[0], window.in1);
+                for (int k = 0; k < window.out2; k++) {
+                    int b1 = Math.max(0, k * stride[1] - padding[1]);
+                    int b2 = Math.min(k * stride[1] - padding[1] + size[1], window.in2);
+                    int o = ((i * window.out1 + j) * window.out2 + k) * window.out3 + lFrom;
+                    for (int l = lFrom; l < lTo; l++, o++) {
+                        int c1 = Math.max(0, l * stride[2] - padding[2]);
+                        int c2 = Math.min(l * stride[2] - padding[2] + size[2], window.in3);
+
+                        double sum = 0.0;
+                        for (int a = a1; a < a2; a++) {
+                            for (int b = b1; b < b2; b++) {
+                                int row = ((i * window.in1 + a) * window.in2 + b) * window.in3;
+                                if (inFloats == null) {
+                                    for (int c = row + c1; c < row + c2; c++) {
+                                        sum += in[c];
+                                    }
+                                } else {
+                                    for (int c = row + c1; c < row + c2; c++) {
+                                        sum += inFloats[c];
+                                    }
+                                }
+                            }
+                        }
+                        if (outFloats == null) {
+                            out[o] = sum * factor;
+                        } else {
+                            outFloats[o] = (float) (sum * factor);
+                        }
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Backward pass of max pooling: each derivative is added to the input
+     * position recorded by max.
+     *
+     * @param dA Derivatives with respect to the pooled result
+     * @param inputShape Shape of the pooled input
+     * @param size
+     * @param stride
+     * @param padding
+     * @param argmax Positions recorded by max
+     * @return Derivatives with respect to the input
+     */
+    public static Tensor4D maxBackward(Tensor dA, List<Integer> inputShape,
+            int[] size, int[] stride, int[] padding, int[] argmax) {
+        var window = new Window(inputShape, size, stride, padding);
+        window.checkOutput(dA);
+        if (argmax.length != window.outputCount()) {
+            throw new IllegalArgumentException("argmax needs one position per pooled element.");
+        }
+        double[] in = dA.data;
+        float[] inFloats = dA.floats;
+        double[] out = TensorArena.allocate(window.inputCount());
+        window.run((i, lFrom, lTo) -> {
+            for (int j = 0; j < window.out1; j++) {
+                for (int k = 0; k < window.out2; k++) {
+                    int o = ((i * window.out1 + j) * window.out2 + k) * window.out3 + lFrom;
+                    for (int l = lFrom; l < lTo; l++, o++) {
+                        if (argmax[o] >= 0) {
+                            out[argmax[o]] += inFloats == null ? in[o] : inFloats[o];
+                        }
+                    }
+                }
+            }
+        });
+        return window.input(inputShape, out, dA.precision());
+    }
+
+    /**
+     * Backward pass of average pooling: each derivative is spread evenly
+     * over its window.
+     *
+     * @param dA Derivatives with respect to the pooled result
+     * @param inputShape Shape of the pooled input
+     * @param size
+     * @param stride
+     * @param padding
+     * @return Derivatives with respect to the input
+     */
+    public static Tensor4D averageBackward(Tensor dA, List<Integer> inputShape,
+            int[] size, int[] stride, int[] padding) {
+        var window = new Window(inputShape, size, stride, padding);
+        window.checkOutput(dA);
+        double[] in = dA.data;
+        float[] inFloats = dA.floats;
+        double[] out = TensorArena.allocate(window.inputCount());
+        double factor = 1.0 / (size[0] * size[1] * size[2]);
+        window.run((i, lFrom, lTo) -> {
+            for (int j = 0; j < window.out1; j++) {
+                int a1 = Math.max(0, j * stride[0] - padding[0]);
+                int a2 = Math.min(j * stride[0] - padding[0] + size[0], window.in1);
+                for (int k = 0; k < window.out2; k++) {
+                    int b1 = Math.max(0, k * stride[1] - padding[1]);
+                    int b2 = Math.min(k * stride[1] - padding[1] + size[1], window.in2);
+                    int o = ((i * window.out1 + j) * window.out2 + k) * window.out3 + lFrom;
+                    for (int l = lFrom; l < lTo; l++, o++) {
+                        int c1 = Math.max(0, l * stride[2] - padding[2]);
+                        int c2 = Math.min(l * stride[2] - padding[2] + size[2], window.in3);
+
+                        double d = (inFloats == null ? in[o] : inFloats[o]) * factor;
+                        for (int a = a1; a < a2; a++) {
+                            for (int b = b1; b < b2; b++) {
+                                int row = ((i * window.in1 + a) * window.in2 + b) * window.in3;
+                                for (int c = row + c1; c < row + c2; c++) {
+                                    out[c] += d;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return window.input(inputShape, out, dA.precision());
+    }
+
+    /**
+     * Pooling of the examples i, restricted to dimension 3 indexes lFrom,
+     * inclusive, to lTo, exclusive, of the result.
+     */
+    private interface PartKernel {
+        void apply(int i, int lFrom, int lTo);
+    }
+
+    /**
+     * Shapes of a pooling and the parts its work is split into.
+     */
+    private static final class Window {
+        final int m;
+        final int in1;
+        final int in2;
+        final int in3;
+        final int out1;
+        final int out2;
+        final int out3;
+        final long work;
+
+        // Parts each example is split into along dimension 3.
+        final int channelParts;
+
+        Window(List<Integer> inputShape, int[] size, int[] stride, int[] padding) {
+            if (inputShape.size() != 4) {
+                throw new IllegalArgumentException("Pooling only supports Tensor4D.");
+            }
+            if (size.length != 3 || stride.length != 3 || padding.length != 3) {
+                throw new IllegalArgumentException("Pooling needs a size, stride and padding for 3 dimensions.");
+            }
+            m = inputShape.get(0);
+            in1 = inputShape.get(1);
+            in2 = inputShape.get(2);
+            in3 = inputShape.get(3);
+            out1 = outputSize(in1, size[0], stride[0], padding[0]);
+            out2 = outputSize(in2, size[1], stride[1], padding[1]);
+            out3 = outputSize(in3, size[2], stride[2], padding[2]);
+            work = (long) outputCount() * size[0] * size[1] * size[2];
+
+            int parallelism = ForkJoinPool.getCommonPoolParallelism();
+            if (work < PARALLEL_THRESHOLD || parallelism < 2) {
+                channelParts = 0;
+            } else if (size[2] <= stride[2]) {
+                // Windows along dimension 3 do not overlap, so parts of the
+                // same example never touch the same input element.
+                channelParts = Math.min(out3, Math.max(1, (4 * parallelism + m - 1) / m));
+            } else {
+                channelParts = 1;
+            }
+        }
+
+        List<Integer> outputShape() {
+            return List.of(m, out1, out2, out3);
+        }
+
+        int outputCount() {
+            return Math.multiplyExact(Math.multiplyExact(m, out1), Math.multiplyExact(out2, out3));
+        }
+
+        int inputCount() {
+            return m * in1 * in2 * in3;
+        }
+
+        /**
+         * Allocates the pooled result, which every part overwrites.
+         */
+        Tensor4D output(Precision precision) {
+            if (precision == Precision.FLOAT) {
+                return Tensor4D.wrap(outputShape(), TensorArena.allocateFloatsForOverwrite(outputCount()));
+            }
+            return Tensor4D.wrap(outputShape(), TensorArena.allocateForOverwrite(outputCount()));
+        }
+
+        /**
+         * Wraps derivatives with respect to the input, accumulated in
+         * double, in the given precision.
+         */
+        Tensor4D input(List<Integer> inputShape, double[] values, Precision precision) {
+            var result = Tensor4D.wrap(inputShape, values);
+            return precision == Precision.FLOAT ? (Tensor4D) result.toPrecision(Precision.FLOAT) : result;
+        }
+
+        void checkOutput(Tensor dA) {
+            if (!Arrays.equals(dA.sizes, new int[]{m, out1, out2, out3})) {
+                throw new IllegalArgumentException("Pooling derivatives have shape " + dA.shape()
+                        + " instead of " + outputShape() + ".");
+            }
+        }
+
+        void run(PartKernel kernel) {
+            if (channelParts == 0) {
+                for (int i = 0; i < m; i++) {
+                    kernel.apply(i, 0, out3);
+                }
+            } else {
+                ForkJoinPool.commonPool().invoke(new PartTask(this, kernel, 0, m * channelParts));
+            }
+        }
+    }
+
+    /**
+     * Recursively splits a range of parts across the fork-join pool.
+     */
+    private static class PartTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final Window window;
+        private final PartKernel kernel;
+        private final int start;
+        private final int end;
+
+        PartTask(Window window, PartKernel kernel, int start, int end) {
+            this.window = window;
+            this.kernel = kernel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PartTask(window, kernel, start, middle), new PartTask(window, kernel, middle, end));
+                return;
+            }
+            int parts = window.channelParts;
+            int i = start / parts;
+            int part = start % parts;
+            kernel.apply(i, part * window.out3 / parts, (part + 1) * window.out3 / parts);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package tensor;
+
+/**
+ * Storage precision of a Tensor's elements.
+ *
+ * FLOAT Tensors store their elements as 32-bit floats, halving their memory
+ * footprint and the bandwidth needed to stream them. Arithmetic on them is
+ * still carried out in double precision: values are widened as they are
+ * read, and only results are rounded to float when they are stored. Sums
+ * and matrix products therefore accumulate in double.
+ *
+ * Operations combining Tensors of both precisions produce FLOAT results, so
+ * double constants or masks never widen the values of a FLOAT network.
+ *
+ * @author tyler
+ */
+public enum Precision {
+    DOUBLE(Double.BYTES),
+    FLOAT(Float.BYTES);
+
+    private final int bytes;
+
+    Precision(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return The number of bytes used to store each element
+     */
+    public int bytes() {
+        return bytes;
+    }
+
+    /**
+     * @param other
+     * @return The precision of results combining values of this precision
+     * with values of other
+     */
+    public Precision combine(Precision other) {
+        return this == FLOAT || other == FLOAT ? FLOAT : DOUBLE;
+    }
+}
@@ -0,0 +1,105 @@
+package tensor;
+
+/**
+ * Optional SIMD implementations of the hot Tensor loops.
+ *
+ * The implementation uses the incubating Vector API, which is only
+ * available when the JVM is started with
+ *   --add-modules jdk.incubator.vector
+ * Otherwise, or on hardware with fewer than 4 double lanes, INSTANCE is
+ * null and callers use their scalar loops. Setting the system property
+ * tensor.simd=false also forces the scalar code.
+ *
+ * Element-wise arithmetic, column sums and integer dot products give
+ * exactly the scalar results.
+ * Transcendental functions, sums along a row and GEMM (which uses fused
+ * multiply-add) may differ from the scalar results in the last bits.
+ *
+ * @author tyler
+ */
+interface SimdKernels {
+    static final SimdKernels INSTANCE = load();
+
+    /**
+     * result[i] = left[i] op right[i]
+     */
+    void binary(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length);
+
+    /**
+     * result[i] = left[i] op right[rightOffset]
+     */
+    void binaryScalarRight(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length);
+
+    /**
+     * result[i] = left[leftOffset] op right[i]
+     */
+    void binaryScalarLeft(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length);
+
+    /**
+     * result[i] = source[i] * factor. source and result may be the same.
+     */
+    void scale(double[] source, double factor, double[] result, int length);
+
+    /**
+     * y[i] += alpha * x[i]
+     */
+    void axpy(double alpha, double[] x, double[] y, int length);
+
+    /**
+     * y[i] = (float) (y[i] + alpha * x[i]), computed in double
+     */
+    void axpy(double alpha, float[] x, float[] y, int length);
+
+    /**
+     * dest[destOffset + i] = source[sourceOffset + i]
+     */
+    void widen(float[] source, int sourceOffset, double[] dest, int destOffset, int length);
+
+    /**
+     * dest[destOffset + i] = (float) source[sourceOffset + i]
+     */
+    void narrow(double[] source, int sourceOffset, float[] dest, int destOffset, int length);
+
+    void relu(double[] source, int sourceOffset, double[] result, int resultOffset, int length);
+
+    void sigmoid(double[] source, int sourceOffset, double[] result, int resultOffset, int length);
+
+    void tanh(double[] source, int sourceOffset, double[] result, int resultOffset, int length);
+
+    /**
+     * @return The sum of data[offset .. offset + length)
+     */
+    double sum(double[] data, int offset, int length);
+
+    /**
+     * Dot products of one int8 vector with 4 others, accumulated in int:
+     * result[t] = sum of a[aOffset + i] * b[bOffset + t * stride + i]
+     */
+    void dot4(byte[] a, int aOffset, byte[] b, int bOffset, int stride, int length, int[] result);
+
+    /**
+     * Same contract as the scalar micro-kernel in Gemm.
+     */
+    void microKernel(int kc, double[] packedA, int aOffset, double[] packedB, int bOffset,
+            double[] c, int i, int j, int ldc, int rows, int cols);
+
+    private static SimdKernels load() {
+        if ("false".equals(System.getProperty("tensor.simd"))) {
+            return null;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            // Loaded reflectively, so this interface never links against the
+            // Vector API when the module is missing.
+            return (SimdKernels) Class.forName("tensor.VectorApiKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+}
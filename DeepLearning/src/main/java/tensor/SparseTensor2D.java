@@ -0,0 +1,546 @@
+package tensor;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A 2D Tensor stored in compressed sparse row (CSR) form.
+ *
+ * Only the non-zero elements are stored: row i holds the columns and values
+ * at positions rowStarts[i] to rowStarts[i + 1] of the columns and values
+ * arrays. Sparse Tensors are meant for wide, mostly-zero inputs such as
+ * one-hot or bag-of-words features, which FullyConnected multiplies without
+ * densifying them. Gathering rows, and so batching, keeps them sparse, and
+ * SparseTensorFile stores them on disk in the same form.
+ *
+ * Values are stored in double precision. Products with dense Tensors take
+ * the precision of the dense operand.
+ *
+ * Element-wise operations are only supported when they map zero to zero,
+ * and broadcast operations with other Tensors are not supported. Use
+ * toDense for those.
+ *
+ * @author tyler
+ */
+public class SparseTensor2D extends Tensor {
+    // Non-zeros times output columns below which products run on one thread.
+    static final long PARALLEL_THRESHOLD = 1L << 16;
+
+    public final int nrows;
+    public final int ncols;
+
+    // Package-private for the kernels of this package, such as Int8Matrix.
+    final int[] rowStarts;
+    final int[] columns;
+    final double[] values;
+
+    /**
+     * Construct a sparse Tensor from CSR arrays, which are used directly, not
+     * copied.
+     *
+     * @param nr
+     * @param nc
+     * @param rowStarts nr + 1 offsets into columns and values, starting at 0
+     * @param columns Column of every stored element, row by row
+     * @param values Value of every stored element, row by row
+     */
+    public SparseTensor2D(int nr, int nc, int[] rowStarts, int[] columns, double[] values) {
+        super(new int[]{nr, nc});
+        if (rowStarts.length != nr + 1 || rowStarts[0] != 0 || columns.length != values.length
+                || rowStarts[nr] != values.length) {
+            throw new IllegalArgumentException("Invalid CSR arrays for a " + nr + " x " + nc + " Tensor.");
+        }
+        for (int i = 0; i < nr; i++) {
+            if (rowStarts[i] > rowStarts[i + 1]) {
+                throw new IllegalArgumentException("CSR row offsets must not decrease.");
+            }
+        }
+        for (int column : columns) {
+            if (column < 0 || column >= nc) {
+                throw new IllegalArgumentException("Column " + column + " is out of range for "
+                        + nc + " columns.");
+            }
+        }
+        nrows = nr;
+        ncols = nc;
+        this.rowStarts = rowStarts;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Converts a dense Tensor2D, keeping its non-zero elements.
+     *
+     * @param t
+     * @return
+     */
+    public static SparseTensor2D fromDense(Tensor2D t) {
+        var builder = new Builder(t.ncols);
+        for (int i = 0; i < t.nrows; i++) {
+            for (int j = 0; j < t.ncols; j++) {
+                builder.add(j, t.get(i * t.ncols + j));
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return A dense Tensor2D with the same values
+     */
+    public Tensor2D toDense() {
+        var result = new Tensor2D(nrows, ncols);
+        for (int i = 0; i < nrows; i++) {
+            for (int p = rowStarts[i]; p < rowStarts[i + 1]; p++) {
+                result.data[i * ncols + columns[p]] += values[p];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of stored elements
+     */
+    public int nonZeroCount() {
+        return values.length;
+    }
+
+    /**
+     * Computes the matrix product this * t, without densifying this.
+     *
+     * Every stored element adds a multiple of a row of t to its row of the
+     * result. Products accumulate in double precision, and rows are split
+     * across the common fork-join pool when the product is large.
+     *
+     * @param t
+     * @return A dense nrows x t.ncols Tensor, with the precision of t
+     */
+    public Tensor2D matrixMultiply(Tensor2D t) {
+        if (ncols != t.nrows) {
+            throw new IllegalArgumentException("Matrix Multiplication is not defined for matrices of shape "
+                    + shape() + ", and " + t.shape() + ".");
+        }
+        int n = t.ncols;
+        double[] result = TensorArena.allocate(nrows * n);
+        run(nrows, n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int p = rowStarts[i]; p < rowStarts[i + 1]; p++) {
+                    addRow(values[p], t, columns[p], result, i * n, 0, n);
+                }
+            }
+        });
+        return Tensor2D.wrap(nrows, n, result, t.precision());
+    }
+
+    /**
+     * Computes factor * this^T * t, without densifying or transposing this.
+     *
+     * This is the weight derivative of a layer whose input is this. Every
+     * stored element (i, c) adds a multiple of row i of t to row c of the
+     * result. Columns of the result are split across the common fork-join
+     * pool when the product is large.
+     *
+     * @param t A Tensor with nrows rows
+     * @param factor Scale applied to the product
+     * @return A dense ncols x t.ncols Tensor, with the precision of t
+     */
+    public Tensor2D transposeMultiply(Tensor2D t, double factor) {
+        if (nrows != t.nrows) {
+            throw new IllegalArgumentException("Matrix Multiplication is not defined for matrices of shape "
+                    + shape() + "^T, and " + t.shape() + ".");
+        }
+        int n = t.ncols;
+        double[] result = TensorArena.allocate(ncols * n);
+        run(n, nrows, (from, to) -> {
+            for (int i = 0; i < nrows; i++) {
+                for (int p = rowStarts[i]; p < rowStarts[i + 1]; p++) {
+                    addRow(factor * values[p], t, i, result, columns[p] * n, from, to);
+                }
+            }
+        });
+        return Tensor2D.wrap(ncols, n, result, t.precision());
+    }
+
+    /**
+     * result[offset + j] += alpha * t[row, j] for j in [from, to)
+     */
+    private static void addRow(double alpha, Tensor2D t, int row, double[] result, int offset,
+            int from, int to) {
+        int source = row * t.ncols;
+        if (t.data != null) {
+            for (int j = from; j < to; j++) {
+                result[offset + j] += alpha * t.data[source + j];
+            }
+        } else {
+            for (int j = from; j < to; j++) {
+                result[offset + j] += alpha * t.floats[source + j];
+            }
+        }
+    }
+
+    /**
+     * Runs kernel over [0, parts), split across the fork-join pool when the
+     * stored elements times the work per element are large enough.
+     */
+    private void run(int parts, int workPerElement, RangeKernel kernel) {
+        long work = (long) values.length * workPerElement;
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (work < PARALLEL_THRESHOLD || parallelism < 2 || parts < 2) {
+            kernel.apply(0, parts);
+            return;
+        }
+        int tasks = Math.min(parts, 4 * parallelism);
+        ForkJoinPool.commonPool().invoke(new RangeTask(kernel, parts, tasks, 0, tasks));
+    }
+
+    @Override
+    public SparseTensor2D gatherRows(int[] indices, int from, int to) {
+        int count = to - from;
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            int row = indices[from + i];
+            starts[i + 1] = starts[i] + rowStarts[row + 1] - rowStarts[row];
+        }
+        int[] gatheredColumns = new int[starts[count]];
+        double[] gatheredValues = new double[starts[count]];
+        for (int i = 0; i < count; i++) {
+            int row = indices[from + i];
+            int length = rowStarts[row + 1] - rowStarts[row];
+            System.arraycopy(columns, rowStarts[row], gatheredColumns, starts[i], length);
+            System.arraycopy(values, rowStarts[row], gatheredValues, starts[i], length);
+        }
+        return new SparseTensor2D(count, ncols, starts, gatheredColumns, gatheredValues);
+    }
+
+    /**
+     * Gathers rows into a dense Tensor2D, converting them to its precision.
+     * The number of stored elements varies between batches, so sparse
+     * batches are gathered with gatherRows instead.
+     */
+    @Override
+    public Tensor gatherRowsInto(Tensor dest, int[] indices, int from) {
+        if (!(dest instanceof Tensor2D) || ((Tensor2D) dest).ncols != ncols) {
+            throw new IllegalArgumentException("Cannot gather rows of shape " + shape()
+                    + " into " + dest.shape() + ".");
+        }
+        dest.fill(0.0);
+        for (int i = 0; i < dest.mDim(); i++) {
+            int row = indices[from + i];
+            for (int p = rowStarts[row]; p < rowStarts[row + 1]; p++) {
+                int offset = i * ncols + columns[p];
+                if (dest.data != null) {
+                    dest.data[offset] += values[p];
+                } else {
+                    dest.floats[offset] += values[p];
+                }
+            }
+        }
+        return dest;
+    }
+
+    @Override
+    public SparseTensor2D copy() {
+        return new SparseTensor2D(nrows, ncols, rowStarts.clone(), columns.clone(), values.clone());
+    }
+
+    /**
+     * Sparse Tensors always store double values, so this returns this
+     * Tensor for either precision.
+     */
+    @Override
+    public Tensor toPrecision(Precision precision) {
+        return this;
+    }
+
+    /**
+     * Applies a function to the stored elements.
+     *
+     * @param function A function mapping zero to zero
+     * @return A sparse Tensor with the same non-zero pattern
+     */
+    @Override
+    public SparseTensor2D map(DoubleUnaryOperator function) {
+        checkPreservesZero(function);
+        double[] result = new double[values.length];
+        for (int p = 0; p < values.length; p++) {
+            result[p] = function.applyAsDouble(values[p]);
+        }
+        return new SparseTensor2D(nrows, ncols, rowStarts, columns, result);
+    }
+
+    @Override
+    public SparseTensor2D mapInPlace(DoubleUnaryOperator function) {
+        checkPreservesZero(function);
+        for (int p = 0; p < values.length; p++) {
+            values[p] = function.applyAsDouble(values[p]);
+        }
+        return this;
+    }
+
+    private static void checkPreservesZero(DoubleUnaryOperator function) {
+        if (function.applyAsDouble(0.0) != 0.0) {
+            throw new UnsupportedOperationException("Sparse Tensors only support functions mapping 0 to 0.");
+        }
+    }
+
+    @Override
+    public SparseTensor2D scale(double factor) {
+        return map(d -> d * factor);
+    }
+
+    @Override
+    public SparseTensor2D scaleInPlace(double factor) {
+        return mapInPlace(d -> d * factor);
+    }
+
+    @Override
+    public SparseTensor2D abs() {
+        return map(Math::abs);
+    }
+
+    @Override
+    public SparseTensor2D exponentiate() {
+        return map(Math::exp);
+    }
+
+    @Override
+    public SparseTensor2D log() {
+        return map(Math::log);
+    }
+
+    @Override
+    public SparseTensor2D negate() {
+        return map(d -> -d);
+    }
+
+    @Override
+    public SparseTensor2D relu() {
+        return map(d -> Math.max(0, d));
+    }
+
+    @Override
+    public SparseTensor2D sigmoid() {
+        return map(d -> 1.0 / (1.0 + Math.exp(-d)));
+    }
+
+    @Override
+    public SparseTensor2D tanh() {
+        return map(Math::tanh);
+    }
+
+    @Override
+    public Tensor axpy(double alpha, Tensor x) {
+        throw unsupported();
+    }
+
+    @Override
+    public Tensor fill(double value) {
+        throw unsupported();
+    }
+
+    @Override
+    public Tensor copyFrom(Tensor t) {
+        throw unsupported();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Sparse Tensors cannot be updated in place. Use toDense.");
+    }
+
+    @Override
+    public double sum() {
+        double sum = 0.0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Override
+    public double sum(DoubleUnaryOperator function) {
+        double sum = ((long) nrows * ncols - values.length) * function.applyAsDouble(0.0);
+        for (double value : values) {
+            sum += function.applyAsDouble(value);
+        }
+        return sum;
+    }
+
+    @Override
+    public Tensor allSum() {
+        return Tensor2D.constant(sum());
+    }
+
+    @Override
+    public double value(int... position) {
+        if (position.length != 2) {
+            throw new IllegalArgumentException("Invalid position for 2D Tensor");
+        }
+        int row = position[0];
+        double value = 0.0;
+        for (int p = rowStarts[row]; p < rowStarts[row + 1]; p++) {
+            if (columns[p] == position[1]) {
+                value += values[p];
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public double value2(int... position) {
+        int n = position.length;
+        return value(position[n - 2] % nrows, position[n - 1] % ncols);
+    }
+
+    /**
+     * @return The number of elements of the dense form
+     * @throws ArithmeticException if there are more than Integer.MAX_VALUE
+     * elements, as for wide bag-of-words batches. Use nonZeroCount for the
+     * number of stored elements.
+     */
+    @Override
+    public int size() {
+        return Math.multiplyExact(nrows, ncols);
+    }
+
+    @Override
+    public double[] toArray() {
+        return toDense().data;
+    }
+
+    @Override
+    protected Tensor withData(double[] buffer) {
+        throw new UnsupportedOperationException("Sparse Tensors have no dense buffer.");
+    }
+
+    @Override
+    protected Tensor withData(float[] buffer) {
+        throw new UnsupportedOperationException("Sparse Tensors have no dense buffer.");
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder();
+        var df = new DecimalFormat();
+        df.setMaximumFractionDigits(3);
+        df.setMinimumFractionDigits(3);
+        for (int i = 0; i < nrows; i++) {
+            for (int p = rowStarts[i]; p < rowStarts[i + 1]; p++) {
+                sb.append('(').append(i).append(", ").append(columns[p]).append(") ");
+                sb.append(df.format(values[p]));
+                sb.append(System.lineSeparator());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds a sparse Tensor one row at a time, so inputs can be loaded
+     * without ever being dense.
+     */
+    public static class Builder {
+        private final int ncols;
+        private int[] rowStarts = new int[16];
+        private int[] columns = new int[16];
+        private double[] values = new double[16];
+        private int rows = 0;
+        private int count = 0;
+
+        /**
+         * @param ncols Number of columns of the Tensor
+         */
+        public Builder(int ncols) {
+            this.ncols = ncols;
+        }
+
+        /**
+         * Adds an element to the current row. Zeros are skipped.
+         *
+         * @param column
+         * @param value
+         * @return this
+         */
+        public Builder add(int column, double value) {
+            if (column < 0 || column >= ncols) {
+                throw new IllegalArgumentException("Column " + column + " is out of range for "
+                        + ncols + " columns.");
+            }
+            if (value == 0.0) {
+                return this;
+            }
+            if (count == values.length) {
+                columns = Arrays.copyOf(columns, 2 * count);
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            columns[count] = column;
+            values[count] = value;
+            count++;
+            return this;
+        }
+
+        /**
+         * Finishes the current row and starts the next one.
+         *
+         * @return this
+         */
+        public Builder endRow() {
+            rows++;
+            if (rows == rowStarts.length) {
+                rowStarts = Arrays.copyOf(rowStarts, 2 * rows);
+            }
+            rowStarts[rows] = count;
+            return this;
+        }
+
+        /**
+         * @return A Tensor holding every finished row
+         */
+        public SparseTensor2D build() {
+            return new SparseTensor2D(rows, ncols, Arrays.copyOf(rowStarts, rows + 1),
+                    Arrays.copyOf(columns, count), Arrays.copyOf(values, count));
+        }
+    }
+
+    /**
+     * Computes parts [from, to) of a product.
+     */
+    private interface RangeKernel {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Recursively splits tasks, each covering an equal share of the parts,
+     * across the fork-join pool.
+     */
+    private static class RangeTask extends RecursiveAction {
+        // Tasks are never serialized.
+        private static final long serialVersionUID = 1L;
+
+        private final RangeKernel kernel;
+        private final int parts;
+        private final int tasks;
+        private final int start;
+        private final int end;
+
+        RangeTask(RangeKernel kernel, int parts, int tasks, int start, int end) {
+            this.kernel = kernel;
+            this.parts = parts;
+            this.tasks = tasks;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RangeTask(kernel, parts, tasks, start, middle),
+                        new RangeTask(kernel, parts, tasks, middle, end));
+                return;
+            }
+            kernel.apply((int) ((long) parts * start / tasks), (int) ((long) parts * (start + 1) / tasks));
+        }
+    }
+}
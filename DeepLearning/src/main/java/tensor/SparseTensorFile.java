@@ -0,0 +1,380 @@
+package tensor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary file format for sparse 2D Tensors in CSR form, read through memory
+ * mapping.
+ *
+ * Layout, all little-endian:
+ *   4 bytes   magic "CSRT"
+ *   int       format version
+ *   int       dtype (TensorFile.DTYPE_FLOAT64)
+ *   int       reserved, 0
+ *   long      rows
+ *   long      columns
+ *   long      number of stored elements
+ *   records   one (int column, double value) pair per stored element, row
+ *             by row
+ *   long[]    rows + 1 row offsets into the records, starting at 0
+ *
+ * The row offsets come last, so files can be written a batch at a time.
+ *
+ * Like TensorFile, opening a file maps it, and only the requested rows are
+ * copied, into a SparseTensor2D. Sparse inputs are never densified on their
+ * way from disk to FullyConnected.
+ *
+ * @author tyler
+ */
+public class SparseTensorFile implements AutoCloseable {
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'C', 'S', 'R', 'T'};
+    private static final int HEADER_BYTES = 40;
+    private static final int RECORD_BYTES = Integer.BYTES + Double.BYTES;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final long RECORDS_PER_SEGMENT = MAX_SEGMENT_BYTES / RECORD_BYTES;
+    private static final long OFFSETS_PER_SEGMENT = MAX_SEGMENT_BYTES / Long.BYTES;
+    private static final int COPY_BUFFER_RECORDS = 1 << 12;
+
+    private final FileChannel channel;
+    private final int rows;
+    private final int ncols;
+    private final long nonZeros;
+    private final MappedByteBuffer[] records;
+    private final MappedByteBuffer[] offsets;
+
+    private SparseTensorFile(FileChannel channel, int rows, int ncols, long nonZeros) throws IOException {
+        this.channel = channel;
+        this.rows = rows;
+        this.ncols = ncols;
+        this.nonZeros = nonZeros;
+
+        long offsetsStart = HEADER_BYTES + nonZeros * RECORD_BYTES;
+        long expectedSize = offsetsStart + (rows + 1L) * Long.BYTES;
+        if (channel.size() < expectedSize) {
+            throw new IllegalArgumentException("Sparse Tensor file is truncated: expected " + expectedSize
+                    + " bytes but found " + channel.size() + ".");
+        }
+        records = map(channel, HEADER_BYTES, nonZeros, RECORD_BYTES, RECORDS_PER_SEGMENT);
+        offsets = map(channel, offsetsStart, rows + 1L, Long.BYTES, OFFSETS_PER_SEGMENT);
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long start, long count, int itemBytes,
+            long itemsPerSegment) throws IOException {
+        int segmentCount = (int) ((count + itemsPerSegment - 1) / itemsPerSegment);
+        var segments = new MappedByteBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            long first = s * itemsPerSegment;
+            long n = Math.min(itemsPerSegment, count - first);
+            var segment = channel.map(FileChannel.MapMode.READ_ONLY, start + first * itemBytes, n * itemBytes);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments[s] = segment;
+        }
+        return segments;
+    }
+
+    /**
+     * Maps a sparse Tensor file for reading.
+     *
+     * @param path
+     * @return An open SparseTensorFile, which should be closed when done
+     */
+    public static SparseTensorFile open(Path path) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            for (byte b : MAGIC) {
+                if (header.get() != b) {
+                    throw new IllegalArgumentException(path + " is not a sparse Tensor file.");
+                }
+            }
+            int version = header.getInt();
+            int dtype = header.getInt();
+            header.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported sparse Tensor file version " + version + ".");
+            }
+            if (dtype != TensorFile.DTYPE_FLOAT64) {
+                throw new IllegalArgumentException("Unsupported sparse Tensor file dtype " + dtype + ".");
+            }
+            int rows = Math.toIntExact(header.getLong());
+            int ncols = Math.toIntExact(header.getLong());
+            long nonZeros = header.getLong();
+            return new SparseTensorFile(channel, rows, ncols, nonZeros);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new UncheckedIOException("Could not open sparse Tensor file " + path, e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a whole sparse Tensor file.
+     *
+     * @param path
+     * @return
+     */
+    public static SparseTensor2D read(Path path) {
+        try (var file = open(path)) {
+            return file.rows(0, file.rows());
+        }
+    }
+
+    /**
+     * Writes a sparse Tensor to a file.
+     *
+     * @param path
+     * @param t
+     */
+    public static void write(Path path, SparseTensor2D t) {
+        try (var writer = new Writer(path, t.ncols)) {
+            writer.append(t);
+        }
+    }
+
+    /**
+     * @return The shape of the stored Tensor
+     */
+    public List<Integer> shape() {
+        return List.of(rows, ncols);
+    }
+
+    /**
+     * @return The number of rows in the file
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of stored elements in the file
+     */
+    public long nonZeroCount() {
+        return nonZeros;
+    }
+
+    /**
+     * Copies a contiguous range of rows into a new sparse Tensor.
+     *
+     * @param from First row
+     * @param to Row after the last one
+     * @return
+     */
+    public SparseTensor2D rows(int from, int to) {
+        if (from < 0 || from > to || to > rows) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + to
+                    + " are outside of " + rows + " rows.");
+        }
+        int count = to - from;
+        long first = offset(from);
+        int[] starts = new int[count + 1];
+        for (int i = 1; i <= count; i++) {
+            starts[i] = Math.toIntExact(offset(from + i) - first);
+        }
+        int[] columns = new int[starts[count]];
+        double[] values = new double[starts[count]];
+        readRecords(first, columns, values, 0, starts[count]);
+        return new SparseTensor2D(count, ncols, starts, columns, values);
+    }
+
+    /**
+     * Copies arbitrary rows into a new sparse Tensor, e.g. for a shuffled
+     * batch.
+     *
+     * @param indices Row indices to select from
+     * @param from First position in indices to use
+     * @param to Position after the last one to use
+     * @return A Tensor with to - from rows, in the order given by indices
+     */
+    public SparseTensor2D gatherRows(int[] indices, int from, int to) {
+        int count = to - from;
+        long[] firsts = new long[count];
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            int row = indices[from + i];
+            if (row < 0 || row >= rows) {
+                throw new IndexOutOfBoundsException("Row " + row + " is outside of " + rows + " rows.");
+            }
+            firsts[i] = offset(row);
+            starts[i + 1] = Math.toIntExact(starts[i] + offset(row + 1) - firsts[i]);
+        }
+        int[] columns = new int[starts[count]];
+        double[] values = new double[starts[count]];
+        for (int i = 0; i < count; i++) {
+            readRecords(firsts[i], columns, values, starts[i], starts[i + 1] - starts[i]);
+        }
+        return new SparseTensor2D(count, ncols, starts, columns, values);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long offset(int row) {
+        int segment = (int) (row / OFFSETS_PER_SEGMENT);
+        long offset = offsets[segment].getLong((int) ((row - segment * OFFSETS_PER_SEGMENT) * Long.BYTES));
+        if (offset < 0 || offset > nonZeros) {
+            throw new IllegalArgumentException("Row offset " + offset + " is outside of "
+                    + nonZeros + " stored elements.");
+        }
+        return offset;
+    }
+
+    private void readRecords(long first, int[] columns, double[] values, int position, int count) {
+        for (int i = 0; i < count; i++) {
+            long p = first + i;
+            int segment = (int) (p / RECORDS_PER_SEGMENT);
+            int byteOffset = (int) ((p - segment * RECORDS_PER_SEGMENT) * RECORD_BYTES);
+            columns[position + i] = records[segment].getInt(byteOffset);
+            values[position + i] = records[segment].getDouble(byteOffset + Integer.BYTES);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of sparse Tensor file.");
+            }
+            position += read;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The original failure is more useful to report.
+        }
+    }
+
+    /**
+     * Writes a sparse Tensor file incrementally, a block of rows at a time.
+     *
+     * The row offsets are kept in memory and written, with the header, when
+     * the writer is closed.
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+        private final FileChannel channel;
+        private final int ncols;
+        private final ByteBuffer buffer;
+        private long[] offsets = new long[16];
+        private int rows;
+        private long nonZeros;
+
+        /**
+         * @param path File to create or overwrite
+         * @param ncols Number of columns of every row
+         */
+        public Writer(Path path, int ncols) {
+            this.path = path;
+            this.ncols = ncols;
+            buffer = ByteBuffer.allocateDirect(COPY_BUFFER_RECORDS * RECORD_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channel.position(HEADER_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create sparse Tensor file " + path, e);
+            }
+        }
+
+        /**
+         * Appends the rows of a sparse Tensor.
+         *
+         * @param t Tensor with the column count of the file
+         */
+        public void append(SparseTensor2D t) {
+            if (t.ncols != ncols) {
+                throw new IllegalArgumentException("Cannot append rows of shape " + t.shape()
+                        + " to a file with " + ncols + " columns.");
+            }
+            try {
+                buffer.clear();
+                for (int p = 0; p < t.values.length; p++) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    buffer.putInt(t.columns[p]);
+                    buffer.putDouble(t.values[p]);
+                }
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write sparse Tensor file " + path, e);
+            }
+            if (rows + t.nrows >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(2 * offsets.length, rows + t.nrows + 1));
+            }
+            for (int i = 0; i < t.nrows; i++) {
+                offsets[rows + i + 1] = nonZeros + t.rowStarts[i + 1];
+            }
+            rows += t.nrows;
+            nonZeros += t.values.length;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() {
+            try (channel) {
+                channel.position(HEADER_BYTES + nonZeros * RECORD_BYTES);
+                buffer.clear();
+                for (int i = 0; i <= rows; i++) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    buffer.putLong(offsets[i]);
+                }
+                flush();
+
+                var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(TensorFile.DTYPE_FLOAT64);
+                header.putInt(0);
+                header.putLong(rows);
+                header.putLong(ncols);
+                header.putLong(nonZeros);
+                header.flip();
+                long position = 0;
+                while (header.hasRemaining()) {
+                    position += channel.write(header, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write sparse Tensor file " + path, e);
+            }
+        }
+    }
+}
@@ -1,41 +1,195 @@
 package tensor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
 /** 
  * A generic Tensor interface.
  * 
+ * Every Tensor stores its elements in a single row-major buffer, which is a
+ * double[] or, for FLOAT precision, a float[]. The sizes and strides arrays
+ * describe how a position maps into that buffer, so implementations never
+ * need nested arrays.
+ * 
+ * Arithmetic on FLOAT Tensors is carried out in double precision, and only
+ * stored results are rounded to float (see Precision).
+ * 
  * @author tyler
  */
 public abstract class Tensor {
     private final List<Integer> dimensions;
     
+    // Row-major element storage and the layout metadata describing it.
+    // Dense Tensors set exactly one of data and floats, depending on the
+    // precision. Tensors built without a dense buffer set neither.
+    protected final double[] data;
+    protected final float[] floats;
+    protected final int[] sizes;
+    protected final int[] strides;
+    
     public Tensor(List<Integer> dimensions) {
+        this(dimensions, Precision.DOUBLE);
+    }
+    
+    /**
+     * Construct a zero-filled Tensor.
+     * 
+     * @param dimensions
+     * @param precision 
+     */
+    public Tensor(List<Integer> dimensions, Precision precision) {
+        this(dimensions, null, null, precision);
+    }
+    
+    /**
+     * Construct a Tensor over an existing buffer.
+     * 
+     * The buffer is used directly, not copied. A null buffer allocates a new
+     * zero-filled one.
+     * 
+     * @param dimensions
+     * @param data 
+     */
+    protected Tensor(List<Integer> dimensions, double[] data) {
+        this(dimensions, data, null, Precision.DOUBLE);
+    }
+    
+    /**
+     * Construct a FLOAT Tensor over an existing buffer, which is used
+     * directly, not copied.
+     * 
+     * @param dimensions
+     * @param floats 
+     */
+    protected Tensor(List<Integer> dimensions, float[] floats) {
+        this(dimensions, null, Objects.requireNonNull(floats), Precision.FLOAT);
+    }
+    
+    /**
+     * Construct a Tensor without a dense buffer: data and floats are both
+     * null. For Tensors which store their elements another way and override
+     * the methods reading the buffer (see SparseTensor2D).
+     * 
+     * @param dimensions 
+     */
+    Tensor(int[] dimensions) {
+        this(Arrays.stream(dimensions).boxed().toList(), null, null, null);
+    }
+    
+    private Tensor(List<Integer> dimensions, double[] data, float[] floats, Precision precision) {
         for (var dim : dimensions) {
             if (dim <= 0) {
                 throw new IllegalArgumentException("Tensor dimensions must be positive.");
             }
         }
         this.dimensions = new ArrayList<>(dimensions);
+        
+        int rank = dimensions.size();
+        sizes = new int[rank];
+        strides = new int[rank];
+        int elementCount = 1;
+        for (int i = rank - 1; i >= 0; i--) {
+            sizes[i] = dimensions.get(i);
+            strides[i] = elementCount;
+            elementCount *= sizes[i];
+        }
+        
+        if (data == null && floats == null) {
+            // Without a precision, no buffer is allocated.
+            this.data = precision == Precision.DOUBLE ? TensorArena.allocate(elementCount) : null;
+            this.floats = precision == Precision.FLOAT ? TensorArena.allocateFloats(elementCount) : null;
+            return;
+        }
+        int length = data != null ? data.length : floats.length;
+        if (length != elementCount) {
+            throw new IllegalArgumentException("Tensor data length " + length
+                    + " does not match shape " + dimensions + ".");
+        }
+        this.data = data;
+        this.floats = floats;
+    }
+    
+    /**
+     * Copies a buffer, from the active TensorArena if there is one.
+     */
+    protected static double[] copyOf(double[] values) {
+        double[] result = TensorArena.allocateForOverwrite(values.length);
+        System.arraycopy(values, 0, result, 0, values.length);
+        return result;
+    }
+    
+    /**
+     * Copies a float buffer, from the active TensorArena if there is one.
+     */
+    protected static float[] copyOf(float[] values) {
+        float[] result = TensorArena.allocateFloatsForOverwrite(values.length);
+        System.arraycopy(values, 0, result, 0, values.length);
+        return result;
+    }
+    
+    /**
+     * @return The precision in which the elements are stored
+     */
+    public Precision precision() {
+        return floats == null ? Precision.DOUBLE : Precision.FLOAT;
+    }
+    
+    /**
+     * Converts this Tensor to another precision.
+     * 
+     * @param precision
+     * @return This Tensor if it already has the given precision, and a
+     * converted copy otherwise
+     */
+    public Tensor toPrecision(Precision precision) {
+        if (precision == precision()) {
+            return this;
+        }
+        if (precision == Precision.FLOAT) {
+            float[] result = TensorArena.allocateFloatsForOverwrite(data.length);
+            FloatKernels.narrow(data, 0, result, 0, data.length);
+            return withData(result);
+        }
+        double[] result = TensorArena.allocateForOverwrite(floats.length);
+        FloatKernels.widen(floats, 0, 1, result, 0, floats.length);
+        return withData(result);
+    }
+    
+    /**
+     * @return Whether a and b are backed by the same buffer
+     */
+    static boolean sameBuffer(Tensor a, Tensor b) {
+        return a.data != null ? a.data == b.data : a.floats == b.floats;
+    }
+    
+    /**
+     * @param offset Position in the backing buffer
+     * @return The element at that position, widened to double
+     */
+    protected double get(int offset) {
+        return data != null ? data[offset] : floats[offset];
     }
     
     public Tensor add(Tensor t) {
-        return applyBinary(t, (d1, d2) -> d1 + d2);
+        return TensorMath.add(this, t);
     }
 
     public Tensor subtract(Tensor t) {
-        return applyBinary(t, (d1, d2) -> d1 - d2);
+        return TensorMath.subtract(this, t);
     }
 
     public Tensor multiply(Tensor t) {
-        return applyBinary(t, (d1, d2) -> d1 * d2);
+        return TensorMath.multiply(this, t);
     }
 
     public Tensor divideBy(Tensor t) {
-        return applyBinary(t, (d1, d2) -> d1 / d2);
+        return TensorMath.divide(this, t);
     }
     
     /**
@@ -44,39 +198,360 @@ public abstract class Tensor {
      * @return  The result is an indicator TensorV0, with 1.0 indicating true.
      */
     public Tensor atLeast(Tensor t) {
-        return applyBinary(t, (d1, d2) -> d1 >= d2 ? 1.0 : 0.0);
+        return combine(t, (d1, d2) -> d1 >= d2 ? 1.0 : 0.0);
     }
 
     public Tensor power(Tensor t) {
-        return applyBinary(t, Math::pow);
+        return combine(t, Math::pow);
+    }
+    
+    public Tensor addInPlace(Tensor t) {
+        return TensorMath.addInto(this, this, t);
+    }
+    
+    public Tensor subtractInPlace(Tensor t) {
+        return TensorMath.subtractInto(this, this, t);
+    }
+    
+    public Tensor multiplyInPlace(Tensor t) {
+        return TensorMath.multiplyInto(this, this, t);
+    }
+    
+    public Tensor divideInPlace(Tensor t) {
+        return TensorMath.divideInto(this, this, t);
+    }
+    
+    /**
+     * Computes this += alpha * x, in place.
+     * 
+     * @param alpha
+     * @param x Tensor which broadcasts to the shape of this one
+     * @return this
+     */
+    public Tensor axpy(double alpha, Tensor x) {
+        if (floats != null && x.floats != null && Arrays.equals(sizes, x.sizes)) {
+            var simd = SimdKernels.INSTANCE;
+            if (simd != null) {
+                simd.axpy(alpha, x.floats, floats, floats.length);
+                return this;
+            }
+            for (int i = 0; i < floats.length; i++) {
+                floats[i] = (float) (floats[i] + alpha * x.floats[i]);
+            }
+            return this;
+        }
+        if (!Arrays.equals(sizes, x.sizes) || floats != null || x.floats != null) {
+            return TensorMath.combineInto(this, this, x, (d1, d2) -> d1 + alpha * d2);
+        }
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            simd.axpy(alpha, x.data, data, data.length);
+            return this;
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] += alpha * x.data[i];
+        }
+        return this;
+    }
+    
+    /**
+     * Multiplies every element by a constant, in place.
+     * 
+     * @param factor
+     * @return this
+     */
+    public Tensor scaleInPlace(double factor) {
+        if (floats != null) {
+            for (int i = 0; i < floats.length; i++) {
+                floats[i] = (float) (floats[i] * factor);
+            }
+            return this;
+        }
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            simd.scale(data, factor, data, data.length);
+            return this;
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] *= factor;
+        }
+        return this;
+    }
+    
+    /**
+     * Apply a function to every element, in place.
+     * 
+     * @param function
+     * @return this
+     */
+    public Tensor mapInPlace(DoubleUnaryOperator function) {
+        if (floats != null) {
+            for (int i = 0; i < floats.length; i++) {
+                floats[i] = (float) function.applyAsDouble(floats[i]);
+            }
+            return this;
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] = function.applyAsDouble(data[i]);
+        }
+        return this;
+    }
+    
+    /**
+     * Sets every element to the same value.
+     * 
+     * @param value
+     * @return this
+     */
+    public Tensor fill(double value) {
+        if (floats != null) {
+            Arrays.fill(floats, (float) value);
+        } else {
+            Arrays.fill(data, value);
+        }
+        return this;
+    }
+    
+    /**
+     * Copies the values of a same-shaped Tensor into this one, converting
+     * them to the precision of this Tensor.
+     * 
+     * @param t
+     * @return this
+     */
+    public Tensor copyFrom(Tensor t) {
+        if (!Arrays.equals(sizes, t.sizes)) {
+            throw new IllegalArgumentException("Cannot copy a Tensor of shape " + t.shape()
+                    + " into one of shape " + shape() + ".");
+        }
+        copyElements(t, 0, this, 0, size());
+        return this;
+    }
+    
+    /**
+     * Copies elements between the buffers of two Tensors, converting them
+     * to the precision of the destination.
+     */
+    static void copyElements(Tensor source, int sourceOffset, Tensor dest, int destOffset, int length) {
+        requireDense(source);
+        requireDense(dest);
+        if (source.data != null && dest.data != null) {
+            System.arraycopy(source.data, sourceOffset, dest.data, destOffset, length);
+        } else if (source.floats != null && dest.floats != null) {
+            System.arraycopy(source.floats, sourceOffset, dest.floats, destOffset, length);
+        } else if (source.floats != null) {
+            FloatKernels.widen(source.floats, sourceOffset, 1, dest.data, destOffset, length);
+        } else {
+            FloatKernels.narrow(source.data, sourceOffset, dest.floats, destOffset, length);
+        }
+    }
+    
+    /**
+     * Fails for Tensors without a dense buffer, such as SparseTensor2D.
+     */
+    static void requireDense(Tensor t) {
+        if (t.data == null && t.floats == null) {
+            throw new UnsupportedOperationException("This operation needs a dense Tensor, not "
+                    + t.getClass().getSimpleName() + ".");
+        }
+    }
+    
+    /**
+     * Gathers a subset of rows (slices along dimension 0) into a new Tensor.
+     * 
+     * @param indices Row indices to select from
+     * @param from First position in indices to use
+     * @param to Position after the last one to use
+     * @return A Tensor with to - from rows, in the order given by indices
+     */
+    public Tensor gatherRows(int[] indices, int from, int to) {
+        var shape = shape();
+        shape.set(0, to - from);
+        return gatherRowsInto(TensorBuilder.zeros(shape, precision()), indices, from);
+    }
+    
+    /**
+     * Gathers rows into an existing Tensor, reusing its buffer.
+     * 
+     * Only the selected rows are copied, so batches can be drawn from a
+     * large Tensor without copying all of it. Values are converted to the
+     * precision of dest.
+     * 
+     * @param dest Tensor whose dimension 0 gives the number of rows to gather
+     * and whose other dimensions match this Tensor
+     * @param indices Row indices to select from
+     * @param from First position in indices to use
+     * @return dest
+     */
+    public Tensor gatherRowsInto(Tensor dest, int[] indices, int from) {
+        if (dest.sizes.length != sizes.length) {
+            throw new IllegalArgumentException("Cannot gather rows of shape " + shape()
+                    + " into " + dest.shape() + ".");
+        }
+        for (int i = 1; i < sizes.length; i++) {
+            if (dest.sizes[i] != sizes[i]) {
+                throw new IllegalArgumentException("Cannot gather rows of shape " + shape()
+                        + " into " + dest.shape() + ".");
+            }
+        }
+        int rowLength = strides[0];
+        for (int i = 0; i < dest.sizes[0]; i++) {
+            copyElements(this, indices[from + i] * rowLength, dest, i * rowLength, rowLength);
+        }
+        return dest;
+    }
+    
+    /**
+     * Copies all rows of this Tensor into consecutive rows of dest, the
+     * inverse of gatherRowsInto. Values are converted to the precision of
+     * dest.
+     *
+     * @param dest Tensor whose dimensions other than 0 match this Tensor
+     * @param destRow Row of dest receiving the first row
+     * @return dest
+     */
+    public Tensor copyRowsInto(Tensor dest, int destRow) {
+        if (dest.sizes.length != sizes.length || destRow < 0 || destRow + sizes[0] > dest.sizes[0]) {
+            throw new IllegalArgumentException("Cannot copy rows of shape " + shape()
+                    + " into row " + destRow + " of " + dest.shape() + ".");
+        }
+        for (int i = 1; i < sizes.length; i++) {
+            if (dest.sizes[i] != sizes[i]) {
+                throw new IllegalArgumentException("Cannot copy rows of shape " + shape()
+                        + " into row " + destRow + " of " + dest.shape() + ".");
+            }
+        }
+        copyElements(this, 0, dest, destRow * strides[0], size());
+        return dest;
+    }
+
+    /**
+     * @return A new Tensor with the same shape and values
+     */
+    public Tensor copy() {
+        return floats != null ? withData(copyOf(floats)) : withData(copyOf(data));
+    }
+    
+    /**
+     * Multiplies every element by a constant.
+     * 
+     * @param factor
+     * @return 
+     */
+    public Tensor scale(double factor) {
+        if (floats != null) {
+            return map(d -> d * factor);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            simd.scale(data, factor, result, data.length);
+            return withData(result);
+        }
+        for (int i = 0; i < data.length; i++) {
+            result[i] = data[i] * factor;
+        }
+        return withData(result);
     }
     
     public Tensor abs() {
-        return applyUnary(Math::abs);
+        if (floats != null) {
+            return map(Math::abs);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        for (int i = 0; i < data.length; i++) {
+            result[i] = Math.abs(data[i]);
+        }
+        return withData(result);
     }
 
     public Tensor exponentiate() {
-        return applyUnary(Math::exp);
+        if (floats != null) {
+            return map(Math::exp);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        for (int i = 0; i < data.length; i++) {
+            result[i] = Math.exp(data[i]);
+        }
+        return withData(result);
     }
     
     public Tensor log() {
-        return applyUnary(Math::log);
+        if (floats != null) {
+            return map(Math::log);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        for (int i = 0; i < data.length; i++) {
+            result[i] = Math.log(data[i]);
+        }
+        return withData(result);
     }
     
     public Tensor negate() {
-        return applyUnary(d -> -d);
+        if (floats != null) {
+            return map(d -> -d);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        for (int i = 0; i < data.length; i++) {
+            result[i] = -data[i];
+        }
+        return withData(result);
     }
     
     public Tensor relu() {
-        return applyUnary(d -> Math.max(0, d));
+        return ElementwiseFunction.RELU.apply(this);
     }
     
     public Tensor sigmoid() {
-        return applyUnary(d -> 1.0 / (1.0 + Math.exp(-d)));
+        return ElementwiseFunction.SIGMOID.apply(this);
     }
     
     public Tensor tanh() {
-        return applyUnary(Math::tanh);
+        return ElementwiseFunction.TANH.apply(this);
+    }
+    
+    /**
+     * @return The sum of every element in the Tensor, accumulated in double
+     * precision
+     */
+    public double sum() {
+        if (floats != null) {
+            double sum = 0.0;
+            for (int i = 0; i < floats.length; i++) {
+                sum += floats[i];
+            }
+            return sum;
+        }
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            return simd.sum(data, 0, data.length);
+        }
+        double sum = 0.0;
+        for (int i = 0; i < data.length; i++) {
+            sum += data[i];
+        }
+        return sum;
+    }
+    
+    /**
+     * Sums a function of every element, without allocating a Tensor for the
+     * intermediate values.
+     * 
+     * @param function
+     * @return The sum of function(value) over every element
+     */
+    public double sum(DoubleUnaryOperator function) {
+        double sum = 0.0;
+        if (floats != null) {
+            for (int i = 0; i < floats.length; i++) {
+                sum += function.applyAsDouble(floats[i]);
+            }
+            return sum;
+        }
+        for (int i = 0; i < data.length; i++) {
+            sum += function.applyAsDouble(data[i]);
+        }
+        return sum;
     }
     
     public abstract Tensor allSum();
@@ -121,9 +596,119 @@ public abstract class Tensor {
         return new ArrayList<>(dimensions);
     }
     
-    public abstract Tensor applyUnary(Function<Double,Double> function);
+    /**
+     * @return The number of dimensions of this Tensor
+     */
+    public int rank() {
+        return sizes.length;
+    }
     
+    /**
+     * @return The total number of elements stored in this Tensor
+     */
+    public int size() {
+        return data != null ? data.length : floats.length;
+    }
+    
+    /**
+     * Copy the elements of this Tensor, in row-major order.
+     * 
+     * @return A new array holding the Tensor values
+     */
+    public double[] toArray() {
+        if (floats != null) {
+            double[] result = new double[floats.length];
+            FloatKernels.widen(floats, 0, 1, result, 0, floats.length);
+            return result;
+        }
+        return data.clone();
+    }
+    
+    /**
+     * Computes the offset of a position in the backing buffer.
+     * 
+     * @param position Valid position with one index per dimension
+     * @return 
+     */
+    protected int offset(int... position) {
+        if (position.length != sizes.length) {
+            throw new IllegalArgumentException("Invalid position for " + sizes.length + "D Tensor");
+        }
+        int offset = 0;
+        for (int i = 0; i < position.length; i++) {
+            offset += position[i] * strides[i];
+        }
+        return offset;
+    }
+    
+    /**
+     * Apply a function to every element, without boxing.
+     * 
+     * @param function
+     * @return A Tensor of the same shape holding function(value)
+     */
+    public Tensor map(DoubleUnaryOperator function) {
+        if (floats != null) {
+            float[] result = TensorArena.allocateFloatsForOverwrite(floats.length);
+            for (int i = 0; i < floats.length; i++) {
+                result[i] = (float) function.applyAsDouble(floats[i]);
+            }
+            return withData(result);
+        }
+        double[] result = TensorArena.allocateForOverwrite(data.length);
+        for (int i = 0; i < data.length; i++) {
+            result[i] = function.applyAsDouble(data[i]);
+        }
+        return withData(result);
+    }
+    
+    /**
+     * Apply a broadcasted binary function, without boxing.
+     * 
+     * @param right
+     * @param function
+     * @return The element-wise result function(this, right)
+     */
+    public Tensor combine(Tensor right, DoubleBinaryOperator function) {
+        return TensorMath.combine(this, right, function);
+    }
+    
+    /**
+     * Boxed variant of map, kept for existing callers.
+     * 
+     * @param function
+     * @return 
+     */
+    public Tensor applyUnary(Function<Double,Double> function) {
+        return map(function::apply);
+    }
+    
+    /**
+     * Boxed variant of combine, kept for existing callers.
+     * 
+     * @param right
+     * @param function
+     * @return 
+     */
     public Tensor applyBinary(Tensor right, BiFunction<Double, Double, Double> function) {
         return TensorMath.applyBinary(this, right, function);
     }
+    
+    /**
+     * Creates a Tensor with the same shape as this one, backed by the given
+     * buffer.
+     * 
+     * @param buffer Row-major values, which are not copied
+     * @return 
+     */
+    protected abstract Tensor withData(double[] buffer);
+    
+    /**
+     * Creates a FLOAT Tensor with the same shape as this one, backed by the
+     * given buffer.
+     * 
+     * @param buffer Row-major values, which are not copied
+     * @return 
+     */
+    protected abstract Tensor withData(float[] buffer);
 }
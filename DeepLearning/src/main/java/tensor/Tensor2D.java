@@ -1,7 +1,9 @@
 package tensor;
 
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
 /**
@@ -17,13 +19,24 @@ public class Tensor2D extends Tensor {
     // TODO: probably remove nrows, ncols.
     public final int nrows;
     public final int ncols;
-    private double[][] data;
 
     public Tensor2D(int nr, int nc) {
         super(List.of(nr, nc));
         nrows = nr;
         ncols = nc;
-        data = new double[nr][nc];
+    }
+
+    /**
+     * Construct a zero-filled Tensor2D with the given precision.
+     *
+     * @param nr
+     * @param nc
+     * @param precision
+     */
+    public Tensor2D(int nr, int nc, Precision precision) {
+        super(List.of(nr, nc), precision);
+        nrows = nr;
+        ncols = nc;
     }
 
     /**
@@ -32,37 +45,61 @@ public class Tensor2D extends Tensor {
      * @param inputData
      */
     public Tensor2D(double[][] inputData) {
-        super(List.of(inputData.length, inputData[0].length));
-        nrows = inputData.length;
-        ncols = inputData[0].length;
-        data = new double[nrows][ncols];
+        this(inputData.length, inputData[0].length);
         for (int i = 0; i < nrows; i++) {
             if (inputData[i].length != ncols) {
                 throw new IllegalArgumentException("Tensor input array must be rectangular.");
             }
-            for (int j = 0; j < ncols; j++) {
-                data[i][j] = inputData[i][j];
-            }
+            System.arraycopy(inputData[i], 0, data, i * ncols, ncols);
         }
     }
 
     public Tensor2D(List<Integer> shape, double[] inputData) {
-        super(shape);
-        if (shape.size() != 2) {
-            throw new IllegalArgumentException("Invalid dimensions for Tensor2D.");
+        this(validateShape(shape).get(0), shape.get(1), copyOf(inputData));
+    }
+
+    private Tensor2D(int nr, int nc, double[] buffer) {
+        super(List.of(nr, nc), buffer);
+        nrows = nr;
+        ncols = nc;
+    }
+
+    private Tensor2D(int nr, int nc, float[] buffer) {
+        super(List.of(nr, nc), buffer);
+        nrows = nr;
+        ncols = nc;
+    }
+
+    /**
+     * Creates a Tensor2D backed by an existing row-major buffer, without
+     * copying it.
+     */
+    static Tensor2D wrap(int nr, int nc, double[] buffer) {
+        return new Tensor2D(nr, nc, buffer);
+    }
+
+    static Tensor2D wrap(int nr, int nc, float[] buffer) {
+        return new Tensor2D(nr, nc, buffer);
+    }
+
+    /**
+     * Creates a Tensor2D of the given precision from double values. For
+     * FLOAT, the values are narrowed into a new buffer.
+     */
+    static Tensor2D wrap(int nr, int nc, double[] values, Precision precision) {
+        if (precision == Precision.DOUBLE) {
+            return wrap(nr, nc, values);
         }
+        float[] result = TensorArena.allocateFloatsForOverwrite(values.length);
+        FloatKernels.narrow(values, 0, result, 0, values.length);
+        return wrap(nr, nc, result);
+    }
 
-        nrows = shape.get(0);
-        ncols = shape.get(1);
-        
-        double[][] data = new double[nrows][ncols];
-        int position = 0;
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 0; j < ncols; j++) {
-                data[i][j] = inputData[position];
-                position++;
-            }
+    private static List<Integer> validateShape(List<Integer> shape) {
+        if (shape.size() != 2) {
+            throw new IllegalArgumentException("Invalid dimensions for Tensor2D.");
         }
+        return shape;
     }
 
     @Override
@@ -70,7 +107,7 @@ public class Tensor2D extends Tensor {
         if (position.length != 2) {
             throw new IllegalArgumentException("Invalid position for 2D Tensor");
         }
-        return data[position[0]][position[1]];
+        return get(position[0] * ncols + position[1]);
     }
 
     @Override
@@ -78,24 +115,211 @@ public class Tensor2D extends Tensor {
         int n = position.length;
         int r = position[n - 2];
         int c = position[n - 1];
-        return data[r % nrows][c % ncols];
+        return get((r % nrows) * ncols + c % ncols);
     }
 
+    /**
+     * Computes the matrix product this * t.
+     *
+     * Large products use a packed, cache-blocked kernel which is split across
+     * the common fork-join pool. Products accumulate in double precision,
+     * and are FLOAT if either operand is.
+     *
+     * @param t
+     * @return A nrows x t.ncols Tensor
+     */
     public Tensor2D matrixMultiply(Tensor2D t) {
         if (this.ncols != t.nrows) {
             throw new IllegalArgumentException("Matrix Multiplication is not defined for matrices of shape "
                     + shape() + ", and " + t.shape() + ".");
         }
-        Tensor2D result = new Tensor2D(nrows, t.ncols);
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 0; j < t.ncols; j++) {
-                for (int k = 0; k < ncols; k++) {
-                    result.data[i][j] += data[i][k] * t.data[k][j];
+        double[] result = TensorArena.allocate(nrows * t.ncols);
+        Gemm.multiply(nrows, t.ncols, ncols,
+                this, ncols, 1,
+                t, t.ncols, 1,
+                result);
+
+        return wrap(nrows, t.ncols, result, precision().combine(t.precision()));
+    }
+
+    /**
+     * Computes op(this) * op(t), where op transposes its argument when the
+     * corresponding flag is set.
+     *
+     * Transposed operands are read in place, through their strides, rather
+     * than copied.
+     *
+     * @param t
+     * @param transposeThis Whether to use the transpose of this
+     * @param transposeT Whether to use the transpose of t
+     * @return
+     */
+    public Tensor2D matrixMultiply(Tensor2D t, boolean transposeThis, boolean transposeT) {
+        return matrixMultiply(t, transposeThis, transposeT, 1.0, null);
+    }
+
+    /**
+     * Computes factor * op(this) * op(t), and optionally the column sums of
+     * op(t) scaled by the same factor.
+     *
+     * This fuses the derivatives of a fully connected layer,
+     *   dW = 1/m * A_prev^T * dZ
+     *   db = 1/m * dZ.columnSum
+     * into a single pass. The scaling is applied to each block of the
+     * product while it is in cache, and the column sums are accumulated
+     * while op(t) is read for the product. The values match those of the
+     * separate operations.
+     *
+     * @param t
+     * @param transposeThis Whether to use the transpose of this
+     * @param transposeT Whether to use the transpose of t
+     * @param factor Scale applied to the product and the column sums
+     * @param columnSums If not null, a 1 x op(t).ncols Tensor which receives
+     * factor times the column sums of op(t)
+     * @return
+     */
+    public Tensor2D matrixMultiply(Tensor2D t, boolean transposeThis, boolean transposeT,
+            double factor, Tensor2D columnSums) {
+        int m = transposeThis ? ncols : nrows;
+        int k = transposeThis ? nrows : ncols;
+        int tRows = transposeT ? t.ncols : t.nrows;
+        int n = transposeT ? t.nrows : t.ncols;
+        if (k != tRows) {
+            throw new IllegalArgumentException("Matrix Multiplication is not defined for matrices of shape "
+                    + shape() + (transposeThis ? "^T" : "") + ", and " + t.shape()
+                    + (transposeT ? "^T" : "") + ".");
+        }
+        if (columnSums != null && (columnSums.nrows != 1 || columnSums.ncols != n)) {
+            throw new IllegalArgumentException("Column sums must have shape " + List.of(1, n)
+                    + ", not " + columnSums.shape() + ".");
+        }
+
+        double[] result = TensorArena.allocate(m * n);
+        Gemm.Epilogue scale = null;
+        if (factor != 1.0) {
+            double[] scalar = {factor};
+            scale = (c, ldc, i0, iEnd, j0, jEnd) -> {
+                for (int i = i0; i < iEnd; i++) {
+                    int offset = i * ldc + j0;
+                    TensorMath.BuiltinKernel.MULTIPLY.applyScalar(c, offset, 1, scalar, 0, 0, c, offset, jEnd - j0);
                 }
+            };
+        }
+        // FLOAT column sums are accumulated in double, then narrowed.
+        double[] sums = null;
+        if (columnSums != null) {
+            columnSums.fill(0.0);
+            sums = columnSums.data != null ? columnSums.data : new double[n];
+        }
+        Gemm.multiply(m, n, k,
+                this, transposeThis ? 1 : ncols, transposeThis ? ncols : 1,
+                t, transposeT ? 1 : t.ncols, transposeT ? t.ncols : 1,
+                result, scale, sums);
+        if (columnSums != null && columnSums.floats != null) {
+            for (int j = 0; j < n; j++) {
+                columnSums.floats[j] = (float) (sums[j] * factor);
             }
+        } else if (columnSums != null && factor != 1.0) {
+            columnSums.scaleInPlace(factor);
         }
 
-        return result;
+        return wrap(m, n, result, precision().combine(t.precision()));
+    }
+
+    /**
+     * Computes dest = this * t, reusing the buffer of dest.
+     *
+     * @param dest A nrows x t.ncols Tensor, which must not share a buffer
+     * with either operand. The product is rounded to its precision.
+     * @param t
+     * @return dest
+     */
+    public Tensor2D matrixMultiplyInto(Tensor2D dest, Tensor2D t) {
+        if (this.ncols != t.nrows || dest.nrows != nrows || dest.ncols != t.ncols) {
+            throw new IllegalArgumentException("Matrix Multiplication is not defined for matrices of shape "
+                    + shape() + ", and " + t.shape() + " into " + dest.shape() + ".");
+        }
+        if (sameBuffer(dest, this) || sameBuffer(dest, t)) {
+            throw new IllegalArgumentException("Matrix Multiplication destination must not alias an operand.");
+        }
+        double[] product = dest.data != null ? dest.data : TensorArena.allocateForOverwrite(dest.floats.length);
+        Arrays.fill(product, 0.0);
+        Gemm.multiply(nrows, t.ncols, ncols,
+                this, ncols, 1,
+                t, t.ncols, 1,
+                product);
+        if (dest.floats != null) {
+            FloatKernels.narrow(product, 0, dest.floats, 0, product.length);
+        }
+
+        return dest;
+    }
+
+    /**
+     * Computes function(this * t + bias) in a single pass.
+     *
+     * The bias and function are applied to each block of the product as soon
+     * as it is computed, while it is still in cache, instead of in separate
+     * passes over the whole result. The values match those of
+     * matrixMultiply, add and the function applied one after another.
+     *
+     * @param t
+     * @param bias A 1 x t.ncols row, added to every row of the product
+     * @param function
+     * @param z If not null, a nrows x t.ncols Tensor which receives
+     * this * t + bias, rounded to its precision. It must not share a buffer
+     * with an operand.
+     * @return function(this * t + bias), which is FLOAT if either this or t
+     * is. For IDENTITY, this is z when given and of that precision.
+     */
+    public Tensor2D multiplyAddApply(Tensor2D t, Tensor2D bias, ElementwiseFunction function, Tensor2D z) {
+        int n = t.ncols;
+        if (this.ncols != t.nrows || bias.nrows != 1 || bias.ncols != n) {
+            throw new IllegalArgumentException("Cannot compute a product of shapes " + shape() + " and "
+                    + t.shape() + " plus a bias of shape " + bias.shape() + ".");
+        }
+        if (z != null) {
+            if (z.nrows != nrows || z.ncols != n) {
+                throw new IllegalArgumentException("Destination of shape " + z.shape()
+                        + " does not match the product shape " + List.of(nrows, n) + ".");
+            }
+            if (sameBuffer(z, this) || sameBuffer(z, t) || sameBuffer(z, bias)) {
+                throw new IllegalArgumentException("Destination must not alias an operand.");
+            }
+            if (z.data != null) {
+                z.fill(0.0);
+            }
+        }
+        var precision = precision().combine(t.precision());
+
+        // Without z, the function is applied in place, so only one buffer
+        // is written. FLOAT results are computed in double, then narrowed.
+        double[] product = z != null && z.data != null ? z.data : TensorArena.allocate(nrows * n);
+        double[] result = z == null || function == ElementwiseFunction.IDENTITY
+                ? product : TensorArena.allocateForOverwrite(nrows * n);
+        double[] b = bias.data != null ? bias.data : bias.toArray();
+        Gemm.multiply(nrows, n, ncols,
+                this, ncols, 1,
+                t, n, 1,
+                product, (c, ldc, i0, iEnd, j0, jEnd) -> {
+                    // Rows of a tile are short, so the scalar loop is used. The JIT
+                    // vectorizes it, and unlike the Vector API kernels it never
+                    // boxes vectors on the heap when their intrinsics fail to
+                    // compile in a deeply inlined context.
+                    for (int i = i0; i < iEnd; i++) {
+                        int offset = i * ldc + j0;
+                        TensorMath.BuiltinKernel.ADD.applyScalar(c, offset, 1, b, j0, 1, c, offset, jEnd - j0);
+                        function.apply(c, offset, result, offset, jEnd - j0);
+                    }
+                });
+
+        if (z != null && z.floats != null) {
+            FloatKernels.narrow(product, 0, z.floats, 0, product.length);
+        }
+        if (z != null && result == product && z.precision() == precision) {
+            return z;
+        }
+        return wrap(nrows, n, result, precision);
     }
 
     /**
@@ -104,10 +328,28 @@ public class Tensor2D extends Tensor {
      * @return A 1 x ncols TensorV0 of column sums
      */
     public Tensor2D columnSum() {
+        if (floats != null) {
+            double[] sums = new double[ncols];
+            for (int i = 0; i < nrows; i++) {
+                for (int j = 0; j < ncols; j++) {
+                    sums[j] += floats[i * ncols + j];
+                }
+            }
+            return wrap(1, ncols, sums, Precision.FLOAT);
+        }
         Tensor2D result = new Tensor2D(1, ncols);
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            // Rows are added in order, so this matches the scalar loop.
+            for (int i = 0; i < nrows; i++) {
+                simd.binary(TensorMath.BuiltinKernel.ADD, result.data, 0,
+                        data, i * ncols, result.data, 0, ncols);
+            }
+            return result;
+        }
         for (int i = 0; i < nrows; i++) {
             for (int j = 0; j < ncols; j++) {
-                result.data[0][j] += this.data[i][j];
+                result.data[j] += this.data[i * ncols + j];
             }
         }
 
@@ -120,10 +362,28 @@ public class Tensor2D extends Tensor {
      * @return A nrows x 1 TensorV0 of row sums
      */
     public Tensor2D rowSum() {
+        if (floats != null) {
+            float[] sums = TensorArena.allocateFloatsForOverwrite(nrows);
+            for (int i = 0; i < nrows; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < ncols; j++) {
+                    sum += floats[i * ncols + j];
+                }
+                sums[i] = (float) sum;
+            }
+            return wrap(nrows, 1, sums);
+        }
         Tensor2D result = new Tensor2D(nrows, 1);
+        var simd = SimdKernels.INSTANCE;
+        if (simd != null) {
+            for (int i = 0; i < nrows; i++) {
+                result.data[i] = simd.sum(data, i * ncols, ncols);
+            }
+            return result;
+        }
         for (int i = 0; i < nrows; i++) {
             for (int j = 0; j < ncols; j++) {
-                result.data[i][0] += this.data[i][j];
+                result.data[i] += this.data[i * ncols + j];
             }
         }
 
@@ -131,10 +391,18 @@ public class Tensor2D extends Tensor {
     }
 
     public Tensor2D transpose() {
-        Tensor2D result = new Tensor2D(ncols, nrows);
+        Tensor2D result = new Tensor2D(ncols, nrows, precision());
+        if (floats != null) {
+            for (int i = 0; i < nrows; i++) {
+                for (int j = 0; j < ncols; j++) {
+                    result.floats[j * nrows + i] = this.floats[i * ncols + j];
+                }
+            }
+            return result;
+        }
         for (int i = 0; i < nrows; i++) {
             for (int j = 0; j < ncols; j++) {
-                result.data[j][i] = this.data[i][j];
+                result.data[j * nrows + i] = this.data[i * ncols + j];
             }
         }
 
@@ -151,21 +419,32 @@ public class Tensor2D extends Tensor {
     }
 
     public static Tensor2D constant(double value) {
-        double[][] data = {{value}};
-        return new Tensor2D(data);
+        return wrap(1, 1, new double[]{value});
+    }
+
+    @Override
+    public Tensor2D map(DoubleUnaryOperator function) {
+        return (Tensor2D) super.map(function);
     }
 
     @Override
     public Tensor2D applyUnary(Function<Double, Double> function) {
-        Tensor2D result = new Tensor2D(nrows, ncols);
+        return map(function::apply);
+    }
 
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 0; j < ncols; j++) {
-                result.data[i][j] = function.apply(data[i][j]);
-            }
-        }
+    @Override
+    public Tensor2D copy() {
+        return (Tensor2D) super.copy();
+    }
 
-        return result;
+    @Override
+    protected Tensor2D withData(double[] buffer) {
+        return wrap(nrows, ncols, buffer);
+    }
+
+    @Override
+    protected Tensor2D withData(float[] buffer) {
+        return wrap(nrows, ncols, buffer);
     }
 
     @Override
@@ -174,17 +453,35 @@ public class Tensor2D extends Tensor {
     }
 
     public String toString(int decimalPrecision) {
+        return format(nrows, ncols, ncols, 1, decimalPrecision);
+    }
+
+    /**
+     * Formats the transpose of this Tensor, reading it in place rather than
+     * copying it first.
+     *
+     * @param decimalPrecision
+     * @return The same text as transpose().toString(decimalPrecision)
+     */
+    public String toTransposedString(int decimalPrecision) {
+        return format(ncols, nrows, 1, ncols, decimalPrecision);
+    }
+
+    /**
+     * Formats a rows x cols view of the buffer, one row per line.
+     */
+    private String format(int rows, int cols, int rowStride, int colStride, int decimalPrecision) {
         StringBuilder sb = new StringBuilder();
         DecimalFormat df = new DecimalFormat();
         df.setMaximumFractionDigits(decimalPrecision);
         df.setMinimumFractionDigits(decimalPrecision);
 
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 0; j < ncols; j++) {
-                sb.append(df.format(data[i][j]));
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                sb.append(df.format(get(i * rowStride + j * colStride)));
                 sb.append(" ");
             }
-            if (i != nrows - 1) {
+            if (i != rows - 1) {
                 sb.append(System.lineSeparator());
             }
         }
@@ -2,7 +2,6 @@ package tensor;
 
 import java.text.DecimalFormat;
 import java.util.List;
-import java.util.function.Function;
 
 /**
  * 4D Tensor implementation.
@@ -11,63 +10,77 @@ import java.util.function.Function;
  */
 public class Tensor4D extends Tensor {
 
-    private double[][][][] data;
-
     public Tensor4D(int n0, int n1, int n2, int n3) {
         super(List.of(n0, n1, n2, n3));
-        data = new double[n0][n1][n2][n3];
     }
 
     public Tensor4D(List<Integer> dimensions) {
-        super(dimensions);
-        if (dimensions.size() != 4) {
-            throw new IllegalArgumentException("Invalid dimensions for Tensor4D.");
-        }
-        data = new double[dimensions.get(0)][dimensions.get(1)][dimensions.get(2)][dimensions.get(3)];
+        super(validateShape(dimensions));
+    }
+
+    /**
+     * Construct a zero-filled Tensor4D with the given precision.
+     *
+     * @param dimensions
+     * @param precision
+     */
+    public Tensor4D(List<Integer> dimensions, Precision precision) {
+        super(validateShape(dimensions), precision);
     }
 
     public Tensor4D(double[][][][] inputData) {
-        super(List.of(inputData.length, inputData[0].length, inputData[0][0].length, inputData[0][0][0].length));
-        data = new double[inputData.length][inputData[0].length][inputData[0][0].length][inputData[0][0][0].length];
-        for (int i = 0; i < inputData.length; i++) {
-            for (int j = 0; j < inputData[i].length; j++) {
-                for (int k = 0; k < inputData[i][j].length; k++) {
-                    for (int l = 0; l < inputData[i][j][k].length; l++) {
-                        data[i][j][k][l] = inputData[i][j][k][l];
+        this(inputData.length, inputData[0].length, inputData[0][0].length, inputData[0][0][0].length);
+        int position = 0;
+        for (int i = 0; i < sizes[0]; i++) {
+            for (int j = 0; j < sizes[1]; j++) {
+                for (int k = 0; k < sizes[2]; k++) {
+                    if (inputData[i].length != sizes[1] || inputData[i][j].length != sizes[2]
+                            || inputData[i][j][k].length != sizes[3]) {
+                        throw new IllegalArgumentException("Tensor input array must be rectangular.");
                     }
+                    System.arraycopy(inputData[i][j][k], 0, data, position, sizes[3]);
+                    position += sizes[3];
                 }
             }
         }
     }
 
     public Tensor4D(List<Integer> shape, double[] inputData) {
-        super(shape);
-        if (shape.size() != 4) {
-            throw new IllegalArgumentException("Invalid dimensions for Tensor4D.");
-        }
+        super(validateShape(shape), copyOf(inputData));
+    }
 
-        int n0 = shape.get(0);
-        int n1 = shape.get(1);
-        int n2 = shape.get(2);
-        int n3 = shape.get(3);
+    private Tensor4D(int n0, int n1, int n2, int n3, double[] buffer) {
+        super(List.of(n0, n1, n2, n3), buffer);
+    }
 
-        data = new double[n0][n1][n2][n3];
-        int position = 0;
-        for (int i = 0; i < n0; i++) {
-            for (int j = 0; j < n1; j++) {
-                for (int k = 0; k < n2; k++) {
-                    for (int l = 0; l < n3; l++) {
-                        data[i][j][k][l] = inputData[position];
-                        position++;
-                    }
-                }
-            }
+    private Tensor4D(int n0, int n1, int n2, int n3, float[] buffer) {
+        super(List.of(n0, n1, n2, n3), buffer);
+    }
+
+    /**
+     * Creates a Tensor4D backed by an existing row-major buffer, without
+     * copying it.
+     */
+    static Tensor4D wrap(List<Integer> shape, double[] buffer) {
+        validateShape(shape);
+        return new Tensor4D(shape.get(0), shape.get(1), shape.get(2), shape.get(3), buffer);
+    }
+
+    static Tensor4D wrap(List<Integer> shape, float[] buffer) {
+        validateShape(shape);
+        return new Tensor4D(shape.get(0), shape.get(1), shape.get(2), shape.get(3), buffer);
+    }
+
+    private static List<Integer> validateShape(List<Integer> shape) {
+        if (shape.size() != 4) {
+            throw new IllegalArgumentException("Invalid dimensions for Tensor4D.");
         }
+        return shape;
     }
 
     @Override
     public Tensor allSum() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return Tensor2D.constant(sum());
     }
 
     @Override
@@ -75,36 +88,29 @@ public class Tensor4D extends Tensor {
         if (position.length != 4) {
             throw new IllegalArgumentException("Invalid position for 4D Tensor");
         }
-        return data[position[0]][position[1]][position[2]][position[3]];
+        return get(position[0] * strides[0] + position[1] * strides[1]
+                + position[2] * strides[2] + position[3]);
     }
 
     @Override
     public double value2(int... position) {
         int n = position.length;
-        var shape = shape();
-        int i = position[n - 4];
-        int j = position[n - 3];
-        int k = position[n - 2];
-        int l = position[n - 1];
+        int i = position[n - 4] % sizes[0];
+        int j = position[n - 3] % sizes[1];
+        int k = position[n - 2] % sizes[2];
+        int l = position[n - 1] % sizes[3];
 
-        return data[i % shape.get(0)][j % shape.get(1)][k % shape.get(2)][l % shape.get(3)];
+        return get(i * strides[0] + j * strides[1] + k * strides[2] + l);
     }
 
     @Override
-    public Tensor applyUnary(Function<Double, Double> function) {
-        var dimensions = shape();
-        Tensor4D result = new Tensor4D(dimensions);
-        for (int i = 0; i < dimensions.get(0); i++) {
-            for (int j = 0; i < dimensions.get(1); j++) {
-                for (int k = 0; i < dimensions.get(2); k++) {
-                    for (int l = 0; i < dimensions.get(3); l++) {
-                        result.data[i][j][k][l] = function.apply(data[i][j][k][l]);
-                    }
-                }
-            }
-        }
+    protected Tensor4D withData(double[] buffer) {
+        return new Tensor4D(sizes[0], sizes[1], sizes[2], sizes[3], buffer);
+    }
 
-        return result;
+    @Override
+    protected Tensor4D withData(float[] buffer) {
+        return new Tensor4D(sizes[0], sizes[1], sizes[2], sizes[3], buffer);
     }
 
     @Override
@@ -129,7 +135,7 @@ public class Tensor4D extends Tensor {
                         .append(System.lineSeparator());
                 for (int k = 0; k < shape.get(2); k++) {
                     for (int l = 0; l < shape.get(3); l++) {
-                        sb.append(df.format(data[i][j][k][l]));
+                        sb.append(df.format(value(i, j, k, l)));
                         sb.append(" ");
                     }
                     sb.append(System.lineSeparator());
@@ -0,0 +1,378 @@
+package tensor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of Tensor buffers which are borrowed during a training step and
+ * released together at its end.
+ *
+ * While an arena is active on a thread (see activate), every Tensor buffer
+ * allocated on that thread, by Tensor operations or by layers, is borrowed
+ * from the arena instead of the heap. Buffers are pooled by length, so after
+ * the first step, steps with the same shapes find every buffer they need in
+ * the pool and allocate nearly nothing.
+ *
+ * releaseAll returns every borrowed buffer to the pool at once. Tensors
+ * created while the arena was active must not be used after that. An arena
+ * is used by one thread at a time.
+ *
+ * In debug mode, the arena checks that this rule is kept:
+ *   Released buffers are filled with a NaN poison value and kept out of the
+ *   pool for one step, so reads after release produce NaN.
+ *   Writes after release are detected when the poison is checked, at the
+ *   next release or when the arena is closed.
+ *   Buffers still borrowed when the arena is closed are reported as leaks.
+ * Errors name the place the offending buffer was borrowed.
+ *
+ * @author tyler
+ */
+public class TensorArena implements AutoCloseable {
+    private static final ThreadLocal<TensorArena> CURRENT = new ThreadLocal<>();
+
+    // Quiet NaNs with a recognizable payload.
+    private static final long POISON_BITS = 0x7ff8deadbeef0000L;
+    private static final double POISON = Double.longBitsToDouble(POISON_BITS);
+    private static final int FLOAT_POISON_BITS = 0x7fcdbeef;
+    private static final float FLOAT_POISON = Float.intBitsToFloat(FLOAT_POISON_BITS);
+
+    private final boolean debug;
+    private final Pools<double[]> free;
+    private final Pools<float[]> freeFloats;
+    // Borrowed double[] and float[] buffers
+    private final List<Object> borrowed;
+    private boolean closed;
+
+    // Debug mode only
+    private final Map<Object, Throwable> borrowSites;
+    private final List<Object> quarantine;
+
+    public TensorArena() {
+        this(Boolean.getBoolean("tensor.arena.debug"));
+    }
+
+    /**
+     * @param debug Whether to check for leaks and use after release
+     */
+    public TensorArena(boolean debug) {
+        this.debug = debug;
+        free = new Pools<>();
+        freeFloats = new Pools<>();
+        borrowed = new ArrayList<>();
+        borrowSites = new IdentityHashMap<>();
+        quarantine = new ArrayList<>();
+    }
+
+    /**
+     * Makes this the arena for allocations on the current thread, until the
+     * returned Scope is closed.
+     *
+     * @return
+     */
+    public Scope activate() {
+        if (closed) {
+            throw new IllegalStateException("Cannot activate a closed arena.");
+        }
+        var previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> CURRENT.set(previous);
+    }
+
+    /**
+     * @return The arena active on the current thread, or null
+     */
+    public static TensorArena current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Allocates a zeroed buffer, from the active arena if there is one.
+     *
+     * @param length
+     * @return
+     */
+    public static double[] allocate(int length) {
+        var arena = CURRENT.get();
+        return arena == null ? new double[length] : arena.borrow(length, true);
+    }
+
+    /**
+     * Allocates a buffer whose every element the caller will overwrite. From
+     * an arena, the buffer is not cleared first.
+     *
+     * @param length
+     * @return
+     */
+    public static double[] allocateForOverwrite(int length) {
+        var arena = CURRENT.get();
+        return arena == null ? new double[length] : arena.borrow(length, false);
+    }
+
+    /**
+     * Allocates a zeroed float buffer, from the active arena if there is
+     * one.
+     *
+     * @param length
+     * @return
+     */
+    public static float[] allocateFloats(int length) {
+        var arena = CURRENT.get();
+        return arena == null ? new float[length] : arena.borrowFloats(length, true);
+    }
+
+    /**
+     * Allocates a float buffer whose every element the caller will
+     * overwrite. From an arena, the buffer is not cleared first.
+     *
+     * @param length
+     * @return
+     */
+    public static float[] allocateFloatsForOverwrite(int length) {
+        var arena = CURRENT.get();
+        return arena == null ? new float[length] : arena.borrowFloats(length, false);
+    }
+
+    /**
+     * Returns every borrowed buffer to the pool.
+     */
+    public void releaseAll() {
+        if (!debug) {
+            for (var buffer : borrowed) {
+                recycle(buffer);
+            }
+            borrowed.clear();
+            return;
+        }
+
+        // Buffers released last time have now been checked for writes and
+        // can be reused. This step's buffers take their place.
+        checkQuarantine();
+        for (var buffer : quarantine) {
+            borrowSites.remove(buffer);
+            recycle(buffer);
+        }
+        quarantine.clear();
+        for (var buffer : borrowed) {
+            if (buffer instanceof double[]) {
+                Arrays.fill((double[]) buffer, POISON);
+            } else {
+                Arrays.fill((float[]) buffer, FLOAT_POISON);
+            }
+            quarantine.add(buffer);
+        }
+        borrowed.clear();
+    }
+
+    /**
+     * @return The number of buffers borrowed since the last release
+     */
+    public int borrowedCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * Drops the pool.
+     *
+     * In debug mode, fails if buffers are still borrowed, or if released
+     * buffers were written to.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (debug) {
+                checkQuarantine();
+                if (!borrowed.isEmpty()) {
+                    throw new IllegalStateException(borrowed.size()
+                            + " Tensor buffers were never released by the arena.",
+                            borrowSites.get(borrowed.get(0)));
+                }
+            }
+        } finally {
+            free.clear();
+            freeFloats.clear();
+            borrowed.clear();
+            quarantine.clear();
+            borrowSites.clear();
+        }
+    }
+
+    private double[] borrow(int length, boolean zero) {
+        checkOpen();
+        var pool = free.get(length);
+        double[] buffer;
+        if (pool == null || pool.isEmpty()) {
+            buffer = new double[length];
+            if (debug && !zero) {
+                Arrays.fill(buffer, POISON);
+            }
+        } else {
+            buffer = pool.pop();
+            if (zero) {
+                Arrays.fill(buffer, 0.0);
+            }
+        }
+        lend(buffer);
+        return buffer;
+    }
+
+    private float[] borrowFloats(int length, boolean zero) {
+        checkOpen();
+        var pool = freeFloats.get(length);
+        float[] buffer;
+        if (pool == null || pool.isEmpty()) {
+            buffer = new float[length];
+            if (debug && !zero) {
+                Arrays.fill(buffer, FLOAT_POISON);
+            }
+        } else {
+            buffer = pool.pop();
+            if (zero) {
+                Arrays.fill(buffer, 0.0f);
+            }
+        }
+        lend(buffer);
+        return buffer;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Cannot allocate from a closed arena.");
+        }
+    }
+
+    private void lend(Object buffer) {
+        borrowed.add(buffer);
+        if (debug) {
+            borrowSites.put(buffer, new Throwable("Tensor buffer borrowed here"));
+        }
+    }
+
+    private void recycle(Object buffer) {
+        if (buffer instanceof double[]) {
+            var values = (double[]) buffer;
+            free.getOrCreate(values.length).push(values);
+        } else {
+            var values = (float[]) buffer;
+            freeFloats.getOrCreate(values.length).push(values);
+        }
+    }
+
+    private void checkQuarantine() {
+        for (var buffer : quarantine) {
+            if (!isPoisoned(buffer)) {
+                throw new IllegalStateException("A Tensor buffer was written after it was released.",
+                        borrowSites.get(buffer));
+            }
+        }
+    }
+
+    private static boolean isPoisoned(Object buffer) {
+        if (buffer instanceof double[]) {
+            for (double value : (double[]) buffer) {
+                if (Double.doubleToRawLongBits(value) != POISON_BITS) {
+                    return false;
+                }
+            }
+        } else {
+            for (float value : (float[]) buffer) {
+                if (Float.floatToRawIntBits(value) != FLOAT_POISON_BITS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Free buffers of one type, in one stack per length.
+     *
+     * Stacks are found through an open-addressing table keyed by the int
+     * length, so lookups neither box the length nor allocate. A step only
+     * uses a few distinct lengths, so the table stays small.
+     */
+    private static final class Pools<T> {
+        private int[] lengths = new int[16];
+        private ArrayDeque<T>[] stacks = newStacks(16);
+        private int size = 0;
+
+        /**
+         * @return The stack of buffers of the given length, or null
+         */
+        ArrayDeque<T> get(int length) {
+            int mask = stacks.length - 1;
+            for (int slot = hash(length) & mask; stacks[slot] != null; slot = (slot + 1) & mask) {
+                if (lengths[slot] == length) {
+                    return stacks[slot];
+                }
+            }
+            return null;
+        }
+
+        ArrayDeque<T> getOrCreate(int length) {
+            var stack = get(length);
+            if (stack != null) {
+                return stack;
+            }
+            if (2 * (size + 1) > stacks.length) {
+                grow();
+            }
+            stack = new ArrayDeque<>();
+            insert(length, stack);
+            size++;
+            return stack;
+        }
+
+        void clear() {
+            Arrays.fill(stacks, null);
+            size = 0;
+        }
+
+        private void insert(int length, ArrayDeque<T> stack) {
+            int mask = stacks.length - 1;
+            int slot = hash(length) & mask;
+            while (stacks[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            lengths[slot] = length;
+            stacks[slot] = stack;
+        }
+
+        private void grow() {
+            var oldLengths = lengths;
+            var oldStacks = stacks;
+            lengths = new int[2 * oldStacks.length];
+            stacks = newStacks(2 * oldStacks.length);
+            for (int slot = 0; slot < oldStacks.length; slot++) {
+                if (oldStacks[slot] != null) {
+                    insert(oldLengths[slot], oldStacks[slot]);
+                }
+            }
+        }
+
+        private static int hash(int length) {
+            int h = length * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> ArrayDeque<T>[] newStacks(int capacity) {
+            return (ArrayDeque<T>[]) new ArrayDeque<?>[capacity];
+        }
+    }
+
+    /**
+     * An active arena, which is deactivated when closed.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -21,6 +21,91 @@ public class TensorBuilder {
         throw new IllegalArgumentException("Only supports 2D and 4D Tensor creation.");
     }
     
+    /**
+     * Builds a zero-filled Tensor.
+     * 
+     * @param shape
+     * @return 
+     */
+    public static Tensor zeros(List<Integer> shape) {
+        return zeros(shape, Precision.DOUBLE);
+    }
+    
+    /**
+     * Builds a zero-filled Tensor with the given precision.
+     * 
+     * @param shape
+     * @param precision
+     * @return 
+     */
+    public static Tensor zeros(List<Integer> shape, Precision precision) {
+        if (shape.size() == 4) {
+            return new Tensor4D(shape, precision);
+        }
+        if (shape.size() == 2) {
+            return new Tensor2D(shape.get(0), shape.get(1), precision);
+        }
+        throw new IllegalArgumentException("Only supports 2D and 4D Tensor creation.");
+    }
+    
+    /**
+     * Views the values of a Tensor with a different shape.
+     * 
+     * The result shares its buffer with the input, so no values are copied.
+     * Both shapes must describe the same number of elements.
+     * 
+     * @param t
+     * @param shape
+     * @return 
+     */
+    public static Tensor reshape(Tensor t, List<Integer> shape) {
+        return t.floats != null ? wrap(shape, t.floats) : wrap(shape, t.data);
+    }
+    
+    /**
+     * Creates a Tensor backed by an existing row-major buffer, without
+     * copying it.
+     */
+    static Tensor wrap(List<Integer> shape, double[] buffer) {
+        if (shape.size() == 4) {
+            return Tensor4D.wrap(shape, buffer);
+        }
+        if (shape.size() == 2) {
+            return Tensor2D.wrap(shape.get(0), shape.get(1), buffer);
+        }
+        throw new IllegalArgumentException("Only supports 2D and 4D Tensor creation.");
+    }
+    
+    static Tensor wrap(List<Integer> shape, float[] buffer) {
+        if (shape.size() == 4) {
+            return Tensor4D.wrap(shape, buffer);
+        }
+        if (shape.size() == 2) {
+            return Tensor2D.wrap(shape.get(0), shape.get(1), buffer);
+        }
+        throw new IllegalArgumentException("Only supports 2D and 4D Tensor creation.");
+    }
+    
+    /**
+     * Derives an independent seed for one of many random streams.
+     * 
+     * Streams that are created from a derived seed, rather than carried over
+     * from earlier draws, can be reproduced from the seed and stream index
+     * alone, e.g. when training resumes from a checkpoint.
+     * 
+     * @param seed Base seed
+     * @param stream Index of the stream
+     * @return 
+     */
+    public static long deriveSeed(long seed, long stream) {
+        // SplitMix64 finalizer, applied to the stream's position in the
+        // sequence of golden-ratio increments.
+        long z = seed + (stream + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
     public static Tensor2D heInitialization(int nrows, int ncols, long seed) {
         double standardDeviation = Math.sqrt(2.0 / nrows);
         
@@ -41,15 +126,44 @@ public class TensorBuilder {
         return xavierInitialization(nrows, ncols, DEFAULT_SEED);
     }
     
+    public static Tensor2D heInitialization(int nrows, int ncols, long seed, Precision precision) {
+        return sdInitialization(nrows, ncols, Math.sqrt(2.0 / nrows), seed, precision);
+    }
+    
+    public static Tensor2D xavierInitialization(int nrows, int ncols, long seed, Precision precision) {
+        return sdInitialization(nrows, ncols, Math.sqrt(1.0 / nrows), seed, precision);
+    }
+    
     public static Tensor2D sdInitialization(int nrows, int ncols, double standardDeviation, long seed) {
-        double[][] data = new double[nrows][ncols];
+        return sdInitialization(nrows, ncols, standardDeviation, seed, Precision.DOUBLE);
+    }
+    
+    /**
+     * Draws normally distributed values. The values drawn for a seed do not
+     * depend on the precision, which only rounds them.
+     * 
+     * @param nrows
+     * @param ncols
+     * @param standardDeviation
+     * @param seed
+     * @param precision
+     * @return 
+     */
+    public static Tensor2D sdInitialization(int nrows, int ncols, double standardDeviation, long seed,
+            Precision precision) {
         Random r = new Random(seed);
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 0; j < ncols; j++) {
-                data[i][j] = r.nextGaussian() * standardDeviation;
+        if (precision == Precision.FLOAT) {
+            float[] data = new float[nrows * ncols];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (float) (r.nextGaussian() * standardDeviation);
             }
+            return Tensor2D.wrap(nrows, ncols, data);
+        }
+        double[] data = new double[nrows * ncols];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextGaussian() * standardDeviation;
         }
         
-        return new Tensor2D(data);
+        return Tensor2D.wrap(nrows, ncols, data);
     }
 }
@@ -0,0 +1,393 @@
+package tensor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary Tensor file format, read through memory mapping.
+ *
+ * Layout, all little-endian:
+ *   4 bytes   magic "TNSR"
+ *   int       format version
+ *   int       dtype (DTYPE_FLOAT64)
+ *   int       rank
+ *   long[]    one size per dimension
+ *   double[]  values, row-major
+ *
+ * The header is a multiple of 8 bytes, so values are always aligned.
+ *
+ * Opening a file maps it instead of reading it. Pages are only loaded when
+ * rows are requested, and only the requested rows are copied into the
+ * returned Tensor, so files much larger than the heap can be sliced into
+ * batches. Files larger than 2GB are mapped as several segments, each
+ * holding a whole number of rows.
+ *
+ * @author tyler
+ */
+public class TensorFile implements AutoCloseable {
+    public static final int VERSION = 1;
+    public static final int DTYPE_FLOAT64 = 0;
+
+    private static final byte[] MAGIC = {'T', 'N', 'S', 'R'};
+    // Largest mapped segment. Package-private so tests can map small files
+    // as several segments.
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int COPY_BUFFER_DOUBLES = 1 << 16;
+
+    private final FileChannel channel;
+    private final List<Integer> shape;
+    private final int rowLength;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private TensorFile(FileChannel channel, List<Integer> shape, long dataOffset, long maxSegmentBytes)
+            throws IOException {
+        this.channel = channel;
+        this.shape = shape;
+
+        long length = 1;
+        for (int i = 1; i < shape.size(); i++) {
+            length *= shape.get(i);
+        }
+        long rowBytes = length * Double.BYTES;
+        if (rowBytes > maxSegmentBytes) {
+            throw new IllegalArgumentException("Rows of shape " + shape + " are too large to map.");
+        }
+        rowLength = (int) length;
+        rowsPerSegment = (int) (maxSegmentBytes / rowBytes);
+
+        int rows = shape.get(0);
+        int segmentCount = (rows + rowsPerSegment - 1) / rowsPerSegment;
+        long expectedSize = dataOffset + rows * rowBytes;
+        if (channel.size() < expectedSize) {
+            throw new IllegalArgumentException("Tensor file is truncated: expected " + expectedSize
+                    + " bytes but found " + channel.size() + ".");
+        }
+
+        segments = new MappedByteBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            long firstRow = (long) s * rowsPerSegment;
+            long segmentRows = Math.min(rowsPerSegment, rows - firstRow);
+            var segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + firstRow * rowBytes, segmentRows * rowBytes);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments[s] = segment;
+        }
+    }
+
+    /**
+     * Maps a Tensor file for reading.
+     *
+     * @param path
+     * @return An open TensorFile, which should be closed when done
+     */
+    public static TensorFile open(Path path) {
+        return open(path, MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Maps a Tensor file for reading, in segments of at most the given size.
+     *
+     * @param path
+     * @param maxSegmentBytes Largest segment to map, at least one row
+     * @return An open TensorFile, which should be closed when done
+     */
+    static TensorFile open(Path path, long maxSegmentBytes) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            var header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            for (byte b : MAGIC) {
+                if (header.get() != b) {
+                    throw new IllegalArgumentException(path + " is not a Tensor file.");
+                }
+            }
+            int version = header.getInt();
+            int dtype = header.getInt();
+            int rank = header.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported Tensor file version " + version + ".");
+            }
+            if (dtype != DTYPE_FLOAT64) {
+                throw new IllegalArgumentException("Unsupported Tensor file dtype " + dtype + ".");
+            }
+
+            var dims = ByteBuffer.allocate(rank * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, dims, 16);
+            dims.flip();
+            var shape = new ArrayList<Integer>();
+            for (int i = 0; i < rank; i++) {
+                shape.add(Math.toIntExact(dims.getLong()));
+            }
+            return new TensorFile(channel, shape, headerSize(rank), maxSegmentBytes);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new UncheckedIOException("Could not open Tensor file " + path, e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a whole Tensor file.
+     *
+     * @param path
+     * @return
+     */
+    public static Tensor read(Path path) {
+        try (var file = open(path)) {
+            return file.rows(0, file.rows());
+        }
+    }
+
+    /**
+     * Writes a Tensor to a file.
+     *
+     * @param path
+     * @param t
+     */
+    public static void write(Path path, Tensor t) {
+        try (var writer = new Writer(path, t.shape().subList(1, t.rank()))) {
+            writer.append(t);
+        }
+    }
+
+    /**
+     * @return The shape of the stored Tensor
+     */
+    public List<Integer> shape() {
+        return new ArrayList<>(shape);
+    }
+
+    /**
+     * @return The number of rows (size of dimension 0) in the file
+     */
+    public int rows() {
+        return shape.get(0);
+    }
+
+    /**
+     * Copies a contiguous range of rows into a new Tensor.
+     *
+     * @param from First row
+     * @param to Row after the last one
+     * @return
+     */
+    public Tensor rows(int from, int to) {
+        return readRowsInto(TensorBuilder.zeros(rowShape(to - from)), from);
+    }
+
+    /**
+     * Copies a contiguous range of rows into an existing Tensor, converting
+     * them to its precision.
+     *
+     * @param dest Tensor whose dimension 0 gives the number of rows to read
+     * @param from First row
+     * @return dest
+     */
+    public Tensor readRowsInto(Tensor dest, int from) {
+        checkDestination(dest);
+        int count = dest.mDim();
+        if (from < 0 || from + count > rows()) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + (from + count)
+                    + " are outside of " + rows() + " rows.");
+        }
+        int row = from;
+        int position = 0;
+        while (row < from + count) {
+            int segment = row / rowsPerSegment;
+            int first = row - segment * rowsPerSegment;
+            int n = Math.min(from + count - row, rowsPerSegment - first);
+            var values = segments[segment].duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            values.position(first * rowLength);
+            if (dest.floats == null) {
+                values.get(dest.data, position, n * rowLength);
+            } else {
+                for (int i = position; i < position + n * rowLength; i++) {
+                    dest.floats[i] = (float) values.get();
+                }
+            }
+            row += n;
+            position += n * rowLength;
+        }
+        return dest;
+    }
+
+    /**
+     * Copies arbitrary rows into a new Tensor, e.g. for a shuffled batch.
+     *
+     * @param indices Row indices to select from
+     * @param from First position in indices to use
+     * @param to Position after the last one to use
+     * @return A Tensor with to - from rows, in the order given by indices
+     */
+    public Tensor gatherRows(int[] indices, int from, int to) {
+        var dest = TensorBuilder.zeros(rowShape(to - from));
+        for (int i = from; i < to; i++) {
+            int row = indices[i];
+            int segment = row / rowsPerSegment;
+            var values = segments[segment].duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            values.position((row - segment * rowsPerSegment) * rowLength);
+            values.get(dest.data, (i - from) * rowLength, rowLength);
+        }
+        return dest;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Integer> rowShape(int count) {
+        var result = shape();
+        result.set(0, count);
+        return result;
+    }
+
+    private void checkDestination(Tensor dest) {
+        var destShape = dest.shape();
+        if (destShape.size() != shape.size()
+                || !destShape.subList(1, destShape.size()).equals(shape.subList(1, shape.size()))) {
+            throw new IllegalArgumentException("Cannot read rows of shape " + shape
+                    + " into " + destShape + ".");
+        }
+    }
+
+    private static long headerSize(int rank) {
+        return 16 + (long) rank * Long.BYTES;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of Tensor file.");
+            }
+            position += read;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The original failure is more useful to report.
+        }
+    }
+
+    /**
+     * Writes a Tensor file incrementally, a block of rows at a time.
+     *
+     * The row count in the header is filled in when the writer is closed, so
+     * files larger than the heap can be produced from batches.
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+        private final FileChannel channel;
+        private final List<Integer> rowShape;
+        private final ByteBuffer buffer;
+        private long rows;
+
+        /**
+         * @param path File to create or overwrite
+         * @param rowShape Shape of a single row, without dimension 0
+         */
+        public Writer(Path path, List<Integer> rowShape) {
+            this.path = path;
+            this.rowShape = new ArrayList<>(rowShape);
+            buffer = ByteBuffer.allocateDirect(COPY_BUFFER_DOUBLES * Double.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                writeHeader();
+                channel.position(headerSize(rowShape.size() + 1));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create Tensor file " + path, e);
+            }
+        }
+
+        /**
+         * Appends the rows of a Tensor.
+         *
+         * @param t Tensor whose shape, apart from dimension 0, matches the row
+         * shape of the file
+         */
+        public void append(Tensor t) {
+            var shape = t.shape();
+            if (!shape.subList(1, shape.size()).equals(rowShape)) {
+                throw new IllegalArgumentException("Cannot append rows of shape " + shape
+                        + " to a file with row shape " + rowShape + ".");
+            }
+            try {
+                buffer.clear();
+                var values = buffer.asDoubleBuffer();
+                int length = t.size();
+                for (int position = 0; position < length; position += COPY_BUFFER_DOUBLES) {
+                    int n = Math.min(COPY_BUFFER_DOUBLES, length - position);
+                    values.clear();
+                    if (t.floats == null) {
+                        values.put(t.data, position, n);
+                    } else {
+                        for (int i = position; i < position + n; i++) {
+                            values.put(t.floats[i]);
+                        }
+                    }
+                    buffer.clear();
+                    buffer.limit(n * Double.BYTES);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write Tensor file " + path, e);
+            }
+            rows += t.mDim();
+        }
+
+        @Override
+        public void close() {
+            try (channel) {
+                writeHeader();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write Tensor file " + path, e);
+            }
+        }
+
+        private void writeHeader() throws IOException {
+            int rank = rowShape.size() + 1;
+            var header = ByteBuffer.allocate((int) headerSize(rank)).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(DTYPE_FLOAT64);
+            header.putInt(rank);
+            header.putLong(rows);
+            for (int dim : rowShape) {
+                header.putLong(dim);
+            }
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package tensor;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
 
 /**
  * @author tyler
@@ -18,87 +19,530 @@ public class TensorMath {
      * @param left
      * @param right
      * @param function
+     * @return The element-wise, broadcasted result function.applyAsDouble(left, right).
+     */
+    public static Tensor combine(Tensor left, Tensor right, DoubleBinaryOperator function) {
+        return broadcast(left, right, new OperatorKernel(function));
+    }
+    
+    public static Tensor add(Tensor left, Tensor right) {
+        return broadcast(left, right, BuiltinKernel.ADD);
+    }
+    
+    public static Tensor subtract(Tensor left, Tensor right) {
+        return broadcast(left, right, BuiltinKernel.SUBTRACT);
+    }
+    
+    public static Tensor multiply(Tensor left, Tensor right) {
+        return broadcast(left, right, BuiltinKernel.MULTIPLY);
+    }
+    
+    public static Tensor divide(Tensor left, Tensor right) {
+        return broadcast(left, right, BuiltinKernel.DIVIDE);
+    }
+    
+    /**
+     * Destination-passing variant of combine.
+     * 
+     * The destination must already have the broadcast result shape. It may
+     * be the same Tensor as either operand, as long as that operand is not
+     * itself broadcast.
+     * 
+     * @param dest Tensor which receives the result
+     * @param left
+     * @param right
+     * @param function
+     * @return dest
+     */
+    public static Tensor combineInto(Tensor dest, Tensor left, Tensor right, DoubleBinaryOperator function) {
+        return broadcastInto(dest, left, right, new OperatorKernel(function));
+    }
+    
+    public static Tensor addInto(Tensor dest, Tensor left, Tensor right) {
+        return broadcastInto(dest, left, right, BuiltinKernel.ADD);
+    }
+    
+    public static Tensor subtractInto(Tensor dest, Tensor left, Tensor right) {
+        return broadcastInto(dest, left, right, BuiltinKernel.SUBTRACT);
+    }
+    
+    public static Tensor multiplyInto(Tensor dest, Tensor left, Tensor right) {
+        return broadcastInto(dest, left, right, BuiltinKernel.MULTIPLY);
+    }
+    
+    public static Tensor divideInto(Tensor dest, Tensor left, Tensor right) {
+        return broadcastInto(dest, left, right, BuiltinKernel.DIVIDE);
+    }
+    
+    /**
+     * Apply a boxed binary operation to two Tensors of possibly different
+     * shapes.
+     * 
+     * Prefer combine, which avoids boxing every element.
+     * 
+     * @param left
+     * @param right
+     * @param function
      * @return The element-wise, broadcasted result function.apply(left, right).
      */
     public static Tensor applyBinary(Tensor left, Tensor right, BiFunction<Double, Double, Double> function) {
-        var shape = getResultShape(left, right);
+        return combine(left, right, function::apply);
+    }
+    
+    public static List<Integer> getResultShape(Tensor left, Tensor right) {
+        var result = new ArrayList<Integer>();
+        for (int size : getResultSizes(left, right)) {
+            result.add(size);
+        }
+        return result;
+    }
+    
+    private static int[] getResultSizes(Tensor left, Tensor right) {
+        // Broadcasting aligns the last dimensions, so walk both shapes from
+        // the end.
+        int s1 = left.sizes.length;
+        int s2 = right.sizes.length;
+        int max = Math.max(s1, s2);
         
-        // Handle differently, depending on the shape.
-        if (shape.size() == 4) {
-            // Tensor 4D
-            int n0 = shape.get(0);
-            int n1 = shape.get(1);
-            int n2 = shape.get(2);
-            int n3 = shape.get(3);
-            double[][][][] data = new double[n0][n1][n2][n3];
-            for (int i = 0; i < n0; i++) {
-                for (int j = 0; j < n1; j++) {
-                    for (int k = 0; k < n2; k++) {
-                        for (int l = 0; l < n3; l++) {
-                           data[i][j][k][l] = function.apply(
-                                   left.value2(i,j,k,l), 
-                                   right.value2(i,j,k,l));
-                        }
-                    }
-                }
+        int[] result = new int[max];
+        for (int i = 1; i <= max; i++) {
+            int dimLeft = i <= s1 ? left.sizes[s1 - i] : 1;
+            int dimRight = i <= s2 ? right.sizes[s2 - i] : 1;
+            
+            if (dimLeft == 1 || dimRight == 1 || dimLeft == dimRight) {
+                // Binary operations are still ok
+                result[max - i] = Math.max(dimLeft, dimRight);
+            } else {
+                throw new IllegalArgumentException("Tensors are incompatible for binary operations.");
             }
-            return new Tensor4D(data);
-        } 
+        }
+        return result;
+    }
+    
+    /**
+     * Computes the strides of a Tensor when broadcast to the given sizes.
+     * 
+     * Broadcast dimensions, including missing leading ones, get a stride of
+     * zero, so the same values are reread instead of being indexed modulo
+     * their size.
+     */
+    private static int[] getBroadcastStrides(Tensor t, int[] sizes) {
+        int[] result = new int[sizes.length];
+        int offset = sizes.length - t.sizes.length;
+        for (int i = offset; i < sizes.length; i++) {
+            result[i] = t.sizes[i - offset] == 1 ? 0 : t.strides[i - offset];
+        }
+        return result;
+    }
+    
+    /**
+     * Computes a broadcast binary operation into a newly allocated Tensor.
+     */
+    private static Tensor broadcast(Tensor left, Tensor right, BinaryKernel kernel) {
+        var sizes = getResultSizes(left, right);
+        if (sizes.length != 2 && sizes.length != 4) {
+            throw new UnsupportedOperationException("Shape: " + Arrays.toString(sizes)
+                    + " is currently unsupported.");
+        }
+        
+        int elementCount = 1;
+        for (int size : sizes) {
+            elementCount *= size;
+        }
+        var shape = sizes.length == 4 ? List.of(sizes[0], sizes[1], sizes[2], sizes[3])
+                : List.of(sizes[0], sizes[1]);
+        Tensor result;
+        if (left.precision().combine(right.precision()) == Precision.FLOAT) {
+            result = TensorBuilder.wrap(shape, TensorArena.allocateFloatsForOverwrite(elementCount));
+        } else {
+            result = TensorBuilder.wrap(shape, TensorArena.allocateForOverwrite(elementCount));
+        }
+        apply(sizes, left, right, result, kernel);
+        return result;
+    }
+    
+    /**
+     * Computes a broadcast binary operation into an existing Tensor.
+     */
+    private static Tensor broadcastInto(Tensor dest, Tensor left, Tensor right, BinaryKernel kernel) {
+        var sizes = getResultSizes(left, right);
+        if (!Arrays.equals(sizes, dest.sizes)) {
+            throw new IllegalArgumentException("Destination shape " + dest.shape()
+                    + " does not match result shape " + Arrays.toString(sizes) + ".");
+        }
+        apply(sizes, left, right, dest, kernel);
+        return dest;
+    }
+    
+    /**
+     * Applies a kernel to every element of the broadcast result.
+     * 
+     * Adjacent dimensions are merged whenever both operands step through
+     * them uniformly. As a result:
+     *   Same-shape operands become a single contiguous run.
+     *   A scalar with a Tensor becomes a single run with a zero step.
+     *   A row vector with a matrix (e.g. adding a bias) becomes one run per
+     *   row, rereading the same row vector.
+     * Only the remaining outer dimensions are iterated explicitly.
+     * 
+     * Runs involving FLOAT Tensors are computed by runInDouble, except the
+     * built-in arithmetic on FLOAT Tensors only, which runs on the floats.
+     */
+    private static void apply(int[] sizes, Tensor left, Tensor right, Tensor result, BinaryKernel kernel) {
+        Tensor.requireDense(left);
+        Tensor.requireDense(right);
+        Tensor.requireDense(result);
+        var leftStrides = getBroadcastStrides(left, sizes);
+        var rightStrides = getBroadcastStrides(right, sizes);
         
-        if (shape.size() == 2) {
-            // Tensor 2D
-            int n0 = shape.get(0);
-            int n1 = shape.get(1);
-            double[][] data = new double[n0][n1];
-            for (int i = 0; i < n0; i++) {
-                for (int j = 0; j < n1; j++) {
-                    data[i][j] = function.apply(
-                            left.value2(i,j), 
-                            right.value2(i,j));
+        // Merge dimensions, innermost first. Each merged block is described
+        // by its size and the step of each operand within it.
+        int[] blockSizes = {1, 1, 1, 1};
+        int[] leftSteps = new int[4];
+        int[] rightSteps = new int[4];
+        int blocks = 0;
+        for (int d = sizes.length - 1; d >= 0; d--) {
+            if (sizes[d] == 1) {
+                continue;
+            }
+            if (blocks > 0) {
+                int b = blocks - 1;
+                if (leftStrides[d] == leftSteps[b] * blockSizes[b]
+                        && rightStrides[d] == rightSteps[b] * blockSizes[b]) {
+                    blockSizes[b] *= sizes[d];
+                    continue;
                 }
             }
-            return new Tensor2D(data);
+            blockSizes[blocks] = sizes[d];
+            leftSteps[blocks] = leftStrides[d];
+            rightSteps[blocks] = rightStrides[d];
+            blocks++;
         }
         
-        // Everything else is not a valid case right now.
-        throw new UnsupportedOperationException("Shape: " + shape + " is currently unsupported.");
+        int runLength = blockSizes[0];
+        int position = 0;
+        boolean allDouble = left.data != null && right.data != null && result.data != null;
+        boolean allFloat = kernel instanceof BuiltinKernel
+                && left.floats != null && right.floats != null && result.floats != null;
+        double[][] scratch = allDouble || allFloat ? null : new double[3][Math.min(runLength, FloatKernels.BLOCK)];
+        for (int i = 0; i < blockSizes[3]; i++) {
+            for (int j = 0; j < blockSizes[2]; j++) {
+                for (int k = 0; k < blockSizes[1]; k++) {
+                    int leftOffset = i * leftSteps[3] + j * leftSteps[2] + k * leftSteps[1];
+                    int rightOffset = i * rightSteps[3] + j * rightSteps[2] + k * rightSteps[1];
+                    if (allDouble) {
+                        kernel.apply(left.data, leftOffset, leftSteps[0],
+                                right.data, rightOffset, rightSteps[0],
+                                result.data, position, runLength);
+                    } else if (allFloat) {
+                        ((BuiltinKernel) kernel).applyFloats(left.floats, leftOffset, leftSteps[0],
+                                right.floats, rightOffset, rightSteps[0],
+                                result.floats, position, runLength);
+                    } else {
+                        runInDouble(left, leftOffset, leftSteps[0], right, rightOffset, rightSteps[0],
+                                result, position, runLength, kernel, scratch);
+                    }
+                    position += runLength;
+                }
+            }
+        }
     }
     
-    public static List<Integer> getResultShape(Tensor left, Tensor right) {
-        // Fetch the shape of both Tensors.
-        // Reverse the dimension lists since broadcasting considers last
-        // dimension first.
-        var shape1 = left.shape();
-        Collections.reverse(shape1);
-        var shape2 = right.shape();
-        Collections.reverse(shape2);
+    /**
+     * Computes one run with FLOAT operands or result, a block at a time.
+     * 
+     * Float operands are widened into scratch buffers, the double kernel
+     * runs on those, and the results are narrowed into a float result.
+     * Broadcast operands are widened once per block.
+     */
+    private static void runInDouble(Tensor left, int leftOffset, int leftStep,
+            Tensor right, int rightOffset, int rightStep,
+            Tensor result, int resultOffset, int length,
+            BinaryKernel kernel, double[][] scratch) {
+        for (int start = 0; start < length; start += FloatKernels.BLOCK) {
+            int n = Math.min(FloatKernels.BLOCK, length - start);
+            
+            double[] l = left.data;
+            int lOffset = leftOffset + start * leftStep;
+            if (l == null) {
+                l = scratch[0];
+                FloatKernels.widen(left.floats, lOffset, leftStep, l, 0, leftStep == 0 ? 1 : n);
+                lOffset = 0;
+            }
+            double[] r = right.data;
+            int rOffset = rightOffset + start * rightStep;
+            if (r == null) {
+                r = scratch[1];
+                FloatKernels.widen(right.floats, rOffset, rightStep, r, 0, rightStep == 0 ? 1 : n);
+                rOffset = 0;
+            }
+            // Widened operands are contiguous, or a single broadcast value.
+            int lStep = left.data == null && leftStep != 0 ? 1 : leftStep;
+            int rStep = right.data == null && rightStep != 0 ? 1 : rightStep;
+            
+            if (result.data != null) {
+                kernel.apply(l, lOffset, lStep, r, rOffset, rStep, result.data, resultOffset + start, n);
+            } else {
+                kernel.apply(l, lOffset, lStep, r, rOffset, rStep, scratch[2], 0, n);
+                FloatKernels.narrow(scratch[2], 0, result.floats, resultOffset + start, n);
+            }
+        }
+    }
+    
+    /**
+     * Computes one contiguous run of a broadcast binary operation.
+     * 
+     * Within a run, each operand advances by its step, which is 1 for a
+     * contiguous operand and 0 for a broadcast one.
+     */
+    private interface BinaryKernel {
+        void apply(double[] left, int leftOffset, int leftStep,
+                double[] right, int rightOffset, int rightStep,
+                double[] result, int resultOffset, int length);
+    }
+    
+    /**
+     * Adapts an arbitrary operator to a BinaryKernel.
+     */
+    private static class OperatorKernel implements BinaryKernel {
+        private final DoubleBinaryOperator function;
         
-        int s1 = shape1.size();
-        int s2 = shape2.size();
-        int max = Math.max(s1, s2);
+        OperatorKernel(DoubleBinaryOperator function) {
+            this.function = function;
+        }
         
-        // Built the result shape, with last dimension first.
-        var result = new ArrayList<Integer>();
-        for (int i = 0; i < max; i++) {
-            var dimLeft = 1;
-            var dimRight = 1;
-            if (i < s1) {
-                dimLeft = shape1.get(i);
+        @Override
+        public void apply(double[] left, int leftOffset, int leftStep,
+                double[] right, int rightOffset, int rightStep,
+                double[] result, int resultOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                result[resultOffset + i] = function.applyAsDouble(
+                        left[leftOffset + i * leftStep],
+                        right[rightOffset + i * rightStep]);
             }
-            if (i < s2) {
-                dimRight = shape2.get(i);
+        }
+    }
+    
+    /**
+     * Dedicated kernels for the built-in arithmetic operators.
+     * 
+     * Each specializes the contiguous and scalar cases, so the inner loops
+     * contain no calls and can be vectorized by the JIT.
+     */
+    enum BuiltinKernel implements BinaryKernel {
+        ADD {
+            @Override
+            void applyScalar(double[] left, int leftOffset, int leftStep,
+                    double[] right, int rightOffset, int rightStep,
+                    double[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    double r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] + r;
+                    }
+                } else if (leftStep == 0) {
+                    double l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l + right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] + right[rightOffset + i];
+                    }
+                }
             }
             
-            if (dimLeft == 1 || dimRight == 1 || dimLeft == dimRight) {
-                // Binary operations are still ok
-                result.add(Math.max(dimLeft, dimRight));
+            @Override
+            void applyFloats(float[] left, int leftOffset, int leftStep,
+                    float[] right, int rightOffset, int rightStep,
+                    float[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    float r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] + r;
+                    }
+                } else if (leftStep == 0) {
+                    float l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l + right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] + right[rightOffset + i];
+                    }
+                }
+            }
+        },
+        SUBTRACT {
+            @Override
+            void applyScalar(double[] left, int leftOffset, int leftStep,
+                    double[] right, int rightOffset, int rightStep,
+                    double[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    double r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] - r;
+                    }
+                } else if (leftStep == 0) {
+                    double l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l - right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] - right[rightOffset + i];
+                    }
+                }
+            }
+            
+            @Override
+            void applyFloats(float[] left, int leftOffset, int leftStep,
+                    float[] right, int rightOffset, int rightStep,
+                    float[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    float r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] - r;
+                    }
+                } else if (leftStep == 0) {
+                    float l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l - right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] - right[rightOffset + i];
+                    }
+                }
+            }
+        },
+        MULTIPLY {
+            @Override
+            void applyScalar(double[] left, int leftOffset, int leftStep,
+                    double[] right, int rightOffset, int rightStep,
+                    double[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    double r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] * r;
+                    }
+                } else if (leftStep == 0) {
+                    double l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l * right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] * right[rightOffset + i];
+                    }
+                }
+            }
+            
+            @Override
+            void applyFloats(float[] left, int leftOffset, int leftStep,
+                    float[] right, int rightOffset, int rightStep,
+                    float[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    float r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] * r;
+                    }
+                } else if (leftStep == 0) {
+                    float l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l * right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] * right[rightOffset + i];
+                    }
+                }
+            }
+        },
+        DIVIDE {
+            @Override
+            void applyScalar(double[] left, int leftOffset, int leftStep,
+                    double[] right, int rightOffset, int rightStep,
+                    double[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    double r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] / r;
+                    }
+                } else if (leftStep == 0) {
+                    double l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l / right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] / right[rightOffset + i];
+                    }
+                }
+            }
+            
+            @Override
+            void applyFloats(float[] left, int leftOffset, int leftStep,
+                    float[] right, int rightOffset, int rightStep,
+                    float[] result, int resultOffset, int length) {
+                if (rightStep == 0) {
+                    float r = right[rightOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i * leftStep] / r;
+                    }
+                } else if (leftStep == 0) {
+                    float l = left[leftOffset];
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = l / right[rightOffset + i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        result[resultOffset + i] = left[leftOffset + i] / right[rightOffset + i];
+                    }
+                }
+            }
+        };
+        
+        /**
+         * Uses the SIMD kernels when they are available and the run is
+         * contiguous, or broadcasts a single value. Other runs, and runs
+         * without SIMD support, use applyScalar.
+         */
+        @Override
+        public void apply(double[] left, int leftOffset, int leftStep,
+                double[] right, int rightOffset, int rightStep,
+                double[] result, int resultOffset, int length) {
+            var simd = SimdKernels.INSTANCE;
+            if (simd == null) {
+                applyScalar(left, leftOffset, leftStep, right, rightOffset, rightStep,
+                        result, resultOffset, length);
+            } else if (rightStep == 0 && leftStep == 1) {
+                simd.binaryScalarRight(this, left, leftOffset, right, rightOffset,
+                        result, resultOffset, length);
+            } else if (leftStep == 0 && rightStep == 1) {
+                simd.binaryScalarLeft(this, left, leftOffset, right, rightOffset,
+                        result, resultOffset, length);
+            } else if (leftStep == 1 && rightStep == 1) {
+                simd.binary(this, left, leftOffset, right, rightOffset,
+                        result, resultOffset, length);
             } else {
-                throw new IllegalArgumentException("Tensors are incompatible for binary operations.");
+                applyScalar(left, leftOffset, leftStep, right, rightOffset, rightStep,
+                        result, resultOffset, length);
             }
         }
         
-        // We built the result shape backwards, so revere before returning it.
-        Collections.reverse(result);
-        return result;
+        abstract void applyScalar(double[] left, int leftOffset, int leftStep,
+                double[] right, int rightOffset, int rightStep,
+                double[] result, int resultOffset, int length);
+        
+        /**
+         * Computes a run on float operands into a float result. A single
+         * float operation is rounded exactly like the same operation in
+         * double followed by narrowing, so this matches runInDouble while
+         * reading and writing only floats.
+         */
+        abstract void applyFloats(float[] left, int leftOffset, int leftStep,
+                float[] right, int rightOffset, int rightStep,
+                float[] result, int resultOffset, int length);
     }
 }
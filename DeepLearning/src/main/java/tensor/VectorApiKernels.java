@@ -0,0 +1,294 @@
+package tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SimdKernels backed by the Vector API.
+ *
+ * Loops run over whole vectors of the preferred species, and the remaining
+ * elements are handled by the scalar code. The GEMM micro-kernel holds one
+ * 4-lane vector per row of its 4 x 4 register tile. Float buffers are
+ * converted to and from double vectors with the same number of lanes, and
+ * bytes are widened to int vectors with the same number of lanes.
+ *
+ * Only instantiated through SimdKernels.INSTANCE.
+ *
+ * @author tyler
+ */
+final class VectorApiKernels implements SimdKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> TILE = DoubleVector.SPECIES_256;
+    // As many float lanes as SPECIES has double lanes, for conversions.
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED
+            .withShape(VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // As many byte lanes as INTS has int lanes.
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED
+            .withShape(VectorShape.forBitSize(INTS.vectorBitSize() / 4));
+
+    VectorApiKernels() {
+        if (SPECIES.length() < Gemm.NR) {
+            throw new UnsupportedOperationException("SIMD needs at least " + Gemm.NR + " double lanes.");
+        }
+    }
+
+    @Override
+    public void binary(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            var l = DoubleVector.fromArray(SPECIES, left, leftOffset + i);
+            var r = DoubleVector.fromArray(SPECIES, right, rightOffset + i);
+            apply(op, l, r).intoArray(result, resultOffset + i);
+        }
+        op.applyScalar(left, leftOffset + bound, 1, right, rightOffset + bound, 1,
+                result, resultOffset + bound, length - bound);
+    }
+
+    @Override
+    public void binaryScalarRight(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length) {
+        var r = DoubleVector.broadcast(SPECIES, right[rightOffset]);
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            apply(op, DoubleVector.fromArray(SPECIES, left, leftOffset + i), r)
+                    .intoArray(result, resultOffset + i);
+        }
+        op.applyScalar(left, leftOffset + bound, 1, right, rightOffset, 0,
+                result, resultOffset + bound, length - bound);
+    }
+
+    @Override
+    public void binaryScalarLeft(TensorMath.BuiltinKernel op, double[] left, int leftOffset,
+            double[] right, int rightOffset, double[] result, int resultOffset, int length) {
+        var l = DoubleVector.broadcast(SPECIES, left[leftOffset]);
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            apply(op, l, DoubleVector.fromArray(SPECIES, right, rightOffset + i))
+                    .intoArray(result, resultOffset + i);
+        }
+        op.applyScalar(left, leftOffset, 0, right, rightOffset + bound, 1,
+                result, resultOffset + bound, length - bound);
+    }
+
+    @Override
+    public void scale(double[] source, double factor, double[] result, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, source, i).mul(factor).intoArray(result, i);
+        }
+        for (int i = bound; i < length; i++) {
+            result[i] = source[i] * factor;
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, double[] y, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            // Multiply, then add, so results match the scalar loop exactly.
+            var product = DoubleVector.fromArray(SPECIES, x, i).mul(alpha);
+            DoubleVector.fromArray(SPECIES, y, i).add(product).intoArray(y, i);
+        }
+        for (int i = bound; i < length; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, float[] x, float[] y, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            var product = widen(x, i).mul(alpha);
+            narrow(widen(y, i).add(product)).intoArray(y, i);
+        }
+        for (int i = bound; i < length; i++) {
+            y[i] = (float) (y[i] + alpha * x[i]);
+        }
+    }
+
+    @Override
+    public void widen(float[] source, int sourceOffset, double[] dest, int destOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            widen(source, sourceOffset + i).intoArray(dest, destOffset + i);
+        }
+        for (int i = bound; i < length; i++) {
+            dest[destOffset + i] = source[sourceOffset + i];
+        }
+    }
+
+    @Override
+    public void narrow(double[] source, int sourceOffset, float[] dest, int destOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            narrow(DoubleVector.fromArray(SPECIES, source, sourceOffset + i)).intoArray(dest, destOffset + i);
+        }
+        for (int i = bound; i < length; i++) {
+            dest[destOffset + i] = (float) source[sourceOffset + i];
+        }
+    }
+
+    private static DoubleVector widen(float[] source, int offset) {
+        return (DoubleVector) FloatVector.fromArray(FLOATS, source, offset)
+                .convertShape(VectorOperators.F2D, SPECIES, 0);
+    }
+
+    private static FloatVector narrow(DoubleVector values) {
+        return (FloatVector) values.convertShape(VectorOperators.D2F, FLOATS, 0);
+    }
+
+    @Override
+    public void relu(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, source, sourceOffset + i).max(0.0)
+                    .intoArray(result, resultOffset + i);
+        }
+        for (int i = bound; i < length; i++) {
+            result[resultOffset + i] = Math.max(0, source[sourceOffset + i]);
+        }
+    }
+
+    @Override
+    public void sigmoid(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+        var one = DoubleVector.broadcast(SPECIES, 1.0);
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            var exponential = DoubleVector.fromArray(SPECIES, source, sourceOffset + i)
+                    .neg()
+                    .lanewise(VectorOperators.EXP);
+            one.div(exponential.add(1.0)).intoArray(result, resultOffset + i);
+        }
+        for (int i = bound; i < length; i++) {
+            result[resultOffset + i] = 1.0 / (1.0 + Math.exp(-source[sourceOffset + i]));
+        }
+    }
+
+    @Override
+    public void tanh(double[] source, int sourceOffset, double[] result, int resultOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, source, sourceOffset + i)
+                    .lanewise(VectorOperators.TANH)
+                    .intoArray(result, resultOffset + i);
+        }
+        for (int i = bound; i < length; i++) {
+            result[resultOffset + i] = Math.tanh(source[sourceOffset + i]);
+        }
+    }
+
+    @Override
+    public double sum(double[] data, int offset, int length) {
+        var accumulator = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            accumulator = accumulator.add(DoubleVector.fromArray(SPECIES, data, offset + i));
+        }
+        double sum = accumulator.reduceLanes(VectorOperators.ADD);
+        for (int i = bound; i < length; i++) {
+            sum += data[offset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void dot4(byte[] a, int aOffset, byte[] b, int bOffset, int stride, int length, int[] result) {
+        var c0 = IntVector.zero(INTS);
+        var c1 = IntVector.zero(INTS);
+        var c2 = IntVector.zero(INTS);
+        var c3 = IntVector.zero(INTS);
+        int bound = BYTES.loopBound(length);
+        for (int i = 0; i < bound; i += BYTES.length()) {
+            var l = widen(a, aOffset + i);
+            int p = bOffset + i;
+            c0 = c0.add(l.mul(widen(b, p)));
+            c1 = c1.add(l.mul(widen(b, p + stride)));
+            c2 = c2.add(l.mul(widen(b, p + 2 * stride)));
+            c3 = c3.add(l.mul(widen(b, p + 3 * stride)));
+        }
+        result[0] = c0.reduceLanes(VectorOperators.ADD);
+        result[1] = c1.reduceLanes(VectorOperators.ADD);
+        result[2] = c2.reduceLanes(VectorOperators.ADD);
+        result[3] = c3.reduceLanes(VectorOperators.ADD);
+        for (int i = bound; i < length; i++) {
+            int p = bOffset + i;
+            result[0] += a[aOffset + i] * b[p];
+            result[1] += a[aOffset + i] * b[p + stride];
+            result[2] += a[aOffset + i] * b[p + 2 * stride];
+            result[3] += a[aOffset + i] * b[p + 3 * stride];
+        }
+    }
+
+    private static IntVector widen(byte[] source, int offset) {
+        return (IntVector) ByteVector.fromArray(BYTES, source, offset)
+                .convertShape(VectorOperators.B2I, INTS, 0);
+    }
+
+    @Override
+    public void microKernel(int kc, double[] packedA, int aOffset, double[] packedB, int bOffset,
+            double[] c, int i, int j, int ldc, int rows, int cols) {
+        var c0 = DoubleVector.zero(TILE);
+        var c1 = DoubleVector.zero(TILE);
+        var c2 = DoubleVector.zero(TILE);
+        var c3 = DoubleVector.zero(TILE);
+
+        int ap = aOffset;
+        int bp = bOffset;
+        for (int p = 0; p < kc; p++) {
+            var b = DoubleVector.fromArray(TILE, packedB, bp);
+            c0 = b.fma(DoubleVector.broadcast(TILE, packedA[ap]), c0);
+            c1 = b.fma(DoubleVector.broadcast(TILE, packedA[ap + 1]), c1);
+            c2 = b.fma(DoubleVector.broadcast(TILE, packedA[ap + 2]), c2);
+            c3 = b.fma(DoubleVector.broadcast(TILE, packedA[ap + 3]), c3);
+            ap += Gemm.MR;
+            bp += Gemm.NR;
+        }
+
+        if (rows == Gemm.MR && cols == Gemm.NR) {
+            int r0 = i * ldc + j;
+            DoubleVector.fromArray(TILE, c, r0).add(c0).intoArray(c, r0);
+            DoubleVector.fromArray(TILE, c, r0 + ldc).add(c1).intoArray(c, r0 + ldc);
+            DoubleVector.fromArray(TILE, c, r0 + 2 * ldc).add(c2).intoArray(c, r0 + 2 * ldc);
+            DoubleVector.fromArray(TILE, c, r0 + 3 * ldc).add(c3).intoArray(c, r0 + 3 * ldc);
+            return;
+        }
+
+        // Edge block: only write back the part that lies inside C.
+        var block = new double[Gemm.MR * Gemm.NR];
+        c0.intoArray(block, 0);
+        c1.intoArray(block, Gemm.NR);
+        c2.intoArray(block, 2 * Gemm.NR);
+        c3.intoArray(block, 3 * Gemm.NR);
+        for (int ii = 0; ii < rows; ii++) {
+            for (int jj = 0; jj < cols; jj++) {
+                c[(i + ii) * ldc + j + jj] += block[ii * Gemm.NR + jj];
+            }
+        }
+    }
+
+    /**
+     * Calls the operation directly rather than through lanewise, which is
+     * only compiled to vector instructions for a constant operator.
+     */
+    private static DoubleVector apply(TensorMath.BuiltinKernel op, DoubleVector l, DoubleVector r) {
+        switch (op) {
+            case ADD:
+                return l.add(r);
+            case SUBTRACT:
+                return l.sub(r);
+            case MULTIPLY:
+                return l.mul(r);
+            case DIVIDE:
+                return l.div(r);
+            default:
+                throw new IllegalArgumentException("Unsupported operation " + op + ".");
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package data;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.LeastSquaresCost;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import layer.FullyConnected;
+import layer.Layer;
+import network.NeuralNetwork;
+import optimize.Momentum;
+import tensor.RandomTensors;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorBuilder;
+
+/**
+ * Checks of training from a DataSource: the batches of a TensorDataSource
+ * train a network exactly as the same rows taken one batch at a time from
+ * the in-memory Tensors, and a ChunkedFileDataSource reads batches across
+ * empty chunks and ends with a partial batch.
+ *
+ * @author tyler
+ */
+public class DataSourceTest {
+    private static final int EXAMPLES = 23;
+    private static final int INPUTS = 4;
+    private static final int BATCH_SIZE = 5;
+    private static final int EPOCHS = 3;
+
+    public static void main(String[] args) throws IOException {
+        var random = new Random(8L);
+        var features = RandomTensors.gaussian(EXAMPLES, INPUTS, random);
+        var labels = RandomTensors.gaussian(EXAMPLES, 2, random).sigmoid();
+
+        for (int workers : new int[]{1, 3}) {
+            checkTraining(new TensorDataSource(features, labels), features, labels, workers);
+        }
+        checkChunks(features, labels);
+
+        System.out.println("DataSource checks passed.");
+    }
+
+    /**
+     * Training from source, which must yield the rows of features and labels
+     * in order, matches training on each batch of the in-memory Tensors in
+     * turn: the same costs, and exactly the same parameters.
+     */
+    private static void checkTraining(DataSource source, Tensor features, Tensor labels, int workers) {
+        var layers = layers();
+        var expectedLayers = layers();
+        var network = network(layers, workers);
+        var expected = network(expectedLayers, workers);
+        var history = network.train(source, EPOCHS, BATCH_SIZE);
+
+        var order = new int[EXAMPLES];
+        for (int i = 0; i < EXAMPLES; i++) {
+            order[i] = i;
+        }
+        for (int epoch = 0; epoch < EPOCHS; epoch++) {
+            var batchCosts = history.batchCosts.get(epoch);
+            int batch = 0;
+            for (int start = 0; start < EXAMPLES; start += BATCH_SIZE, batch++) {
+                int end = Math.min(start + BATCH_SIZE, EXAMPLES);
+                // A single full batch is trained as-is, without shuffling.
+                double cost = expected.train(features.gatherRows(order, start, end),
+                        labels.gatherRows(order, start, end), 1, end - start).epochCosts.get(0);
+                if (cost != batchCosts.get(batch)) {
+                    throw new AssertionError("Batch " + batch + " of epoch " + epoch + " with " + workers
+                            + " workers costs " + batchCosts.get(batch) + " from the DataSource and " + cost
+                            + " in memory.");
+                }
+            }
+            if (batch != batchCosts.size()) {
+                throw new AssertionError("Epoch " + epoch + " took " + batchCosts.size() + " steps instead of "
+                        + batch + ".");
+            }
+        }
+
+        for (int l = 0; l < layers.size(); l++) {
+            var actualState = layers.get(l).getState();
+            var expectedState = expectedLayers.get(l).getState();
+            for (var name : expectedState.keySet()) {
+                if (!Arrays.equals(actualState.get(name).toArray(), expectedState.get(name).toArray())) {
+                    throw new AssertionError(name + " of layer " + l + " with " + workers
+                            + " workers differs after training from the DataSource.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Chunks of 4, 0, 9, 0, 7, 3 and 0 rows give full batches which span
+     * chunks, and a final batch of 3 rows. Training from them matches
+     * training from the Tensors.
+     */
+    private static void checkChunks(Tensor features, Tensor labels) throws IOException {
+        int[] chunkRows = {4, 0, 9, 0, 7, 3, 0};
+        var directory = Files.createTempDirectory("chunk-test");
+        var paths = new ArrayList<Path>();
+        try {
+            var order = new int[EXAMPLES];
+            for (int i = 0; i < EXAMPLES; i++) {
+                order[i] = i;
+            }
+            int start = 0;
+            for (int c = 0; c < chunkRows.length; c++) {
+                var path = directory.resolve("chunk-" + c);
+                paths.add(path);
+                if (chunkRows[c] == 0) {
+                    try (var output = new DataOutputStream(Files.newOutputStream(path))) {
+                        output.writeInt(0);
+                    }
+                } else {
+                    ChunkedFileDataSource.writeChunk(path, features.gatherRows(order, start, start + chunkRows[c]),
+                            labels.gatherRows(order, start, start + chunkRows[c]));
+                }
+                start += chunkRows[c];
+            }
+
+            var source = new ChunkedFileDataSource(paths, List.of(INPUTS), List.of(2));
+            if (source.size() != EXAMPLES) {
+                throw new AssertionError("Chunks hold " + source.size() + " examples instead of " + EXAMPLES);
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                int position = 0;
+                try (var batches = source.batches(BATCH_SIZE)) {
+                    while (batches.hasNext()) {
+                        var batch = batches.next();
+                        int end = Math.min(position + BATCH_SIZE, EXAMPLES);
+                        if (batch.size() != end - position
+                                || !Arrays.equals(batch.features.toArray(),
+                                        features.gatherRows(order, position, end).toArray())
+                                || !Arrays.equals(batch.labels.toArray(),
+                                        labels.gatherRows(order, position, end).toArray())) {
+                            throw new AssertionError("Pass " + pass + ": the batch at example " + position
+                                    + " does not hold examples " + position + " to " + end + ".");
+                        }
+                        position = end;
+                    }
+                }
+                if (position != EXAMPLES) {
+                    throw new AssertionError("Pass " + pass + " ended after " + position + " examples.");
+                }
+            }
+
+            checkTraining(source, features, labels, 1);
+        } finally {
+            for (var path : paths) {
+                Files.deleteIfExists(path);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static List<Layer> layers() {
+        return List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU),
+                        TensorBuilder.heInitialization(INPUTS, 5, 51L), new Tensor2D(1, 5)),
+                new FullyConnected(new Activation(ActivationType.Sigmoid),
+                        TensorBuilder.heInitialization(5, 2, 52L), new Tensor2D(1, 2)));
+    }
+
+    private static NeuralNetwork network(List<Layer> layers, int workers) {
+        var network = new NeuralNetwork(layers, new LeastSquaresCost(), new Momentum(0.1, 0.9));
+        network.setWorkers(workers);
+        return network;
+    }
+}
@@ -0,0 +1,171 @@
+package layer;
+
+import static layer.GradientChecks.H;
+import static layer.GradientChecks.assertClose;
+import static layer.GradientChecks.assertSlice;
+import static layer.GradientChecks.loss;
+import static layer.GradientChecks.slice;
+
+import activation.Activation;
+import activation.ActivationType;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import tensor.RandomTensors;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * Gradient check of Convolution: the derivatives from backwardPropagate are
+ * compared with central differences of L = sum(a .* G), whose derivative
+ * with respect to a is G.
+ *
+ * dK and db are averaged over the examples, so they must match the
+ * numerical derivatives divided by m. dX is not averaged.
+ *
+ * Inputs above ConvolutionKernels.PARALLEL_THRESHOLD are split across the
+ * fork-join pool by example. Their results must match those of convolving
+ * every example on its own, up to the rounding of the GEMM.
+ *
+ * @author tyler
+ */
+public class ConvolutionTest {
+    private static final double PARALLEL_TOLERANCE = 1e-12;
+
+    public static void main(String[] args) {
+        // Stride 2 with padding 1, so some windows overlap the padding.
+        check(List.of(2, 5, 5, 2), 3, List.of(3, 3), List.of(2, 2), List.of(1, 1));
+        // Different settings along the height and width.
+        check(List.of(3, 6, 4, 1), 2, List.of(2, 3), List.of(2, 1), List.of(0, 1));
+
+        GradientChecks.requireParallelism();
+        checkParallel(List.of(8, 16, 16, 4), 3, List.of(3, 3), List.of(1, 1), List.of(1, 1));
+
+        System.out.println("Convolution gradient checks passed.");
+    }
+
+    private static void check(List<Integer> inputShape, int filters, List<Integer> size,
+            List<Integer> stride, List<Integer> padding) {
+        var random = new Random(7L);
+        var layer = layer(inputShape, filters, size, stride, padding, random);
+        var x = RandomTensors.gaussian(inputShape, random);
+        var result = layer.forwardPropagate(x, true);
+        var g = RandomTensors.gaussian(result.a.shape(), random);
+        var back = layer.backwardPropagate(g, result);
+        int m = inputShape.get(0);
+
+        // dX
+        var values = x.toArray();
+        var dX = back.dA.toArray();
+        for (int i = 0; i < values.length; i++) {
+            double original = values[i];
+            values[i] = original + H;
+            double plus = loss(layer, TensorBuilder.buildFromShapeAndValues(inputShape, values), g);
+            values[i] = original - H;
+            double minus = loss(layer, TensorBuilder.buildFromShapeAndValues(inputShape, values), g);
+            values[i] = original;
+            assertClose("dX[" + i + "]", dX[i], (plus - minus) / (2 * H));
+        }
+
+        // dK and db, scaled by 1/m.
+        checkParameter(layer, x, g, Convolution.KERNEL, back.dParameters[Convolution.D_KERNEL], m);
+        checkParameter(layer, x, g, Convolution.BIAS, back.dParameters[Convolution.D_BIAS], m);
+    }
+
+    /**
+     * Convolves an input large enough to run in parallel, and compares a, dX,
+     * dK and db with convolving each example on its own, which runs on one
+     * thread. dK and db of the batch are the means of those of the examples.
+     */
+    private static void checkParallel(List<Integer> inputShape, int filters, List<Integer> size,
+            List<Integer> stride, List<Integer> padding) {
+        var random = new Random(17L);
+        var layer = layer(inputShape, filters, size, stride, padding, random);
+        var x = RandomTensors.gaussian(inputShape, random);
+        var result = layer.forwardPropagate(x, true);
+        var g = RandomTensors.gaussian(result.a.shape(), random);
+        var back = layer.backwardPropagate(g, result);
+
+        int m = inputShape.get(0);
+        var dK = new double[back.dParameters[Convolution.D_KERNEL].size()];
+        var db = new double[back.dParameters[Convolution.D_BIAS].size()];
+        for (int i = 0; i < m; i++) {
+            var exampleResult = layer.forwardPropagate(slice(x, i, 0, 1), true);
+            var exampleBack = layer.backwardPropagate(slice(g, i, 0, 1), exampleResult);
+            assertSlice("a", result.a, i, 0, 1, exampleResult.a, PARALLEL_TOLERANCE);
+            assertSlice("dX", back.dA, i, 0, 1, exampleBack.dA, PARALLEL_TOLERANCE);
+            accumulate(dK, exampleBack.dParameters[Convolution.D_KERNEL], m);
+            accumulate(db, exampleBack.dParameters[Convolution.D_BIAS], m);
+        }
+        assertMean("dK", dK, back.dParameters[Convolution.D_KERNEL]);
+        assertMean("db", db, back.dParameters[Convolution.D_BIAS]);
+    }
+
+    private static void accumulate(double[] sum, Tensor t, int m) {
+        var values = t.toArray();
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += values[i] / m;
+        }
+    }
+
+    private static void assertMean(String what, double[] expected, Tensor t) {
+        var actual = t.toArray();
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(actual[i] - expected[i]) > PARALLEL_TOLERANCE * Math.max(1.0, Math.abs(expected[i]))) {
+                throw new AssertionError(what + "[" + i + "]: " + actual[i] + " in parallel, "
+                        + expected[i] + " as the mean over examples");
+            }
+        }
+    }
+
+    /**
+     * @return A sigmoid layer with a non-zero bias, so the activations are
+     * not symmetric around 0
+     */
+    private static Convolution layer(List<Integer> inputShape, int filters, List<Integer> size,
+            List<Integer> stride, List<Integer> padding, Random random) {
+        var layer = new Convolution(new Activation(ActivationType.Sigmoid), filters,
+                inputShape.get(3), size, stride, padding);
+        var state = copyState(layer);
+        var bias = state.get(Convolution.BIAS).toArray();
+        for (int j = 0; j < bias.length; j++) {
+            bias[j] = random.nextGaussian() * 0.1;
+        }
+        state.put(Convolution.BIAS, TensorBuilder.buildFromShapeAndValues(List.of(1, filters), bias));
+        layer.setState(state);
+        return layer;
+    }
+
+    private static void checkParameter(Convolution layer, Tensor x, Tensor g, String name,
+            Tensor derivative, int m) {
+        var state = copyState(layer);
+        var parameter = state.get(name);
+        var values = parameter.toArray();
+        var d = derivative.toArray();
+        for (int i = 0; i < values.length; i++) {
+            double original = values[i];
+            values[i] = original + H;
+            double plus = lossWith(layer, x, g, state, name, parameter.shape(), values);
+            values[i] = original - H;
+            double minus = lossWith(layer, x, g, state, name, parameter.shape(), values);
+            values[i] = original;
+            assertClose(name + "[" + i + "] * m", d[i] * m, (plus - minus) / (2 * H));
+        }
+        layer.setState(state);
+    }
+
+    private static double lossWith(Convolution layer, Tensor x, Tensor g, Map<String, Tensor> state,
+            String name, List<Integer> shape, double[] values) {
+        var perturbed = new HashMap<>(state);
+        perturbed.put(name, TensorBuilder.buildFromShapeAndValues(shape, values));
+        layer.setState(perturbed);
+        return loss(layer, x, g);
+    }
+
+    private static Map<String, Tensor> copyState(Layer layer) {
+        var state = new HashMap<String, Tensor>();
+        layer.getState().forEach((name, t) -> state.put(name, t.copy()));
+        return state;
+    }
+}
@@ -0,0 +1,95 @@
+package layer;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * Helpers shared by the layer gradient checks.
+ *
+ * Derivatives are checked against central differences of L = sum(a .* G),
+ * whose derivative with respect to a is G. Kernels which split large inputs
+ * across the fork-join pool are checked against the same layer applied to
+ * slices of the input small enough to run on one thread.
+ *
+ * @author tyler
+ */
+final class GradientChecks {
+    static final double H = 1e-5;
+    static final double TOLERANCE = 1e-6;
+
+    private GradientChecks() {
+    }
+
+    /**
+     * @return sum(a .* g), where a is the layer's activation for x
+     */
+    static double loss(Layer layer, Tensor x, Tensor g) {
+        var a = layer.forwardPropagate(x, true).a.toArray();
+        var weights = g.toArray();
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * weights[i];
+        }
+        return sum;
+    }
+
+    static void assertClose(String what, double analytic, double numeric) {
+        double error = Math.abs(analytic - numeric);
+        if (error > TOLERANCE * Math.max(1.0, Math.abs(analytic) + Math.abs(numeric))) {
+            throw new AssertionError(what + ": backward propagation gives " + analytic
+                    + ", central differences give " + numeric);
+        }
+    }
+
+    /**
+     * Parallel checks compare against single-threaded results, so they need
+     * a common pool with more than one thread. The Maven build forks the
+     * tests with -Djava.util.concurrent.ForkJoinPool.common.parallelism=4.
+     */
+    static void requireParallelism() {
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+            throw new AssertionError("Parallel checks need a common pool parallelism of at least 2, not "
+                    + ForkJoinPool.getCommonPoolParallelism() + ".");
+        }
+    }
+
+    /**
+     * Copies one example of a Tensor4D, and one of parts equal ranges of its
+     * dimension 3.
+     *
+     * @return A Tensor4D of shape 1 x d1 x d2 x (d3 / parts)
+     */
+    static Tensor slice(Tensor t, int example, int part, int parts) {
+        var shape = t.shape();
+        int width = shape.get(3) / parts;
+        var values = t.toArray();
+        var result = new double[shape.get(1) * shape.get(2) * width];
+        for (int r = 0; r < shape.get(1) * shape.get(2); r++) {
+            System.arraycopy(values, (example * shape.get(1) * shape.get(2) + r) * shape.get(3) + part * width,
+                    result, r * width, width);
+        }
+        return TensorBuilder.buildFromShapeAndValues(List.of(1, shape.get(1), shape.get(2), width), result);
+    }
+
+    /**
+     * Checks that the slice of t given by example and part holds the values
+     * of expected, within tolerance times their magnitude.
+     */
+    static void assertSlice(String what, Tensor t, int example, int part, int parts, Tensor expected,
+            double tolerance) {
+        var actual = slice(t, example, part, parts).toArray();
+        var values = expected.toArray();
+        if (actual.length != values.length) {
+            throw new AssertionError(what + " of example " + example + ", part " + part + " has "
+                    + actual.length + " values instead of " + values.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (Math.abs(actual[i] - values[i]) > tolerance * Math.max(1.0, Math.abs(values[i]))) {
+                throw new AssertionError(what + "[" + i + "] of example " + example + ", part " + part
+                        + ": " + actual[i] + " in parallel, " + values[i] + " on one thread");
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package layer;
+
+import static layer.GradientChecks.H;
+import static layer.GradientChecks.assertClose;
+import static layer.GradientChecks.assertSlice;
+import static layer.GradientChecks.loss;
+import static layer.GradientChecks.slice;
+
+import java.util.List;
+import java.util.Random;
+import tensor.RandomTensors;
+import tensor.TensorBuilder;
+
+/**
+ * Gradient check of max and average Pool: dX from backwardPropagate is
+ * compared with central differences of L = sum(a .* G), whose derivative
+ * with respect to a is G.
+ *
+ * Inputs are random, so maxima have no ties and max pooling is
+ * differentiable at them.
+ *
+ * Inputs above PoolKernels.PARALLEL_THRESHOLD are split across the fork-join
+ * pool, by example and along dimension 3. Their results must be exactly
+ * those of pooling every slice on its own.
+ *
+ * @author tyler
+ */
+public class PoolTest {
+
+    public static void main(String[] args) {
+        for (var type : PoolingType.values()) {
+            // Overlapping windows along every dimension, with padding along
+            // the height and width.
+            check(type, List.of(2, 5, 5, 3), List.of(3, 3, 2), List.of(2, 2, 1), List.of(1, 1, 0));
+            // Pooling across channels, with padding along dimension 3.
+            check(type, List.of(2, 4, 4, 4), List.of(2, 2, 3), List.of(1, 1, 2), List.of(0, 0, 1));
+        }
+        checkEmptyWindows();
+
+        GradientChecks.requireParallelism();
+        for (var type : PoolingType.values()) {
+            // Many examples, with windows overlapping along dimension 3, so
+            // examples are pooled in parallel but not split.
+            checkParallel(type, List.of(64, 12, 12, 4), List.of(2, 2, 2), List.of(2, 2, 1), List.of(0, 0, 1), 1);
+            // Two examples, each split into parts along dimension 3.
+            checkParallel(type, List.of(2, 32, 32, 16), List.of(3, 3, 1), List.of(1, 1, 1), List.of(1, 1, 0), 16);
+        }
+
+        System.out.println("Pool gradient checks passed.");
+    }
+
+    private static ForwardPropResult check(PoolingType type, List<Integer> inputShape,
+            List<Integer> size, List<Integer> stride, List<Integer> padding) {
+        var random = new Random(11L);
+        var layer = new Pool(type, size, stride, padding);
+        var x = RandomTensors.gaussian(inputShape, random);
+
+        var result = layer.forwardPropagate(x, true);
+        var g = RandomTensors.gaussian(result.a.shape(), random);
+        var dX = layer.backwardPropagate(g, result).dA.toArray();
+
+        var values = x.toArray();
+        for (int i = 0; i < values.length; i++) {
+            double original = values[i];
+            values[i] = original + H;
+            double plus = loss(layer, TensorBuilder.buildFromShapeAndValues(inputShape, values), g);
+            values[i] = original - H;
+            double minus = loss(layer, TensorBuilder.buildFromShapeAndValues(inputShape, values), g);
+            values[i] = original;
+            assertClose(type + " dX[" + i + "]", dX[i], (plus - minus) / (2 * H));
+        }
+        return result;
+    }
+
+    /**
+     * With padding 2 and stride 3, the first window along the height and
+     * width lies entirely in the padding. Such windows pool to 0, max pooling
+     * records -1 for them, and their derivatives reach no input.
+     */
+    private static void checkEmptyWindows() {
+        var inputShape = List.of(1, 3, 3, 2);
+        var size = List.of(2, 2, 1);
+        var stride = List.of(3, 3, 1);
+        var padding = List.of(2, 2, 0);
+
+        check(PoolingType.Average, inputShape, size, stride, padding);
+        var result = check(PoolingType.Max, inputShape, size, stride, padding);
+
+        // Output positions are 2 x 2 x 2, and only those at (1, 1) have a
+        // non-empty window.
+        var a = result.a.toArray();
+        int empty = 0;
+        for (int o = 0; o < result.indices.length; o++) {
+            boolean inPadding = o / 2 != 3;
+            if (inPadding != (result.indices[o] == -1)) {
+                throw new AssertionError("argmax[" + o + "] is " + result.indices[o]);
+            }
+            if (inPadding) {
+                empty++;
+                if (a[o] != 0.0) {
+                    throw new AssertionError("Empty window " + o + " pools to " + a[o]);
+                }
+            }
+        }
+        if (empty != 6) {
+            throw new AssertionError("Expected 6 empty windows, found " + empty);
+        }
+    }
+
+    /**
+     * Pools an input large enough to run in parallel, and compares a and dX
+     * with pooling each example, cut into parts slices along dimension 3, on
+     * its own. Slices are below the threshold, so they run on one thread.
+     */
+    private static void checkParallel(PoolingType type, List<Integer> inputShape, List<Integer> size,
+            List<Integer> stride, List<Integer> padding, int parts) {
+        var random = new Random(13L);
+        var layer = new Pool(type, size, stride, padding);
+        var x = RandomTensors.gaussian(inputShape, random);
+        var result = layer.forwardPropagate(x, true);
+        var g = RandomTensors.gaussian(result.a.shape(), random);
+        var dX = layer.backwardPropagate(g, result).dA;
+
+        for (int i = 0; i < inputShape.get(0); i++) {
+            for (int part = 0; part < parts; part++) {
+                var partResult = layer.forwardPropagate(slice(x, i, part, parts), true);
+                var partDX = layer.backwardPropagate(slice(g, i, part, parts), partResult).dA;
+                assertSlice(type + " a", result.a, i, part, parts, partResult.a, 0.0);
+                assertSlice(type + " dX", dX, i, part, parts, partDX, 0.0);
+            }
+        }
+    }
+}
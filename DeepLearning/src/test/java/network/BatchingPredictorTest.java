@@ -0,0 +1,176 @@
+package network;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.LeastSquaresCost;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import layer.FullyConnected;
+import layer.Layer;
+import optimize.GradientDescent;
+import tensor.RandomTensors;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorBuilder;
+
+/**
+ * Checks of BatchingPredictor: batches never exceed maxBatchSize unless a
+ * single request does, every request gets the predictions of its own rows,
+ * requests of different shapes are predicted separately, and close predicts
+ * the queued requests before rejecting new ones.
+ *
+ * @author tyler
+ */
+public class BatchingPredictorTest {
+    private static final int INPUTS = 3;
+
+    public static void main(String[] args) throws Exception {
+        var network = network();
+        checkBatchBounds(network);
+        checkRouting(network);
+        checkMixedShapes(network);
+        checkClose(network);
+
+        System.out.println("BatchingPredictor checks passed.");
+    }
+
+    /**
+     * A request which would overflow the current batch starts the next one,
+     * even when it arrives while the batch is waiting. Only a single request
+     * larger than maxBatchSize makes a larger batch.
+     */
+    private static void checkBatchBounds(NeuralNetwork network) throws Exception {
+        var random = new Random(1L);
+        try (var predictor = new BatchingPredictor(network, 4, Duration.ofMillis(300))) {
+            var first = predictor.submit(RandomTensors.gaussian(3, INPUTS, random));
+            // Arrives while the first batch waits for more rows.
+            Thread.sleep(50);
+            var second = predictor.submit(RandomTensors.gaussian(3, INPUTS, random));
+            first.join();
+            second.join();
+
+            var oversized = RandomTensors.gaussian(6, INPUTS, random);
+            expectPredictions(network, oversized, predictor.submit(oversized).join());
+
+            var metrics = predictor.metrics();
+            if (metrics.batches != 3 || metrics.batchSizeCounts[3] != 2 || metrics.batchSizeCounts[5] != 1
+                    || metrics.largestBatch != 6) {
+                throw new AssertionError("Expected two batches of 3 rows and one oversized batch: "
+                        + Arrays.toString(metrics.batchSizeCounts) + ", " + metrics);
+            }
+        }
+    }
+
+    /**
+     * Many threads submit requests of 1 to 3 rows at once. Each must get the
+     * predictions of exactly its rows, in order.
+     */
+    private static void checkRouting(NeuralNetwork network) throws Exception {
+        var executor = Executors.newFixedThreadPool(8);
+        try (var predictor = new BatchingPredictor(network, 16, Duration.ofMillis(5))) {
+            var random = new Random(2L);
+            var inputs = new ArrayList<Tensor>();
+            for (int i = 0; i < 200; i++) {
+                inputs.add(RandomTensors.gaussian(1 + random.nextInt(3), INPUTS, random));
+            }
+            var results = new ArrayList<CompletableFuture<Tensor>>();
+            for (var input : inputs) {
+                results.add(CompletableFuture.supplyAsync(() -> predictor.predict(input), executor));
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                expectPredictions(network, inputs.get(i), results.get(i).join());
+            }
+
+            var metrics = predictor.metrics();
+            if (metrics.requests != inputs.size() || metrics.largestBatch > 16
+                    || metrics.batchSizeCounts[17] != 0) {
+                throw new AssertionError("Unexpected batches for requests of at most 3 rows: " + metrics);
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Requests of another shape are predicted in their own group, so a shape
+     * the network rejects only fails its own requests.
+     */
+    private static void checkMixedShapes(NeuralNetwork network) {
+        var random = new Random(3L);
+        try (var predictor = new BatchingPredictor(network, 8, Duration.ofMillis(100))) {
+            var valid = RandomTensors.gaussian(2, INPUTS, random);
+            var invalid = RandomTensors.gaussian(1, INPUTS + 2, random);
+            var validResult = predictor.submit(valid);
+            var invalidResult = predictor.submit(invalid);
+            var otherValid = RandomTensors.gaussian(1, INPUTS, random);
+            var otherResult = predictor.submit(otherValid);
+
+            expectPredictions(network, valid, validResult.join());
+            expectPredictions(network, otherValid, otherResult.join());
+            try {
+                invalidResult.join();
+                throw new AssertionError("A request of the wrong shape was predicted.");
+            } catch (CompletionException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * close predicts what is queued, then submit fails.
+     */
+    private static void checkClose(NeuralNetwork network) {
+        var random = new Random(4L);
+        var predictor = new BatchingPredictor(network, 64, Duration.ofSeconds(10));
+        var inputs = new ArrayList<Tensor>();
+        var results = new ArrayList<CompletableFuture<Tensor>>();
+        for (int i = 0; i < 5; i++) {
+            inputs.add(RandomTensors.gaussian(2, INPUTS, random));
+            results.add(predictor.submit(inputs.get(i)));
+        }
+        // The batch is far from full and would wait 10 seconds otherwise.
+        long start = System.nanoTime();
+        predictor.close();
+        if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(5)) {
+            throw new AssertionError("close waited for the batch to fill.");
+        }
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!results.get(i).isDone()) {
+                throw new AssertionError("close returned before request " + i + " was predicted.");
+            }
+            expectPredictions(network, inputs.get(i), results.get(i).join());
+        }
+        try {
+            predictor.submit(inputs.get(0));
+            throw new AssertionError("A closed predictor accepted a request.");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        predictor.close();
+    }
+
+    private static void expectPredictions(NeuralNetwork network, Tensor input, Tensor actual) {
+        var expected = network.predict(input);
+        if (!actual.shape().equals(expected.shape()) || !Arrays.equals(actual.toArray(), expected.toArray())) {
+            throw new AssertionError("Predictions " + Arrays.toString(actual.toArray())
+                    + " instead of " + Arrays.toString(expected.toArray()));
+        }
+    }
+
+    private static NeuralNetwork network() {
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.Tanh),
+                        TensorBuilder.heInitialization(INPUTS, 4, 41L), new Tensor2D(1, 4)),
+                new FullyConnected(new Activation(ActivationType.Sigmoid),
+                        TensorBuilder.heInitialization(4, 2, 42L), new Tensor2D(1, 2)));
+        return new NeuralNetwork(layers, new LeastSquaresCost(), new GradientDescent(0.1));
+    }
+}
@@ -0,0 +1,140 @@
+package network;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.CrossEntropyCost;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import layer.FullyConnected;
+import layer.Layer;
+import optimize.Adam;
+import tensor.Precision;
+import tensor.RandomTensors;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorBuilder;
+
+/**
+ * Checks of Checkpoint: a checkpoint file reads back bit for bit, a network
+ * restored from it trains exactly as the original continues to, in DOUBLE
+ * and in FLOAT precision, and files with the wrong magic or version are
+ * rejected.
+ *
+ * @author tyler
+ */
+public class CheckpointTest {
+    private static final int BATCH_SIZE = 10;
+
+    public static void main(String[] args) throws IOException {
+        var directory = Files.createTempDirectory("checkpoint-test");
+        var path = directory.resolve("network.ckpt");
+        try {
+            var random = new Random(9L);
+            var features = RandomTensors.gaussian(60, 6, random);
+            var labels = RandomTensors.gaussian(60, 1, random).mapInPlace(value -> value > 0.0 ? 1.0 : 0.0);
+
+            for (var precision : Precision.values()) {
+                checkResume(path, precision, features, labels);
+            }
+            checkRejected(directory, path);
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+
+        System.out.println("Checkpoint checks passed.");
+    }
+
+    /**
+     * Checkpoints a network after 3 epochs and restores it into another one.
+     * Both must then train exactly alike, in either precision. Checkpoints
+     * store doubles, so FLOAT optimizer state must be narrowed back on
+     * restore.
+     */
+    private static void checkResume(Path path, Precision precision, Tensor features, Tensor labels) {
+        var original = network(31L, precision);
+        original.train(features, labels, 3, BATCH_SIZE);
+        var checkpoint = original.checkpoint();
+        checkpoint.write(path);
+        checkRoundTrip(checkpoint, Checkpoint.read(path));
+
+        // Different initial parameters, which restore must overwrite.
+        var restored = network(32L, precision);
+        restored.restore(path);
+        if (restored.getEpochsTrained() != 3) {
+            throw new AssertionError("Restored " + restored.getEpochsTrained() + " epochs instead of 3.");
+        }
+
+        var originalCosts = original.train(features, labels, 4, BATCH_SIZE).epochCosts;
+        var restoredCosts = restored.train(features, labels, 4, BATCH_SIZE).epochCosts;
+        if (!originalCosts.equals(restoredCosts)) {
+            throw new AssertionError(precision + " costs after restoring " + restoredCosts
+                    + " differ from " + originalCosts);
+        }
+        checkRoundTrip(original.checkpoint(), restored.checkpoint());
+    }
+
+    private static NeuralNetwork network(long seed, Precision precision) {
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU),
+                        TensorBuilder.heInitialization(6, 8, seed), new Tensor2D(1, 8)),
+                new FullyConnected(new Activation(ActivationType.Sigmoid),
+                        TensorBuilder.heInitialization(8, 1, seed + 1), new Tensor2D(1, 1)));
+        var network = new NeuralNetwork(layers, new CrossEntropyCost(), new Adam(0.01, 0.9, 0.999));
+        network.setPrecision(precision);
+        return network;
+    }
+
+    /**
+     * Both checkpoints must hold the same epoch count, and the same Tensors
+     * with the same shapes and bits.
+     */
+    private static void checkRoundTrip(Checkpoint expected, Checkpoint actual) {
+        if (actual.epoch != expected.epoch || !actual.tensors.keySet().equals(expected.tensors.keySet())) {
+            throw new AssertionError("Checkpoint of epoch " + actual.epoch + " with " + actual.tensors.keySet()
+                    + " instead of epoch " + expected.epoch + " with " + expected.tensors.keySet());
+        }
+        if (expected.tensors.keySet().stream().noneMatch(name -> name.startsWith("optimizer/"))) {
+            throw new AssertionError("Checkpoint has no optimizer state.");
+        }
+        for (var name : expected.tensors.keySet()) {
+            var e = expected.tensors.get(name);
+            var a = actual.tensors.get(name);
+            if (!a.shape().equals(e.shape()) || !Arrays.equals(a.toArray(), e.toArray())) {
+                throw new AssertionError("Tensor " + name + " differs.");
+            }
+        }
+    }
+
+    private static void checkRejected(Path directory, Path path) throws IOException {
+        var bytes = Files.readAllBytes(path);
+
+        var badMagic = bytes.clone();
+        badMagic[0] = 'X';
+        expectRejected("bad magic", directory, badMagic);
+
+        var badVersion = bytes.clone();
+        ByteBuffer.wrap(badVersion).putInt(4, Checkpoint.VERSION + 1);
+        expectRejected("unsupported version", directory, badVersion);
+    }
+
+    private static void expectRejected(String what, Path directory, byte[] bytes) throws IOException {
+        var file = directory.resolve("bad.ckpt");
+        Files.write(file, bytes);
+        try {
+            Checkpoint.read(file);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("A checkpoint with " + what + " was accepted.");
+    }
+}
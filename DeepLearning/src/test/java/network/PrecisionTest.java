@@ -0,0 +1,130 @@
+package network;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.CrossEntropyCost;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import layer.Convolution;
+import layer.Flatten;
+import layer.FullyConnected;
+import layer.Layer;
+import layer.Pool;
+import layer.PoolingType;
+import optimize.Adam;
+import optimize.GradientDescent;
+import optimize.Momentum;
+import optimize.Optimizer;
+import optimize.RMSProp;
+import tensor.Precision;
+import tensor.RandomTensors;
+import tensor.Tensor;
+
+/**
+ * Checks of the FLOAT backend: a network trained in FLOAT precision must
+ * follow the same network trained in DOUBLE precision, from the same initial
+ * parameters and with the same batches.
+ *
+ * Arithmetic runs in double either way, so the costs only differ by the
+ * rounding of stored values to float. They are compared with a tolerance
+ * far above that rounding, but far below the changes made by training.
+ *
+ * @author tyler
+ */
+public class PrecisionTest {
+    private static final double TOLERANCE = 1e-5;
+    private static final int EPOCHS = 5;
+    private static final int BATCH_SIZE = 10;
+
+    public static void main(String[] args) {
+        var random = new Random(23L);
+        var features = RandomTensors.gaussian(List.of(40, 6, 6, 2), random);
+        var labels = RandomTensors.gaussian(40, 1, random).mapInPlace(value -> value > 0.0 ? 1.0 : 0.0);
+
+        List<Supplier<Optimizer>> optimizers = List.of(
+                () -> new GradientDescent(0.1),
+                () -> new Momentum(0.05, 0.9),
+                () -> new RMSProp(0.01, 0.9),
+                () -> new Adam(0.01, 0.9, 0.999));
+        for (var optimizer : optimizers) {
+            for (var type : PoolingType.values()) {
+                for (int workers : new int[]{1, 3}) {
+                    check(optimizer, type, workers, features, labels);
+                }
+            }
+        }
+        checkSwitch(features, labels);
+
+        System.out.println("Precision checks passed.");
+    }
+
+    private static void check(Supplier<Optimizer> optimizer, PoolingType type, int workers,
+            Tensor features, Tensor labels) {
+        var doubleLayers = layers(type);
+        var floatLayers = layers(type);
+        for (int l = 0; l < doubleLayers.size(); l++) {
+            var state = new HashMap<String, Tensor>();
+            doubleLayers.get(l).getState().forEach((name, t) -> state.put(name, t.copy()));
+            floatLayers.get(l).setState(state);
+        }
+
+        var doubleNetwork = new NeuralNetwork(doubleLayers, new CrossEntropyCost(), optimizer.get());
+        var floatNetwork = new NeuralNetwork(floatLayers, new CrossEntropyCost(), optimizer.get());
+        floatNetwork.setPrecision(Precision.FLOAT);
+        doubleNetwork.setWorkers(workers);
+        floatNetwork.setWorkers(workers);
+
+        var expected = doubleNetwork.train(features, labels, EPOCHS, BATCH_SIZE, 29L).epochCosts;
+        var actual = floatNetwork.train(features, labels, EPOCHS, BATCH_SIZE, 29L).epochCosts;
+        String what = optimizer.get().getClass().getSimpleName() + " with " + type + " pooling and "
+                + workers + " workers";
+        for (int i = 0; i < EPOCHS; i++) {
+            if (Math.abs(actual.get(i) - expected.get(i)) > TOLERANCE * Math.max(1.0, Math.abs(expected.get(i)))) {
+                throw new AssertionError(what + ": epoch " + i + " costs " + actual.get(i) + " in FLOAT and "
+                        + expected.get(i) + " in DOUBLE");
+            }
+        }
+        if (expected.get(0).equals(expected.get(EPOCHS - 1))) {
+            throw new AssertionError(what + ": training did not change the cost.");
+        }
+        for (var layer : floatLayers) {
+            for (var t : layer.getState().values()) {
+                if (t.precision() != Precision.FLOAT) {
+                    throw new AssertionError(what + ": a parameter of " + layer.getClass().getSimpleName()
+                            + " is stored in " + t.precision());
+                }
+            }
+        }
+    }
+
+    /**
+     * Optimizer state follows the parameters when setPrecision is called on
+     * a network which has already been trained.
+     */
+    private static void checkSwitch(Tensor features, Tensor labels) {
+        var optimizer = new Adam(0.01, 0.9, 0.999);
+        var network = new NeuralNetwork(layers(PoolingType.Max), new CrossEntropyCost(), optimizer);
+        network.train(features, labels, 1, BATCH_SIZE, 31L);
+        network.setPrecision(Precision.FLOAT);
+        network.train(features, labels, 1, BATCH_SIZE, 31L);
+        for (var entry : optimizer.getState().entrySet()) {
+            if (entry.getKey().startsWith("momentum/") || entry.getKey().startsWith("variance/")) {
+                if (entry.getValue().precision() != Precision.FLOAT) {
+                    throw new AssertionError("Optimizer state " + entry.getKey() + " is still "
+                            + entry.getValue().precision() + " after setPrecision.");
+                }
+            }
+        }
+    }
+
+    private static List<Layer> layers(PoolingType type) {
+        return List.of(
+                new Convolution(new Activation(ActivationType.ReLU), 3, 2, List.of(3, 3), List.of(1, 1),
+                        List.of(1, 1)),
+                new Pool(type, List.of(2, 2, 1), List.of(2, 2, 1), List.of(0, 0, 0)),
+                new Flatten(),
+                new FullyConnected(new Activation(ActivationType.Sigmoid), 1, 27));
+    }
+}
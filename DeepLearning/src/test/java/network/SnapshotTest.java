@@ -0,0 +1,199 @@
+package network;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.LeastSquaresCost;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import layer.FullyConnected;
+import layer.Layer;
+import optimize.Adam;
+import tensor.Precision;
+import tensor.RandomTensors;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorBuilder;
+
+/**
+ * Checks of ParameterSnapshot: a reader thread predicts from getSnapshot
+ * while another thread trains, and sees versions and steps which only
+ * increase, and snapshots whose predictions never change. Snapshots are
+ * republished, with the right step, after restore and setPrecision.
+ *
+ * @author tyler
+ */
+public class SnapshotTest {
+    private static final int EXAMPLES = 40;
+    private static final int INPUTS = 3;
+    private static final int BATCH_SIZE = 4;
+    private static final int INTERVAL = 3;
+    private static final int MAX_EPOCHS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        var random = new Random(9L);
+        var features = RandomTensors.gaussian(EXAMPLES, INPUTS, random);
+        var labels = RandomTensors.gaussian(EXAMPLES, 2, random).sigmoid();
+        var probe = RandomTensors.gaussian(5, INPUTS, random);
+
+        var network = network();
+        network.setSnapshotInterval(INTERVAL);
+        checkConcurrentTraining(network, features, labels, probe);
+        checkRestore(network, features, labels, probe);
+        checkPrecision(network, probe);
+
+        System.out.println("Snapshot checks passed.");
+    }
+
+    /**
+     * While the main thread trains, a reader polls getSnapshot. Versions
+     * and steps never decrease, a snapshot held from the start keeps its
+     * predictions, and every snapshot seen predicts the same at the end as
+     * when it was first seen.
+     */
+    private static void checkConcurrentTraining(NeuralNetwork network, Tensor features, Tensor labels,
+            Tensor probe) throws InterruptedException {
+        var held = network.getSnapshot();
+        var heldPredictions = held.predict(probe).toArray();
+        var seen = new ConcurrentHashMap<Long, ParameterSnapshot>();
+        var seenPredictions = new ConcurrentHashMap<Long, double[]>();
+        var done = new AtomicBoolean();
+        var failure = new AtomicReference<Throwable>();
+
+        var reader = new Thread(() -> {
+            try {
+                long version = 0;
+                long step = 0;
+                while (!done.get()) {
+                    var snapshot = network.getSnapshot();
+                    if (snapshot.version < version || snapshot.step < step) {
+                        throw new AssertionError("Snapshot version " + snapshot.version + " at step "
+                                + snapshot.step + " after version " + version + " at step " + step);
+                    }
+                    version = snapshot.version;
+                    step = snapshot.step;
+                    var predictions = snapshot.predict(probe).toArray();
+                    var first = seenPredictions.putIfAbsent(snapshot.version, predictions);
+                    seen.putIfAbsent(snapshot.version, snapshot);
+                    if (first != null && !Arrays.equals(first, predictions)) {
+                        throw new AssertionError("Snapshot version " + snapshot.version
+                                + " changed its predictions.");
+                    }
+                    expectPredictions("The held snapshot", held, probe, heldPredictions);
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "snapshot-reader");
+
+        long initialVersion = held.version;
+        reader.start();
+        int epochs = 0;
+        try {
+            // Train until the reader has seen a few snapshots published
+            // during training, however the threads are scheduled.
+            while (epochs < MAX_EPOCHS && (epochs < 10 || seen.size() < 4) && failure.get() == null) {
+                network.train(features, labels, 1, BATCH_SIZE, 13L);
+                epochs++;
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("The reader failed.", failure.get());
+        }
+
+        long steps = (long) epochs * ((EXAMPLES + BATCH_SIZE - 1) / BATCH_SIZE);
+        var last = network.getSnapshot();
+        if (last.step != steps || last.version <= initialVersion) {
+            throw new AssertionError("Snapshot version " + last.version + " at step " + last.step
+                    + " after " + steps + " steps.");
+        }
+        if (seen.size() < 4) {
+            throw new AssertionError("The reader only saw " + seen.size() + " snapshots while training.");
+        }
+        for (var entry : seen.entrySet()) {
+            expectPredictions("Snapshot version " + entry.getKey(), entry.getValue(), probe,
+                    seenPredictions.get(entry.getKey()));
+        }
+        expectPredictions("The held snapshot", held, probe, heldPredictions);
+        if (Arrays.equals(last.predict(probe).toArray(), heldPredictions)) {
+            throw new AssertionError("Training did not change the predictions.");
+        }
+    }
+
+    /**
+     * restore publishes a snapshot of the restored parameters, at the step
+     * count of the checkpoint rather than the step count of the network.
+     */
+    private static void checkRestore(NeuralNetwork network, Tensor features, Tensor labels, Tensor probe) {
+        var checkpoint = network.checkpoint();
+        var before = network.getSnapshot();
+        var expected = before.predict(probe).toArray();
+
+        network.train(features, labels, 2, BATCH_SIZE, 13L);
+        var trained = network.getSnapshot();
+        network.restore(checkpoint);
+        var restored = network.getSnapshot();
+        if (restored.version <= trained.version || restored.step != before.step) {
+            throw new AssertionError("Restored snapshot version " + restored.version + " at step " + restored.step
+                    + ", after version " + trained.version + ", instead of step " + before.step);
+        }
+        expectPredictions("The restored snapshot", restored, probe, expected);
+
+        // Training resumes counting from the checkpoint.
+        network.train(features, labels, 1, BATCH_SIZE, 13L);
+        long steps = before.step + (EXAMPLES + BATCH_SIZE - 1) / BATCH_SIZE;
+        if (network.getSnapshot().step != steps) {
+            throw new AssertionError("Snapshot at step " + network.getSnapshot().step + " instead of " + steps
+                    + " after training from a restored checkpoint.");
+        }
+    }
+
+    /**
+     * setPrecision publishes a snapshot in the new precision, at the same
+     * step.
+     */
+    private static void checkPrecision(NeuralNetwork network, Tensor probe) {
+        var before = network.getSnapshot();
+        network.setPrecision(Precision.FLOAT);
+        var after = network.getSnapshot();
+        if (after.version <= before.version || after.step != before.step) {
+            throw new AssertionError("Snapshot version " + after.version + " at step " + after.step
+                    + " after setPrecision, from version " + before.version + " at step " + before.step);
+        }
+        var predictions = after.predict(probe);
+        if (predictions.precision() != Precision.FLOAT) {
+            throw new AssertionError("The snapshot predicts in " + predictions.precision() + " after setPrecision.");
+        }
+        var expected = before.predict(probe).toArray();
+        var actual = predictions.toArray();
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(actual[i] - expected[i]) > 1e-5) {
+                throw new AssertionError("Prediction " + i + " is " + actual[i] + " in FLOAT and " + expected[i]
+                        + " in DOUBLE.");
+            }
+        }
+    }
+
+    private static void expectPredictions(String what, ParameterSnapshot snapshot, Tensor probe, double[] expected) {
+        var actual = snapshot.predict(probe).toArray();
+        if (!Arrays.equals(actual, expected)) {
+            throw new AssertionError(what + " predicts " + Arrays.toString(actual) + " instead of "
+                    + Arrays.toString(expected));
+        }
+    }
+
+    private static NeuralNetwork network() {
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU),
+                        TensorBuilder.heInitialization(INPUTS, 6, 61L), new Tensor2D(1, 6)),
+                new FullyConnected(new Activation(ActivationType.Sigmoid),
+                        TensorBuilder.heInitialization(6, 2, 62L), new Tensor2D(1, 2)));
+        return new NeuralNetwork(layers, new LeastSquaresCost(), new Adam(0.01, 0.9, 0.999));
+    }
+}
@@ -0,0 +1,114 @@
+package tensor;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks of the blocked GEMM behind Tensor2D.matrixMultiply against the
+ * triple loop, for every combination of transposed operands, in DOUBLE and
+ * FLOAT.
+ *
+ * Most shapes are not multiples of the register tile (MR x NR) or of the
+ * cache blocks (MC, KC, NC), so the partial panels and tiles at every edge
+ * are exercised. The largest shapes are split across the fork-join pool, so
+ * the Maven build forks this test with
+ * -Djava.util.concurrent.ForkJoinPool.common.parallelism=4.
+ *
+ * @author tyler
+ */
+public class GemmTest {
+    private static final double TOLERANCE = 1e-12;
+    private static final double FLOAT_TOLERANCE = 1e-6;
+
+    public static void main(String[] args) {
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+            throw new AssertionError("Parallel checks need a common pool parallelism of at least 2, not "
+                    + ForkJoinPool.getCommonPoolParallelism() + ".");
+        }
+        var random = new Random(11L);
+        int[][] shapes = {
+            // m, n, k
+            {1, 1, 1},
+            // Below Gemm.SMALL_THRESHOLD.
+            {3, 5, 7},
+            // Packed, with partial MR and NR panels.
+            {33, 35, 37},
+            // Exact multiples of every block.
+            {64, 512, 256},
+            // Serial, over more than one MC block and KC slice.
+            {65, 69, 300},
+            // Parallel, over more than one MC, NC and KC block.
+            {67, 517, 259},
+            {129, 130, 515},
+        };
+        for (var shape : shapes) {
+            for (var precision : Precision.values()) {
+                check(shape[0], shape[1], shape[2], precision, random);
+            }
+        }
+
+        System.out.println("Gemm checks passed.");
+    }
+
+    private static void check(int m, int n, int k, Precision precision, Random random) {
+        var a = (Tensor2D) RandomTensors.gaussian(m, k, random).toPrecision(precision);
+        var b = (Tensor2D) RandomTensors.gaussian(k, n, random).toPrecision(precision);
+        var av = a.toArray();
+        var bv = b.toArray();
+        var expected = new double[m * n];
+        var scales = new double[m * n];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int p = 0; p < k; p++) {
+                    expected[i * n + j] += av[i * k + p] * bv[p * n + j];
+                    scales[i * n + j] += Math.abs(av[i * k + p] * bv[p * n + j]);
+                }
+            }
+        }
+        var columnSums = new double[n];
+        var columnScales = new double[n];
+        for (int p = 0; p < k; p++) {
+            for (int j = 0; j < n; j++) {
+                columnSums[j] += bv[p * n + j];
+                columnScales[j] += Math.abs(bv[p * n + j]);
+            }
+        }
+
+        var at = a.transpose();
+        var bt = b.transpose();
+        String what = precision + " product of " + m + " x " + k + " and " + k + " x " + n;
+        double tolerance = precision == Precision.FLOAT ? FLOAT_TOLERANCE : TOLERANCE;
+        assertClose(what, a.matrixMultiply(b), expected, scales, 1.0, tolerance);
+        assertClose(what + ", A transposed", at.matrixMultiply(b, true, false),
+                expected, scales, 1.0, tolerance);
+        assertClose(what + ", B transposed", a.matrixMultiply(bt, false, true),
+                expected, scales, 1.0, tolerance);
+        assertClose(what + ", both transposed", at.matrixMultiply(bt, true, true),
+                expected, scales, 1.0, tolerance);
+
+        // The scaled product with fused column sums, through a transposed B.
+        double factor = 0.25;
+        var sums = new Tensor2D(1, n, precision);
+        assertClose(what + ", scaled", a.matrixMultiply(bt, false, true, factor, sums),
+                expected, scales, factor, tolerance);
+        assertClose(what + ", column sums", sums, columnSums, columnScales, factor, tolerance);
+    }
+
+    /**
+     * Checks that actual holds factor * expected, within tolerance of the
+     * magnitude of the terms of each value.
+     */
+    private static void assertClose(String what, Tensor actual, double[] expected, double[] scales,
+            double factor, double tolerance) {
+        var values = actual.toArray();
+        if (values.length != expected.length) {
+            throw new AssertionError(what + " has " + values.length + " values instead of " + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            double value = factor * expected[i];
+            if (!(Math.abs(values[i] - value) <= tolerance * Math.max(1.0, factor * scales[i]))) {
+                throw new AssertionError(what + "[" + i + "] is " + values[i] + " instead of " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package tensor;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.CrossEntropyCost;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import layer.FullyConnected;
+import layer.Layer;
+import network.NeuralNetwork;
+import network.QuantizationReport;
+import optimize.GradientDescent;
+
+/**
+ * Checks of int8 inference: the SIMD dot products against scalar loops,
+ * Int8Matrix products against double products of the dequantized weights,
+ * and the QuantizationReport of a quantized network.
+ *
+ * Run once with the Vector API (--add-modules jdk.incubator.vector) and once
+ * with -Dtensor.simd=false, so both the SIMD and the scalar code are tested.
+ *
+ * @author tyler
+ */
+public class Int8MatrixTest {
+    private static final double TOLERANCE = 1e-12;
+
+    public static void main(String[] args) {
+        System.out.println("SIMD kernels: " + (SimdKernels.INSTANCE != null ? "on" : "off"));
+
+        // Each check has its own seed, so both runs see the same data.
+        checkDot4(new Random(1L));
+        // 13 columns: three blocks of 4 and a tail. 37 rows is not a
+        // multiple of any vector length.
+        checkProduct(9, 37, 13, new Random(2L));
+        // Enough work to split the rows across the fork-join pool.
+        checkProduct(300, 70, 9, new Random(3L));
+        checkReport(new Random(4L));
+
+        System.out.println("Int8Matrix checks passed.");
+    }
+
+    /**
+     * SimdKernels.dot4 must give exactly the scalar sums, for every length
+     * around the vector length, at any offset, and at the extremes of the
+     * int8 range.
+     */
+    private static void checkDot4(Random random) {
+        var simd = SimdKernels.INSTANCE;
+        if (simd == null) {
+            return;
+        }
+        var result = new int[4];
+        for (int length = 0; length <= 300; length++) {
+            for (int aOffset : new int[]{0, 3}) {
+                int bOffset = 5;
+                int stride = length + 2;
+                var a = randomBytes(aOffset + length, random);
+                var b = randomBytes(bOffset + 4 * stride, random);
+                simd.dot4(a, aOffset, b, bOffset, stride, length, result);
+                checkDot4Result(a, aOffset, b, bOffset, stride, length, result);
+            }
+        }
+
+        // Largest magnitudes, where partial sums are largest.
+        int length = 4099;
+        var a = new byte[length];
+        var b = new byte[4 * length];
+        Arrays.fill(a, (byte) Int8Matrix.LEVELS);
+        Arrays.fill(b, 0, 2 * length, (byte) Int8Matrix.LEVELS);
+        Arrays.fill(b, 2 * length, 4 * length, (byte) -Int8Matrix.LEVELS);
+        simd.dot4(a, 0, b, 0, length, length, result);
+        checkDot4Result(a, 0, b, 0, length, length, result);
+    }
+
+    private static void checkDot4Result(byte[] a, int aOffset, byte[] b, int bOffset, int stride,
+            int length, int[] result) {
+        for (int t = 0; t < 4; t++) {
+            int expected = 0;
+            for (int i = 0; i < length; i++) {
+                expected += a[aOffset + i] * b[bOffset + t * stride + i];
+            }
+            if (result[t] != expected) {
+                throw new AssertionError("dot4 of length " + length + ", column " + t + ": "
+                        + result[t] + " instead of " + expected);
+            }
+        }
+    }
+
+    /**
+     * With x quantized to xq * s, the product must be xq * s times the
+     * dequantized weights, up to rounding. Compared with x itself, each
+     * element of x is off by at most s / 2, so column j may be off by at most
+     * s / 2 * sum |w_pj|.
+     */
+    private static void checkProduct(int m, int k, int n, Random random) {
+        var weights = RandomTensors.gaussian(k, n, 1.0, random);
+        var bias = RandomTensors.gaussian(1, n, random);
+        var x = RandomTensors.gaussian(m, k, 0.5, random);
+        var quantized = Int8Matrix.quantizeColumns(weights);
+        var dequantized = quantized.dequantize().toArray();
+        double s = Int8Matrix.calibrateScale(x);
+
+        var xValues = x.toArray();
+        var xQuantized = new double[xValues.length];
+        for (int i = 0; i < xValues.length; i++) {
+            long q = Math.round(xValues[i] / s);
+            xQuantized[i] = Math.max(-Int8Matrix.LEVELS, Math.min(Int8Matrix.LEVELS, q)) * s;
+        }
+        var expected = multiplyAdd(xQuantized, dequantized, bias.toArray(), m, k, n);
+        var exact = multiplyAdd(xValues, dequantized, bias.toArray(), m, k, n);
+
+        var actual = quantized.multiplyAddApply(x, s, bias, ElementwiseFunction.IDENTITY, Precision.DOUBLE)
+                .toArray();
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                int o = i * n + j;
+                if (Math.abs(actual[o] - expected[o]) > TOLERANCE * Math.max(1.0, Math.abs(expected[o]))) {
+                    throw new AssertionError("Product [" + i + ", " + j + "] is " + actual[o]
+                            + " instead of " + expected[o]);
+                }
+                double bound = 0.0;
+                for (int p = 0; p < k; p++) {
+                    bound += Math.abs(dequantized[p * n + j]);
+                }
+                bound = bound * s / 2 + TOLERANCE;
+                if (Math.abs(actual[o] - exact[o]) > bound) {
+                    throw new AssertionError("Product [" + i + ", " + j + "] is " + actual[o]
+                            + ", more than " + bound + " away from " + exact[o]);
+                }
+            }
+        }
+
+        // The fused function, and the sparse path, which adds the same
+        // integers from the row-major copy.
+        var relu = quantized.multiplyAddApply(x, s, bias, ElementwiseFunction.RELU, Precision.DOUBLE)
+                .toArray();
+        for (int o = 0; o < relu.length; o++) {
+            if (relu[o] != Math.max(0.0, actual[o])) {
+                throw new AssertionError("ReLU of " + actual[o] + " is " + relu[o]);
+            }
+        }
+        var sparseInput = x.copy().mapInPlace(value -> Math.abs(value) < 0.5 ? 0.0 : value);
+        var dense = quantized.multiplyAddApply((Tensor2D) sparseInput, s, bias,
+                ElementwiseFunction.IDENTITY, Precision.DOUBLE).toArray();
+        var sparse = quantized.multiplyAddApply(SparseTensor2D.fromDense((Tensor2D) sparseInput), s,
+                bias, ElementwiseFunction.IDENTITY, Precision.DOUBLE).toArray();
+        if (!Arrays.equals(dense, sparse)) {
+            throw new AssertionError("Sparse and dense int8 products differ.");
+        }
+        // The sparse path reads a row-major copy of the weights.
+        if (quantized.byteSize() != 2L * k * n + 8L * n) {
+            throw new AssertionError("byteSize " + quantized.byteSize() + " does not count the row-major copy.");
+        }
+    }
+
+    /**
+     * The report of a quantized two-layer network: its costs are those of
+     * evaluate, costDelta is their difference and stays small, and the
+     * quantized weights take a byte per weight plus a double per node.
+     */
+    private static void checkReport(Random random) {
+        int inputs = 64;
+        int hidden = 32;
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU), hidden, inputs),
+                new FullyConnected(new Activation(ActivationType.Sigmoid), 1, hidden));
+        var network = new NeuralNetwork(layers, new CrossEntropyCost(), new GradientDescent(0.1));
+        var features = RandomTensors.gaussian(200, inputs, 1.0, random);
+        var labels = RandomTensors.gaussian(200, 1, random).mapInPlace(value -> value > 0.0 ? 1.0 : 0.0);
+        network.train(features, labels, 20, 50);
+
+        var quantized = network.quantize(features);
+        var report = QuantizationReport.compare(network, quantized, features, labels);
+        System.out.println(report);
+
+        if (report.originalCost != network.evaluate(features, labels)
+                || report.quantizedCost != quantized.evaluate(features, labels)) {
+            throw new AssertionError("Report costs differ from evaluate.");
+        }
+        if (report.costDelta != report.quantizedCost - report.originalCost) {
+            throw new AssertionError("costDelta is not quantizedCost - originalCost.");
+        }
+        if (Math.abs(report.costDelta) > 1e-2 * report.originalCost || report.maxPredictionError > 5e-2) {
+            throw new AssertionError("Quantization changed the predictions too much: " + report);
+        }
+        long weights = (long) inputs * hidden + hidden;
+        long nodes = hidden + 1;
+        if (report.originalWeightBytes != 8 * weights || report.quantizedWeightBytes != weights + 8 * nodes) {
+            throw new AssertionError("Unexpected weight sizes: " + report);
+        }
+    }
+
+    private static double[] multiplyAdd(double[] x, double[] w, double[] bias, int m, int k, int n) {
+        var result = new double[m * n];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double sum = 0.0;
+                for (int p = 0; p < k; p++) {
+                    sum += x[i * k + p] * w[p * n + j];
+                }
+                result[i * n + j] = sum + bias[j];
+            }
+        }
+        return result;
+    }
+
+    private static byte[] randomBytes(int length, Random random) {
+        var bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (random.nextInt(2 * Int8Matrix.LEVELS + 1) - Int8Matrix.LEVELS);
+        }
+        return bytes;
+    }
+}
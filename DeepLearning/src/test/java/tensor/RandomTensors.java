@@ -0,0 +1,48 @@
+package tensor;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random test inputs shared by the checks.
+ *
+ * Values are drawn in row-major order, so a seeded Random always gives the
+ * same Tensor.
+ *
+ * @author tyler
+ */
+public final class RandomTensors {
+
+    private RandomTensors() {
+    }
+
+    /**
+     * @return A Tensor of standard Gaussian values
+     */
+    public static Tensor gaussian(List<Integer> shape, Random random) {
+        int count = shape.stream().reduce(1, (a, b) -> a * b);
+        return TensorBuilder.buildFromShapeAndValues(shape, values(count, 0.0, random));
+    }
+
+    /**
+     * @return A Tensor2D of standard Gaussian values
+     */
+    public static Tensor2D gaussian(int nrows, int ncols, Random random) {
+        return gaussian(nrows, ncols, 0.0, random);
+    }
+
+    /**
+     * @return A Tensor2D of Gaussian values of standard deviation 1
+     */
+    public static Tensor2D gaussian(int nrows, int ncols, double mean, Random random) {
+        return new Tensor2D(List.of(nrows, ncols), values(nrows * ncols, mean, random));
+    }
+
+    private static double[] values(int count, double mean, Random random) {
+        var values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextGaussian() + mean;
+        }
+        return values;
+    }
+}
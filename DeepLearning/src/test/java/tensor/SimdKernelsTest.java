@@ -0,0 +1,284 @@
+package tensor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Checks of the Tensor kernels which have SIMD implementations against
+ * plain scalar loops: element-wise arithmetic (with and without
+ * broadcasting), scaling, axpy, conversions between DOUBLE and FLOAT,
+ * relu, sigmoid and tanh, the row, column and total sums, and GEMM.
+ *
+ * Run once with the Vector API (--add-modules jdk.incubator.vector) and once
+ * with -Dtensor.simd=false, so both the SIMD and the scalar code are tested.
+ * Results SimdKernels promises to be exact are compared exactly. The others
+ * are compared with a tolerance relative to the magnitude of their terms.
+ *
+ * @author tyler
+ */
+public class SimdKernelsTest {
+    private static final double TOLERANCE = 1e-13;
+
+    // Lengths around every vector length, and long enough for several
+    // unrolled iterations plus a tail.
+    private static final int[] LENGTHS = {1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 33, 64, 67, 130};
+
+    public static void main(String[] args) {
+        System.out.println("SIMD kernels: " + (SimdKernels.INSTANCE != null ? "on" : "off"));
+
+        // Each check has its own seed, so both runs see the same data.
+        checkArithmetic(new Random(1L));
+        checkScaleAndAxpy(new Random(2L));
+        checkConversions(new Random(3L));
+        checkFunctions(new Random(4L));
+        checkSums(new Random(5L));
+        // Below Gemm.SMALL_THRESHOLD, over one KC block, and large enough
+        // to split across the fork-join pool.
+        checkProduct(5, 7, 9, new Random(6L));
+        checkProduct(37, 41, 300, new Random(7L));
+        checkProduct(130, 131, 133, new Random(8L));
+
+        System.out.println("SIMD kernel checks passed.");
+    }
+
+    /**
+     * add, subtract, multiply and divide must give exactly the scalar
+     * results, between equal shapes, against a broadcast row or column, and
+     * against a scalar on either side.
+     */
+    private static void checkArithmetic(Random random) {
+        List<String> names = List.of("add", "subtract", "multiply", "divide");
+        List<DoubleBinaryOperator> ops = List.of(
+                (a, b) -> a + b, (a, b) -> a - b, (a, b) -> a * b, (a, b) -> a / b);
+        for (int ncols : LENGTHS) {
+            int nrows = 3;
+            var left = RandomTensors.gaussian(nrows, ncols, random);
+            var right = RandomTensors.gaussian(nrows, ncols, random);
+            var row = RandomTensors.gaussian(1, ncols, random);
+            var column = RandomTensors.gaussian(nrows, 1, random);
+            var scalar = Tensor2D.constant(random.nextGaussian());
+            for (int o = 0; o < ops.size(); o++) {
+                String what = names.get(o) + " with " + ncols + " columns";
+                var op = ops.get(o);
+                assertExact(what, apply(names.get(o), left, right), reference(left, right, op));
+                assertExact(what + ", row broadcast", apply(names.get(o), left, row), reference(left, row, op));
+                assertExact(what + ", column broadcast", apply(names.get(o), left, column),
+                        reference(left, column, op));
+                assertExact(what + ", scalar right", apply(names.get(o), left, scalar),
+                        reference(left, scalar, op));
+                assertExact(what + ", scalar left", apply(names.get(o), scalar, left),
+                        reference(scalar, left, op));
+            }
+        }
+    }
+
+    private static Tensor apply(String name, Tensor left, Tensor right) {
+        switch (name) {
+            case "add":
+                return left.add(right);
+            case "subtract":
+                return left.subtract(right);
+            case "multiply":
+                return left.multiply(right);
+            default:
+                return left.divideBy(right);
+        }
+    }
+
+    /**
+     * @return op applied to left and right, broadcasting either one along
+     * any dimension of size 1
+     */
+    private static double[] reference(Tensor left, Tensor right, DoubleBinaryOperator op) {
+        var l = left.toArray();
+        var r = right.toArray();
+        int nrows = Math.max(left.shape().get(0), right.shape().get(0));
+        int ncols = Math.max(left.shape().get(1), right.shape().get(1));
+        var result = new double[nrows * ncols];
+        for (int i = 0; i < nrows; i++) {
+            for (int j = 0; j < ncols; j++) {
+                result[i * ncols + j] = op.applyAsDouble(l[index(left, i, j)], r[index(right, i, j)]);
+            }
+        }
+        return result;
+    }
+
+    private static int index(Tensor t, int i, int j) {
+        int nrows = t.shape().get(0);
+        int ncols = t.shape().get(1);
+        return (nrows == 1 ? 0 : i) * ncols + (ncols == 1 ? 0 : j);
+    }
+
+    /**
+     * scale and axpy, in DOUBLE and FLOAT, must give exactly the scalar
+     * results.
+     */
+    private static void checkScaleAndAxpy(Random random) {
+        for (int n : LENGTHS) {
+            var x = RandomTensors.gaussian(1, n, random);
+            var y = RandomTensors.gaussian(1, n, random);
+            double alpha = random.nextGaussian();
+            var xs = x.toArray();
+            var ys = y.toArray();
+
+            var scaled = new double[n];
+            var sum = new double[n];
+            for (int i = 0; i < n; i++) {
+                scaled[i] = xs[i] * alpha;
+                sum[i] = ys[i] + alpha * xs[i];
+            }
+            assertExact("scale of " + n, x.scale(alpha), scaled);
+            assertExact("scaleInPlace of " + n, x.copy().scaleInPlace(alpha), scaled);
+            assertExact("axpy of " + n, y.copy().axpy(alpha, x), sum);
+
+            var xf = x.toPrecision(Precision.FLOAT);
+            var yf = y.toPrecision(Precision.FLOAT);
+            var xfs = xf.toArray();
+            var yfs = yf.toArray();
+            var floatSum = new double[n];
+            for (int i = 0; i < n; i++) {
+                floatSum[i] = (float) (yfs[i] + alpha * xfs[i]);
+            }
+            assertExact("FLOAT axpy of " + n, yf.copy().axpy(alpha, xf), floatSum);
+        }
+    }
+
+    /**
+     * Narrowing to FLOAT must round each value to the nearest float, and
+     * widening back must recover that float exactly.
+     */
+    private static void checkConversions(Random random) {
+        for (int n : LENGTHS) {
+            var t = RandomTensors.gaussian(1, n, random);
+            var values = t.toArray();
+            var rounded = new double[n];
+            for (int i = 0; i < n; i++) {
+                rounded[i] = (float) values[i];
+            }
+            var narrow = t.toPrecision(Precision.FLOAT);
+            assertExact("narrow of " + n, narrow, rounded);
+            assertExact("widen of " + n, narrow.toPrecision(Precision.DOUBLE), rounded);
+        }
+    }
+
+    /**
+     * relu must be exact. sigmoid and tanh must be within tolerance of
+     * Math.exp and Math.tanh, including far into their saturated ranges.
+     */
+    private static void checkFunctions(Random random) {
+        for (int n : LENGTHS) {
+            var t = RandomTensors.gaussian(2, n, random).scale(8.0);
+            var values = t.toArray();
+            // Zeros of both signs, and values whose exponentials overflow.
+            values[0] = 0.0;
+            values[values.length - 1] = (n % 2 == 0) ? -800.0 : 800.0;
+            if (values.length > 2) {
+                values[1] = -0.0;
+            }
+            t = TensorBuilder.buildFromShapeAndValues(t.shape(), values);
+
+            assertExact("relu of " + n, t.relu(), map(values, x -> Math.max(0, x)));
+            assertClose("sigmoid of " + n, t.sigmoid(), map(values, x -> 1.0 / (1.0 + Math.exp(-x))), null);
+            assertClose("tanh of " + n, t.tanh(), map(values, Math::tanh), null);
+        }
+    }
+
+    private static double[] map(double[] values, DoubleUnaryOperator function) {
+        return Arrays.stream(values).map(function).toArray();
+    }
+
+    /**
+     * Column sums must be exact. Row sums and the total may add in another
+     * order, so they are compared within tolerance of the sum of the
+     * absolute values.
+     */
+    private static void checkSums(Random random) {
+        for (int nrows : new int[]{1, 3, 17}) {
+            for (int ncols : LENGTHS) {
+                var t = RandomTensors.gaussian(nrows, ncols, random);
+                var values = t.toArray();
+                var rows = new double[nrows];
+                var rowScales = new double[nrows];
+                var columns = new double[ncols];
+                double total = 0.0;
+                double totalScale = 0.0;
+                for (int i = 0; i < nrows; i++) {
+                    for (int j = 0; j < ncols; j++) {
+                        double value = values[i * ncols + j];
+                        rows[i] += value;
+                        rowScales[i] += Math.abs(value);
+                        columns[j] += value;
+                        total += value;
+                        totalScale += Math.abs(value);
+                    }
+                }
+                String what = nrows + " x " + ncols;
+                assertExact("column sums of " + what, t.columnSum(), columns);
+                assertClose("row sums of " + what, t.rowSum(), rows, rowScales);
+                assertClose("sum of " + what, t.allSum(), new double[]{total}, new double[]{totalScale});
+                assertClose("sum() of " + what, Tensor2D.constant(t.sum()), new double[]{total},
+                        new double[]{totalScale});
+            }
+        }
+    }
+
+    /**
+     * GEMM, with every combination of transposes, must be within tolerance
+     * of the triple loop, relative to the sum of the absolute products.
+     */
+    private static void checkProduct(int m, int n, int k, Random random) {
+        var a = RandomTensors.gaussian(m, k, random);
+        var b = RandomTensors.gaussian(k, n, random);
+        var av = a.toArray();
+        var bv = b.toArray();
+        var expected = new double[m * n];
+        var scales = new double[m * n];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int p = 0; p < k; p++) {
+                    expected[i * n + j] += av[i * k + p] * bv[p * n + j];
+                    scales[i * n + j] += Math.abs(av[i * k + p] * bv[p * n + j]);
+                }
+            }
+        }
+        var at = a.transpose();
+        var bt = b.transpose();
+        String what = "product of " + m + " x " + k + " and " + k + " x " + n;
+        assertClose(what, a.matrixMultiply(b), expected, scales);
+        assertClose(what + ", A transposed", at.matrixMultiply(b, true, false), expected, scales);
+        assertClose(what + ", B transposed", a.matrixMultiply(bt, false, true), expected, scales);
+        assertClose(what + ", both transposed", at.matrixMultiply(bt, true, true), expected, scales);
+    }
+
+    private static void assertExact(String what, Tensor actual, double[] expected) {
+        var values = actual.toArray();
+        if (values.length != expected.length) {
+            throw new AssertionError(what + " has " + values.length + " values instead of " + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (values[i] != expected[i] && !(Double.isNaN(values[i]) && Double.isNaN(expected[i]))) {
+                throw new AssertionError(what + "[" + i + "] is " + values[i] + " instead of " + expected[i]);
+            }
+        }
+    }
+
+    /**
+     * @param scales Magnitude of the terms of each expected value, or null
+     * to compare relative to the expected values themselves
+     */
+    private static void assertClose(String what, Tensor actual, double[] expected, double[] scales) {
+        var values = actual.toArray();
+        if (values.length != expected.length) {
+            throw new AssertionError(what + " has " + values.length + " values instead of " + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            double scale = Math.max(1.0, scales != null ? scales[i] : Math.abs(expected[i]));
+            if (!(Math.abs(values[i] - expected[i]) <= TOLERANCE * scale)) {
+                throw new AssertionError(what + "[" + i + "] is " + values[i] + " instead of " + expected[i]);
+            }
+        }
+    }
+}
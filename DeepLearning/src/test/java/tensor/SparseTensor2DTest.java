@@ -0,0 +1,235 @@
+package tensor;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.CrossEntropyCost;
+import data.SparseFileDataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import layer.FullyConnected;
+import layer.Layer;
+import network.NeuralNetwork;
+import optimize.Adam;
+
+/**
+ * Checks of SparseTensor2D: validation of the CSR arrays, reading sparse
+ * files back without densifying them, and FullyConnected layers and networks
+ * given sparse inputs against the same inputs in dense form.
+ *
+ * Sparse products add the same terms as dense ones, but in another order, so
+ * results are compared with a tolerance of a few rounding errors.
+ *
+ * @author tyler
+ */
+public class SparseTensor2DTest {
+    private static final double TOLERANCE = 1e-12;
+
+    public static void main(String[] args) throws IOException {
+        checkValidation();
+
+        var random = new Random(5L);
+        var dense = randomSparseValues(12, 8, random);
+        var sparse = SparseTensor2D.fromDense(dense);
+        if (sparse.nonZeroCount() >= dense.size() / 2) {
+            throw new AssertionError("Test inputs should be mostly zeros.");
+        }
+        assertClose("toDense", dense.toArray(), sparse.toDense().toArray());
+
+        checkFile(sparse);
+        checkLayer(sparse, dense);
+        checkTraining(sparse, dense, random);
+
+        System.out.println("SparseTensor2D checks passed.");
+    }
+
+    private static void checkValidation() {
+        var columns = new int[]{0, 2, 1};
+        var values = new double[]{1.0, 2.0, 3.0};
+        // Valid: row 0 holds columns 0 and 2, row 1 holds column 1.
+        new SparseTensor2D(2, 3, new int[]{0, 2, 3}, columns, values);
+
+        expectInvalid("too few row offsets", () -> new SparseTensor2D(2, 3, new int[]{0, 3}, columns, values));
+        expectInvalid("non-zero first offset", () -> new SparseTensor2D(2, 3, new int[]{1, 2, 3}, columns, values));
+        expectInvalid("decreasing offsets", () -> new SparseTensor2D(3, 3, new int[]{0, 3, 2, 3}, columns, values));
+        expectInvalid("last offset not the element count",
+                () -> new SparseTensor2D(2, 3, new int[]{0, 2, 2}, columns, values));
+        expectInvalid("column out of range",
+                () -> new SparseTensor2D(2, 3, new int[]{0, 2, 3}, new int[]{0, 3, 1}, values));
+        expectInvalid("negative column",
+                () -> new SparseTensor2D(2, 3, new int[]{0, 2, 3}, new int[]{0, -1, 1}, values));
+        expectInvalid("columns and values of different lengths",
+                () -> new SparseTensor2D(2, 3, new int[]{0, 2, 3}, columns, new double[]{1.0, 2.0}));
+
+        // Wider than an int can count, as bag-of-words batches may be.
+        var wide = new SparseTensor2D(4096, 1_000_000, new int[4097], new int[0], new double[0]);
+        if (wide.sum(Math::cos) != 4096.0 * 1_000_000) {
+            throw new AssertionError("sum over " + wide.shape() + " overflowed.");
+        }
+        try {
+            int size = wide.size();
+            throw new AssertionError("size of " + wide.shape() + " wrapped to " + size);
+        } catch (ArithmeticException e) {
+            // Expected: the element count does not fit in an int.
+        }
+    }
+
+    /**
+     * A sparse file written in two blocks reads back exactly, and a shuffled
+     * SparseFileDataSource over it yields sparse batches holding the rows of
+     * the permutation.
+     */
+    private static void checkFile(SparseTensor2D sparse) throws IOException {
+        var directory = Files.createTempDirectory("sparse-test");
+        var featuresPath = directory.resolve("features.csr");
+        var labelsPath = directory.resolve("labels.tnsr");
+        try {
+            int split = sparse.nrows / 3;
+            var order = new int[sparse.nrows];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            try (var writer = new SparseTensorFile.Writer(featuresPath, sparse.ncols)) {
+                writer.append(sparse.gatherRows(order, 0, split));
+                writer.append(sparse.gatherRows(order, split, order.length));
+            }
+            var read = SparseTensorFile.read(featuresPath);
+            if (!Arrays.equals(read.rowStarts, sparse.rowStarts) || !Arrays.equals(read.columns, sparse.columns)
+                    || !Arrays.equals(read.values, sparse.values)) {
+                throw new AssertionError("The sparse file does not read back as written.");
+            }
+
+            // Each label is its row index, which identifies the rows of a batch.
+            var labelValues = new double[sparse.nrows];
+            for (int i = 0; i < labelValues.length; i++) {
+                labelValues[i] = i;
+            }
+            TensorFile.write(labelsPath, TensorBuilder.buildFromShapeAndValues(List.of(sparse.nrows, 1), labelValues));
+            try (var source = new SparseFileDataSource(featuresPath, labelsPath, 3L);
+                    var batches = source.batches(5)) {
+                while (batches.hasNext()) {
+                    var batch = batches.next();
+                    if (!(batch.features instanceof SparseTensor2D)) {
+                        throw new AssertionError("A sparse file gave a " + batch.features.getClass().getSimpleName()
+                                + " batch.");
+                    }
+                    var rows = Arrays.stream(batch.labels.toArray()).mapToInt(label -> (int) label).toArray();
+                    assertClose("batch", sparse.gatherRows(rows, 0, rows.length).toArray(), batch.features.toArray());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(featuresPath);
+            Files.deleteIfExists(labelsPath);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Forward and backward propagation through one layer, which must give
+     * the same activations and parameter derivatives. Sparse inputs only come
+     * from the data, so no derivative is computed for them: dA is null.
+     */
+    private static void checkLayer(SparseTensor2D sparse, Tensor2D dense) {
+        var weights = TensorBuilder.heInitialization(dense.ncols, 3, 17L);
+        var bias = TensorBuilder.heInitialization(1, 3, 18L);
+        var activation = new Activation(ActivationType.Sigmoid);
+        var sparseLayer = new FullyConnected(activation, weights.copy(), bias.copy());
+        var denseLayer = new FullyConnected(activation, weights.copy(), bias.copy());
+
+        var sparseResult = sparseLayer.forwardPropagate(sparse, true);
+        var denseResult = denseLayer.forwardPropagate(dense, true);
+        assertClose("a", denseResult.a.toArray(), sparseResult.a.toArray());
+        assertClose("infer", denseLayer.infer(dense).toArray(), sparseLayer.infer(sparse).toArray());
+
+        var dA = TensorBuilder.heInitialization(dense.nrows, 3, 19L);
+        var sparseBack = sparseLayer.backwardPropagate(dA, sparseResult);
+        var denseBack = denseLayer.backwardPropagate(dA, denseResult);
+        if (sparseBack.dA != null) {
+            throw new AssertionError("Backward propagation of sparse inputs must not compute dA.");
+        }
+        if (denseBack.dA == null) {
+            throw new AssertionError("Backward propagation of dense inputs must compute dA.");
+        }
+        assertClose("dW", denseBack.dParameters[FullyConnected.D_WEIGHTS].toArray(),
+                sparseBack.dParameters[FullyConnected.D_WEIGHTS].toArray());
+        assertClose("db", denseBack.dParameters[FullyConnected.D_BIAS].toArray(),
+                sparseBack.dParameters[FullyConnected.D_BIAS].toArray());
+    }
+
+    /**
+     * Training a two-layer network on sparse or dense features, from the same
+     * initial parameters and with the same batches, ends with the same
+     * parameters.
+     */
+    private static void checkTraining(SparseTensor2D sparse, Tensor2D dense, Random random) {
+        var labelValues = new double[dense.nrows];
+        for (int i = 0; i < labelValues.length; i++) {
+            labelValues[i] = random.nextBoolean() ? 1.0 : 0.0;
+        }
+        var labels = TensorBuilder.buildFromShapeAndValues(List.of(dense.nrows, 1), labelValues);
+
+        var sparseLayers = layers(dense.ncols);
+        var denseLayers = layers(dense.ncols);
+        new NeuralNetwork(sparseLayers, new CrossEntropyCost(), new Adam(0.01, 0.9, 0.999))
+                .train(sparse, labels, 20, 5);
+        new NeuralNetwork(denseLayers, new CrossEntropyCost(), new Adam(0.01, 0.9, 0.999))
+                .train(dense, labels, 20, 5);
+
+        var initialWeights = layers(dense.ncols).get(0).getState().get(FullyConnected.WEIGHTS).toArray();
+        var trainedWeights = sparseLayers.get(0).getState().get(FullyConnected.WEIGHTS).toArray();
+        if (Arrays.equals(initialWeights, trainedWeights)) {
+            throw new AssertionError("Training on sparse features did not update the first layer.");
+        }
+        for (int l = 0; l < sparseLayers.size(); l++) {
+            var sparseState = sparseLayers.get(l).getState();
+            var denseState = denseLayers.get(l).getState();
+            for (var name : denseState.keySet()) {
+                assertClose("layer " + l + " " + name, denseState.get(name).toArray(),
+                        sparseState.get(name).toArray());
+            }
+        }
+    }
+
+    private static List<Layer> layers(int inputs) {
+        return List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU),
+                        TensorBuilder.heInitialization(inputs, 4, 21L), new Tensor2D(1, 4)),
+                new FullyConnected(new Activation(ActivationType.Sigmoid),
+                        TensorBuilder.heInitialization(4, 1, 22L), new Tensor2D(1, 1)));
+    }
+
+    /**
+     * @return A dense Tensor2D in which about a quarter of the values are
+     * non-zero
+     */
+    private static Tensor2D randomSparseValues(int nrows, int ncols, Random random) {
+        var values = new double[nrows * ncols];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(4) == 0 ? random.nextGaussian() : 0.0;
+        }
+        return (Tensor2D) TensorBuilder.buildFromShapeAndValues(List.of(nrows, ncols), values);
+    }
+
+    private static void expectInvalid(String what, Runnable construction) {
+        try {
+            construction.run();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("CSR arrays with " + what + " were accepted.");
+    }
+
+    private static void assertClose(String what, double[] expected, double[] actual) {
+        if (expected.length != actual.length) {
+            throw new AssertionError(what + ": " + actual.length + " values instead of " + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > TOLERANCE * Math.max(1.0, Math.abs(expected[i]))) {
+                throw new AssertionError(what + "[" + i + "]: dense gives " + expected[i]
+                        + ", sparse gives " + actual[i]);
+            }
+        }
+    }
+}
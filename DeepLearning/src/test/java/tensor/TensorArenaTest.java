@@ -0,0 +1,154 @@
+package tensor;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks of TensorArena: buffers are reused by length from one step to the
+ * next, and in debug mode reads after release see NaN, writes after release
+ * are detected at the next release or at close, and buffers never released
+ * are reported as leaks at close. Errors carry the place the buffer was
+ * borrowed.
+ *
+ * @author tyler
+ */
+public class TensorArenaTest {
+
+    public static void main(String[] args) {
+        checkPooling();
+        checkReadAfterRelease();
+        checkWriteAfterRelease();
+        checkLeak();
+
+        System.out.println("TensorArena checks passed.");
+    }
+
+    /**
+     * Without debug mode, a released buffer is handed out again for the
+     * same length, zeroed by allocate, and never for another length.
+     */
+    private static void checkPooling() {
+        try (var arena = new TensorArena(false)) {
+            double[] first;
+            float[] firstFloats;
+            try (var scope = arena.activate()) {
+                first = TensorArena.allocateForOverwrite(7);
+                firstFloats = TensorArena.allocateFloatsForOverwrite(7);
+                first[3] = 1.0;
+            }
+            arena.releaseAll();
+            try (var scope = arena.activate()) {
+                if (TensorArena.allocate(8) == first) {
+                    throw new AssertionError("A buffer was reused for another length.");
+                }
+                var again = TensorArena.allocate(7);
+                if (again != first || again[3] != 0.0) {
+                    throw new AssertionError("A released buffer was not reused, zeroed, for the same length.");
+                }
+                if (TensorArena.allocateFloats(7) != firstFloats) {
+                    throw new AssertionError("A released float buffer was not reused for the same length.");
+                }
+            }
+            arena.releaseAll();
+        }
+    }
+
+    /**
+     * In debug mode, a Tensor computed in the arena reads as NaN once the
+     * arena is released, and its buffer is only reused after the next
+     * release.
+     */
+    private static void checkReadAfterRelease() {
+        var random = new Random(3L);
+        var a = RandomTensors.gaussian(4, 5, random);
+        var b = RandomTensors.gaussian(4, 5, random);
+        try (var arena = new TensorArena(true)) {
+            Tensor sum;
+            Tensor floatSum;
+            try (var scope = arena.activate()) {
+                sum = a.add(b);
+                floatSum = a.toPrecision(Precision.FLOAT).add(b.toPrecision(Precision.FLOAT));
+            }
+            arena.releaseAll();
+            for (var t : List.of(sum, floatSum)) {
+                for (double value : t.toArray()) {
+                    if (!Double.isNaN(value)) {
+                        throw new AssertionError("A " + t.precision() + " Tensor read " + value
+                                + " after its arena was released.");
+                    }
+                }
+            }
+
+            try (var scope = arena.activate()) {
+                if (Tensor.sameBuffer(a.add(b), sum)) {
+                    throw new AssertionError("A buffer was reused in the step after its release.");
+                }
+            }
+            arena.releaseAll();
+            try (var scope = arena.activate()) {
+                var reused = false;
+                for (int i = 0; i < 2; i++) {
+                    reused |= Tensor.sameBuffer(a.add(b), sum);
+                }
+                if (!reused) {
+                    throw new AssertionError("A buffer was not reused after two releases.");
+                }
+            }
+            arena.releaseAll();
+        }
+    }
+
+    /**
+     * In debug mode, writing to a released buffer fails the next release,
+     * or the close if there is no further release.
+     */
+    private static void checkWriteAfterRelease() {
+        var arena = new TensorArena(true);
+        double[] buffer;
+        try (var scope = arena.activate()) {
+            buffer = TensorArena.allocate(6);
+        }
+        arena.releaseAll();
+        buffer[2] = 1.0;
+        expectFailure("a write after release", "written after it was released", arena::releaseAll);
+
+        var other = new TensorArena(true);
+        float[] floats;
+        try (var scope = other.activate()) {
+            floats = TensorArena.allocateFloats(6);
+        }
+        other.releaseAll();
+        floats[5] = 1.0f;
+        expectFailure("a float write after release", "written after it was released", other::close);
+    }
+
+    /**
+     * In debug mode, closing an arena with borrowed buffers fails.
+     */
+    private static void checkLeak() {
+        var arena = new TensorArena(true);
+        try (var scope = arena.activate()) {
+            TensorArena.allocate(5);
+        }
+        expectFailure("a leak", "never released", arena::close);
+    }
+
+    /**
+     * Checks that action throws an IllegalStateException with the given
+     * text, whose cause is the place the buffer was borrowed.
+     */
+    private static void expectFailure(String what, String message, Runnable action) {
+        try {
+            action.run();
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().contains(message)) {
+                throw new AssertionError("The arena reported " + what + " as: " + e.getMessage());
+            }
+            if (e.getCause() == null || !e.getCause().getMessage().contains("borrowed here")) {
+                throw new AssertionError("The arena did not say where the buffer of " + what + " was borrowed.");
+            }
+            return;
+        }
+        throw new AssertionError("The arena did not detect " + what + ".");
+    }
+}
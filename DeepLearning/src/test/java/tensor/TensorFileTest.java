@@ -0,0 +1,238 @@
+package tensor;
+
+import data.MappedFileDataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks of TensorFile and MappedFileDataSource: files read back exactly as
+ * written, rows are copied correctly across segment boundaries and into
+ * FLOAT destinations, damaged files are rejected, and a shuffled pass over
+ * a MappedFileDataSource visits every example once with its own label.
+ *
+ * Segments are 1GB, so the segment checks map a small file with a lower
+ * segment size instead.
+ *
+ * @author tyler
+ */
+public class TensorFileTest {
+    private static final int ROWS = 11;
+
+    public static void main(String[] args) throws IOException {
+        var random = new Random(5L);
+        var t = RandomTensors.gaussian(List.of(ROWS, 2, 3, 2), random);
+        var directory = Files.createTempDirectory("tensor-file-test");
+        var path = directory.resolve("features.tnsr");
+        var labelsPath = directory.resolve("labels.tnsr");
+        var damagedPath = directory.resolve("damaged.tnsr");
+        try {
+            checkRoundTrip(path, t);
+            checkSegments(path, t);
+            checkDamaged(path, damagedPath);
+            checkShuffledPass(path, labelsPath, t);
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(labelsPath);
+            Files.deleteIfExists(damagedPath);
+            Files.delete(directory);
+        }
+
+        System.out.println("TensorFile checks passed.");
+    }
+
+    /**
+     * A file written in blocks, one of them FLOAT, reads back as the
+     * concatenation of the blocks. write and read give back the Tensor.
+     */
+    private static void checkRoundTrip(Path path, Tensor t) {
+        var rowShape = t.shape().subList(1, t.rank());
+        var values = t.toArray();
+        var expected = values.clone();
+        int split = 4;
+        int rowLength = values.length / ROWS;
+        var order = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            order[i] = i;
+        }
+        try (var writer = new TensorFile.Writer(path, rowShape)) {
+            writer.append(t.gatherRows(order, 0, split));
+            writer.append(t.gatherRows(order, split, ROWS).toPrecision(Precision.FLOAT));
+        }
+        for (int i = split * rowLength; i < expected.length; i++) {
+            expected[i] = (float) expected[i];
+        }
+        var read = TensorFile.read(path);
+        assertRows("Blocks written", read, t.shape(), expected);
+
+        TensorFile.write(path, t);
+        assertRows("Tensor written", TensorFile.read(path), t.shape(), values);
+    }
+
+    /**
+     * With three rows per segment, contiguous and gathered reads which
+     * start, end or cross segment boundaries copy the right rows, in DOUBLE
+     * and FLOAT.
+     */
+    private static void checkSegments(Path path, Tensor t) {
+        var values = t.toArray();
+        int rowLength = values.length / ROWS;
+        long rowBytes = (long) rowLength * Double.BYTES;
+        try (var file = TensorFile.open(path, 3 * rowBytes + 5)) {
+            for (int from = 0; from < ROWS; from++) {
+                for (int to = from + 1; to <= ROWS; to++) {
+                    var expected = Arrays.copyOfRange(values, from * rowLength, to * rowLength);
+                    assertRows("Rows " + from + " to " + to, file.rows(from, to), shape(t, to - from), expected);
+
+                    var dest = TensorBuilder.zeros(shape(t, to - from), Precision.FLOAT);
+                    var rounded = expected.clone();
+                    for (int i = 0; i < rounded.length; i++) {
+                        rounded[i] = (float) rounded[i];
+                    }
+                    assertRows("FLOAT rows " + from + " to " + to, file.readRowsInto(dest, from),
+                            shape(t, to - from), rounded);
+                }
+            }
+
+            // Rows from every segment, in an order which jumps between them.
+            var indices = new int[]{10, 0, 5, 3, 2, 9, 6, 1, 8, 4, 7};
+            var gathered = file.gatherRows(indices, 1, indices.length);
+            var expected = new double[(indices.length - 1) * rowLength];
+            for (int i = 1; i < indices.length; i++) {
+                System.arraycopy(values, indices[i] * rowLength, expected, (i - 1) * rowLength, rowLength);
+            }
+            assertRows("Gathered rows", gathered, shape(t, indices.length - 1), expected);
+        }
+
+        try (var file = TensorFile.open(path, rowBytes - 1)) {
+            throw new AssertionError("Rows larger than a segment were mapped.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Truncated data, a truncated header and a wrong magic number are
+     * rejected when the file is opened.
+     */
+    private static void checkDamaged(Path path, Path damagedPath) throws IOException {
+        Files.copy(path, damagedPath, StandardCopyOption.REPLACE_EXISTING);
+        try (var channel = FileChannel.open(damagedPath, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - Double.BYTES);
+        }
+        expectRejected("truncated data", damagedPath, IllegalArgumentException.class);
+
+        try (var channel = FileChannel.open(damagedPath, StandardOpenOption.WRITE)) {
+            channel.truncate(12);
+        }
+        expectRejected("truncated header", damagedPath, UncheckedIOException.class);
+
+        Files.copy(path, damagedPath, StandardCopyOption.REPLACE_EXISTING);
+        try (var channel = FileChannel.open(damagedPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'C', 'S', 'R', 'T'}), 0);
+        }
+        expectRejected("wrong magic", damagedPath, IllegalArgumentException.class);
+    }
+
+    private static void expectRejected(String what, Path path, Class<? extends RuntimeException> type) {
+        try (var file = TensorFile.open(path)) {
+            throw new AssertionError("A file with " + what + " was opened.");
+        } catch (RuntimeException e) {
+            if (!type.isInstance(e)) {
+                throw new AssertionError("A file with " + what + " threw " + e + " instead of "
+                        + type.getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Every example is visited exactly once per shuffled pass, with its own
+     * label, in batches of the requested size and a final partial batch.
+     * The order changes between passes and is repeated for the same seed.
+     */
+    private static void checkShuffledPass(Path path, Path labelsPath, Tensor t) {
+        var values = t.toArray();
+        int rowLength = values.length / ROWS;
+        var labels = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            labels[i] = i;
+        }
+        TensorFile.write(labelsPath, TensorBuilder.buildFromShapeAndValues(List.of(ROWS, 1), labels));
+
+        int[][] orders = new int[2][];
+        int[][] repeated = new int[2][];
+        try (var source = new MappedFileDataSource(path, labelsPath, 17L);
+                var again = new MappedFileDataSource(path, labelsPath, 17L)) {
+            for (int pass = 0; pass < 2; pass++) {
+                orders[pass] = pass(source, values, rowLength);
+                repeated[pass] = pass(again, values, rowLength);
+            }
+        }
+        if (Arrays.equals(orders[0], orders[1])) {
+            throw new AssertionError("Two shuffled passes visited the examples in the same order.");
+        }
+        if (!Arrays.deepEquals(orders, repeated)) {
+            throw new AssertionError("The same seed gave different orders.");
+        }
+    }
+
+    /**
+     * @return The order in which one pass visited the examples
+     */
+    private static int[] pass(MappedFileDataSource source, double[] values, int rowLength) {
+        int batchSize = 4;
+        var order = new int[ROWS];
+        var seen = new boolean[ROWS];
+        int count = 0;
+        try (var batches = source.batches(batchSize)) {
+            while (batches.hasNext()) {
+                var batch = batches.next();
+                int rows = batch.features.mDim();
+                if (rows != Math.min(batchSize, ROWS - count)) {
+                    throw new AssertionError("Batch of " + rows + " rows after " + count + " examples.");
+                }
+                var features = batch.features.toArray();
+                var labels = batch.labels.toArray();
+                for (int r = 0; r < rows; r++) {
+                    int example = (int) labels[r];
+                    if (seen[example]) {
+                        throw new AssertionError("Example " + example + " was visited twice in one pass.");
+                    }
+                    seen[example] = true;
+                    if (!Arrays.equals(Arrays.copyOfRange(features, r * rowLength, (r + 1) * rowLength),
+                            Arrays.copyOfRange(values, example * rowLength, (example + 1) * rowLength))) {
+                        throw new AssertionError("Example " + example + " has the features of another row.");
+                    }
+                    order[count++] = example;
+                }
+            }
+        }
+        if (count != ROWS) {
+            throw new AssertionError("A pass visited " + count + " examples instead of " + ROWS);
+        }
+        return order;
+    }
+
+    private static List<Integer> shape(Tensor t, int rows) {
+        var result = t.shape();
+        result.set(0, rows);
+        return result;
+    }
+
+    private static void assertRows(String what, Tensor actual, List<Integer> shape, double[] expected) {
+        if (!actual.shape().equals(shape)) {
+            throw new AssertionError(what + " have shape " + actual.shape() + " instead of " + shape);
+        }
+        if (!Arrays.equals(actual.toArray(), expected)) {
+            throw new AssertionError(what + " do not read back as written.");
+        }
+    }
+}
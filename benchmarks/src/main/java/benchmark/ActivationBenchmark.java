@@ -0,0 +1,81 @@
+package benchmark;
+
+import activation.Activation;
+import activation.ActivationType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tensor.Tensor;
+
+/**
+ * Activation functions and their derivatives.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ActivationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ApplyState {
+        @Param({"Linear", "ReLU", "Sigmoid", "Softmax", "Tanh"})
+        public ActivationType type;
+
+        @Param({"64x128", "256x1024"})
+        public String shape;
+
+        Activation activation;
+        Tensor z;
+
+        @Setup
+        public void setup() {
+            activation = new Activation(type);
+            z = Shapes.random(shape, 1L);
+        }
+    }
+
+    /**
+     * Only the types with a derivative implemented.
+     */
+    @State(Scope.Benchmark)
+    public static class DerivativeState {
+        @Param({"Linear", "ReLU", "Sigmoid"})
+        public ActivationType type;
+
+        @Param({"64x128", "256x1024"})
+        public String shape;
+
+        Activation activation;
+        Tensor dA;
+        Tensor z;
+
+        @Setup
+        public void setup() {
+            activation = new Activation(type);
+            dA = Shapes.random(shape, 1L);
+            z = Shapes.random(shape, 2L);
+        }
+    }
+
+    @Benchmark
+    public Tensor apply(ApplyState state) {
+        return state.activation.apply(state.z);
+    }
+
+    @Benchmark
+    public Tensor derivateApply(DerivativeState state) {
+        return state.activation.derivateApply(state.dA, state.z);
+    }
+}
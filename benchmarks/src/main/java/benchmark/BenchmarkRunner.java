@@ -0,0 +1,41 @@
+package benchmark;
+
+import java.io.IOException;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.
+ *
+ * Accepts the usual JMH command line, e.g. a benchmark regex or -p to
+ * override parameters, and always adds the gc profiler, so every run reports
+ * allocation rate (gc.alloc.rate.norm, bytes per op) alongside ops/s.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [regex]
+ *
+ * @author tyler
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args)
+            throws RunnerException, CommandLineOptionException, IOException {
+        var commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        var options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        var runner = new Runner(options);
+        if (commandLine.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
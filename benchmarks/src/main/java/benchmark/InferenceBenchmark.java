@@ -0,0 +1,80 @@
+package benchmark;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.LeastSquaresCost;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import layer.FullyConnected;
+import layer.Layer;
+import network.NeuralNetwork;
+import optimize.GradientDescent;
+import tensor.Tensor;
+import tensor.Tensor2D;
+
+/**
+ * Prediction with a two-layer network, returning a new Tensor or writing
+ * into a caller-owned one, with double or int8 weights. gc.alloc.rate.norm
+ * shows the per-call garbage.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class InferenceBenchmark {
+    // Examples x input features
+    @Param({"1x64", "32x256", "256x256"})
+    public String dataShape;
+
+    @Param({"256"})
+    public int hiddenNodes;
+
+    // Whether to predict with int8 weights, see NeuralNetwork.quantize
+    @Param({"false", "true"})
+    public boolean quantized;
+
+    private NeuralNetwork network;
+    private Tensor features;
+    private Tensor dest;
+
+    @Setup
+    public void setup() {
+        var shape = Shapes.parse(dataShape);
+        int inputs = shape.get(1);
+        features = Shapes.random(dataShape, 1L);
+        dest = new Tensor2D(shape.get(0), 1);
+
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU), hiddenNodes, inputs),
+                new FullyConnected(new Activation(ActivationType.Sigmoid), 1, hiddenNodes));
+        network = new NeuralNetwork(layers, new LeastSquaresCost(), new GradientDescent(0.1));
+        if (quantized) {
+            network = network.quantize(features);
+        }
+    }
+
+    @Benchmark
+    public Tensor predict() {
+        return network.predict(features);
+    }
+
+    @Benchmark
+    public Tensor predictInto() {
+        return network.predictInto(features, dest);
+    }
+}
@@ -0,0 +1,100 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import layer.BackPropResult;
+import layer.Flatten;
+import layer.ForwardPropResult;
+import layer.Pool;
+import layer.PoolingType;
+import tensor.Tensor;
+
+/**
+ * Forward and backward propagation of the layers without parameters.
+ *
+ * Input shapes are batch x height x width x channels.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class LayerBenchmark {
+
+    /**
+     * 2 x 2 pooling with stride 2 over each channel.
+     */
+    @State(Scope.Benchmark)
+    public static class PoolState {
+        @Param({"Max", "Average"})
+        public PoolingType type;
+
+        @Param({"16x28x28x8", "64x32x32x16"})
+        public String shape;
+
+        Pool pool;
+        Tensor x;
+        ForwardPropResult forward;
+        Tensor dA;
+
+        @Setup
+        public void setup() {
+            pool = new Pool(type, List.of(2, 2, 1), List.of(2, 2, 1), List.of(0, 0, 0));
+            x = Shapes.random(shape, 1L);
+            forward = pool.forwardPropagate(x, true);
+            dA = Shapes.random(forward.a.shape(), 2L);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FlattenState {
+        @Param({"16x28x28x8", "64x32x32x16"})
+        public String shape;
+
+        Flatten flatten;
+        Tensor x;
+        ForwardPropResult forward;
+        Tensor dA;
+
+        @Setup
+        public void setup() {
+            flatten = new Flatten();
+            x = Shapes.random(shape, 1L);
+            forward = flatten.forwardPropagate(x, true);
+            dA = Shapes.random(forward.a.shape(), 2L);
+        }
+    }
+
+    @Benchmark
+    public ForwardPropResult poolForward(PoolState state) {
+        return state.pool.forwardPropagate(state.x, true);
+    }
+
+    @Benchmark
+    public BackPropResult poolBackward(PoolState state) {
+        return state.pool.backwardPropagate(state.dA, state.forward);
+    }
+
+    @Benchmark
+    public ForwardPropResult flattenForward(FlattenState state) {
+        return state.flatten.forwardPropagate(state.x, true);
+    }
+
+    @Benchmark
+    public BackPropResult flattenBackward(FlattenState state) {
+        return state.flatten.backwardPropagate(state.dA, state.forward);
+    }
+}
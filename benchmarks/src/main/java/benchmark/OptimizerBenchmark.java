@@ -0,0 +1,85 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import layer.FullyConnected;
+import optimize.Adam;
+import optimize.GradientDescent;
+import optimize.Momentum;
+import optimize.Optimizer;
+import optimize.RMSProp;
+import tensor.Tensor;
+
+/**
+ * One optimizer step for the derivatives of a FullyConnected layer, either
+ * computing the updates or applying them to the parameters in place.
+ *
+ * Shapes are inputs x nodes of the layer's weights.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class OptimizerBenchmark {
+    @Param({"GradientDescent", "Momentum", "RMSProp", "Adam"})
+    public String optimizerName;
+
+    @Param({"128x64", "1024x1024"})
+    public String weightShape;
+
+    private Optimizer optimizer;
+    private Tensor[] parameters;
+    private Tensor[] dParameters;
+
+    @Setup
+    public void setup() {
+        optimizer = create(optimizerName);
+        int nodes = Shapes.parse(weightShape).get(1);
+        dParameters = new Tensor[2];
+        dParameters[FullyConnected.D_WEIGHTS] = Shapes.random(weightShape, 1L);
+        dParameters[FullyConnected.D_BIAS] = Shapes.random("1x" + nodes, 2L);
+        parameters = new Tensor[2];
+        parameters[FullyConnected.D_WEIGHTS] = Shapes.random(weightShape, 3L);
+        parameters[FullyConnected.D_BIAS] = Shapes.random("1x" + nodes, 4L);
+    }
+
+    @Benchmark
+    public Tensor[] computeParameterUpdates() {
+        return optimizer.computeParameterUpdates(dParameters, 0);
+    }
+
+    @Benchmark
+    public Tensor[] updateInPlace() {
+        optimizer.updateInPlace(parameters, dParameters, 0);
+        return parameters;
+    }
+
+    static Optimizer create(String name) {
+        switch (name) {
+            case "GradientDescent":
+                return new GradientDescent(0.01);
+            case "Momentum":
+                return new Momentum(0.01, 0.9);
+            case "RMSProp":
+                return new RMSProp(0.01, 0.999);
+            case "Adam":
+                return new Adam(0.01, 0.9, 0.999);
+            default:
+                throw new IllegalArgumentException("Unknown optimizer " + name + ".");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import tensor.Tensor;
+import tensor.TensorBuilder;
+
+/**
+ * Helpers for building benchmark inputs from shape parameters.
+ *
+ * Shapes are written as sizes joined by 'x', e.g. "64x28x28x8", so they can
+ * be given as JMH @Param values.
+ *
+ * @author tyler
+ */
+final class Shapes {
+    static final long SEED = TensorBuilder.DEFAULT_SEED;
+
+    private Shapes() {
+    }
+
+    static List<Integer> parse(String shape) {
+        var result = new ArrayList<Integer>();
+        for (var size : shape.split("x")) {
+            result.add(Integer.parseInt(size.trim()));
+        }
+        return result;
+    }
+
+    /**
+     * @return A Tensor of the given shape with standard normal values
+     */
+    static Tensor random(List<Integer> shape, long seed) {
+        int count = 1;
+        for (int size : shape) {
+            count *= size;
+        }
+        var values = TensorBuilder.sdInitialization(1, count, 1.0, seed).toArray();
+        return TensorBuilder.buildFromShapeAndValues(shape, values);
+    }
+
+    static Tensor random(String shape, long seed) {
+        return random(parse(shape), seed);
+    }
+}
@@ -0,0 +1,167 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tensor.SparseTensor2D;
+import tensor.Tensor;
+import tensor.Tensor2D;
+import tensor.TensorMath;
+
+/**
+ * Tensor kernels: matrix multiplication and broadcasting element-wise ops.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class TensorBenchmark {
+
+    /**
+     * A batch x width activation times a width x width weight matrix, the
+     * shape of a FullyConnected forward pass. Widths double from 64 to 4096,
+     * past the point where the weights no longer fit in cache.
+     */
+    @State(Scope.Benchmark)
+    public static class MatrixMultiplyState {
+        @Param({"64x64", "256x64", "256x128", "256x256", "256x512", "256x1024", "256x2048", "256x4096"})
+        public String batchByWidth;
+
+        int batch;
+        int width;
+        Tensor2D activations;
+        Tensor2D weights;
+        double[] activationValues;
+        double[] weightValues;
+
+        @Setup
+        public void setup() {
+            var shape = Shapes.parse(batchByWidth);
+            batch = shape.get(0);
+            width = shape.get(1);
+            activations = (Tensor2D) Shapes.random(batch + "x" + width, 1L);
+            weights = (Tensor2D) Shapes.random(width + "x" + width, 2L);
+            activationValues = activations.toArray();
+            weightValues = weights.toArray();
+        }
+    }
+
+    /**
+     * A batch x vocabulary input with a fixed number of ones per row, times
+     * a vocabulary x 64 weight matrix, the shape of a FullyConnected layer
+     * over bag-of-words features.
+     */
+    @State(Scope.Benchmark)
+    public static class SparseMultiplyState {
+        @Param({"256x10000", "256x100000"})
+        public String batchByVocabulary;
+
+        @Param({"32"})
+        public int nonZerosPerRow;
+
+        SparseTensor2D input;
+        Tensor2D weights;
+        Tensor2D dZ;
+
+        @Setup
+        public void setup() {
+            var shape = Shapes.parse(batchByVocabulary);
+            int batch = shape.get(0);
+            int vocabulary = shape.get(1);
+            var random = new Random(Shapes.SEED);
+            var builder = new SparseTensor2D.Builder(vocabulary);
+            for (int i = 0; i < batch; i++) {
+                for (int j = 0; j < nonZerosPerRow; j++) {
+                    builder.add(random.nextInt(vocabulary), 1.0);
+                }
+                builder.endRow();
+            }
+            input = builder.build();
+            weights = (Tensor2D) Shapes.random(vocabulary + "x64", 1L);
+            dZ = (Tensor2D) Shapes.random(batch + "x64", 2L);
+        }
+    }
+
+    /**
+     * Pairs of operand shapes, separated by '+'. Covers same-shape, row,
+     * column and scalar broadcasts, in 2D and 4D.
+     */
+    @State(Scope.Benchmark)
+    public static class BroadcastState {
+        @Param({"256x256+256x256", "256x256+1x256", "256x256+256x1", "256x256+1x1",
+            "32x28x28x8+1x1x1x8", "32x28x28x8+32x28x28x8"})
+        public String shapes;
+
+        Tensor left;
+        Tensor right;
+
+        @Setup
+        public void setup() {
+            var operands = shapes.split("\\+");
+            left = Shapes.random(operands[0], 1L);
+            right = Shapes.random(operands[1], 2L);
+        }
+    }
+
+    @Benchmark
+    public Tensor matrixMultiply(MatrixMultiplyState state) {
+        return state.activations.matrixMultiply(state.weights);
+    }
+
+    /**
+     * The i-j-k loop which the blocked GEMM replaced, as a baseline for
+     * matrixMultiply.
+     */
+    @Benchmark
+    public double[] naiveMatrixMultiply(MatrixMultiplyState state) {
+        int m = state.batch;
+        int n = state.width;
+        int k = state.width;
+        double[] left = state.activationValues;
+        double[] right = state.weightValues;
+        double[] result = new double[m * n];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double sum = 0.0;
+                for (int p = 0; p < k; p++) {
+                    sum += left[i * k + p] * right[p * n + j];
+                }
+                result[i * n + j] = sum;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Tensor applyBinary(BroadcastState state) {
+        return TensorMath.applyBinary(state.left, state.right, (a, b) -> a + b);
+    }
+
+    @Benchmark
+    public Tensor add(BroadcastState state) {
+        return TensorMath.add(state.left, state.right);
+    }
+
+    @Benchmark
+    public Tensor sparseMultiply(SparseMultiplyState state) {
+        return state.input.matrixMultiply(state.weights);
+    }
+
+    @Benchmark
+    public Tensor sparseTransposeMultiply(SparseMultiplyState state) {
+        return state.input.transposeMultiply(state.dZ, 1.0);
+    }
+}
@@ -0,0 +1,74 @@
+package benchmark;
+
+import activation.Activation;
+import activation.ActivationType;
+import cost.LeastSquaresCost;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import layer.FullyConnected;
+import layer.Layer;
+import network.NeuralNetwork;
+import network.TrainingHistory;
+import tensor.Tensor;
+
+/**
+ * A full training epoch of a two-layer network, including shuffling,
+ * forward and backward propagation and the optimizer updates.
+ *
+ * @author tyler
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+    // Examples x input features
+    @Param({"1024x64", "4096x256"})
+    public String dataShape;
+
+    @Param({"64", "256"})
+    public int hiddenNodes;
+
+    @Param({"32", "256"})
+    public int batchSize;
+
+    @Param({"GradientDescent", "Adam"})
+    public String optimizerName;
+
+    private NeuralNetwork network;
+    private Tensor features;
+    private Tensor labels;
+
+    @Setup
+    public void setup() {
+        var shape = Shapes.parse(dataShape);
+        int m = shape.get(0);
+        int inputs = shape.get(1);
+        features = Shapes.random(dataShape, 1L);
+        labels = Shapes.random(m + "x1", 2L).map(v -> v >= 0.0 ? 1.0 : 0.0);
+
+        List<Layer> layers = List.of(
+                new FullyConnected(new Activation(ActivationType.ReLU), hiddenNodes, inputs),
+                new FullyConnected(new Activation(ActivationType.Sigmoid), 1, hiddenNodes));
+        network = new NeuralNetwork(layers, new LeastSquaresCost(),
+                OptimizerBenchmark.create(optimizerName));
+    }
+
+    @Benchmark
+    public TrainingHistory trainEpoch() {
+        return network.train(features, labels, 1, batchSize);
+    }
+}